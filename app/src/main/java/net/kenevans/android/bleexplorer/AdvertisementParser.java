@@ -0,0 +1,376 @@
+package net.kenevans.android.bleexplorer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the AD structures of an advertisement or scan response, as in
+ * ScanRecord.getBytes(), in place. The fields are kept as offsets and
+ * lengths into the bytes, or as ints, and the parser is reused for each
+ * record, so parsing does not allocate. Only {@link #getName()} makes a
+ * String, and {@link #nameEquals(String)} lets a caller find out whether
+ * it needs to.
+ * <p>
+ * Up to {@link #MAX_ENTRIES} service UUIDs of each size and service data
+ * entries are kept, which is more than fit in 62 bytes of the legacy
+ * advertisement and scan response. Structures that run past the end are
+ * ignored. An instance is used by one thread at a time.
+ */
+public class AdvertisementParser {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_NAME_SHORT = 0x08;
+    public static final int TYPE_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER = 0x0A;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_SERVICE_DATA32 = 0x20;
+    public static final int TYPE_SERVICE_DATA128 = 0x21;
+    public static final int TYPE_MANUFACTURER = 0xFF;
+
+    public static final int MAX_ENTRIES = 8;
+    /** The value of getTxPower() and getManufacturerId() if absent. */
+    public static final int NONE = Integer.MIN_VALUE;
+
+    private byte[] mData;
+    private int mFlags;
+    private int mTxPower;
+    private int mNameOffset;
+    private int mNameLength;
+    private boolean mNameComplete;
+    private int mManufacturerId;
+    private int mManufacturerOffset;
+    private int mManufacturerLength;
+    /** 16- and 32-bit service UUIDs. */
+    private final int[] mUuids = new int[MAX_ENTRIES];
+    private int mUuidCount;
+    /** Offsets of 128-bit service UUIDs, little endian. */
+    private final int[] mUuid128Offsets = new int[MAX_ENTRIES];
+    private int mUuid128Count;
+    /** Offsets of service data UUIDs, then of the data. */
+    private final int[] mServiceDataUuidOffsets = new int[MAX_ENTRIES];
+    private final int[] mServiceDataUuidLengths = new int[MAX_ENTRIES];
+    private final int[] mServiceDataOffsets = new int[MAX_ENTRIES];
+    private final int[] mServiceDataLengths = new int[MAX_ENTRIES];
+    private int mServiceDataCount;
+    private int mStructureCount;
+
+    /**
+     * Parses a record. The bytes are referenced, not copied, so they must
+     * not change while the fields are used.
+     *
+     * @param data The record, or null for an empty one.
+     * @return The number of AD structures found.
+     */
+    public int parse(byte[] data) {
+        mData = data;
+        mFlags = 0;
+        mTxPower = NONE;
+        mNameOffset = 0;
+        mNameLength = 0;
+        mNameComplete = false;
+        mManufacturerId = NONE;
+        mManufacturerOffset = 0;
+        mManufacturerLength = 0;
+        mUuidCount = 0;
+        mUuid128Count = 0;
+        mServiceDataCount = 0;
+        mStructureCount = 0;
+        if (data == null) return 0;
+        int pos = 0;
+        while (pos < data.length) {
+            final int length = data[pos] & 0xff;
+            // A 0 length is significant padding to the end
+            if (length == 0 || pos + 1 + length > data.length) break;
+            parseStructure(data[pos + 1] & 0xff, pos + 2, length - 1);
+            mStructureCount++;
+            pos += 1 + length;
+        }
+        return mStructureCount;
+    }
+
+    private void parseStructure(int type, int offset, int length) {
+        final byte[] d = mData;
+        switch (type) {
+            case TYPE_FLAGS:
+                if (length >= 1) mFlags = d[offset] & 0xff;
+                break;
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16_COMPLETE:
+                for (int i = 0; i + 2 <= length; i += 2) {
+                    addUuid(uint16(offset + i));
+                }
+                break;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32_COMPLETE:
+                for (int i = 0; i + 4 <= length; i += 4) {
+                    addUuid(uint16(offset + i) | uint16(offset + i + 2) << 16);
+                }
+                break;
+            case TYPE_UUID128_INCOMPLETE:
+            case TYPE_UUID128_COMPLETE:
+                for (int i = 0; i + 16 <= length
+                        && mUuid128Count < MAX_ENTRIES; i += 16) {
+                    mUuid128Offsets[mUuid128Count++] = offset + i;
+                }
+                break;
+            case TYPE_NAME_SHORT:
+            case TYPE_NAME_COMPLETE:
+                // Prefer the complete name if both are there
+                if (!mNameComplete) {
+                    mNameOffset = offset;
+                    mNameLength = length;
+                    mNameComplete = type == TYPE_NAME_COMPLETE;
+                }
+                break;
+            case TYPE_TX_POWER:
+                if (length >= 1) mTxPower = d[offset];
+                break;
+            case TYPE_SERVICE_DATA16:
+                addServiceData(offset, 2, length);
+                break;
+            case TYPE_SERVICE_DATA32:
+                addServiceData(offset, 4, length);
+                break;
+            case TYPE_SERVICE_DATA128:
+                addServiceData(offset, 16, length);
+                break;
+            case TYPE_MANUFACTURER:
+                // Keep the first
+                if (length >= 2 && mManufacturerId == NONE) {
+                    mManufacturerId = uint16(offset);
+                    mManufacturerOffset = offset + 2;
+                    mManufacturerLength = length - 2;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private int uint16(int offset) {
+        return (mData[offset] & 0xff) | (mData[offset + 1] & 0xff) << 8;
+    }
+
+    private void addUuid(int uuid) {
+        if (mUuidCount < MAX_ENTRIES) mUuids[mUuidCount++] = uuid;
+    }
+
+    private void addServiceData(int offset, int uuidLength, int length) {
+        if (length < uuidLength || mServiceDataCount >= MAX_ENTRIES) return;
+        final int i = mServiceDataCount++;
+        mServiceDataUuidOffsets[i] = offset;
+        mServiceDataUuidLengths[i] = uuidLength;
+        mServiceDataOffsets[i] = offset + uuidLength;
+        mServiceDataLengths[i] = length - uuidLength;
+    }
+
+    /**
+     * @return The bytes last parsed.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getStructureCount() {
+        return mStructureCount;
+    }
+
+    /**
+     * @return The flags, 0 if absent. Bit 1 is LE General Discoverable.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return The TX power level in dBm, or NONE.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    public boolean hasName() {
+        return mNameLength > 0;
+    }
+
+    public boolean isNameComplete() {
+        return mNameComplete;
+    }
+
+    public int getNameOffset() {
+        return mNameOffset;
+    }
+
+    public int getNameLength() {
+        return mNameLength;
+    }
+
+    /**
+     * @return The local name, or null if absent. This allocates.
+     */
+    public String getName() {
+        if (mNameLength == 0) return null;
+        return new String(mData, mNameOffset, mNameLength,
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the name without making a String, unless it is not ASCII.
+     *
+     * @param name The name to compare with, or null.
+     * @return If the advertised name is the same. False if either is
+     * absent.
+     */
+    public boolean nameEquals(String name) {
+        if (name == null || mNameLength == 0) return false;
+        if (!isNameAscii()) return name.equals(getName());
+        if (name.length() != mNameLength) return false;
+        return asciiRegionMatches(name, name.length());
+    }
+
+    /**
+     * @param prefix The prefix.
+     * @return If the advertised name starts with the prefix. An empty
+     * prefix matches any record.
+     */
+    public boolean nameStartsWith(String prefix) {
+        if (prefix.isEmpty()) return true;
+        if (mNameLength == 0) return false;
+        if (!isNameAscii()) {
+            final String name = getName();
+            return name.startsWith(prefix);
+        }
+        if (prefix.length() > mNameLength) return false;
+        return asciiRegionMatches(prefix, prefix.length());
+    }
+
+    private boolean isNameAscii() {
+        for (int i = 0; i < mNameLength; i++) {
+            if (mData[mNameOffset + i] < 0) return false;
+        }
+        return true;
+    }
+
+    private boolean asciiRegionMatches(String s, int n) {
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(i) != mData[mNameOffset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The first company identifier in the manufacturer specific
+     * data, or NONE.
+     */
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * @return The offset of the manufacturer data after the ID.
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerOffset;
+    }
+
+    public int getManufacturerDataLength() {
+        return mManufacturerLength;
+    }
+
+    /**
+     * @return The number of 16- and 32-bit service UUIDs.
+     */
+    public int getServiceUuidCount() {
+        return mUuidCount;
+    }
+
+    /**
+     * @param index The index.
+     * @return A 16- or 32-bit service UUID. SIG short UUIDs are in the
+     * base 0000xxxx-0000-1000-8000-00805f9b34fb.
+     */
+    public int getServiceUuid(int index) {
+        return mUuids[index];
+    }
+
+    public int getServiceUuid128Count() {
+        return mUuid128Count;
+    }
+
+    /**
+     * @param index The index.
+     * @return The most significant bits of a 128-bit service UUID.
+     */
+    public long getServiceUuid128Msb(int index) {
+        return readLong(mUuid128Offsets[index] + 8);
+    }
+
+    /**
+     * @param index The index.
+     * @return The least significant bits of a 128-bit service UUID.
+     */
+    public long getServiceUuid128Lsb(int index) {
+        return readLong(mUuid128Offsets[index]);
+    }
+
+    /** Reads 8 little endian bytes. */
+    private long readLong(int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (mData[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @param uuid A 16-bit service UUID.
+     * @return If it is listed in the record.
+     */
+    public boolean hasServiceUuid(int uuid) {
+        for (int i = 0; i < mUuidCount; i++) {
+            if (mUuids[i] == uuid) return true;
+        }
+        return false;
+    }
+
+    public int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    /**
+     * @param index The index.
+     * @return The UUID of service data if it is 16 or 32 bits, otherwise
+     * -1. Use the offset for a 128-bit one.
+     */
+    public int getServiceDataUuid(int index) {
+        final int offset = mServiceDataUuidOffsets[index];
+        switch (mServiceDataUuidLengths[index]) {
+            case 2:
+                return uint16(offset);
+            case 4:
+                return uint16(offset) | uint16(offset + 2) << 16;
+            default:
+                return -1;
+        }
+    }
+
+    public int getServiceDataUuidOffset(int index) {
+        return mServiceDataUuidOffsets[index];
+    }
+
+    public int getServiceDataUuidLength(int index) {
+        return mServiceDataUuidLengths[index];
+    }
+
+    public int getServiceDataOffset(int index) {
+        return mServiceDataOffsets[index];
+    }
+
+    public int getServiceDataLength(int index) {
+        return mServiceDataLengths[index];
+    }
+}
@@ -0,0 +1,244 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.Arrays;
+
+/**
+ * Streaming statistics of the advertisements of many devices, one row per
+ * device: the exponentially weighted moving average, minimum and maximum of
+ * the RSSI, an estimate of the advertising interval, the packet rate and
+ * when the device was last seen. They are kept in primitive arrays indexed
+ * by row, so adding a result is O(1) and does not allocate.
+ * <p>
+ * The advertising interval is estimated from the gaps between packets.
+ * Packets are often missed, so a gap near a multiple of the estimate is
+ * divided by that multiple before it is averaged in. The rate is the count
+ * of packets over the last complete window of {@link #RATE_WINDOW_NANOS}.
+ * <p>
+ * It is not thread safe. The owner must synchronize.
+ */
+public class AdvertisementStats {
+    /** The weight of a new sample in the moving averages. */
+    public static final float ALPHA = 0.125f;
+    public static final long RATE_WINDOW_NANOS = 1000000000L;
+    /** Gaps shorter than this are duplicates on another channel. */
+    private static final long MIN_GAP_NANOS = 2000000L;
+
+    private int mCapacity;
+    private int[] mCount;
+    private float[] mRssiAverage;
+    private byte[] mRssiMin;
+    private byte[] mRssiMax;
+    private long[] mFirstSeen;
+    private long[] mLastSeen;
+    /** The estimated advertising interval in ns, 0 if not known yet. */
+    private float[] mInterval;
+    private long[] mWindowStart;
+    private int[] mWindowCount;
+    private float[] mRate;
+
+    /**
+     * @param capacity The initial number of rows.
+     */
+    public AdvertisementStats(int capacity) {
+        mCount = new int[capacity];
+        mRssiAverage = new float[capacity];
+        mRssiMin = new byte[capacity];
+        mRssiMax = new byte[capacity];
+        mFirstSeen = new long[capacity];
+        mLastSeen = new long[capacity];
+        mInterval = new float[capacity];
+        mWindowStart = new long[capacity];
+        mWindowCount = new int[capacity];
+        mRate = new float[capacity];
+        mCapacity = capacity;
+    }
+
+    /**
+     * Makes room for at least the given number of rows, keeping the
+     * existing ones.
+     *
+     * @param capacity The number of rows.
+     */
+    public void ensureCapacity(int capacity) {
+        if (mCapacity >= capacity) return;
+        final int size = Math.max(capacity, 2 * mCapacity);
+        mCount = Arrays.copyOf(mCount, size);
+        mRssiAverage = Arrays.copyOf(mRssiAverage, size);
+        mRssiMin = Arrays.copyOf(mRssiMin, size);
+        mRssiMax = Arrays.copyOf(mRssiMax, size);
+        mFirstSeen = Arrays.copyOf(mFirstSeen, size);
+        mLastSeen = Arrays.copyOf(mLastSeen, size);
+        mInterval = Arrays.copyOf(mInterval, size);
+        mWindowStart = Arrays.copyOf(mWindowStart, size);
+        mWindowCount = Arrays.copyOf(mWindowCount, size);
+        mRate = Arrays.copyOf(mRate, size);
+        mCapacity = size;
+    }
+
+    /**
+     * Adds a packet.
+     *
+     * @param row            The row of the device. It must be below the
+     *                       capacity.
+     * @param timestampNanos When it was received. Results for a row must be
+     *                       added in time order.
+     * @param rssi           The RSSI in dBm.
+     */
+    public void add(int row, long timestampNanos, int rssi) {
+        final int count = mCount[row];
+        if (count == 0) {
+            mRssiAverage[row] = rssi;
+            mRssiMin[row] = (byte) rssi;
+            mRssiMax[row] = (byte) rssi;
+            mFirstSeen[row] = timestampNanos;
+            mLastSeen[row] = timestampNanos;
+            mWindowStart[row] = timestampNanos;
+            mWindowCount[row] = 1;
+            mCount[row] = 1;
+            return;
+        }
+        mCount[row] = count + 1;
+        mRssiAverage[row] += ALPHA * (rssi - mRssiAverage[row]);
+        if (rssi < mRssiMin[row]) mRssiMin[row] = (byte) rssi;
+        if (rssi > mRssiMax[row]) mRssiMax[row] = (byte) rssi;
+
+        final long gap = timestampNanos - mLastSeen[row];
+        if (gap >= MIN_GAP_NANOS) {
+            final float interval = mInterval[row];
+            if (interval == 0) {
+                mInterval[row] = gap;
+            } else {
+                // Assume the gap spans this many intervals
+                final long missed = Math.max(1, Math.round(gap / interval));
+                mInterval[row] += ALPHA * ((float) gap / missed - interval);
+            }
+        }
+        mLastSeen[row] = timestampNanos;
+
+        final long window = timestampNanos - mWindowStart[row];
+        if (window >= RATE_WINDOW_NANOS) {
+            mRate[row] = mWindowCount[row] * 1e9f / window;
+            mWindowStart[row] = timestampNanos;
+            mWindowCount[row] = 1;
+        } else {
+            mWindowCount[row]++;
+        }
+    }
+
+    /**
+     * Copies rows from another instance.
+     *
+     * @param src   The source.
+     * @param start The first row.
+     * @param n     The number of rows.
+     */
+    public void copyRows(AdvertisementStats src, int start, int n) {
+        ensureCapacity(start + n);
+        System.arraycopy(src.mCount, start, mCount, start, n);
+        System.arraycopy(src.mRssiAverage, start, mRssiAverage, start, n);
+        System.arraycopy(src.mRssiMin, start, mRssiMin, start, n);
+        System.arraycopy(src.mRssiMax, start, mRssiMax, start, n);
+        System.arraycopy(src.mFirstSeen, start, mFirstSeen, start, n);
+        System.arraycopy(src.mLastSeen, start, mLastSeen, start, n);
+        System.arraycopy(src.mInterval, start, mInterval, start, n);
+        System.arraycopy(src.mWindowStart, start, mWindowStart, start, n);
+        System.arraycopy(src.mWindowCount, start, mWindowCount, start, n);
+        System.arraycopy(src.mRate, start, mRate, start, n);
+    }
+
+    /**
+     * Moves a row to a lower one, which is overwritten.
+     *
+     * @param from The row to move.
+     * @param to   The row to move it to.
+     */
+    public void moveRow(int from, int to) {
+        mCount[to] = mCount[from];
+        mRssiAverage[to] = mRssiAverage[from];
+        mRssiMin[to] = mRssiMin[from];
+        mRssiMax[to] = mRssiMax[from];
+        mFirstSeen[to] = mFirstSeen[from];
+        mLastSeen[to] = mLastSeen[from];
+        mInterval[to] = mInterval[from];
+        mWindowStart[to] = mWindowStart[from];
+        mWindowCount[to] = mWindowCount[from];
+        mRate[to] = mRate[from];
+    }
+
+    /**
+     * Clears the given number of rows from the start.
+     *
+     * @param n The number of rows.
+     */
+    public void clear(int n) {
+        clear(0, n);
+    }
+
+    /**
+     * Clears a range of rows.
+     *
+     * @param start The first row.
+     * @param end   The row after the last.
+     */
+    public void clear(int start, int end) {
+        end = Math.min(end, mCapacity);
+        if (start >= end) return;
+        Arrays.fill(mCount, start, end, 0);
+        Arrays.fill(mInterval, start, end, 0);
+        Arrays.fill(mRate, start, end, 0);
+    }
+
+    public int getCount(int row) {
+        return mCount[row];
+    }
+
+    public float getRssiAverage(int row) {
+        return mRssiAverage[row];
+    }
+
+    public int getRssiMin(int row) {
+        return mRssiMin[row];
+    }
+
+    public int getRssiMax(int row) {
+        return mRssiMax[row];
+    }
+
+    public long getFirstSeenNanos(int row) {
+        return mFirstSeen[row];
+    }
+
+    public long getLastSeenNanos(int row) {
+        return mLastSeen[row];
+    }
+
+    /**
+     * @param row The row.
+     * @return The estimated advertising interval in ms, or 0 if fewer than
+     * two packets have been seen.
+     */
+    public float getIntervalMillis(int row) {
+        return mInterval[row] / 1e6f;
+    }
+
+    /**
+     * @param row      The row.
+     * @param nowNanos The current time, in the units of the timestamps.
+     * @return The packets per second. Until a window has completed, it is
+     * the rate so far. It decays once the device stops being seen.
+     */
+    public float getRate(int row, long nowNanos) {
+        if (mCount[row] == 0) return 0;
+        if (mRate[row] == 0) {
+            final long span = nowNanos - mFirstSeen[row];
+            return span < RATE_WINDOW_NANOS / 10 ? 0 :
+                    mCount[row] * 1e9f / span;
+        }
+        final long window = nowNanos - mWindowStart[row];
+        if (window >= 2 * RATE_WINDOW_NANOS) {
+            // The last complete window is stale
+            return mWindowCount[row] * 1e9f / window;
+        }
+        return mRate[row];
+    }
+}
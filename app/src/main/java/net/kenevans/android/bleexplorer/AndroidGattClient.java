@@ -0,0 +1,353 @@
+package net.kenevans.android.bleexplorer;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A {@link GattClient} that uses a BluetoothGatt. The services found by
+ * each discovery are copied into {@link GattService}s, and the Android
+ * objects are kept with them, so operations and callbacks can be passed
+ * between the two.
+ */
+@SuppressLint("MissingPermission")
+public class AndroidGattClient implements GattClient {
+    private static final String TAG = AndroidGattClient.class
+            .getSimpleName();
+
+    private final Callback mCallback;
+    private volatile BluetoothGatt mGatt;
+    /** The services of the last discovery. Replaced as a whole. */
+    private volatile Mirror mMirror = new Mirror();
+
+    /**
+     * The app's copies of the services, and the maps between them and the
+     * Android objects.
+     */
+    private static class Mirror {
+        final List<GattService> services = new ArrayList<>();
+        final IdentityHashMap<GattCharacteristic,
+                BluetoothGattCharacteristic> toCharacteristic =
+                new IdentityHashMap<>();
+        final IdentityHashMap<BluetoothGattCharacteristic,
+                GattCharacteristic> fromCharacteristic =
+                new IdentityHashMap<>();
+        final IdentityHashMap<GattDescriptor, BluetoothGattDescriptor>
+                toDescriptor = new IdentityHashMap<>();
+        final IdentityHashMap<BluetoothGattDescriptor, GattDescriptor>
+                fromDescriptor = new IdentityHashMap<>();
+    }
+
+    /**
+     * Creates clients with BluetoothDevice.connectGatt.
+     */
+    public static class Factory implements GattClient.Factory {
+        private final Context mContext;
+        private final BluetoothAdapter mAdapter;
+
+        public Factory(Context context, BluetoothAdapter adapter) {
+            mContext = context;
+            mAdapter = adapter;
+        }
+
+        @Override
+        public GattClient connect(String address, Callback callback) {
+            final BluetoothDevice device = mAdapter.getRemoteDevice(address);
+            if (device == null) {
+                Log.w(TAG, "Device not found.  Unable to connect.");
+                return null;
+            }
+            final AndroidGattClient client = new AndroidGattClient(callback);
+            // We want to directly connect to the device, so we are setting
+            // the autoConnect parameter to false.
+            final BluetoothGatt gatt = device.connectGatt(mContext, false,
+                    client.mGattCallback);
+            if (gatt == null) return null;
+            client.mGatt = gatt;
+            return client;
+        }
+    }
+
+    private AndroidGattClient(Callback callback) {
+        mCallback = callback;
+    }
+
+    private static Mirror mirror(List<BluetoothGattService> services) {
+        final Mirror mirror = new Mirror();
+        for (BluetoothGattService service : services) {
+            final GattService copy = new GattService(service.getUuid(),
+                    service.getInstanceId(), service.getType());
+            for (BluetoothGattCharacteristic characteristic :
+                    service.getCharacteristics()) {
+                final GattCharacteristic characteristicCopy =
+                        copy(characteristic);
+                for (BluetoothGattDescriptor descriptor :
+                        characteristic.getDescriptors()) {
+                    final GattDescriptor descriptorCopy =
+                            new GattDescriptor(descriptor.getUuid(),
+                                    descriptor.getPermissions());
+                    characteristicCopy.addDescriptor(descriptorCopy);
+                    mirror.toDescriptor.put(descriptorCopy, descriptor);
+                    mirror.fromDescriptor.put(descriptor, descriptorCopy);
+                }
+                copy.addCharacteristic(characteristicCopy);
+                mirror.toCharacteristic.put(characteristicCopy,
+                        characteristic);
+                mirror.fromCharacteristic.put(characteristic,
+                        characteristicCopy);
+            }
+            mirror.services.add(copy);
+        }
+        return mirror;
+    }
+
+    private static GattCharacteristic copy(
+            BluetoothGattCharacteristic characteristic) {
+        return new GattCharacteristic(characteristic.getUuid(),
+                characteristic.getInstanceId(),
+                characteristic.getProperties(),
+                characteristic.getPermissions());
+    }
+
+    /**
+     * @return The copy of a characteristic, or a new one not in a service
+     * if it is not from the last discovery.
+     */
+    private GattCharacteristic find(
+            BluetoothGattCharacteristic characteristic) {
+        final GattCharacteristic found =
+                mMirror.fromCharacteristic.get(characteristic);
+        return found != null ? found : copy(characteristic);
+    }
+
+    private GattDescriptor find(BluetoothGattDescriptor descriptor) {
+        final GattDescriptor found = mMirror.fromDescriptor.get(descriptor);
+        return found != null ? found : new GattDescriptor(
+                descriptor.getUuid(), descriptor.getPermissions());
+    }
+
+    private final BluetoothGattCallback mGattCallback =
+            new BluetoothGattCallback() {
+                @Override
+                public void onConnectionStateChange(BluetoothGatt gatt,
+                                                    int status,
+                                                    int newState) {
+                    mCallback.onConnectionStateChange(status, newState);
+                }
+
+                @Override
+                public void onServicesDiscovered(BluetoothGatt gatt,
+                                                 int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mMirror = mirror(gatt.getServices());
+                    }
+                    mCallback.onServicesDiscovered(status);
+                }
+
+                @Override
+                @SuppressWarnings("deprecation")
+                public void onCharacteristicRead(BluetoothGatt gatt,
+                                                 BluetoothGattCharacteristic
+                                                         characteristic,
+                                                 int status) {
+                    mCallback.onCharacteristicRead(find(characteristic),
+                            characteristic.getValue(), status);
+                }
+
+                @Override
+                public void onCharacteristicRead(BluetoothGatt gatt,
+                                                 BluetoothGattCharacteristic
+                                                         characteristic,
+                                                 byte[] value, int status) {
+                    // API 33, where the value no longer comes from the
+                    // shared characteristic
+                    mCallback.onCharacteristicRead(find(characteristic),
+                            value, status);
+                }
+
+                @Override
+                public void onCharacteristicWrite(BluetoothGatt gatt,
+                                                  BluetoothGattCharacteristic
+                                                          characteristic,
+                                                  int status) {
+                    mCallback.onCharacteristicWrite(find(characteristic),
+                            status);
+                }
+
+                @Override
+                @SuppressWarnings("deprecation")
+                public void onDescriptorRead(BluetoothGatt gatt,
+                                             BluetoothGattDescriptor
+                                                     descriptor,
+                                             int status) {
+                    mCallback.onDescriptorRead(find(descriptor),
+                            descriptor.getValue(), status);
+                }
+
+                @Override
+                public void onDescriptorRead(BluetoothGatt gatt,
+                                             BluetoothGattDescriptor
+                                                     descriptor,
+                                             int status, byte[] value) {
+                    // API 33
+                    mCallback.onDescriptorRead(find(descriptor), value,
+                            status);
+                }
+
+                @Override
+                public void onDescriptorWrite(BluetoothGatt gatt,
+                                              BluetoothGattDescriptor
+                                                      descriptor,
+                                              int status) {
+                    mCallback.onDescriptorWrite(find(descriptor), status);
+                }
+
+                @Override
+                public void onMtuChanged(BluetoothGatt gatt, int mtu,
+                                         int status) {
+                    mCallback.onMtuChanged(mtu, status);
+                }
+
+                @Override
+                public void onPhyUpdate(BluetoothGatt gatt, int txPhy,
+                                        int rxPhy, int status) {
+                    mCallback.onPhyUpdate(txPhy, rxPhy, status);
+                }
+
+                @Override
+                @SuppressWarnings("deprecation")
+                public void onCharacteristicChanged(BluetoothGatt gatt,
+                                                    BluetoothGattCharacteristic
+                                                            characteristic) {
+                    mCallback.onCharacteristicChanged(find(characteristic),
+                            characteristic.getValue());
+                }
+
+                @Override
+                public void onCharacteristicChanged(BluetoothGatt gatt,
+                                                    BluetoothGattCharacteristic
+                                                            characteristic,
+                                                    byte[] value) {
+                    // API 33. The older one is not called then.
+                    mCallback.onCharacteristicChanged(find(characteristic),
+                            value);
+                }
+            };
+
+    @Override
+    public boolean connect() {
+        return mGatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mGatt.close();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public List<GattService> getServices() {
+        return mMirror.services;
+    }
+
+    @Override
+    public GattService getService(UUID uuid) {
+        for (GattService service : mMirror.services) {
+            if (service.getUuid().equals(uuid)) return service;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(GattCharacteristic characteristic) {
+        final BluetoothGattCharacteristic target =
+                mMirror.toCharacteristic.get(characteristic);
+        return target != null && mGatt.readCharacteristic(target);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean writeCharacteristic(GattCharacteristic characteristic,
+                                       byte[] value, int writeType) {
+        final BluetoothGattCharacteristic target =
+                mMirror.toCharacteristic.get(characteristic);
+        if (target == null) return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return mGatt.writeCharacteristic(target, value, writeType)
+                    == BluetoothStatusCodes.SUCCESS;
+        }
+        target.setWriteType(writeType);
+        target.setValue(value);
+        return mGatt.writeCharacteristic(target);
+    }
+
+    @Override
+    public boolean readDescriptor(GattDescriptor descriptor) {
+        final BluetoothGattDescriptor target =
+                mMirror.toDescriptor.get(descriptor);
+        return target != null && mGatt.readDescriptor(target);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean writeDescriptor(GattDescriptor descriptor, byte[] value) {
+        final BluetoothGattDescriptor target =
+                mMirror.toDescriptor.get(descriptor);
+        if (target == null) return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return mGatt.writeDescriptor(target, value)
+                    == BluetoothStatusCodes.SUCCESS;
+        }
+        target.setValue(value);
+        return mGatt.writeDescriptor(target);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(
+            GattCharacteristic characteristic, boolean enable) {
+        final BluetoothGattCharacteristic target =
+                mMirror.toCharacteristic.get(characteristic);
+        return target != null
+                && mGatt.setCharacteristicNotification(target, enable);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return mGatt.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false;
+        mGatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+        return true;
+    }
+}
@@ -0,0 +1,282 @@
+package net.kenevans.android.bleexplorer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The Bluetooth SIG assigned numbers: the names of services,
+ * characteristics, descriptors, units and company identifiers, plus vendor
+ * 128-bit UUIDs. They are read from the assigned_numbers.bin resource,
+ * made by tools/AssignedNumbersCompiler, the first time they are used.
+ * <p>
+ * The keys are kept sorted in primitive arrays, 16-bit ones in a char[] and
+ * 128-bit ones as long pairs, and the names as UTF-8 bytes. A lookup is a
+ * binary search and does not allocate, except for turning a name into a
+ * String the first time it is returned. Instances are thread safe.
+ */
+public class AssignedNumbers {
+    public static final int KIND_SERVICE = 0;
+    public static final int KIND_CHARACTERISTIC = 1;
+    public static final int KIND_DESCRIPTOR = 2;
+    public static final int KIND_UNIT = 3;
+    public static final int KIND_COMPANY = 4;
+    /** Vendor 128-bit UUIDs of any kind of attribute. */
+    public static final int KIND_CUSTOM = 5;
+    private static final int N_KINDS = 6;
+
+    static final String RESOURCE = "assigned_numbers.bin";
+    private static final int MAGIC = 0x4e414c42;
+    private static final int VERSION = 1;
+    /** The SIG base UUID 0000xxxx-0000-1000-8000-00805f9b34fb. */
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_LSB = 0x800000805f9b34fbL;
+
+    private final Table[] mTables = new Table[N_KINDS];
+
+    private static final class Table {
+        /** The 16-bit keys, or null for a 128-bit table. */
+        char[] keys;
+        long[] msb;
+        long[] lsb;
+        int[] ends;
+        byte[] names;
+        String[] cache;
+
+        int size() {
+            return ends.length;
+        }
+
+        String name(int index) {
+            String name = cache[index];
+            if (name == null) {
+                final int start = index == 0 ? 0 : ends[index - 1];
+                name = new String(names, start, ends[index] - start,
+                        StandardCharsets.UTF_8);
+                // A racing thread may make an equal String, which is fine
+                cache[index] = name;
+            }
+            return name;
+        }
+    }
+
+    private static final class Holder {
+        static final AssignedNumbers DEFAULT = load();
+
+        private static AssignedNumbers load() {
+            try (InputStream in = AssignedNumbers.class
+                    .getResourceAsStream(RESOURCE)) {
+                if (in != null) return new AssignedNumbers(in);
+            } catch (IOException ex) {
+                // Fall through to the empty tables
+            }
+            return new AssignedNumbers();
+        }
+    }
+
+    /**
+     * @return The assigned numbers bundled with the app, loaded on the first
+     * call. If the resource cannot be read, the tables are empty.
+     */
+    public static AssignedNumbers getDefault() {
+        return Holder.DEFAULT;
+    }
+
+    /**
+     * Creates empty tables.
+     */
+    AssignedNumbers() {
+        for (int kind = 0; kind < N_KINDS; kind++) {
+            mTables[kind] = emptyTable(kind == KIND_CUSTOM);
+        }
+    }
+
+    /**
+     * Reads the tables in the format of tools/AssignedNumbersCompiler.
+     *
+     * @param in The stream. It is not closed.
+     * @throws IOException If it cannot be read or has the wrong format.
+     */
+    public AssignedNumbers(InputStream in) throws IOException {
+        this();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32768);
+        final byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, n);
+        }
+        final ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (b.getInt() != MAGIC || b.getShort() != VERSION) {
+                throw new IOException("Not an assigned numbers table");
+            }
+            final int count = b.getShort();
+            for (int i = 0; i < count; i++) {
+                final int kind = b.get();
+                final boolean wide = b.get() == 16;
+                b.getShort();
+                final int size = b.getInt();
+                final Table table = new Table();
+                if (wide) {
+                    table.msb = new long[size];
+                    table.lsb = new long[size];
+                    for (int j = 0; j < size; j++) {
+                        table.msb[j] = b.getLong();
+                        table.lsb[j] = b.getLong();
+                    }
+                } else {
+                    table.keys = new char[size];
+                    b.asCharBuffer().get(table.keys);
+                    b.position(b.position() + 2 * size);
+                }
+                table.ends = new int[size];
+                b.asIntBuffer().get(table.ends);
+                b.position(b.position() + 4 * size);
+                table.names = new byte[b.getInt()];
+                b.get(table.names);
+                table.cache = new String[size];
+                // Unknown kinds from a newer compiler are skipped
+                if (kind >= 0 && kind < N_KINDS
+                        && wide == (kind == KIND_CUSTOM)) {
+                    mTables[kind] = table;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // Underflow or a bad size
+            throw new IOException("Damaged assigned numbers table", ex);
+        }
+    }
+
+    private static Table emptyTable(boolean wide) {
+        final Table table = new Table();
+        if (wide) {
+            table.msb = new long[0];
+            table.lsb = new long[0];
+        } else {
+            table.keys = new char[0];
+        }
+        table.ends = new int[0];
+        table.names = new byte[0];
+        table.cache = new String[0];
+        return table;
+    }
+
+    /**
+     * @param msb The most significant bits of a UUID.
+     * @param lsb The least significant bits of a UUID.
+     * @return The 16-bit short form if it is a SIG UUID, otherwise -1.
+     */
+    public static int shortUuid(long msb, long lsb) {
+        if (lsb != BASE_LSB || (msb & 0xffff0000ffffffffL) != BASE_MSB) {
+            return -1;
+        }
+        return (int) (msb >>> 32);
+    }
+
+    /**
+     * Gets the name for a 16-bit number.
+     *
+     * @param kind One of the KIND constants other than KIND_CUSTOM.
+     * @param key  The 16-bit UUID or company identifier.
+     * @return The name or null if it is not known.
+     */
+    public String getName(int kind, int key) {
+        if (kind < 0 || kind >= N_KINDS || key < 0 || key > 0xffff) {
+            return null;
+        }
+        final Table table = mTables[kind];
+        if (table.keys == null) return null;
+        final int index = Arrays.binarySearch(table.keys, (char) key);
+        return index < 0 ? null : table.name(index);
+    }
+
+    /**
+     * Gets the name for a UUID. SIG UUIDs are looked up in the table for
+     * the kind, and others in the custom table.
+     *
+     * @param kind One of the KIND constants.
+     * @param msb  The most significant bits of the UUID.
+     * @param lsb  The least significant bits of the UUID.
+     * @return The name or null if it is not known.
+     */
+    public String getName(int kind, long msb, long lsb) {
+        final int key = shortUuid(msb, lsb);
+        return key >= 0 ? getName(kind, key) : getCustomName(msb, lsb);
+    }
+
+    /**
+     * Gets the name of an attribute UUID whose kind is not known. SIG
+     * services, characteristics, descriptors and units use disjoint
+     * ranges, so all of them are searched.
+     *
+     * @param msb The most significant bits of the UUID.
+     * @param lsb The least significant bits of the UUID.
+     * @return The name or null if it is not known.
+     */
+    public String getAttributeName(long msb, long lsb) {
+        final int key = shortUuid(msb, lsb);
+        if (key < 0) return getCustomName(msb, lsb);
+        for (int kind = KIND_SERVICE; kind <= KIND_UNIT; kind++) {
+            final String name = getName(kind, key);
+            if (name != null) return name;
+        }
+        return null;
+    }
+
+    /**
+     * @param id A company identifier, as in manufacturer specific data.
+     * @return The company name or null if it is not known.
+     */
+    public String getCompanyName(int id) {
+        return getName(KIND_COMPANY, id);
+    }
+
+    private String getCustomName(long msb, long lsb) {
+        final Table table = mTables[KIND_CUSTOM];
+        int low = 0;
+        int high = table.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            int cmp = Long.compare(table.msb[mid], msb);
+            if (cmp == 0) cmp = Long.compare(table.lsb[mid], lsb);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return table.name(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param kind One of the KIND constants.
+     * @return The number of entries of that kind.
+     */
+    public int size(int kind) {
+        return mTables[kind].size();
+    }
+
+    /**
+     * @return An estimate of the heap used by the tables, in bytes, not
+     * counting names that have been turned into Strings.
+     */
+    public long getFootprintBytes() {
+        // Array headers are about 16 bytes
+        long bytes = 0;
+        for (Table table : mTables) {
+            final int n = table.size();
+            bytes += table.keys != null ? 16 + 2L * n : 32 + 16L * n;
+            bytes += 16 + 4L * n;
+            bytes += 16 + table.names.length;
+            bytes += 16 + 4L * n;
+        }
+        return bytes;
+    }
+}
@@ -18,36 +18,85 @@ package net.kenevans.android.bleexplorer;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Service for managing connection and data communication with a GATT server
- * hosted on a given Bluetooth LE device.
+ * Service for managing connection and data communication with GATT servers
+ * hosted on Bluetooth LE devices. It keeps a pool of {@link GattConnection}s
+ * keyed by device address. The methods without an address act on the
+ * primary device, which is the one last passed to {@link #connect(String)}.
  */
-public class BluetoothLeService extends Service {
+public class BluetoothLeService extends Service
+        implements GattConnection.Host {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
-    private static final boolean DEBUG_DATA = true;
+    /** The ATT MTU before any MTU exchange. */
+    public static final int DEFAULT_MTU = GattClient.DEFAULT_MTU;
+    /**
+     * The number of connection attempts that may be pending at once. Many
+     * controllers only handle one pending direct connection.
+     */
+    private static final int MAX_PENDING_CONNECTIONS = 1;
+    /** The minimum time between starting connection attempts, in ms. */
+    private static final long CONNECT_STAGGER_MS = 250;
+    /** The time after which a connection attempt is given up, in ms. */
+    private static final long CONNECT_TIMEOUT_MS = 15000;
+    /** The subdirectory of the cache directory for service tables. */
+    private static final String SERVICE_CACHE_DIR = "gatt";
+    /** The subdirectory of the external files directory for sessions. */
+    public static final String SESSION_DIR = "sessions";
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+    private GattClient.Factory mGattClientFactory;
+    private final SimulatedPeripheral.Factory mSimulatorFactory =
+            new SimulatedPeripheral.Factory(new SimulatedPeripheral.Config());
+    private Handler mHandler;
+    /** Posts to mHandler, for the connections. */
+    private Scheduler mScheduler;
+    /** The connection pool. Only modified on the main thread. */
+    private final HashMap<String, GattConnection> mConnections =
+            new HashMap<>();
+    private final ArrayDeque<GattConnection> mPendingConnects =
+            new ArrayDeque<>();
+    private int mConnectingCount;
+    private long mLastConnectStartMs;
+    private String mPrimaryAddress;
+    private volatile boolean mDataBroadcastsEnabled = true;
+    private DecodeStage.Policy mDecodePolicy = DecodeStage.Policy.LATEST;
+    private GattServiceCache mServiceCache;
+    private ExecutorService mCacheExecutor;
+    private long mStatisticsAtMs;
+    private long mStatisticsNotificationCount;
+    private long mStatisticsByteCount;
+    /**
+     * The counts of the devices closed, so the totals do not go back when
+     * one is removed.
+     */
+    private long mClosedNotificationCount;
+    private long mClosedByteCount;
+    private SessionRecorder mRecorder;
 
     // private static final int STATE_DISCONNECTED = 0;
     // private static final int STATE_CONNECTING = 1;
@@ -61,8 +110,18 @@ public class BluetoothLeService extends Service {
             ".kenevans.android.bleexplorer.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE = "net.kenevans.android" +
             ".bleexplorer.ACTION_DATA_AVAILABLE";
+    public final static String ACTION_SERVICE_CACHE_LOADED = "net.kenevans" +
+            ".android.bleexplorer.ACTION_SERVICE_CACHE_LOADED";
     public final static String EXTRA_DATA = "net.kenevans.android.bleexplorer" +
             ".EXTRA_DATA";
+    public final static String EXTRA_UUID = "net.kenevans.android.bleexplorer" +
+            ".EXTRA_UUID";
+    public final static String EXTRA_VALUE = "net.kenevans.android" +
+            ".bleexplorer.EXTRA_VALUE";
+    public final static String EXTRA_ADDRESS = "net.kenevans.android" +
+            ".bleexplorer.EXTRA_ADDRESS";
+    public final static String EXTRA_INSTANCE_ID = "net.kenevans.android" +
+            ".bleexplorer.EXTRA_INSTANCE_ID";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID
             .fromString(GattAttributes.HEART_RATE_MEASUREMENT);
@@ -73,233 +132,182 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_TEST_MODE = UUID
             .fromString(GattAttributes.TEST_MODE);
 
-    // Implements callback methods for GATT events that the app cares about. For
-    // example, connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new
-            BluetoothGattCallback() {
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt,
-                                                    int status,
-                                                    int newState) {
-                    String intentAction;
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        intentAction = ACTION_GATT_CONNECTED;
-                        mConnectionState = BluetoothProfile.STATE_CONNECTED;
-                        broadcastUpdate(intentAction);
-                        Log.i(TAG, "Connected to GATT server.");
-                        // Attempts to discover services after successful
-                        // connection.
-                        Log.i(TAG, "Attempting to start service discovery:"
-                                + mBluetoothGatt.discoverServices());
-
-                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                        intentAction = ACTION_GATT_DISCONNECTED;
-                        mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
-                        Log.i(TAG, "Disconnected from GATT server.");
-                        broadcastUpdate(intentAction);
-                    }
-                }
-
-                @Override
-                public void onServicesDiscovered(BluetoothGatt gatt,
-                                                 int status) {
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                    } else {
-                        Log.w(TAG, "onServicesDiscovered received: " + status);
-                    }
-                }
-
-                @Override
-                public void onCharacteristicRead(BluetoothGatt gatt,
-                                                 BluetoothGattCharacteristic
-                                                         characteristic,
-                                                 int status) {
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastUpdate(characteristic);
-                    }
-                }
-
-                @Override
-                public void onCharacteristicChanged(BluetoothGatt gatt,
-                                                    BluetoothGattCharacteristic
-                                                            characteristic) {
-                    broadcastUpdate(characteristic);
-                }
-            };
-
-    private void broadcastUpdate(final String action) {
+    /**
+     * Sends a broadcast for a connection state change.
+     *
+     * @param action  The action.
+     * @param address The device address.
+     */
+    void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final BluetoothGattCharacteristic
-                                         characteristic) {
-        final Intent intent =
-                new Intent(BluetoothLeService.ACTION_DATA_AVAILABLE);
-
-        // This is special handling for the Heart Rate Measurement profile. Data
-        // parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth
-        // .org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org
-        // .bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            String string = "";
-            int flag =
-                    characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-//            Log.d(TAG, "Flag " + String.format("%02x", flag)
-//                    + " EE: flag & 0x08=" + (flag & 0x08)
-//                    + " RR: flag & 0x10=" + (flag & 0x10)
-//            );
-            int format;
-            int offset = 1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-//                Log.d(TAG, "Heart rate format UINT16.");
-                offset += 2;
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                offset += 1;
-//                Log.d(TAG, "Heart rate format UINT8.");
-            }
-            int iVal = characteristic.getIntValue(format, 1);
-            string += "Heart Rate: " + iVal;
-            // Sensor Contact
-            int sensor = (flag >> 1) & 0x3;
-            switch (sensor) {
-                case 0:
-                case 1:
-                    string += "\nSensor contact not supported";
-                    break;
-                case 2:
-                    string += "\nSensor contact not detected";
-                    break;
-                case 3:
-                    string += "\nSensor contact detected";
-                    break;
-            }
-            // Energy Expended
-            if ((flag & 0x08) != 0) {
-                iVal = characteristic.getIntValue(
-                        BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-                offset += 2;
-                string += "\nEnergy Expended: " + iVal;
-            } else {
-                string += "\nEnergy Expended: NA";
-            }
-            // R-R
-            if ((flag & 0x10) != 0) {
-                int len = characteristic.getValue().length;
-                // There may be more than 1 R-R value
-                boolean first = true;
-                while (offset < len) {
-                    iVal = characteristic.getIntValue(
-                            BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-                    offset += 2;
-                    if (first) {
-                        first = false;
-                        string += "\nR-R: " + iVal;
-                    } else {
-                        string += " " + iVal;
-                    }
-                }
-            } else {
-                string += "\nR-R: NA";
-            }
-            // DEBUG
-            if (DEBUG_DATA) {
-                final byte[] data = characteristic.getValue();
-                if (data != null && data.length > 0) {
-                    final StringBuilder stringBuilder = new StringBuilder(
-                            data.length);
-                    for (byte byteChar : data) {
-                        stringBuilder.append(String.format("%02X ", byteChar));
-                    }
-                    string += "\n" + stringBuilder.toString();
-                }
-            }
-//            Log.d(TAG, String.format("Received heart rate: %d", iVal));
-            intent.putExtra(EXTRA_DATA, string);
-        } else if (UUID_BATTERY_LEVEL.equals(characteristic.getUuid())) {
-            final int iVal = characteristic.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            Log.d(TAG, String.format("Received battery level: %d", iVal));
-            intent.putExtra(EXTRA_DATA,
-                    "Battery Level: " + iVal);
-        } else if (UUID_CUSTOM_MEASUREMENT.equals(characteristic.getUuid())) {
-            String string = "";
-            int offset = 0;
-            int iVal;
-            int flag = characteristic.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-            offset += 1;
-            if ((flag & 0x01) != 0) {
-                iVal = characteristic.getIntValue(
-                        BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-                offset += 2;
-                string += "Activity: " + iVal;
-            } else {
-                string += "Activity: NA";
-            }
-            if ((flag & 0x02) != 0) {
-                iVal = characteristic.getIntValue(
-                        BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-                // offset here not used
-//				offset += 2;
-                string += "\nPeak Acceleration: " + iVal;
-            } else {
-                string += "\nPeak Acceleration: NA";
-            }
-            // DEBUG
-            if (DEBUG_DATA) {
-                final byte[] data = characteristic.getValue();
-                if (data != null && data.length > 0) {
-                    final StringBuilder stringBuilder = new StringBuilder(
-                            data.length);
-                    for (byte byteChar : data) {
-                        stringBuilder.append(String.format("%02X ", byteChar));
-                    }
-                    string += "\n" + stringBuilder.toString();
-                }
-            }
-            intent.putExtra(EXTRA_DATA, string);
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(
-                        data.length);
-                for (byte byteChar : data) {
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                }
-                intent.putExtra(
-                        EXTRA_DATA,
-                        GattAttributes.lookup(
-                                characteristic.getUuid().toString(),
-                                getResources().getString(
-                                        R.string.unknown_characteristic))
-                                + "\n"
-                                + new String(data)
-                                + "\n"
-                                + stringBuilder.toString());
-            } else {
-                intent.putExtra(
-                        EXTRA_DATA,
-                        GattAttributes.lookup(
-                                characteristic.getUuid().toString(),
-                                getResources().getString(
-                                        R.string.unknown_characteristic))
-                                + "\n" + ((data == null) ? "null" : "No data"));
+    @Override
+    public void onConnectionEvent(GattConnection connection, int event) {
+        final String action;
+        switch (event) {
+            case EVENT_CONNECTED:
+                action = ACTION_GATT_CONNECTED;
+                break;
+            case EVENT_DISCONNECTED:
+                action = ACTION_GATT_DISCONNECTED;
+                break;
+            case EVENT_SERVICES_DISCOVERED:
+                action = ACTION_GATT_SERVICES_DISCOVERED;
+                break;
+            case EVENT_SERVICE_CACHE_LOADED:
+                action = ACTION_SERVICE_CACHE_LOADED;
+                break;
+            default:
+                return;
+        }
+        broadcastUpdate(action, connection.getAddress());
+    }
+
+    @Override
+    public DecodeStage.Decoder newDataBroadcaster(GattConnection connection) {
+        return new DataBroadcaster(connection);
+    }
+
+    /**
+     * Formats the values of a connection and sends them as
+     * ACTION_DATA_AVAILABLE broadcasts. Only used on the decode thread of
+     * the connection.
+     */
+    private class DataBroadcaster implements DecodeStage.Decoder {
+        private final GattConnection mConnection;
+        private final Intent mIntent = new Intent(ACTION_DATA_AVAILABLE);
+        private ValueFormatter mValueFormatter;
+
+        DataBroadcaster(GattConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void decode(DecodeStage.Item item) {
+            // The Intent is reused. sendBroadcast parcels it before
+            // returning, so only the extras need to be reset.
+            if (mValueFormatter == null) {
+                mValueFormatter = new ValueFormatter(
+                        mConnection.getDecoderRegistry(),
+                        getString(R.string.unknown_characteristic),
+                        IConstants.DEBUG_DATA);
             }
+            final Intent intent = mIntent;
+            intent.replaceExtras((Bundle) null);
+            intent.putExtra(EXTRA_ADDRESS, mConnection.getAddress());
+            intent.putExtra(EXTRA_UUID,
+                    new UUID(item.uuidMsb, item.uuidLsb).toString());
+            intent.putExtra(EXTRA_INSTANCE_ID, item.instanceId);
+            intent.putExtra(EXTRA_VALUE,
+                    Arrays.copyOf(item.value, item.length));
+            intent.putExtra(EXTRA_DATA, mValueFormatter.format(
+                    item.uuidMsb, item.uuidLsb, item.value, 0,
+                    item.length).toString());
+            sendBroadcast(intent);
         }
-        sendBroadcast(intent);
+    }
+
+    /**
+     * Sets whether read and notified values are also sent as
+     * ACTION_DATA_AVAILABLE broadcasts. In-process clients should use the
+     * event bus of the connection instead and turn these off. Connection
+     * state changes are always broadcast.
+     *
+     * @param enabled Whether to send the broadcasts.
+     */
+    public void setDataBroadcastsEnabled(boolean enabled) {
+        mDataBroadcastsEnabled = enabled;
+    }
+
+    @Override
+    public boolean isDataBroadcastsEnabled() {
+        return mDataBroadcastsEnabled;
+    }
+
+    /**
+     * Sets what the decode stages of all connections do when values come
+     * faster than they are formatted for the broadcasts. Must be called on
+     * the main thread.
+     *
+     * @param policy The policy.
+     */
+    public void setDecodePolicy(DecodeStage.Policy policy) {
+        mDecodePolicy = policy;
+        for (GattConnection connection : mConnections.values()) {
+            connection.getDecodeStage().setPolicy(policy);
+        }
+    }
+
+    @Override
+    public DecodeStage.Policy getDecodePolicy() {
+        return mDecodePolicy;
+    }
+
+    /**
+     * Writes a service table to the cache in the background.
+     *
+     * @param address The device address.
+     * @param table   The encoded table.
+     */
+    @Override
+    public void writeServiceCache(final String address, final byte[] table) {
+        mCacheExecutor.execute(() -> mServiceCache.write(address, table));
+    }
+
+    /**
+     * Removes a service table from the cache in the background.
+     *
+     * @param address The device address.
+     */
+    @Override
+    public void deleteServiceCache(final String address) {
+        mCacheExecutor.execute(() -> mServiceCache.delete(address));
+    }
+
+    /**
+     * Runs a task on the thread that reads and writes the cache, after the
+     * ones queued before it.
+     *
+     * @param task The task.
+     */
+    @Override
+    public void executeOnCacheThread(Runnable task) {
+        mCacheExecutor.execute(task);
     }
 
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
         }
+
+        /**
+         * @param address The device address.
+         * @return The in-process event bus for a device. Consuming it avoids
+         * a system round trip for every notification.
+         */
+        public GattEventBus getEventBus(String address) {
+            return getConnection(address).getEventBus();
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler(Looper.getMainLooper());
+        mScheduler = new HandlerScheduler(mHandler);
+        mServiceCache = new GattServiceCache(new File(getCacheDir(),
+                SERVICE_CACHE_DIR));
+        mCacheExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopRecording();
+        mCacheExecutor.shutdown();
     }
 
     @Override
@@ -314,7 +322,7 @@ public class BluetoothLeService extends Service {
         // such that resources are cleaned up properly. In this particular
         // example, close() is
         // invoked when the UI is disconnected from the Service.
-        close();
+        closeAll();
         return super.onUnbind(intent);
     }
 
@@ -343,167 +351,402 @@ public class BluetoothLeService extends Service {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
             return false;
         }
+        mGattClientFactory = new AndroidGattClient.Factory(this,
+                mBluetoothAdapter);
 
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Starts recording the events of all the devices in the pool, and of
+     * those added later, to a new session in the SESSION_DIR subdirectory
+     * of the external files directory.
+     *
+     * @return The directory of the session files.
+     */
+    public File startRecording() {
+        final File dir = new File(getExternalFilesDir(null), SESSION_DIR);
+        if (mRecorder != null) return dir;
+        mRecorder = new SessionRecorder(new SessionWriter(dir));
+        for (GattConnection connection : mConnections.values()) {
+            mRecorder.addSource(connection.getAddress(),
+                    connection.getEventBus());
+        }
+        Log.i(TAG, "Recording to " + dir);
+        return dir;
+    }
+
+    /**
+     * Stops recording.
+     *
+     * @return A summary of what was recorded, or null if not recording.
+     */
+    public String stopRecording() {
+        if (mRecorder == null) return null;
+        final SessionRecorder recorder = mRecorder;
+        mRecorder = null;
+        final SessionWriter writer = recorder.getWriter();
+        String error = null;
+        final long dropped = recorder.getDroppedCount();
+        try {
+            recorder.close();
+        } catch (IOException ex) {
+            Log.e(TAG, "Error recording session", ex);
+            error = ex.getMessage();
+        }
+        final String summary = String.format(Locale.US,
+                "Recorded %d records, %d bytes in %d files, %d dropped%s" +
+                        "%nLast file: %s", writer.getRecordCount(),
+                writer.getByteCount(), writer.getSegmentCount(), dropped,
+                error == null ? "" : "\nError: " + error,
+                writer.getCurrentFile());
+        Log.i(TAG, summary);
+        return summary;
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
+    /**
+     * @return Whether the adapter supports the LE 2M PHY.
+     */
+    public boolean isLe2MPhySupported() {
+        return mBluetoothAdapter != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && mBluetoothAdapter.isLe2MPhySupported();
+    }
+
+    /**
+     * Gets the connection for a device from the pool, adding it if it is not
+     * there. This does not connect. Must be called on the main thread.
+     *
+     * @param address The device address.
+     * @return The connection.
+     */
+    public GattConnection getConnection(String address) {
+        GattConnection connection = mConnections.get(address);
+        if (connection == null) {
+            connection = new GattConnection(this, mScheduler, address);
+            // Read and decoded off the main thread
+            final GattConnection added = connection;
+            mCacheExecutor.execute(
+                    () -> added.loadServiceCache(mServiceCache));
+            mConnections.put(address, connection);
+            if (mRecorder != null) {
+                mRecorder.addSource(address, connection.getEventBus());
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @return A copy of the list of connections in the pool.
+     */
+    public List<GattConnection> getConnections() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device, which
+     * also becomes the primary device. Connection attempts are staggered,
+     * so the attempt may start later.
      *
      * @param address The device address of the destination device.
      * @return Return true if the connection is initiated successfully. The
      * connection result is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth
-     * .BluetoothGatt, int, int)}
-     * callback.
+     * ACTION_GATT_CONNECTED and ACTION_GATT_DISCONNECTED broadcasts.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        if (getGattClientFactory(address) == null) {
             Log.w(TAG,
                     "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            Log.w(TAG, "Invalid address.  Unable to connect.");
+            return false;
+        }
+        mPrimaryAddress = address;
+        final GattConnection connection = getConnection(address);
+        connection.onConnectRequested();
+        queueConnect(connection);
+        return true;
+    }
+
+    /**
+     * Called by the {@link ReconnectEngine} of a connection on the main
+     * thread when it is time for another attempt.
+     *
+     * @param connection The connection.
+     */
+    @Override
+    public void reconnect(GattConnection connection) {
+        if (mConnections.get(connection.getAddress()) != connection) {
+            // Closed in the meantime
+            return;
+        }
+        queueConnect(connection);
+    }
+
+    /**
+     * @param address The device address.
+     * @return The factory for the clients of the device, the simulator for
+     * simulated addresses, or null if Bluetooth is not initialized.
+     */
+    private GattClient.Factory getGattClientFactory(String address) {
+        if (address == null) return null;
+        if (SimulatedPeripheral.isSimulatedAddress(address)) {
+            return mSimulatorFactory;
+        }
+        return mGattClientFactory;
+    }
 
-        // Previously connected device. Try to reconnect.
-        if (address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG,
-                    "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = BluetoothProfile.STATE_CONNECTING;
-                return true;
+    /**
+     * @return The Config used for simulated devices connected from now on.
+     */
+    public SimulatedPeripheral.Config getSimulatorConfig() {
+        return mSimulatorFactory.getConfig();
+    }
+
+    private void queueConnect(GattConnection connection) {
+        if (connection.getConnectionState()
+                != GattClient.STATE_DISCONNECTED) {
+            Log.d(TAG, connection.getAddress()
+                    + ": Already connected or connecting.");
+            return;
+        }
+        connection.setQueued();
+        mPendingConnects.add(connection);
+        startPendingConnects();
+    }
+
+    /**
+     * Starts queued connection attempts as long as there are free pending
+     * connection slots, spacing them by CONNECT_STAGGER_MS.
+     */
+    private final Runnable mStartPendingConnects = this::startPendingConnects;
+
+    private void startPendingConnects() {
+        mHandler.removeCallbacks(mStartPendingConnects);
+        while (!mPendingConnects.isEmpty()
+                && mConnectingCount < MAX_PENDING_CONNECTIONS) {
+            final long wait = mLastConnectStartMs + CONNECT_STAGGER_MS
+                    - SystemClock.elapsedRealtime();
+            if (wait > 0) {
+                mHandler.postDelayed(mStartPendingConnects, wait);
+                return;
+            }
+            final GattConnection connection = mPendingConnects.poll();
+            mLastConnectStartMs = SystemClock.elapsedRealtime();
+            final GattClient.Factory factory =
+                    getGattClientFactory(connection.getAddress());
+            if (factory != null && connection.startConnect(factory,
+                    CONNECT_TIMEOUT_MS)) {
+                mConnectingCount++;
             } else {
-                return false;
+                connection.onConnectFailed();
             }
         }
+    }
 
-        final BluetoothDevice device = mBluetoothAdapter
-                .getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+    /**
+     * Called by a connection on the main thread when its connection attempt
+     * has succeeded, failed, or timed out.
+     *
+     * @param connection The connection.
+     */
+    @Override
+    public void onConnectAttemptFinished(GattConnection connection) {
+        mConnectingCount = Math.max(0, mConnectingCount - 1);
+        startPendingConnects();
+    }
+
+    /**
+     * Disconnects the primary device.
+     */
+    public void disconnect() {
+        if (mPrimaryAddress == null) {
+            Log.w(TAG, "No primary device");
+            return;
         }
-        // We want to directly connect to the device, so we are setting the
-        // autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = BluetoothProfile.STATE_CONNECTING;
-        return true;
+        disconnect(mPrimaryAddress);
     }
 
     /**
      * Disconnects an existing connection or cancel a pending connection. The
      * disconnection result is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth
-     * .BluetoothGatt, int, int)}
-     * callback.
+     * ACTION_GATT_DISCONNECTED broadcast.
+     *
+     * @param address The device address.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void disconnect(String address) {
+        final GattConnection connection = mConnections.get(address);
+        if (connection == null) {
+            Log.w(TAG, address + ": Not in the connection pool");
+            return;
+        }
+        if (mPendingConnects.remove(connection)) {
+            // It was still waiting for a pending connection slot
+            connection.cancelQueued();
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure
-     * resources are released properly.
+     * resources are released properly. This closes the primary device.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        if (mPrimaryAddress == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        close(mPrimaryAddress);
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read
-     * result is reported asynchronously through the
-     * {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth
-     * .BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Closes a device and removes it from the pool.
+     *
+     * @param address The device address.
+     */
+    public void close(String address) {
+        final GattConnection connection = mConnections.remove(address);
+        if (connection == null) {
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorder.removeSource(address);
+        }
+        mPendingConnects.remove(connection);
+        connection.close();
+        mClosedNotificationCount += connection.getNotificationCount();
+        mClosedByteCount += connection.getByteCount();
+    }
+
+    /**
+     * Closes all the devices in the pool.
+     */
+    public void closeAll() {
+        mPendingConnects.clear();
+        for (GattConnection connection : getConnections()) {
+            close(connection.getAddress());
+        }
+        mConnectingCount = 0;
+    }
+
+    /**
+     * @return The connection to the primary device or null if there is
+     * none.
+     */
+    public GattConnection getPrimaryConnection() {
+        return mPrimaryAddress == null ? null :
+                mConnections.get(mPrimaryAddress);
+    }
+
+    /**
+     * Request a read on a given {@code GattCharacteristic} of the
+     * primary device. See {@link GattConnection#readCharacteristic}.
      *
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void readCharacteristic(GattCharacteristic characteristic) {
+        final GattConnection connection = getPrimaryConnection();
+        if (connection == null) {
+            Log.w(TAG, "No primary device");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        connection.readCharacteristic(characteristic);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Enables or disables notification on a give characteristic of the
+     * primary device. See {@link GattConnection#setCharacteristicNotification}.
      *
      * @param characteristic Characteristic to act on.
      * @param enabled        If true, enable notification. False otherwise.
      */
     public void setCharacteristicNotification(
-            BluetoothGattCharacteristic characteristic, boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+            GattCharacteristic characteristic, boolean enabled) {
+        final GattConnection connection = getPrimaryConnection();
+        if (connection == null) {
+            Log.w(TAG, "No primary device");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic
-                    .getDescriptor(UUID
-                            .fromString(GattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor
-                    .setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
-
-        // This is specific to Custom Measurement
-        if (UUID_CUSTOM_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic
-                    .getDescriptor(UUID
-                            .fromString(GattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor
-                    .setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
-
-        // This is specific to Test Mode
-        if (UUID_TEST_MODE.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic
-                    .getDescriptor(UUID
-                            .fromString(GattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor
-                    .setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        connection.setCharacteristicNotification(characteristic, enabled);
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This
+     * Retrieves a list of supported GATT services on the primary device. This
      * <p>
-     * should be invoked only after {@code BluetoothGatt#discoverServices()}
+     * should be invoked only after {@code GattClient#discoverServices()}
      * completes successfully.
      *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null)
+    public List<GattService> getSupportedGattServices() {
+        final GattConnection connection = getPrimaryConnection();
+        if (connection == null)
             return null;
 
-        return mBluetoothGatt.getServices();
+        return connection.getSupportedGattServices();
     }
 
     /**
-     * Returns the connection state.
+     * Returns the connection state of the primary device.
      *
      * @return The connection state.
      */
     public int getConnectionState() {
-        return mConnectionState;
+        final GattConnection connection = getPrimaryConnection();
+        if (connection == null)
+            return GattClient.STATE_DISCONNECTED;
+
+        return connection.getConnectionState();
+    }
+
+    /**
+     * Gets the throughput of all the links in the pool. The rates are
+     * averaged over the time since the last call. The totals include the
+     * devices that have been closed.
+     *
+     * @return A summary with a line for each device and the totals.
+     */
+    public String getThroughputStatistics() {
+        final long now = SystemClock.elapsedRealtime();
+        final StringBuilder sb = new StringBuilder();
+        long notifications = mClosedNotificationCount;
+        long bytes = mClosedByteCount;
+        int connected = 0;
+        for (GattConnection connection : mConnections.values()) {
+            notifications += connection.getNotificationCount();
+            bytes += connection.getByteCount();
+            if (connection.isConnected()) connected++;
+            sb.append(String.format(Locale.US,
+                    "%s: %s mtu=%d values=%d bytes=%d queue=%d%n  %s%n",
+                    connection.getAddress(),
+                    connection.isConnected() ? "connected" : "not connected",
+                    connection.getMtu(), connection.getNotificationCount(),
+                    connection.getByteCount(),
+                    connection.getOperationQueue().getQueueDepth(),
+                    connection.getReconnectEngine().getStatistics()));
+        }
+        final double elapsed = (now - mStatisticsAtMs) / 1000.;
+        double valueRate = 0, byteRate = 0;
+        if (mStatisticsAtMs > 0 && elapsed > 0) {
+            valueRate = (notifications - mStatisticsNotificationCount)
+                    / elapsed;
+            byteRate = (bytes - mStatisticsByteCount) / elapsed;
+        }
+        mStatisticsAtMs = now;
+        mStatisticsNotificationCount = notifications;
+        mStatisticsByteCount = bytes;
+        sb.append(String.format(Locale.US,
+                "Total: %d of %d connected values=%d bytes=%d " +
+                        "%.1f values/s %.1f bytes/s",
+                connected, mConnections.size(), notifications, bytes,
+                valueRate, byteRate));
+        return sb.toString();
     }
 
 }
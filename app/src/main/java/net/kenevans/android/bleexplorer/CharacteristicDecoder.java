@@ -0,0 +1,18 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Decodes the value of a characteristic for display. Decoders are registered
+ * by UUID in a {@link DecoderRegistry}. The same instance may be used from
+ * several threads, so implementations must be thread safe.
+ */
+public interface CharacteristicDecoder {
+    /**
+     * Appends the decoded value as text.
+     *
+     * @param value  The raw value.
+     * @param offset The offset of the value.
+     * @param length The length of the value.
+     * @param sb     The builder to append to.
+     */
+    void format(byte[] value, int offset, int length, StringBuilder sb);
+}
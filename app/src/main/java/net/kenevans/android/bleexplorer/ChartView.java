@@ -0,0 +1,302 @@
+package net.kenevans.android.bleexplorer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A live chart of the numeric fields of a characteristic, as decoded by a
+ * {@link SampleDecoder}. Each field is a {@link SampleSeries} drawn in a
+ * lane of its own, since they have different units.
+ * <p>
+ * The last {@link #WINDOW_NANOS} of each series is downsampled to one
+ * point per pixel across before it is drawn. Each series keeps the points
+ * chosen by an {@link Lttb.Incremental}, and a frame only chooses from the
+ * samples added since the last one, so the cost of a frame depends on the
+ * width of the view and the rate of the samples, not on the number in the
+ * window. The view is invalidated at most once per frame, however fast the
+ * samples come. All methods must be called on the UI thread.
+ */
+public class ChartView extends View {
+    /** How much of each series is shown. */
+    public static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(10);
+    /** The highest sample rate for which the whole window is kept. */
+    public static final int MAX_RATE_HZ = 200;
+    private static final int CAPACITY = (int) (MAX_RATE_HZ
+            * TimeUnit.NANOSECONDS.toSeconds(WINDOW_NANOS));
+    private static final int[] COLORS = {
+            0xFFE53935, 0xFF1E88E5, 0xFF43A047, 0xFFFB8C00};
+    /**
+     * The most points drawn for the samples not chosen from yet, which are
+     * those of the last two buckets.
+     */
+    private static final int TAIL_POINTS = 4;
+
+    private final Paint mLinePaint = new Paint();
+    private final Paint mTextPaint = new Paint();
+    private SampleDecoder mDecoder;
+    private SampleSeries[] mSeries = new SampleSeries[0];
+    /** The points chosen from each series, for the width of the view. */
+    private Lttb.Incremental[] mChosen = new Lttb.Incremental[0];
+    private boolean mSamplesAdded;
+    private final SampleDecoder.Sink mSink = (series, time, value) -> {
+        final SampleSeries samples = mSeries[series];
+        // Times from a sensor start again when its stream is restarted
+        if (samples.size() > 0
+                && time < samples.getTime(samples.size() - 1)) {
+            samples.clear();
+            mChosen[series].reset(getBucketNanos());
+        }
+        samples.add(time, value);
+        mSamplesAdded = true;
+    };
+    private boolean mInvalidatePending;
+
+    // Reused for each frame
+    private final int[] mIndexes = new int[TAIL_POINTS];
+    private long[] mTimes = new long[0];
+    private float[] mValues = new float[0];
+    private float[] mPoints = new float[0];
+    private final StringBuilder mLabel = new StringBuilder(64);
+
+    // Statistics
+    private long mFrames;
+    private long mDrawNanos;
+    private long mMaxDrawNanos;
+
+    public ChartView(Context context) {
+        this(context, null);
+    }
+
+    public ChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mLinePaint.setAntiAlias(true);
+        mLinePaint.setStrokeWidth(2 * getResources().getDisplayMetrics()
+                .density);
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setColor(Color.GRAY);
+        mTextPaint.setTextSize(12 * getResources().getDisplayMetrics()
+                .scaledDensity);
+    }
+
+    /**
+     * Sets the decoder for the values, which gives the series. The samples
+     * of a previous decoder are dropped.
+     *
+     * @param decoder The decoder.
+     */
+    public void setDecoder(SampleDecoder decoder) {
+        if (decoder == mDecoder) return;
+        mDecoder = decoder;
+        final String[] names = decoder.getSeriesNames();
+        mSeries = new SampleSeries[names.length];
+        mChosen = new Lttb.Incremental[names.length];
+        for (int i = 0; i < names.length; i++) {
+            mSeries[i] = new SampleSeries(names[i], CAPACITY);
+            mChosen[i] = newChosen();
+        }
+        invalidate();
+    }
+
+    /**
+     * Decodes a value and adds its samples.
+     *
+     * @param timeNanos When it was received, from System.nanoTime().
+     * @param value     The raw value.
+     * @param offset    The offset of the value.
+     * @param length    The length of the value.
+     */
+    public void addValue(long timeNanos, byte[] value, int offset,
+                         int length) {
+        if (mDecoder == null || value == null) return;
+        mSamplesAdded = false;
+        mDecoder.decode(value, offset, length, timeNanos, mSink);
+        if (mSamplesAdded && !mInvalidatePending) {
+            mInvalidatePending = true;
+            postInvalidateOnAnimation();
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < mSeries.length; i++) {
+            mSeries[i].clear();
+            mChosen[i].reset(getBucketNanos());
+        }
+        invalidate();
+    }
+
+    /**
+     * @return The time a pixel across spans, which is the time of an LTTB
+     * bucket.
+     */
+    private long getBucketNanos() {
+        return WINDOW_NANOS / Math.max(getPlotWidth(), 1);
+    }
+
+    private int getPlotWidth() {
+        return getWidth() - getPaddingLeft() - getPaddingRight();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // One point per pixel, and the window may start and end in a
+        // bucket, then the tail, and a line between each pair
+        final int n = Math.max(getPlotWidth(), 1) + 2 + TAIL_POINTS;
+        mTimes = new long[n];
+        mValues = new float[n];
+        mPoints = new float[4 * n];
+        // The points are chosen again from the samples kept
+        for (int i = 0; i < mSeries.length; i++) {
+            mChosen[i] = newChosen();
+        }
+    }
+
+    /** Makes the chosen points of a series for the width of the view. */
+    private Lttb.Incremental newChosen() {
+        final Lttb.Incremental chosen = new Lttb.Incremental(
+                Math.max(getPlotWidth(), 1) + 2);
+        chosen.reset(getBucketNanos());
+        return chosen;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        mInvalidatePending = false;
+        final long start = System.nanoTime();
+        final int left = getPaddingLeft();
+        final int top = getPaddingTop();
+        final int width = getPlotWidth();
+        final int height = getHeight() - top - getPaddingBottom();
+        if (mSeries.length == 0 || width < 3 || height <= 0) return;
+        // The same time axis for all the lanes, ending at the newest sample
+        long end = Long.MIN_VALUE;
+        for (SampleSeries series : mSeries) {
+            if (series.size() > 0) {
+                end = Math.max(end, series.getTime(series.size() - 1));
+            }
+        }
+        final float laneHeight = (float) height / mSeries.length;
+        final float textHeight = mTextPaint.getTextSize();
+        for (int k = 0; k < mSeries.length; k++) {
+            final SampleSeries series = mSeries[k];
+            final float laneTop = top + k * laneHeight;
+            mLinePaint.setColor(COLORS[k % COLORS.length]);
+            mLabel.setLength(0);
+            mLabel.append(series.getName());
+            final long startTime = end - WINDOW_NANOS;
+            final int n = getPoints(k, startTime);
+            if (n == 0) {
+                canvas.drawText(mLabel, 0, mLabel.length(), left,
+                        laneTop + textHeight, mTextPaint);
+                continue;
+            }
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for (int j = 0; j < n; j++) {
+                final float value = mValues[j];
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+            if (max - min < 1e-6f) {
+                min -= 1;
+                max += 1;
+            }
+            // Leave room for the label at the top of the lane
+            final float plotTop = laneTop + textHeight * 1.5f;
+            final float plotHeight = laneHeight - textHeight * 2;
+            final float yScale = plotHeight / (max - min);
+            final float xScale = (float) width / WINDOW_NANOS;
+            float lastX = 0, lastY = 0;
+            int p = 0;
+            for (int j = 0; j < n; j++) {
+                final float x = left + (mTimes[j] - startTime) * xScale;
+                final float y = plotTop + (max - mValues[j]) * yScale;
+                if (j > 0) {
+                    mPoints[p++] = lastX;
+                    mPoints[p++] = lastY;
+                    mPoints[p++] = x;
+                    mPoints[p++] = y;
+                }
+                lastX = x;
+                lastY = y;
+            }
+            if (p > 0) {
+                canvas.drawLines(mPoints, 0, p, mLinePaint);
+            } else {
+                canvas.drawPoint(lastX, lastY, mLinePaint);
+            }
+            mLabel.append("  ");
+            appendValue(series.getValue(series.size() - 1));
+            mLabel.append("  [");
+            appendValue(min);
+            mLabel.append(", ");
+            appendValue(max);
+            mLabel.append(']');
+            canvas.drawText(mLabel, 0, mLabel.length(), left,
+                    laneTop + textHeight, mTextPaint);
+        }
+        final long elapsed = System.nanoTime() - start;
+        mFrames++;
+        mDrawNanos += elapsed;
+        if (elapsed > mMaxDrawNanos) mMaxDrawNanos = elapsed;
+    }
+
+    /**
+     * Puts the points of a series in the window into mTimes and mValues.
+     * These are the ones chosen from the buckets, after choosing from
+     * those completed since the last frame, and then at most TAIL_POINTS
+     * from the samples not chosen from yet.
+     *
+     * @param k         The index of the series.
+     * @param startTime The start of the window.
+     * @return The number of points.
+     */
+    private int getPoints(int k, long startTime) {
+        final SampleSeries series = mSeries[k];
+        final Lttb.Incremental chosen = mChosen[k];
+        chosen.update(series);
+        int n = 0;
+        for (int j = chosen.indexOf(startTime); j < chosen.size(); j++) {
+            mTimes[n] = chosen.getTime(j);
+            mValues[n++] = chosen.getValue(j);
+        }
+        final int tail = series.indexOf(Math.max(startTime,
+                chosen.getNextNanos()));
+        final int m = Lttb.downsample(series, tail, series.size() - tail,
+                TAIL_POINTS, mIndexes);
+        for (int j = 0; j < m; j++) {
+            mTimes[n] = series.getTime(mIndexes[j]);
+            mValues[n++] = series.getValue(mIndexes[j]);
+        }
+        return n;
+    }
+
+    /** Appends a value with one decimal, without allocating. */
+    private void appendValue(float value) {
+        final long tenths = Math.round(value * 10.0);
+        if (tenths < 0) mLabel.append('-');
+        final long abs = Math.abs(tenths);
+        mLabel.append(abs / 10).append('.').append(abs % 10);
+    }
+
+    /**
+     * @return A summary of the drawing cost, for display.
+     */
+    public String getStatistics() {
+        int samples = 0;
+        for (SampleSeries series : mSeries) {
+            samples += series.size();
+        }
+        return String.format(Locale.US,
+                "Chart: samples=%d frames=%d draw avg=%.2f ms max=%.2f ms",
+                samples, mFrames,
+                mFrames == 0 ? 0 : mDrawNanos * 1e-6 / mFrames,
+                mMaxDrawNanos * 1e-6);
+    }
+}
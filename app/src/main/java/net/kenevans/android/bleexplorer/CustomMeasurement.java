@@ -0,0 +1,141 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Decoded HxM2 Custom Measurement (befdff11). Like
+ * {@link HeartRateMeasurement}, an instance is reused and parse() does not
+ * allocate.
+ */
+public class CustomMeasurement {
+    /** Flag bit for Activity present. */
+    public static final int FLAG_ACTIVITY = 0x01;
+    /** Flag bit for Peak Acceleration present. */
+    public static final int FLAG_PEAK_ACCELERATION = 0x02;
+
+    /** Value used for fields that are not present. */
+    public static final int NA = -1;
+
+    private int mFlags;
+    private int mActivity = NA;
+    private int mPeakAcceleration = NA;
+    private boolean mValid;
+
+    /**
+     * Parses a raw Custom Measurement value into this instance.
+     *
+     * @param data   The raw value.
+     * @param offset The offset of the value in data.
+     * @param length The length of the value.
+     * @return Whether the value was well formed.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        mValid = false;
+        mActivity = NA;
+        mPeakAcceleration = NA;
+        if (data == null || length < 1) {
+            return false;
+        }
+        final int end = offset + length;
+        int pos = offset;
+        mFlags = data[pos++] & 0xFF;
+        if ((mFlags & FLAG_ACTIVITY) != 0) {
+            if (end - pos < 2) return false;
+            mActivity = uint16(data, pos);
+            pos += 2;
+        }
+        if ((mFlags & FLAG_PEAK_ACCELERATION) != 0) {
+            if (end - pos < 2) return false;
+            mPeakAcceleration = uint16(data, pos);
+        }
+        mValid = true;
+        return true;
+    }
+
+    /**
+     * Appends the text rendering of the last parsed value.
+     *
+     * @param sb The builder to append to.
+     * @return The builder.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (!mValid) {
+            return sb.append("Custom Measurement: Invalid data");
+        }
+        sb.append("Activity: ");
+        if (mActivity != NA) {
+            sb.append(mActivity);
+        } else {
+            sb.append("NA");
+        }
+        sb.append("\nPeak Acceleration: ");
+        if (mPeakAcceleration != NA) {
+            sb.append(mPeakAcceleration);
+        } else {
+            sb.append("NA");
+        }
+        return sb;
+    }
+
+    private static int uint16(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+    }
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return The activity or {@link #NA}.
+     */
+    public int getActivity() {
+        return mActivity;
+    }
+
+    /**
+     * @return The peak acceleration or {@link #NA}.
+     */
+    public int getPeakAcceleration() {
+        return mPeakAcceleration;
+    }
+
+    /**
+     * Decoder for the registry. Parsing uses one shared record, so it is
+     * synchronized. The samples are the fields that are present.
+     */
+    public static class Decoder implements CharacteristicDecoder,
+            SampleDecoder {
+        private static final String[] SERIES_NAMES = {"Activity",
+                "Peak Acceleration"};
+        private final CustomMeasurement mMeasurement =
+                new CustomMeasurement();
+
+        @Override
+        public synchronized void format(byte[] value, int offset,
+                                        int length, StringBuilder sb) {
+            mMeasurement.parse(value, offset, length);
+            mMeasurement.appendTo(sb);
+        }
+
+        @Override
+        public String[] getSeriesNames() {
+            return SERIES_NAMES;
+        }
+
+        @Override
+        public synchronized void decode(byte[] value, int offset,
+                                        int length, long timeNanos,
+                                        Sink sink) {
+            if (!mMeasurement.parse(value, offset, length)) return;
+            if (mMeasurement.getActivity() != NA) {
+                sink.add(0, timeNanos, mMeasurement.getActivity());
+            }
+            if (mMeasurement.getPeakAcceleration() != NA) {
+                sink.add(1, timeNanos,
+                        mMeasurement.getPeakAcceleration());
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Appends raw characteristic values to a StringBuilder without going
+ * through String.format, so the caller can reuse a single builder.
+ */
+public class DataFormatter {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF"
+            .toCharArray();
+
+    private DataFormatter() {
+    }
+
+    /**
+     * Appends the bytes as upper case hex pairs, each followed by a space.
+     * This is the same output as String.format("%02X ", b) for each byte.
+     *
+     * @param sb     The builder to append to.
+     * @param data   The data.
+     * @param offset The first byte to use.
+     * @param length The number of bytes to use.
+     * @return The builder.
+     */
+    public static StringBuilder appendHex(StringBuilder sb, byte[] data,
+                                          int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = data[i] & 0xFF;
+            sb.append(HEX_DIGITS[b >>> 4]);
+            sb.append(HEX_DIGITS[b & 0x0F]);
+            sb.append(' ');
+        }
+        return sb;
+    }
+
+}
@@ -0,0 +1,263 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * A bounded queue of characteristic values and a thread that decodes them,
+ * so the GATT callback only copies the value and returns. The slots and
+ * their value buffers are preallocated, so queueing does not allocate.
+ * <p>
+ * What happens when the queue is full depends on the {@link Policy}. With
+ * {@link Policy#LATEST} a value also replaces one for the same
+ * characteristic that is still waiting, whether or not the queue is full,
+ * which is a linear search of the waiting values.
+ * <p>
+ * There is one producer, the GATT callback of a connection, and one
+ * consumer thread.
+ */
+public class DecodeStage {
+    private static final String TAG = DecodeStage.class.getSimpleName();
+
+    public enum Policy {
+        /** Wait for room, which holds up the GATT callback. */
+        BLOCK,
+        /** Drop the oldest waiting value. */
+        DROP_OLDEST,
+        /** Keep only the latest value for each characteristic. */
+        LATEST
+    }
+
+    /**
+     * A value to decode. The consumer must not keep it after
+     * {@link Decoder#decode(Item)} returns.
+     */
+    public static class Item {
+        public int type;
+        public long timestampNanos;
+        public long uuidMsb;
+        public long uuidLsb;
+        public int instanceId;
+        public final byte[] value =
+                new byte[GattEventBus.MAX_VALUE_LENGTH];
+        public int length;
+    }
+
+    public interface Decoder {
+        /**
+         * Called on the decode thread for each value.
+         *
+         * @param item The value.
+         */
+        void decode(Item item);
+    }
+
+    private final String mName;
+    private final Decoder mDecoder;
+    private final Item[] mItems;
+    /** The index of the oldest waiting item. */
+    private int mHead;
+    private int mCount;
+    private volatile Policy mPolicy = Policy.LATEST;
+    /**
+     * The decode thread, null when stopped. A thread that is no longer it
+     * exits, so one left over from before a restart does not take values.
+     */
+    private Thread mThread;
+
+    // Statistics, guarded by this
+    private long mQueued;
+    private long mDecoded;
+    private long mDropped;
+    private long mCoalesced;
+    private long mBlockedNanos;
+    private int mMaxDepth;
+
+    /**
+     * @param name     The name of the thread.
+     * @param capacity The number of values that may wait.
+     * @param decoder  Decodes the values.
+     */
+    public DecodeStage(String name, int capacity, Decoder decoder) {
+        mName = name;
+        mDecoder = decoder;
+        // The item being decoded is not in a slot, so the producer can
+        // overwrite any slot, even when dropping the oldest value
+        mItems = new Item[capacity];
+        for (int i = 0; i < mItems.length; i++) {
+            mItems[i] = new Item();
+        }
+    }
+
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Starts the decode thread if it is not running.
+     */
+    public synchronized void start() {
+        if (mThread != null) return;
+        mThread = new Thread(this::run, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stops the decode thread. Waiting values are dropped and a blocked
+     * producer is released. Unless called on the decode thread, this waits
+     * for the value being decoded, so the decoder never runs on two threads
+     * when the stage is started again.
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            if (thread == null) return;
+            mThread = null;
+            mDropped += mCount;
+            mCount = 0;
+            notifyAll();
+        }
+        if (thread == Thread.currentThread()) return;
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a copy of a value. Called on the GATT callback thread.
+     *
+     * @param type           GattEventBus.TYPE_READ or TYPE_NOTIFICATION.
+     * @param uuidMsb        The most significant bits of the UUID.
+     * @param uuidLsb        The least significant bits of the UUID.
+     * @param instanceId     The instance ID of the characteristic.
+     * @param value          The value, which is copied.
+     * @param length         The length of the value.
+     * @param timestampNanos When it was received.
+     * @return If it was queued, false if it was dropped.
+     */
+    public synchronized boolean offer(int type, long uuidMsb, long uuidLsb,
+                                      int instanceId, byte[] value,
+                                      int length, long timestampNanos) {
+        if (mThread == null) return false;
+        final int capacity = mItems.length;
+        final Policy policy = mPolicy;
+        Item item = null;
+        if (policy == Policy.LATEST) {
+            for (int i = 0; i < mCount; i++) {
+                final Item waiting = mItems[(mHead + i) % mItems.length];
+                if (waiting.uuidMsb == uuidMsb && waiting.uuidLsb == uuidLsb
+                        && waiting.instanceId == instanceId) {
+                    item = waiting;
+                    mCoalesced++;
+                    break;
+                }
+            }
+        }
+        if (item == null) {
+            if (mCount == capacity) {
+                if (policy == Policy.BLOCK) {
+                    final long start = System.nanoTime();
+                    while (mCount == capacity && mThread != null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+                    mBlockedNanos += System.nanoTime() - start;
+                    if (mThread == null) return false;
+                } else {
+                    mHead = (mHead + 1) % mItems.length;
+                    mCount--;
+                    mDropped++;
+                }
+            }
+            item = mItems[(mHead + mCount) % mItems.length];
+            mCount++;
+            if (mCount > mMaxDepth) mMaxDepth = mCount;
+            mQueued++;
+        }
+        final int n = Math.min(length, item.value.length);
+        item.type = type;
+        item.timestampNanos = timestampNanos;
+        item.uuidMsb = uuidMsb;
+        item.uuidLsb = uuidLsb;
+        item.instanceId = instanceId;
+        if (value != null) System.arraycopy(value, 0, item.value, 0, n);
+        item.length = value == null ? 0 : n;
+        notifyAll();
+        return true;
+    }
+
+    private void run() {
+        final Thread self = Thread.currentThread();
+        // The item this thread owns. It is swapped with the head slot when
+        // taking a value, so the slots only hold waiting values, and the
+        // one being decoded is out of reach of the producer and of any
+        // thread started after this one.
+        Item spare = new Item();
+        while (true) {
+            final Item item;
+            synchronized (this) {
+                while (mCount == 0 && mThread == self) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (mThread != self) return;
+                item = mItems[mHead];
+                mItems[mHead] = spare;
+                spare = item;
+                mHead = (mHead + 1) % mItems.length;
+                mCount--;
+                notifyAll();
+            }
+            try {
+                mDecoder.decode(item);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, mName + ": Decoding failed", ex);
+            }
+            synchronized (this) {
+                mDecoded++;
+            }
+        }
+    }
+
+    /**
+     * @return The number of values waiting.
+     */
+    public synchronized int getDepth() {
+        return mCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized long getDecodedCount() {
+        return mDecoded;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format(Locale.US,
+                "Decode (%s): queued=%d decoded=%d depth=%d maxDepth=%d " +
+                        "dropped=%d coalesced=%d blocked=%.1f ms",
+                mPolicy, mQueued, mDecoded, mCount, mMaxDepth, mDropped,
+                mCoalesced, mBlockedNanos * 1e-6);
+    }
+}
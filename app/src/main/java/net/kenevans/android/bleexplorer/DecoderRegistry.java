@@ -0,0 +1,186 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.UUID;
+
+/**
+ * Maps characteristic UUIDs to {@link CharacteristicDecoder}s. The UUIDs are
+ * kept as their two 64-bit halves in an open-addressing table, so a lookup
+ * is usually one probe and does not allocate, however many decoders are
+ * registered. Lookups are lock-free. Registering copies the table, which is
+ * fine since it is rare.
+ */
+public class DecoderRegistry {
+    private static final DecoderRegistry DEFAULT = new DecoderRegistry();
+
+    private volatile Table mTable = new Table(16);
+
+    private static final class Table {
+        final long[] msb;
+        final long[] lsb;
+        final CharacteristicDecoder[] decoders;
+        final int mask;
+        int size;
+
+        Table(int capacity) {
+            msb = new long[capacity];
+            lsb = new long[capacity];
+            decoders = new CharacteristicDecoder[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    static {
+        DEFAULT.register(UUID.fromString(GattAttributes.HEART_RATE_MEASUREMENT),
+                new HeartRateMeasurement.Decoder());
+        DEFAULT.register(UUID.fromString(GattAttributes.CUSTOM_MEASUREMENT),
+                new CustomMeasurement.Decoder());
+        DEFAULT.register(UUID.fromString(GattAttributes.PMD_DATA),
+                new PmdFrame.Decoder());
+        DEFAULT.register(UUID.fromString(GattAttributes.PMD_CONTROL_POINT),
+                new PmdControlPoint.Decoder());
+        DEFAULT.register(
+                UUID.fromString(GattAttributes.FIRMWARE_UPDATE_STATUS),
+                new FirmwareUpdateStatus.Decoder());
+        DEFAULT.register(UUID.fromString(GattAttributes.BATTERY_LEVEL),
+                (value, offset, length, sb) -> {
+                    if (length > 0) {
+                        sb.append("Battery Level: ")
+                                .append(value[offset] & 0xFF);
+                    } else {
+                        sb.append("Battery Level: NA");
+                    }
+                });
+    }
+
+    public DecoderRegistry() {
+    }
+
+    /**
+     * Makes a registry with the decoders of another, which can then be
+     * replaced without changing it. The tables are never changed once
+     * published, so the table is shared until a decoder is registered.
+     *
+     * @param base The registry to copy.
+     */
+    public DecoderRegistry(DecoderRegistry base) {
+        mTable = base.mTable;
+    }
+
+    /**
+     * @return The registry with the decoders used by the application. New
+     * decoders can be registered here.
+     */
+    public static DecoderRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Registers a decoder, replacing any decoder for the same UUID.
+     *
+     * @param uuid    The characteristic UUID.
+     * @param decoder The decoder.
+     */
+    public synchronized void register(UUID uuid,
+                                      CharacteristicDecoder decoder) {
+        final Table old = mTable;
+        // Keep the load factor at most 1/2 so probe sequences stay short
+        int capacity = old.decoders.length;
+        while (2 * (old.size + 1) > capacity) {
+            capacity <<= 1;
+        }
+        final Table table = new Table(capacity);
+        for (int i = 0; i < old.decoders.length; i++) {
+            if (old.decoders[i] != null) {
+                put(table, old.msb[i], old.lsb[i], old.decoders[i]);
+            }
+        }
+        put(table, uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits(), decoder);
+        mTable = table;
+    }
+
+    /**
+     * Removes the decoder for a UUID.
+     *
+     * @param uuid The characteristic UUID.
+     */
+    public synchronized void unregister(UUID uuid) {
+        final Table old = mTable;
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        final Table table = new Table(old.decoders.length);
+        for (int i = 0; i < old.decoders.length; i++) {
+            if (old.decoders[i] != null
+                    && (old.msb[i] != msb || old.lsb[i] != lsb)) {
+                put(table, old.msb[i], old.lsb[i], old.decoders[i]);
+            }
+        }
+        mTable = table;
+    }
+
+    /**
+     * Gets the decoder for a UUID.
+     *
+     * @param msb The most significant bits of the UUID.
+     * @param lsb The least significant bits of the UUID.
+     * @return The decoder or null if there is none.
+     */
+    public CharacteristicDecoder get(long msb, long lsb) {
+        final Table table = mTable;
+        int i = hash(msb, lsb) & table.mask;
+        while (true) {
+            final CharacteristicDecoder decoder = table.decoders[i];
+            if (decoder == null) {
+                return null;
+            }
+            if (table.msb[i] == msb && table.lsb[i] == lsb) {
+                return decoder;
+            }
+            i = (i + 1) & table.mask;
+        }
+    }
+
+    public CharacteristicDecoder get(UUID uuid) {
+        return get(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @return The number of registered decoders.
+     */
+    public int size() {
+        return mTable.size;
+    }
+
+    private static void put(Table table, long msb, long lsb,
+                            CharacteristicDecoder decoder) {
+        int i = hash(msb, lsb) & table.mask;
+        while (table.decoders[i] != null) {
+            if (table.msb[i] == msb && table.lsb[i] == lsb) {
+                table.decoders[i] = decoder;
+                return;
+            }
+            i = (i + 1) & table.mask;
+        }
+        table.msb[i] = msb;
+        table.lsb[i] = lsb;
+        table.decoders[i] = decoder;
+        table.size++;
+    }
+
+    /**
+     * Hashes the UUID halves. SIG UUIDs only differ in bits 32-63 of the
+     * most significant half, so the bits are mixed (the MurmurHash3
+     * finalizer) before the table index is taken from the low bits.
+     */
+    static int hash(long msb, long lsb) {
+        long h = msb ^ (lsb * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+}
@@ -16,8 +16,6 @@
 
 package net.kenevans.android.bleexplorer;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -25,20 +23,35 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ExpandableListView;
+import android.widget.LinearLayout;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
 /**
@@ -57,10 +70,39 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics = new ArrayList<>();
+    private ArrayList<ArrayList<GattCharacteristic>> mGattCharacteristics = new ArrayList<>();
     private boolean mConnected = false;
-    private BluetoothGattCharacteristic mNotifyCharacteristic;
+    /** Whether the services shown are from the cache. */
+    private boolean mShowingCachedServices;
+    private LinearLayout mTileLayout;
+    /**
+     * The tile of each subscription, keyed by service and characteristic
+     * UUID, in the order subscribed. The tag of a tile is the
+     * characteristic it is bound to, or null before discovery.
+     */
+    private final LinkedHashMap<String, View> mTiles = new LinkedHashMap<>();
+    /** The charts shown in tiles, and their characteristics. */
+    private final ArrayList<ChartView> mCharts = new ArrayList<>();
+    private final ArrayList<GattCharacteristic> mChartCharacteristics =
+            new ArrayList<>();
     private boolean mBleSupported;
+    /** Whether the activity is between onResume and onPause. */
+    private boolean mResumed;
+    /**
+     * The default decoders, with the PMD Data decoder of the connection
+     * once the service is bound.
+     */
+    private final DecoderRegistry mDecoders =
+            new DecoderRegistry(DecoderRegistry.getDefault());
+    private ValueFormatter mValueFormatter;
+    private ValueRenderer mRenderer;
+    private GattEventBus.Subscription mSubscription;
+    private Thread mEventThread;
+    private final Object mDrainLock = new Object();
+    private boolean mDrainPending;
+    private final GattEventBus.Event mPollEvent = new GattEventBus.Event();
+    private ThroughputBenchmark mBenchmark;
+    private SessionReplayer mReplayer;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -93,19 +135,18 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
                 .setOnGroupClickListener((parent, v, groupPosition, id) -> {
                     // Clear the data area
                     // mDataField.setVisibility(View.GONE);
+                    mRenderer.clear();
                     mDataField.setText("");
-                    // Cancel any pending notifications
-                    if (mNotifyCharacteristic != null) {
-                        mBluetoothLeService.setCharacteristicNotification(
-                                mNotifyCharacteristic, false);
-                    }
-                    mNotifyCharacteristic = null;
                     // Return false so it will continue to be handled as if
                     // there were no listener
                     return false;
                 });
         mConnectionState = findViewById(R.id.connection_state);
         mDataField = findViewById(R.id.data_value);
+        mTileLayout = findViewById(R.id.subscription_tiles);
+        mValueFormatter = new ValueFormatter(mDecoders,
+                getString(R.string.unknown_characteristic), DEBUG_DATA);
+        mRenderer = new ValueRenderer(mDataField, mValueFormatter);
         // mDataField.setVisibility(View.GONE);
 
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
@@ -115,8 +156,10 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
+            startEventConsumer();
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
@@ -125,12 +168,25 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
         unregisterReceiver(mGattUpdateReceiver);
+        if (mReplayer != null) {
+            mReplayer.stop();
+        }
+        stopEventConsumer();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBenchmark != null) {
+            mBenchmark.cancel();
+        }
+        if (mBluetoothLeService != null) {
+            // The upload goes on in the service
+            mBluetoothLeService.getConnection(mDeviceAddress)
+                    .getFirmwareUploader().setListener(null);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -145,6 +201,22 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_record).setTitle(
+                mBluetoothLeService != null && mBluetoothLeService.isRecording()
+                        ? R.string.menu_stop_recording
+                        : R.string.menu_record);
+        menu.findItem(R.id.menu_replay).setTitle(mReplayer != null
+                ? R.string.menu_stop_replay : R.string.menu_replay);
+        menu.findItem(R.id.menu_benchmark).setTitle(
+                mBenchmark != null && mBenchmark.isRunning()
+                        ? R.string.menu_stop_benchmark
+                        : R.string.menu_benchmark);
+        menu.findItem(R.id.menu_firmware).setTitle(
+                mBluetoothLeService != null && mBluetoothLeService
+                        .getConnection(mDeviceAddress).getFirmwareUploader()
+                        .isRunning()
+                        ? R.string.menu_cancel_firmware
+                        : R.string.menu_firmware);
         return true;
     }
 
@@ -157,6 +229,34 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
         } else if (id == R.id.menu_disconnect) {
             mBluetoothLeService.disconnect();
             return true;
+        } else if (id == R.id.menu_statistics) {
+            showStatistics();
+            return true;
+        } else if (id == R.id.menu_record) {
+            toggleRecording();
+            return true;
+        } else if (id == R.id.menu_replay) {
+            if (mReplayer != null) {
+                mReplayer.stop();
+            } else {
+                chooseReplay();
+            }
+            return true;
+        } else if (id == R.id.menu_benchmark) {
+            toggleBenchmark();
+            return true;
+        } else if (id == R.id.menu_decode_policy) {
+            chooseDecodePolicy();
+            return true;
+        } else if (id == R.id.menu_hrv) {
+            showHrv();
+            return true;
+        } else if (id == R.id.menu_pmd) {
+            choosePmdStream();
+            return true;
+        } else if (id == R.id.menu_firmware) {
+            toggleFirmwareUpdate();
+            return true;
         } else if (id == android.R.id.home) {
             onBackPressed();
             return true;
@@ -164,26 +264,530 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Shows the throughput of all connections and the GATT operation
+     * statistics for this device.
+     */
+    private void showStatistics() {
+        if (mBluetoothLeService == null) return;
+        final GattConnection connection =
+                mBluetoothLeService.getConnection(mDeviceAddress);
+        String msg = mBluetoothLeService.getThroughputStatistics()
+                + "\n\n" + connection.getOperationQueue().getStatistics()
+                + "\n\n" + connection.getDecodeStage().getStatistics()
+                + "\n\n" + connection.getPmdController().getStatistics()
+                + "\n\n" + connection.getFirmwareUploader().getStatistics()
+                + "\n\n" + mRenderer.getStatistics();
+        for (ChartView chart : mCharts) {
+            msg += "\n" + chart.getStatistics();
+        }
+        if (mSubscription != null) {
+            msg += "\n\nEvent bus: backlog=" + mSubscription.getBacklog()
+                    + " dropped=" + mSubscription.getDroppedCount();
+        }
+        Utils.infoMsg(this, msg);
+    }
+
+    /**
+     * Shows the HRV of the heart rate notifications since the connection
+     * was made or the HRV was reset.
+     */
+    private void showHrv() {
+        if (mBluetoothLeService == null) return;
+        final HrvAnalyzer hrv = mBluetoothLeService
+                .getConnection(mDeviceAddress).getHrvAnalyzer();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_hrv)
+                .setMessage(hrv.getStatistics())
+                .setPositiveButton(R.string.ok, null)
+                .setNeutralButton(R.string.reset, (dialog, which) ->
+                        hrv.reset())
+                .show();
+    }
+
+    /**
+     * Lets the user start or stop a Polar PMD stream. The tiles are
+     * updated, since starting one subscribes to the PMD characteristics.
+     */
+    private void choosePmdStream() {
+        if (mBluetoothLeService == null) return;
+        final PmdController controller = mBluetoothLeService
+                .getConnection(mDeviceAddress).getPmdController();
+        final String[] items = new String[PmdFrame.N_TYPES];
+        for (int type = 0; type < items.length; type++) {
+            items[type] = getString(R.string.pmd_stream,
+                    PmdFrame.getTypeName(type), PmdController
+                            .getStateName(controller.getState(type)));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_pmd)
+                .setItems(items, (dialog, type) -> {
+                    final boolean ok = controller.getState(type)
+                            == PmdController.STATE_STOPPED ?
+                            controller.start(type) : controller.stop(type);
+                    if (!ok) {
+                        Utils.warnMsg(this,
+                                getString(R.string.pmd_not_available));
+                    }
+                    updateTiles();
+                })
+                .show();
+    }
+
+    /**
+     * Lets the user pick a firmware image and uploads it, or cancels the
+     * upload if one is running. The upload is done by the connection, so
+     * it goes on while this is paused, and several devices can be updated
+     * at once.
+     */
+    private void toggleFirmwareUpdate() {
+        if (mBluetoothLeService == null) return;
+        final FirmwareUploader uploader = mBluetoothLeService
+                .getConnection(mDeviceAddress).getFirmwareUploader();
+        if (uploader.isRunning()) {
+            uploader.cancel();
+            return;
+        }
+        final File dir = new File(getExternalFilesDir(null),
+                FirmwareUploader.FIRMWARE_DIR);
+        final File[] files = dir.listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            Utils.warnMsg(this, getString(R.string.no_firmware_images, dir));
+            return;
+        }
+        Arrays.sort(files);
+        final String[] names = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].getName();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_firmware)
+                .setItems(names, (dialog, which) -> {
+                    uploader.start(files[which], mFirmwareListener);
+                    invalidateOptionsMenu();
+                })
+                .show();
+    }
+
+    private final FirmwareUploader.Listener mFirmwareListener =
+            new FirmwareUploader.Listener() {
+                @Override
+                public void onProgress(FirmwareUploader uploader) {
+                    final ActionBar actionBar = getSupportActionBar();
+                    if (actionBar != null && uploader.getSize() > 0) {
+                        actionBar.setSubtitle(getString(
+                                R.string.firmware_progress,
+                                100. * uploader.getAckedBytes()
+                                        / uploader.getSize(),
+                                uploader.getByteRate() / 1000,
+                                FirmwareUploader.formatEta(
+                                        uploader.getEtaSeconds())));
+                    }
+                }
+
+                @Override
+                public void onFinished(FirmwareUploader uploader) {
+                    final ActionBar actionBar = getSupportActionBar();
+                    if (actionBar != null) {
+                        actionBar.setSubtitle(null);
+                    }
+                    invalidateOptionsMenu();
+                    if (isFinishing()) return;
+                    Utils.infoMsg(DeviceControlActivity.this,
+                            uploader.getStatistics());
+                }
+            };
+
+    /**
+     * Lets the user pick what is done when values come faster than they
+     * can be formatted for the broadcasts.
+     */
+    private void chooseDecodePolicy() {
+        if (mBluetoothLeService == null) return;
+        final DecodeStage.Policy[] policies = DecodeStage.Policy.values();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_decode_policy)
+                .setSingleChoiceItems(R.array.decode_policy_names,
+                        mBluetoothLeService.getDecodePolicy().ordinal(),
+                        (dialog, which) -> {
+                            mBluetoothLeService.setDecodePolicy(
+                                    policies[which]);
+                            dialog.dismiss();
+                        })
+                .show();
+    }
+
+    /**
+     * Starts recording a session of all connected devices, or stops it.
+     * Recording is done by the service, so it goes on while this is
+     * paused.
+     */
+    private void toggleRecording() {
+        if (mBluetoothLeService == null) return;
+        if (mBluetoothLeService.isRecording()) {
+            Utils.infoMsg(this, mBluetoothLeService.stopRecording());
+        } else {
+            final File dir = mBluetoothLeService.startRecording();
+            Utils.infoMsg(this, "Recording to " + dir);
+        }
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Lets the user pick a recorded session and a speed, and replays it.
+     */
+    private void chooseReplay() {
+        final File dir = new File(getExternalFilesDir(null),
+                BluetoothLeService.SESSION_DIR);
+        final List<String> sessions = SessionReader.listSessions(dir);
+        if (sessions.isEmpty()) {
+            Utils.warnMsg(this, getString(R.string.no_sessions));
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_replay)
+                .setItems(sessions.toArray(new String[0]),
+                        (dialog, which) -> listReplayDevices(
+                                SessionReader.findSegments(dir,
+                                        sessions.get(which))))
+                .show();
+    }
+
+    /**
+     * Finds the devices in a session and lets the user pick the one to
+     * replay. They are found on a thread of its own, since that reads all
+     * of the session.
+     *
+     * @param files The segment files.
+     */
+    private void listReplayDevices(final List<File> files) {
+        new Thread(() -> {
+            List<String> addresses = null;
+            IOException error = null;
+            try {
+                addresses = SessionReader.listAddresses(files);
+            } catch (IOException ex) {
+                error = ex;
+            }
+            final List<String> found = addresses;
+            final IOException failure = error;
+            runOnUiThread(() -> chooseReplayDevice(files, found, failure));
+        }, "SessionDevices").start();
+    }
+
+    private void chooseReplayDevice(final List<File> files,
+                                    final List<String> addresses,
+                                    IOException error) {
+        if (isFinishing()) return;
+        if (error != null) {
+            Utils.excMsg(this, "Error reading session", error);
+            return;
+        }
+        if (addresses.isEmpty()) {
+            Utils.warnMsg(this, getString(R.string.no_session_devices));
+            return;
+        }
+        if (addresses.size() == 1) {
+            chooseReplaySpeed(files, addresses.get(0));
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.replay_device)
+                .setItems(addresses.toArray(new String[0]),
+                        (dialog, which) -> chooseReplaySpeed(files,
+                                addresses.get(which)))
+                .show();
+    }
+
+    private void chooseReplaySpeed(final List<File> files,
+                                   final String address) {
+        final String[] names = getResources()
+                .getStringArray(R.array.replay_speed_names);
+        final double[] speeds = {1, 2, 10, SessionReplayer.MAX_SPEED};
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.replay_speed)
+                .setItems(names, (dialog, which) ->
+                        startReplay(files, address, speeds[which]))
+                .show();
+    }
+
+    /**
+     * Replays the records of one device in a session into a bus of its
+     * own, which the event consumer switches to, so the values are decoded
+     * and shown as if they were live.
+     *
+     * @param files   The segment files.
+     * @param address The address of the device.
+     * @param speed   The speed, or SessionReplayer.MAX_SPEED.
+     */
+    private void startReplay(List<File> files, String address,
+                             double speed) {
+        if (mReplayer != null) return;
+        final GattEventBus bus = new GattEventBus(1024);
+        stopEventConsumer();
+        startEventConsumer(bus);
+        mRenderer.resetStatistics();
+        mReplayer = new SessionReplayer(files, address, bus, speed);
+        mReplayer.start((replayer, error) -> runOnUiThread(() ->
+                onReplayFinished(replayer, error)));
+        invalidateOptionsMenu();
+    }
+
+    private void onReplayFinished(SessionReplayer replayer,
+                                  IOException error) {
+        if (replayer != mReplayer) return;
+        mReplayer = null;
+        stopEventConsumer();
+        if (isFinishing()) return;
+        // The replay is also stopped by onPause, which leaves the consumer
+        // to onResume
+        if (mResumed) {
+            startEventConsumer();
+        }
+        invalidateOptionsMenu();
+        if (error != null) {
+            Utils.excMsg(this, "Error replaying session", error);
+            return;
+        }
+        Utils.infoMsg(this, String.format(Locale.US,
+                "Replayed %d events in %.2f s, %.1f events/s\n" +
+                        "Displayed %d frames, waited for the display " +
+                        "%d times", replayer.getEventCount(),
+                replayer.getElapsedNanos() * 1e-9, replayer.getRate(),
+                mRenderer.getFrameCount(), replayer.getWaitCount()));
+    }
+
+    /**
+     * Starts the throughput benchmark on the characteristic whose
+     * notifications are shown, or stops it if it is running.
+     */
+    private void toggleBenchmark() {
+        if (mBenchmark != null && mBenchmark.isRunning()) {
+            mBenchmark.cancel();
+            return;
+        }
+        if (mBluetoothLeService == null || !mConnected) {
+            Utils.warnMsg(this, getString(R.string.benchmark_not_connected));
+            return;
+        }
+        // Use the latest subscription
+        GattCharacteristic characteristic = null;
+        for (View tile : mTiles.values()) {
+            if (tile.getTag() != null) {
+                characteristic = (GattCharacteristic) tile.getTag();
+            }
+        }
+        if (characteristic == null) {
+            Utils.warnMsg(this, getString(R.string.benchmark_no_characteristic));
+            return;
+        }
+        mBenchmark = new ThroughputBenchmark(
+                mBluetoothLeService.getConnection(mDeviceAddress),
+                new HandlerScheduler(new Handler(Looper.getMainLooper())),
+                characteristic,
+                mBluetoothLeService.isLe2MPhySupported(),
+                mBenchmarkListener);
+        mBenchmark.start();
+        invalidateOptionsMenu();
+    }
+
+    private final ThroughputBenchmark.Listener mBenchmarkListener =
+            new ThroughputBenchmark.Listener() {
+                @Override
+                public void onProgress(int step, int total,
+                                       ThroughputBenchmark.Result config) {
+                    final ActionBar actionBar = getSupportActionBar();
+                    if (actionBar != null) {
+                        actionBar.setSubtitle(String.format(Locale.US,
+                                "Benchmark %d/%d: MTU %d, %dM PHY, %s", step,
+                                total, Math.max(config.requestedMtu,
+                                        config.mtu), config.phy,
+                                ThroughputBenchmark.priorityName(
+                                        config.connectionPriority)));
+                    }
+                }
+
+                @Override
+                public void onFinished(List<ThroughputBenchmark.Result> results,
+                                       boolean cancelled) {
+                    final ActionBar actionBar = getSupportActionBar();
+                    if (actionBar != null) {
+                        actionBar.setSubtitle(null);
+                    }
+                    invalidateOptionsMenu();
+                    if (isFinishing() || results.isEmpty()) return;
+                    exportBenchmark(results, cancelled);
+                }
+            };
+
+    /**
+     * Saves the benchmark results as CSV in the app's external files
+     * directory, shows them, and offers to share them.
+     *
+     * @param results   The results.
+     * @param cancelled Whether the benchmark did not complete.
+     */
+    private void exportBenchmark(List<ThroughputBenchmark.Result> results,
+                                 boolean cancelled) {
+        final String csv = ThroughputBenchmark.toCsv(results);
+        final String name = "benchmark-" + mDeviceAddress.replace(":", "")
+                + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date()) + ".csv";
+        final File file = new File(getExternalFilesDir(null), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(csv.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            Utils.excMsg(this, "Error writing " + file, ex);
+            return;
+        }
+        Utils.infoMsg(this, (cancelled ? "Benchmark stopped\n\n" : "")
+                + ThroughputBenchmark.toTable(results) + "\nSaved to "
+                + file);
+        final Intent share = new Intent(Intent.ACTION_SEND);
+        share.setType("text/csv");
+        share.putExtra(Intent.EXTRA_SUBJECT, name);
+        share.putExtra(Intent.EXTRA_TEXT, csv);
+        startActivity(Intent.createChooser(share,
+                getString(R.string.menu_benchmark)));
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(() -> mConnectionState.setText(resourceId));
     }
 
-    private void displayData(String data) {
-        if (data != null) {
-            mDataField.setText(data);
-        } else {
+    /**
+     * Displays the value from an ACTION_DATA_AVAILABLE broadcast. The
+     * formatted text in it is not used, so values from broadcasts and from
+     * the event bus are drawn the same way, at most once per frame.
+     *
+     * @param intent The broadcast.
+     */
+    private void displayData(Intent intent) {
+        final String uuid =
+                intent.getStringExtra(BluetoothLeService.EXTRA_UUID);
+        if (uuid == null) {
             mDataField.setText(R.string.no_data);
+            return;
+        }
+        final UUID characteristic = UUID.fromString(uuid);
+        final byte[] value =
+                intent.getByteArrayExtra(BluetoothLeService.EXTRA_VALUE);
+        final int instanceId =
+                intent.getIntExtra(BluetoothLeService.EXTRA_INSTANCE_ID, 0);
+        final int length = value == null ? 0 : value.length;
+        mRenderer.update(characteristic.getMostSignificantBits(),
+                characteristic.getLeastSignificantBits(), instanceId,
+                value, 0, length);
+        addChartValue(characteristic.getMostSignificantBits(),
+                characteristic.getLeastSignificantBits(), instanceId,
+                System.nanoTime(), value, length);
+    }
+
+    /**
+     * Displays a data event from the event bus. The value is only decoded
+     * and formatted when the next frame is drawn.
+     *
+     * @param event The event.
+     */
+    private void displayData(GattEventBus.Event event) {
+        mRenderer.update(event.uuidMsb, event.uuidLsb, event.instanceId,
+                event.value, 0, event.length);
+        addChartValue(event.uuidMsb, event.uuidLsb, event.instanceId,
+                event.timestampNanos, event.value, event.length);
+    }
+
+    private void addChartValue(long uuidMsb, long uuidLsb, int instanceId,
+                               long timeNanos, byte[] value, int length) {
+        for (int i = 0; i < mCharts.size(); i++) {
+            final GattCharacteristic characteristic =
+                    mChartCharacteristics.get(i);
+            final UUID uuid = characteristic.getUuid();
+            if (uuid.getLeastSignificantBits() == uuidLsb
+                    && uuid.getMostSignificantBits() == uuidMsb
+                    && characteristic.getInstanceId() == instanceId) {
+                mCharts.get(i).addValue(timeNanos, value, 0, length);
+            }
         }
     }
 
+    /**
+     * Subscribes to the event bus of the device and starts a thread that
+     * waits for events and has them drained on the UI thread. Data
+     * broadcasts are turned off while this is running.
+     */
+    private void startEventConsumer() {
+        if (mBluetoothLeService == null || mReplayer != null) return;
+        startEventConsumer(mBluetoothLeService.getConnection(mDeviceAddress)
+                .getEventBus());
+    }
+
+    /**
+     * Starts consuming a given event bus.
+     *
+     * @param bus The bus.
+     */
+    private void startEventConsumer(GattEventBus bus) {
+        if (mBluetoothLeService == null || mEventThread != null) return;
+        final GattEventBus.Subscription subscription = bus.subscribe();
+        mSubscription = subscription;
+        mBluetoothLeService.setDataBroadcastsEnabled(false);
+        mEventThread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (!subscription.await(1, TimeUnit.SECONDS)) continue;
+                    synchronized (mDrainLock) {
+                        mDrainPending = true;
+                        runOnUiThread(mDrainEvents);
+                        while (mDrainPending) {
+                            mDrainLock.wait();
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Stopped
+            }
+        }, "GattEventConsumer");
+        mEventThread.start();
+    }
+
+    private void stopEventConsumer() {
+        if (mEventThread != null) {
+            mEventThread.interrupt();
+            mEventThread = null;
+        }
+        if (mSubscription != null) {
+            mSubscription.close();
+            mSubscription = null;
+        }
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setDataBroadcastsEnabled(true);
+        }
+    }
+
+    // Drains the event bus on the UI thread. The renderer keeps only the
+    // latest value of each characteristic until the next frame.
+    private final Runnable mDrainEvents = () -> {
+        final GattEventBus.Subscription subscription = mSubscription;
+        while (subscription != null && subscription.poll(mPollEvent)) {
+            if (mPollEvent.isData()) {
+                displayData(mPollEvent);
+            }
+        }
+        synchronized (mDrainLock) {
+            mDrainPending = false;
+            mDrainLock.notifyAll();
+        }
+    };
+
     // Demonstrates how to iterate through the supported GATT
     // Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the
     // ExpandableListView
     // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
+    private void displayGattServices(List<GattService> gattServices) {
         if (gattServices == null)
             return;
+        mShowingCachedServices = false;
         String uuid;
         String unknownServiceString = getResources().getString(
                 R.string.unknown_service);
@@ -197,29 +801,29 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
                 new ArrayList<>();
 
         // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
+        for (GattService gattService : gattServices) {
             HashMap<String, String> currentServiceData = new HashMap<>();
             uuid = gattService.getUuid().toString();
-            currentServiceData.put(LIST_NAME,
-                    GattAttributes.lookup(uuid, unknownServiceString));
+            currentServiceData.put(LIST_NAME, GattAttributes.lookup(
+                    gattService.getUuid(), unknownServiceString));
             currentServiceData.put(LIST_UUID, uuid);
             gattServiceData.add(currentServiceData);
 
             ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
                     new ArrayList<>();
-            List<BluetoothGattCharacteristic> gattCharacteristics = gattService
+            List<GattCharacteristic> gattCharacteristics = gattService
                     .getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> characteristics =
+            ArrayList<GattCharacteristic> characteristics =
                     new ArrayList<>();
 
             // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic :
+            for (GattCharacteristic gattCharacteristic :
                     gattCharacteristics) {
                 characteristics.add(gattCharacteristic);
                 HashMap<String, String> currentCharaData = new HashMap<>();
                 uuid = gattCharacteristic.getUuid().toString();
-                currentCharaData.put(LIST_NAME,
-                        GattAttributes.lookup(uuid, unknownCharaString));
+                currentCharaData.put(LIST_NAME, GattAttributes.lookup(
+                        gattCharacteristic.getUuid(), unknownCharaString));
                 currentCharaData.put(LIST_UUID, uuid);
                 gattCharacteristicGroupData.add(currentCharaData);
             }
@@ -241,6 +845,200 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
                         new int[]{android.R.id.text1,
                                 android.R.id.text2});
         mGattServicesList.setAdapter(gattServiceAdapter);
+        updateTiles();
+    }
+
+    /**
+     * Subscribes to a characteristic, or unsubscribes if it is subscribed.
+     *
+     * @param characteristic The characteristic.
+     * @return If it is now subscribed.
+     */
+    private boolean toggleSubscription(
+            GattCharacteristic characteristic) {
+        final GattConnection connection =
+                mBluetoothLeService.getConnection(mDeviceAddress);
+        final boolean subscribe = !connection.isSubscribed(characteristic);
+        connection.setCharacteristicNotification(characteristic, subscribe);
+        updateTiles();
+        return subscribe;
+    }
+
+    /**
+     * Makes the tiles match the subscriptions of the connection, and binds
+     * them to the characteristics shown, which are new after each
+     * discovery.
+     */
+    private void updateTiles() {
+        if (mBluetoothLeService == null) return;
+        final List<UUID[]> subscriptions = mBluetoothLeService
+                .getConnection(mDeviceAddress).getSubscriptions();
+        final LinkedHashMap<String, View> old = new LinkedHashMap<>(mTiles);
+        for (View tile : old.values()) {
+            unbindTile(tile);
+        }
+        mTiles.clear();
+        mTileLayout.removeAllViews();
+        final String unknown = getString(R.string.unknown_characteristic);
+        for (UUID[] subscription : subscriptions) {
+            final String key = subscription[0] + "/" + subscription[1];
+            View tile = old.get(key);
+            if (tile == null) {
+                tile = getLayoutInflater().inflate(
+                        R.layout.tile_subscription, mTileLayout, false);
+                tile.setOnClickListener(v -> {
+                    final Object characteristic = v.getTag();
+                    if (characteristic != null) {
+                        toggleSubscription(
+                                (GattCharacteristic) characteristic);
+                    }
+                });
+                tile.setOnLongClickListener(v -> {
+                    toggleChart(v);
+                    return true;
+                });
+            }
+            final GattCharacteristic characteristic =
+                    findCharacteristic(subscription[0], subscription[1]);
+            final String name = GattAttributes.lookup(subscription[1],
+                    unknown);
+            final TextView title = tile.findViewById(R.id.tile_title);
+            if (characteristic == null) {
+                title.setText(name);
+            } else {
+                title.setText(getString(GattConnection.usesIndication(
+                        characteristic) ? R.string.subscription_indicate
+                        : R.string.subscription_notify, name));
+                mRenderer.bind(subscription[1].getMostSignificantBits(),
+                        subscription[1].getLeastSignificantBits(),
+                        characteristic.getInstanceId(),
+                        tile.findViewById(R.id.tile_value));
+            }
+            tile.setTag(characteristic);
+            mTileLayout.addView(tile);
+            mTiles.put(key, tile);
+        }
+        updateCharts();
+    }
+
+    /**
+     * Shows or hides the chart of a tile. Only characteristics with a
+     * {@link SampleDecoder} can be charted.
+     *
+     * @param tile The tile.
+     */
+    private void toggleChart(View tile) {
+        final GattCharacteristic characteristic =
+                (GattCharacteristic) tile.getTag();
+        if (characteristic == null) return;
+        final ChartView chart = tile.findViewById(R.id.tile_chart);
+        if (chart.getVisibility() == View.VISIBLE) {
+            chart.setVisibility(View.GONE);
+            chart.clear();
+        } else {
+            final UUID uuid = characteristic.getUuid();
+            final CharacteristicDecoder decoder = mDecoders.get(
+                    uuid.getMostSignificantBits(),
+                    uuid.getLeastSignificantBits());
+            if (!(decoder instanceof SampleDecoder)) {
+                Utils.warnMsg(this, getString(R.string.chart_not_numeric));
+                return;
+            }
+            chart.setDecoder((SampleDecoder) decoder);
+            chart.setVisibility(View.VISIBLE);
+        }
+        updateCharts();
+    }
+
+    /**
+     * Finds the charts that are shown, so the values can be routed to
+     * them without a lookup per value.
+     */
+    private void updateCharts() {
+        mCharts.clear();
+        mChartCharacteristics.clear();
+        for (View tile : mTiles.values()) {
+            final ChartView chart = tile.findViewById(R.id.tile_chart);
+            if (tile.getTag() != null
+                    && chart.getVisibility() == View.VISIBLE) {
+                mCharts.add(chart);
+                mChartCharacteristics.add(
+                        (GattCharacteristic) tile.getTag());
+            }
+        }
+    }
+
+    private void unbindTile(View tile) {
+        final GattCharacteristic characteristic =
+                (GattCharacteristic) tile.getTag();
+        if (characteristic == null) return;
+        final UUID uuid = characteristic.getUuid();
+        mRenderer.remove(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits(),
+                characteristic.getInstanceId());
+    }
+
+    /**
+     * @param serviceUuid        The service UUID.
+     * @param characteristicUuid The characteristic UUID.
+     * @return The characteristic among those shown, or null.
+     */
+    private GattCharacteristic findCharacteristic(
+            UUID serviceUuid, UUID characteristicUuid) {
+        for (ArrayList<GattCharacteristic> characteristics :
+                mGattCharacteristics) {
+            for (GattCharacteristic characteristic :
+                    characteristics) {
+                if (characteristic.getUuid().equals(characteristicUuid)
+                        && characteristic.getService().getUuid()
+                        .equals(serviceUuid)) {
+                    return characteristic;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Displays the service table from the cache, if there is one, while
+     * service discovery is running. The cached characteristics cannot be
+     * used for operations until discovery completes.
+     */
+    private void displayCachedServices() {
+        if (mBluetoothLeService == null || !mGattCharacteristics.isEmpty()) {
+            return;
+        }
+        final List<GattService> services = mBluetoothLeService
+                .getConnection(mDeviceAddress).getCachedServices();
+        if (services != null) {
+            displayGattServices(services);
+            mShowingCachedServices = true;
+        }
+    }
+
+    /**
+     * Handles the end of service discovery. If the cached table that is
+     * shown is still valid, only the characteristics behind the rows are
+     * replaced, otherwise the table is displayed again.
+     */
+    private void onServicesDiscovered() {
+        final List<GattService> services =
+                mBluetoothLeService.getSupportedGattServices();
+        if (services == null) return;
+        if (!mShowingCachedServices || !mBluetoothLeService
+                .getConnection(mDeviceAddress).isServiceCacheValid()) {
+            displayGattServices(services);
+            return;
+        }
+        mShowingCachedServices = false;
+        final ArrayList<ArrayList<GattCharacteristic>>
+                characteristics = new ArrayList<>();
+        for (GattService service : services) {
+            characteristics.add(
+                    new ArrayList<>(service.getCharacteristics()));
+        }
+        mGattCharacteristics = characteristics;
+        updateTiles();
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
@@ -250,6 +1048,8 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
         intentFilter
                 .addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
+        intentFilter
+                .addAction(BluetoothLeService.ACTION_SERVICE_CACHE_LOADED);
         return intentFilter;
     }
 
@@ -262,14 +1062,30 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
                     mBluetoothLeService =
                             ((BluetoothLeService.LocalBinder) service)
                                     .getService();
-                    if (!mBluetoothLeService.initialize()) {
+                    if (!mBluetoothLeService.initialize()
+                            && !SimulatedPeripheral.isSimulatedAddress(
+                            mDeviceAddress)) {
                         Log.e(TAG, "Unable to initialize Bluetooth");
                         finish();
                     }
+                    mDecoders.register(PmdController.UUID_PMD_DATA,
+                            mBluetoothLeService.getConnection(mDeviceAddress)
+                                    .getPmdController().getDecoder());
+                    if (mResumed) {
+                        startEventConsumer();
+                    }
                     // Automatically connects to the device upon successful
                     // start-up
                     // initialization.
                     mBluetoothLeService.connect(mDeviceAddress);
+                    displayCachedServices();
+                    // Show the progress of an upload started before
+                    final FirmwareUploader uploader = mBluetoothLeService
+                            .getConnection(mDeviceAddress)
+                            .getFirmwareUploader();
+                    if (uploader.isRunning()) {
+                        uploader.setListener(mFirmwareListener);
+                    }
                 }
 
                 @Override
@@ -290,10 +1106,20 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     final String action = intent.getAction();
+                    // Ignore other devices in the connection pool
+                    final String address = intent
+                            .getStringExtra(BluetoothLeService.EXTRA_ADDRESS);
+                    if (address != null && !address.equals(mDeviceAddress)) {
+                        return;
+                    }
                     if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                         mConnected = true;
                         updateConnectionState(R.string.connected);
+                        displayCachedServices();
                         invalidateOptionsMenu();
+                    } else if (BluetoothLeService.ACTION_SERVICE_CACHE_LOADED
+                            .equals(action)) {
+                        displayCachedServices();
                     } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED
                             .equals(action)) {
                         mConnected = false;
@@ -305,21 +1131,18 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
                         // Show all the supported services and
                         // characteristics on the
                         // user interface.
-                        displayGattServices(mBluetoothLeService
-                                .getSupportedGattServices());
+                        onServicesDiscovered();
                     } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                        displayData(intent
-                                .getStringExtra(BluetoothLeService.EXTRA_DATA));
+                        displayData(intent);
                     }
                 }
             };
 
-    // If a given GATT characteristic is selected, check for supported features.
-    // This sample
-    // demonstrates 'Read' and 'Notify' features. See
-    // http://d.android.com/reference/android/bluetooth/BluetoothGatt.html for
-    // the complete
-    // list of supported characteristic features.
+    // If a given GATT characteristic is selected, check for supported
+    // features. One that can notify or indicate is subscribed to, or
+    // unsubscribed if it already is, and its values are shown in a tile.
+    // Any number can be subscribed at once. One that can only be read is
+    // read into the data field.
     private final ExpandableListView.OnChildClickListener servicesListChildClickListener = new ExpandableListView.OnChildClickListener() {
         @Override
         public boolean onChildClick(ExpandableListView parent, View v,
@@ -327,44 +1150,36 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
                                     long id) {
             if (mGattCharacteristics != null) {
                 // mDataField.setVisibility(View.VISIBLE);
-                final BluetoothGattCharacteristic characteristic =
+                final GattCharacteristic characteristic =
                         mGattCharacteristics
                                 .get(groupPosition).get(childPosition);
-                // Set the data field to pending
-                mDataField.setText(GattAttributes.lookup(
-                        characteristic.getUuid().toString(),
+                final String name = GattAttributes.lookup(
+                        characteristic.getUuid(),
                         getResources().getString(
-                                R.string.unknown_characteristic))
-                        + "\n" + "Pending");
-                // If there is an active notification on a characteristic,
-                // clear it first so it doesn't update the data field on the
-                // user interface
-                if (mNotifyCharacteristic != null) {
-                    mBluetoothLeService.setCharacteristicNotification(
-                            mNotifyCharacteristic, false);
-                    mNotifyCharacteristic = null;
-                }
-                // First try to read it
-                final int charaProp = characteristic.getProperties();
-                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
+                                R.string.unknown_characteristic));
+                final boolean readable = (characteristic.getProperties()
+                        & GattCharacteristic.PROPERTY_READ) != 0;
+                mRenderer.clear();
+                if (GattConnection.isSubscribable(characteristic)) {
+                    // Before discovery this is only recorded, and it is
+                    // enabled with the others when discovery completes
+                    final boolean subscribed =
+                            toggleSubscription(characteristic);
+                    mDataField.setText(name + "\n" + getString(subscribed
+                            ? R.string.subscribed : R.string.unsubscribed));
+                    // The value goes to the tile
+                    if (subscribed && readable && !mShowingCachedServices) {
+                        mBluetoothLeService.readCharacteristic(
+                                characteristic);
+                    }
+                } else if (mShowingCachedServices) {
+                    // Not from the GattClient yet
+                    mDataField.setText(R.string.waiting_for_discovery);
+                } else if (readable) {
+                    mDataField.setText(name + "\n" + "Pending");
                     mBluetoothLeService.readCharacteristic(characteristic);
                 } else {
-                    mDataField.setText(GattAttributes.lookup(
-                            characteristic.getUuid().toString(),
-                            getResources().getString(
-                                    R.string.unknown_characteristic))
-                            + "\n" + "Not readable");
-                }
-                // Then set up a notification if possible
-                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                    mNotifyCharacteristic = characteristic;
-                    mBluetoothLeService.setCharacteristicNotification(
-                            characteristic, true);
-                } else {
-                    mDataField.setText(GattAttributes.lookup(
-                            characteristic.getUuid().toString(),
-                            getResources().getString(
-                                    R.string.unknown_characteristic))
+                    mDataField.setText(name + "\n" + "Not readable"
                             + "\n" + "Notification NA");
                 }
                 return true;
@@ -375,6 +1190,9 @@ public class DeviceControlActivity extends AppCompatActivity implements IConstan
 
     private void clearUI() {
         mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        mGattCharacteristics = new ArrayList<>();
+        mShowingCachedServices = false;
+        mRenderer.clear();
         mDataField.setText("");
         // mDataField.setVisibility(View.GONE);
     }
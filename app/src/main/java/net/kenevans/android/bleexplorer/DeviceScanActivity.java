@@ -23,32 +23,43 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
 /**
@@ -61,6 +72,37 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
     private boolean mScanning;
     private Handler mHandler;
     private ListView mListView;
+    private Choreographer mChoreographer;
+    /**
+     * The scan callback comes on the UI thread, so it only hands the results
+     * to this thread, which parses them and adds them to the table.
+     */
+    private HandlerThread mScanThread;
+    private Handler mScanHandler;
+    private static final int MSG_SCAN_RESULT = 1;
+    private static final int MSG_SCAN_RESULTS = 2;
+    /** Written on the scan thread. */
+    private final ScanResultTable mScanTable = new ScanResultTable();
+    /** What the list shows. Only used on the UI thread. */
+    private final ScanResultTable.Snapshot mShownResults =
+            new ScanResultTable.Snapshot();
+    private final Choreographer.FrameCallback mPublishFrame =
+            frameTimeNanos -> publishScanResults();
+    /**
+     * Schedules a publish for the next frame. Run on the UI thread, as the
+     * Choreographer belongs to it.
+     */
+    private final Runnable mSchedulePublish =
+            () -> mChoreographer.postFrameCallback(mPublishFrame);
+    /** Interval for updating the ages and rates of the visible rows. */
+    private static final long STATS_REFRESH_MS = 1000;
+    /** The filters and settings for scanning, or null for all devices. */
+    private volatile ScanProfile mScanProfile;
+    private final ScanMetrics mScanMetrics = new ScanMetrics();
+    /** Only used on the scan thread. */
+    private final AdvertisementParser mAdParser = new AdvertisementParser();
+    /** The background scan service, if it is running and bound. */
+    private ScanService mScanService;
 
     private boolean mPermissionsRequested;
     private boolean mAllPermissionsAsked;
@@ -96,8 +138,15 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
             actionBar.setTitle(R.string.title_devices);
             actionBar.setDisplayHomeAsUpEnabled(false);
         }
+        mScanProfile = ScanProfile.loadActive(this);
+        showScanProfile();
         setContentView(R.layout.list_view);
         mHandler = new Handler();
+        mChoreographer = Choreographer.getInstance();
+        mScanThread = new HandlerThread("ScanResults");
+        mScanThread.start();
+        mScanHandler = new Handler(mScanThread.getLooper(),
+                this::handleScanResults);
         mListView = findViewById(R.id.mainListView);
         mListView.setOnItemClickListener((parent, view, position, id) -> onListItemClick(mListView, view, position, id));
 
@@ -145,9 +194,27 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
         setResult(Activity.RESULT_CANCELED);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Binds only if it is running
+        bindService(new Intent(this, ScanService.class),
+                mScanServiceConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        unbindService(mScanServiceConnection);
+        mScanService = null;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.menu_background_scan).setTitle(
+                ScanService.isRunning() ? R.string.menu_stop_background_scan
+                        : R.string.menu_background_scan);
         if (!mScanning) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
@@ -163,8 +230,42 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
 
     @Override
     public boolean onOptionsItemSelected(@NonNull MenuItem item) {
-        if (!mBleSupported) return false;
         int id = item.getItemId();
+        if (id == R.id.menu_simulator) {
+            // Works without a radio
+            endScan();
+            final Intent intent = new Intent(this,
+                    DeviceControlActivity.class);
+            intent.putExtra(DEVICE_NAME_CODE,
+                    SimulatedPeripheral.DEFAULT_NAME);
+            intent.putExtra(DEVICE_ADDRESS_CODE,
+                    SimulatedPeripheral.DEFAULT_ADDRESS);
+            startActivity(intent);
+            return true;
+        }
+        if (id == R.id.menu_scan_statistics) {
+            String msg = mScanMetrics.getStatistics(System.nanoTime());
+            if (mScanService != null) {
+                msg += "\n\nBackground scan\n"
+                        + mScanService.getStatistics();
+            }
+            Utils.infoMsg(this, msg);
+            return true;
+        }
+        if (!mBleSupported) return false;
+        if (id == R.id.menu_scan_profile) {
+            chooseScanProfile();
+            return true;
+        }
+        if (id == R.id.menu_background_scan) {
+            if (ScanService.isRunning()) {
+                stopService(new Intent(this, ScanService.class));
+                invalidateOptionsMenu();
+            } else {
+                chooseDutyCycle();
+            }
+            return true;
+        }
         if (id == R.id.menu_scan) {
             mLeDeviceListAdapter.clear();
             startScan();
@@ -209,11 +310,12 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
             enableBluetoothLauncher.launch(intent);
         }
 
-        // Initializes list view adapter.
+        // Initializes list view adapter. Scans started here would count
+        // against the same throttling limit as the background scan.
         if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
             mLeDeviceListAdapter = new LeDeviceListAdapter();
             mListView.setAdapter(mLeDeviceListAdapter);
-            startScan();
+            if (!ScanService.isRunning()) startScan();
         }
     }
 
@@ -284,6 +386,14 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mScanThread != null) {
+            mScanThread.quit();
+        }
+    }
+
     @Override
     public void onBackPressed() {
         // This seems to be necessary with Android 12
@@ -339,6 +449,7 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
             } else {
                 mBluetoothAdapter.getBluetoothLeScanner().stopScan(mLeScanCallback);
             }
+            mScanMetrics.stop(System.nanoTime());
         }
         mScanning = false;
         invalidateOptionsMenu();
@@ -371,55 +482,144 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
                 } else {
                     mBluetoothAdapter.getBluetoothLeScanner().stopScan(mLeScanCallback);
                 }
+                mScanMetrics.stop(System.nanoTime());
                 mScanning = false;
                 invalidateOptionsMenu();
             };
             mHandler.postDelayed(mTimer, DEVICE_SCAN_PERIOD);
+            mHandler.postDelayed(mRefreshStats, STATS_REFRESH_MS);
 
             mScanning = true;
-            mBluetoothAdapter.getBluetoothLeScanner().startScan(null,
-                    new ScanSettings.Builder()
-                            .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                            .setReportDelay(1000)
-                            .build(),
+            final ScanProfile profile = mScanProfile != null ?
+                    mScanProfile : new ScanProfile();
+            mScanMetrics.start(System.nanoTime(),
+                    profile.describeCriteria());
+            mBluetoothAdapter.getBluetoothLeScanner().startScan(
+                    profile.buildFilters(),
+                    profile.buildSettings(mBluetoothAdapter),
                     mLeScanCallback);
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    /**
+     * Handles the results handed over by the scan callback. Called on the
+     * scan thread.
+     *
+     * @param msg MSG_SCAN_RESULT with a ScanResult, or MSG_SCAN_RESULTS
+     *            with a list of them.
+     * @return True, as it is handled.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean handleScanResults(Message msg) {
+        if (msg.what == MSG_SCAN_RESULT) {
+            addScanResult((ScanResult) msg.obj);
+        } else {
+            for (ScanResult result : (List<ScanResult>) msg.obj) {
+                addScanResult(result);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a scan result to the table and schedules a publish for the next
+     * frame if one is not already scheduled. Called on the scan thread.
+     *
+     * @param result The result.
+     */
+    private void addScanResult(ScanResult result) {
+        // The name in the scan record does not need BLUETOOTH_CONNECT.
+        // The record is parsed in place, with no per-result allocation.
+        final ScanRecord record = result.getScanRecord();
+        final AdvertisementParser ad = mAdParser;
+        ad.parse(record != null ? record.getBytes() : null);
+        final ScanProfile profile = mScanProfile;
+        if (profile != null && !profile.matchesName(ad)) {
+            mScanMetrics.addFiltered();
+            return;
+        }
+        if (mScanTable.add(result.getDevice(), ad, result.getRssi(),
+                result.getTimestampNanos())) {
+            // Once per frame at most, since add() only returns true for the
+            // first change after a publish
+            runOnUiThread(mSchedulePublish);
+        }
+    }
+
+    /**
+     * Shows the results added or changed since the last frame. If rows were
+     * added, the list is rebound. Otherwise only the visible rows that
+     * changed are.
+     */
+    private void publishScanResults() {
+        mScanTable.publishTo(mShownResults);
+        if (mLeDeviceListAdapter == null) return;
+        if (mShownResults.moved
+                || mShownResults.size != mShownResults.previousSize) {
+            mLeDeviceListAdapter.notifyDataSetChanged();
+            return;
+        }
+        final int first = mListView.getFirstVisiblePosition();
+        final int last = mListView.getLastVisiblePosition();
+        for (int i = 0; i < mShownResults.changedCount; i++) {
+            final int row = mShownResults.changed[i];
+            if (row < first || row > last) continue;
+            final View view = mListView.getChildAt(row - first);
+            if (view != null) {
+                mLeDeviceListAdapter.getView(row, view, mListView);
+            }
+        }
+    }
+
+    // Rebinds the visible rows, so the ages and rates of devices that are
+    // no longer advertising are updated, while scanning.
+    private final Runnable mRefreshStats = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning || mLeDeviceListAdapter == null) return;
+            final int first = mListView.getFirstVisiblePosition();
+            for (int i = 0; i < mListView.getChildCount(); i++) {
+                final int row = first + i;
+                if (row >= mShownResults.size) break;
+                mLeDeviceListAdapter.getView(row, mListView.getChildAt(i),
+                        mListView);
+            }
+            mHandler.postDelayed(this, STATS_REFRESH_MS);
+        }
+    };
+
+    // Adapter for holding devices found through scanning. The rows are in
+    // mShownResults.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private final ArrayList<BluetoothDevice> mLeDevices;
         private final LayoutInflater mInflator;
 
         private LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        private void addDevice(BluetoothDevice device) {
-            if (!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
-        }
-
         private BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mShownResults.devices[position];
         }
 
         private void clear() {
-            mLeDevices.clear();
+            mScanHandler.removeMessages(MSG_SCAN_RESULT);
+            mScanHandler.removeMessages(MSG_SCAN_RESULTS);
+            mChoreographer.removeFrameCallback(mPublishFrame);
+            mScanTable.clear();
+            mShownResults.clear();
+            notifyDataSetChanged();
         }
 
         @Override
         public int getCount() {
-            return mLeDevices.size();
+            return mShownResults.size;
         }
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mShownResults.devices[i];
         }
 
         @Override
@@ -438,47 +638,314 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
                         .findViewById(R.id.device_address);
                 viewHolder.deviceName = view
                         .findViewById(R.id.device_name);
+                viewHolder.deviceStats = view
+                        .findViewById(R.id.device_stats);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            if (Build.VERSION.SDK_INT >= 31 &&
-                    checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                            PackageManager.PERMISSION_GRANTED) {
-                Log.d(TAG, this.getClass().getSimpleName()
-                        + ": getView: BLUETOOTH_CONNECT not granted");
-                return view;
+            BluetoothDevice device = mShownResults.devices[i];
+            String deviceName = mShownResults.names[i];
+            if (deviceName == null) {
+                if (Build.VERSION.SDK_INT >= 31 &&
+                        checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
+                                PackageManager.PERMISSION_GRANTED) {
+                    Log.d(TAG, this.getClass().getSimpleName()
+                            + ": getView: BLUETOOTH_CONNECT not granted");
+                    return view;
+                }
+                deviceName = device.getName();
             }
-            final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0) {
                 viewHolder.deviceName.setText(deviceName);
-                viewHolder.deviceAddress.setText(device.getAddress());
             } else {
                 viewHolder.deviceName.setText(R.string.unknown_device);
-                if (device.getAddress() != null) {
-                    viewHolder.deviceAddress.setText(device.getAddress());
-                } else {
-                    viewHolder.deviceAddress.setText("");
-                }
             }
+            if (device.getAddress() != null) {
+                viewHolder.deviceAddress.setText(String.format(Locale.US,
+                        "%s  %d dBm", device.getAddress(),
+                        mShownResults.rssi[i]));
+            } else {
+                viewHolder.deviceAddress.setText("");
+            }
+            viewHolder.deviceStats.setText(formatStats(mShownResults, i,
+                    SystemClock.elapsedRealtimeNanos()));
             return view;
         }
     }
 
+    /**
+     * Lets the user pick the scan profile, or go on to create or edit one.
+     */
+    private void chooseScanProfile() {
+        final List<ScanProfile> profiles = ScanProfile.loadAll(this);
+        final String[] names = new String[profiles.size() + 2];
+        names[0] = getString(R.string.all_devices);
+        for (int i = 0; i < profiles.size(); i++) {
+            names[i + 1] = profiles.get(i).name;
+        }
+        names[names.length - 1] = getString(R.string.new_profile);
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_scan_profile)
+                .setItems(names, (dialog, which) -> {
+                    if (which == names.length - 1) {
+                        editScanProfile(null);
+                    } else {
+                        setScanProfile(which == 0 ? null :
+                                profiles.get(which - 1));
+                    }
+                });
+        if (mScanProfile != null) {
+            builder.setNeutralButton(R.string.edit, (dialog, which) ->
+                    editScanProfile(mScanProfile));
+        }
+        builder.show();
+    }
+
+    /**
+     * Shows the profile editor.
+     *
+     * @param profile The profile to edit, or null for a new one.
+     */
+    private void editScanProfile(final ScanProfile profile) {
+        final View view = getLayoutInflater().inflate(
+                R.layout.dialog_scan_profile, null);
+        final EditText name = view.findViewById(R.id.profile_name);
+        final EditText uuid = view.findViewById(R.id.profile_service_uuid);
+        final EditText prefix = view.findViewById(R.id.profile_name_prefix);
+        final EditText address = view.findViewById(R.id.profile_address);
+        final EditText manufacturer =
+                view.findViewById(R.id.profile_manufacturer_id);
+        final Spinner delay = view.findViewById(R.id.profile_report_delay);
+        final Spinner match = view.findViewById(R.id.profile_match_mode);
+        final ScanProfile values = profile != null ? profile :
+                new ScanProfile();
+        name.setText(values.name);
+        uuid.setText(values.serviceUuid == null ? "" :
+                values.serviceUuid.toString());
+        prefix.setText(values.namePrefix);
+        address.setText(values.address);
+        manufacturer.setText(values.manufacturerId ==
+                ScanProfile.NO_MANUFACTURER ? "" :
+                String.format(Locale.US, "0x%04X", values.manufacturerId));
+        for (int i = 0; i < ScanProfile.REPORT_DELAYS.length; i++) {
+            if (ScanProfile.REPORT_DELAYS[i] == values.reportDelayMs) {
+                delay.setSelection(i);
+            }
+        }
+        match.setSelection(values.matchMode ==
+                ScanSettings.MATCH_MODE_STICKY ? 1 : 0);
+
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_scan_profile)
+                .setView(view)
+                .setNegativeButton(R.string.cancel, null)
+                .setPositiveButton(R.string.save, (dialog, which) -> {
+                    final ScanProfile edited = new ScanProfile();
+                    edited.name = name.getText().toString().trim();
+                    if (edited.name.isEmpty()) {
+                        Utils.errMsg(this, getString(R.string.profile_no_name));
+                        return;
+                    }
+                    try {
+                        edited.serviceUuid = ScanProfile.parseUuid(
+                                uuid.getText().toString());
+                        edited.address = ScanProfile.parseAddress(
+                                address.getText().toString());
+                        edited.manufacturerId =
+                                ScanProfile.parseManufacturerId(
+                                        manufacturer.getText().toString());
+                    } catch (IllegalArgumentException ex) {
+                        Utils.excMsg(this, "Invalid scan profile", ex);
+                        return;
+                    }
+                    edited.namePrefix = prefix.getText().toString();
+                    edited.reportDelayMs = ScanProfile.REPORT_DELAYS[
+                            delay.getSelectedItemPosition()];
+                    edited.matchMode = match.getSelectedItemPosition() == 1 ?
+                            ScanSettings.MATCH_MODE_STICKY :
+                            ScanSettings.MATCH_MODE_AGGRESSIVE;
+                    edited.scanMode = values.scanMode;
+                    saveScanProfile(profile, edited);
+                });
+        if (profile != null) {
+            builder.setNeutralButton(R.string.delete, (dialog, which) ->
+                    saveScanProfile(profile, null));
+        }
+        builder.show();
+    }
+
+    /**
+     * Replaces, adds or deletes a saved profile and makes the result the
+     * active one.
+     *
+     * @param old    The profile being replaced, or null to add one.
+     * @param edited The new profile, or null to delete the old one.
+     */
+    private void saveScanProfile(ScanProfile old, ScanProfile edited) {
+        final List<ScanProfile> profiles = ScanProfile.loadAll(this);
+        for (int i = profiles.size() - 1; i >= 0; i--) {
+            final String name = profiles.get(i).name;
+            if (old != null && name.equals(old.name)
+                    || edited != null && name.equals(edited.name)) {
+                profiles.remove(i);
+            }
+        }
+        if (edited != null) profiles.add(edited);
+        ScanProfile.saveAll(this, profiles);
+        setScanProfile(edited);
+    }
+
+    /**
+     * Makes a profile the active one and restarts the scan with it.
+     *
+     * @param profile The profile, or null for all devices.
+     */
+    private void setScanProfile(ScanProfile profile) {
+        mScanProfile = profile;
+        ScanProfile.saveActive(this, profile);
+        showScanProfile();
+        if (mScanning) {
+            endScan();
+            mLeDeviceListAdapter.clear();
+            startScan();
+        }
+    }
+
+    /**
+     * Lets the user pick the duty cycle and scan mode, and starts the
+     * background scan.
+     */
+    private void chooseDutyCycle() {
+        final String[] names = getResources()
+                .getStringArray(R.array.duty_cycle_names);
+        final long[][] cycles = {{ScanScheduler.MAX_ON_MS, 0},
+                {10000, 20000}, {5000, 55000}, {2000, 58000}};
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.duty_cycle)
+                .setItems(names, (dialog, which) ->
+                        chooseScanMode(cycles[which][0], cycles[which][1]))
+                .show();
+    }
+
+    private void chooseScanMode(final long onMs, final long offMs) {
+        final String[] names = getResources()
+                .getStringArray(R.array.scan_mode_names);
+        final int[] modes = {ScanSettings.SCAN_MODE_LOW_POWER,
+                ScanSettings.SCAN_MODE_BALANCED,
+                ScanSettings.SCAN_MODE_LOW_LATENCY};
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.scan_mode)
+                .setItems(names, (dialog, which) ->
+                        startBackgroundScan(onMs, offMs, modes[which]))
+                .show();
+    }
+
+    /**
+     * Starts the background scan service, stopping the scan here, since
+     * both count against the same throttling limit.
+     *
+     * @param onMs     How long each scan runs.
+     * @param offMs    How long to wait between scans.
+     * @param scanMode The ScanSettings scan mode.
+     */
+    private void startBackgroundScan(long onMs, long offMs, int scanMode) {
+        endScan();
+        if (Build.VERSION.SDK_INT >= 33 &&
+                checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS)
+                        != PackageManager.PERMISSION_GRANTED) {
+            // It runs without, but the notification is not shown
+            requestPermissions(new String[]{
+                            Manifest.permission.POST_NOTIFICATIONS},
+                    REQ_ACCESS_PERMISSIONS);
+        }
+        final Intent intent = new Intent(this, ScanService.class)
+                .putExtra(ScanService.EXTRA_ON_MS, onMs)
+                .putExtra(ScanService.EXTRA_OFF_MS, offMs)
+                .putExtra(ScanService.EXTRA_SCAN_MODE, scanMode);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            startForegroundService(intent);
+        } else {
+            startService(intent);
+        }
+        bindService(new Intent(this, ScanService.class),
+                mScanServiceConnection, 0);
+        invalidateOptionsMenu();
+    }
+
+    private final ServiceConnection mScanServiceConnection =
+            new ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName componentName,
+                                               IBinder service) {
+                    mScanService = ((ScanService.LocalBinder) service)
+                            .getService();
+                    invalidateOptionsMenu();
+                }
+
+                @Override
+                public void onServiceDisconnected(ComponentName componentName) {
+                    mScanService = null;
+                }
+            };
+
+    private void showScanProfile() {
+        final ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            final ScanProfile profile = mScanProfile;
+            actionBar.setSubtitle(profile != null ? profile.name : null);
+        }
+    }
+
+    /**
+     * Formats the advertisement statistics and decoded fields for a row.
+     *
+     * @param shown    The rows.
+     * @param row      The row.
+     * @param nowNanos The current elapsed realtime.
+     * @return The text.
+     */
+    private static String formatStats(ScanResultTable.Snapshot shown,
+                                      int row, long nowNanos) {
+        final AdvertisementStats stats = shown.stats;
+        if (stats.getCount(row) == 0) return "";
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(String.format(Locale.US,
+                "RSSI %.1f [%d, %d]  Interval %.0f ms  %.1f/s  %.1f s ago",
+                stats.getRssiAverage(row), stats.getRssiMin(row),
+                stats.getRssiMax(row), stats.getIntervalMillis(row),
+                stats.getRate(row, nowNanos),
+                (nowNanos - stats.getLastSeenNanos(row)) / 1e9));
+        final int txPower = shown.txPower[row];
+        if (txPower != AdvertisementParser.NONE) {
+            // The path loss is what the TX power level is for
+            sb.append(String.format(Locale.US,
+                    "\nTx %d dBm  Path loss %.0f dB", txPower,
+                    txPower - stats.getRssiAverage(row)));
+        }
+        final int company = shown.manufacturerId[row];
+        if (company != AdvertisementParser.NONE) {
+            final String name = AssignedNumbers.getDefault()
+                    .getCompanyName(company);
+            sb.append(txPower != AdvertisementParser.NONE ? "  " : "\n")
+                    .append(name != null ? name :
+                            String.format(Locale.US, "Company 0x%04X",
+                                    company));
+        }
+        return sb.toString();
+    }
+
     // Device scan callback.
     private final ScanCallback mLeScanCallback = new
             ScanCallback() {
                 @Override
                 public void onScanResult(int callbackType, ScanResult result) {
-                    Log.d(TAG, this.getClass().getSimpleName() + ": " +
-                            "onScanResult");
-                    final BluetoothDevice device = result.getDevice();
-                    runOnUiThread(() -> {
-                        mLeDeviceListAdapter.addDevice(device);
-                        mLeDeviceListAdapter.notifyDataSetChanged();
-                    });
+                    // Not logged, as there may be thousands per second
+                    mScanMetrics.addCallback(1);
+                    // Messages are pooled, so this does not allocate
+                    mScanHandler.obtainMessage(MSG_SCAN_RESULT, result)
+                            .sendToTarget();
                 }
 
                 @Override
@@ -487,23 +954,9 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
                             + ": ScanCallback: onBatchScanResults"
                             + " nResults=" + results.size());
                     // Results is non-null
-                    for (ScanResult result : results) {
-                        final BluetoothDevice device = result.getDevice();
-                        if (Build.VERSION.SDK_INT >= 31 &&
-                                checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                                        PackageManager.PERMISSION_GRANTED) {
-                            Log.d(TAG, this.getClass().getSimpleName()
-                                    + ": onBatchScanResults:"
-                                    + " BLUETOOTH_SCAN not granted");
-                            return;
-                        }
-                        Log.d(TAG, "    device=" + device.getName()
-                                + " " + device.getAddress());
-                        runOnUiThread(() -> {
-                            mLeDeviceListAdapter.addDevice(device);
-                            mLeDeviceListAdapter.notifyDataSetChanged();
-                        });
-                    }
+                    mScanMetrics.addCallback(results.size());
+                    mScanHandler.obtainMessage(MSG_SCAN_RESULTS, results)
+                            .sendToTarget();
                 }
 
                 @Override
@@ -578,5 +1031,6 @@ public class DeviceScanActivity extends AppCompatActivity implements IConstants
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceStats;
     }
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Scheduler} on a ScheduledThreadPoolExecutor with one daemon
+ * thread, for running the connections without Android, as the load test
+ * does. Tasks that are due at the same time run in the order posted.
+ */
+public class ExecutorScheduler implements Scheduler {
+    private final ScheduledThreadPoolExecutor mExecutor;
+    /**
+     * The tasks that have not started, so they can be removed by their
+     * Runnable. Guarded by itself.
+     */
+    private final ArrayList<Pending> mPending = new ArrayList<>();
+
+    private class Pending implements Runnable {
+        final Runnable task;
+        ScheduledFuture<?> future;
+
+        Pending(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mPending) {
+                // Removed in the meantime
+                if (!mPending.remove(this)) return;
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * @param name The name of the thread.
+     */
+    public ExecutorScheduler(final String name) {
+        mExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    @Override
+    public boolean post(Runnable task) {
+        return postDelayed(task, 0);
+    }
+
+    @Override
+    public boolean postDelayed(Runnable task, long delayMs) {
+        final Pending pending = new Pending(task);
+        synchronized (mPending) {
+            try {
+                pending.future = mExecutor.schedule(pending,
+                        Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                return false;
+            }
+            // It cannot run before this, since it takes the lock first
+            mPending.add(pending);
+        }
+        return true;
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        synchronized (mPending) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                final Pending pending = mPending.get(i);
+                if (pending.task == task) {
+                    pending.future.cancel(false);
+                    mPending.remove(i);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        synchronized (mPending) {
+            for (Pending pending : mPending) {
+                pending.future.cancel(false);
+            }
+            mPending.clear();
+        }
+    }
+
+    @Override
+    public Scheduler newThread(String name) {
+        return new ExecutorScheduler(name);
+    }
+
+    @Override
+    public void quit() {
+        mExecutor.shutdown();
+    }
+}
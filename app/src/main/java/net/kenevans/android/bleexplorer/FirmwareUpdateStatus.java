@@ -0,0 +1,206 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * The Firmware Update Status (befdffb1) of the Firmware Update Service
+ * (befdffb0), and the commands written to it.
+ * <p>
+ * The status is read or notified. It is the state, an error code, the
+ * offset up to which the image has been received and stored as a uint32,
+ * and the window, the bytes the device can take beyond the offset, as a
+ * uint16. It is notified at least once per half window received, and when
+ * the device starts dropping chunks, and now and then while it does, with
+ * {@link #ERROR_OUT_OF_ORDER}, which is not fatal.
+ * <p>
+ * A command is an op code, and for {@link #OP_START} the size and CRC-32
+ * of the image as uint32s. If they match an upload that was cut off, the
+ * device keeps the offset it got to, so the upload resumes there.
+ * <p>
+ * The image is written to Firmware Image Data (befdffb2) without response,
+ * each chunk being its offset as a uint32 followed by the data. A chunk
+ * that is not at the offset is dropped, so the sender can go back to the
+ * offset in the status.
+ * <p>
+ * Like {@link HeartRateMeasurement}, an instance is reused: parse()
+ * overwrites the fields in place and does not allocate.
+ */
+public class FirmwareUpdateStatus {
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_RECEIVING = 1;
+    public static final int STATE_VERIFYING = 2;
+    public static final int STATE_COMPLETE = 3;
+    public static final int STATE_FAILED = 4;
+    private static final String[] STATE_NAMES = {"Idle", "Receiving",
+            "Verifying", "Complete", "Failed"};
+
+    public static final int ERROR_NONE = 0;
+    public static final int ERROR_INVALID_COMMAND = 1;
+    public static final int ERROR_TOO_LARGE = 2;
+    public static final int ERROR_CRC_MISMATCH = 3;
+    public static final int ERROR_STORAGE = 4;
+    /** A chunk after a gap was dropped. The offset is where to go back. */
+    public static final int ERROR_OUT_OF_ORDER = 5;
+    private static final String[] ERROR_NAMES = {"None", "Invalid command",
+            "Image too large", "CRC mismatch", "Storage error",
+            "Chunk out of order"};
+
+    public static final int OP_START = 0x01;
+    public static final int OP_VERIFY = 0x02;
+    public static final int OP_ABORT = 0x03;
+
+    /** The length of a status value. */
+    public static final int LENGTH = 8;
+    /** Bytes before the data in a chunk. */
+    public static final int CHUNK_HEADER_LENGTH = 4;
+
+    private int mState;
+    private int mError;
+    private long mOffset;
+    private int mWindow;
+    private boolean mValid;
+
+    /**
+     * @param size The size of the image.
+     * @param crc  The CRC-32 of the image.
+     * @return The command to start or resume an upload.
+     */
+    public static byte[] getStartCommand(long size, long crc) {
+        final byte[] command = new byte[9];
+        command[0] = OP_START;
+        putUint32(command, 1, size);
+        putUint32(command, 5, crc);
+        return command;
+    }
+
+    /**
+     * @param op OP_VERIFY or OP_ABORT.
+     * @return The command.
+     */
+    public static byte[] getCommand(int op) {
+        return new byte[]{(byte) op};
+    }
+
+    /**
+     * Writes a chunk header.
+     *
+     * @param chunk  The chunk.
+     * @param offset The offset in the image of the data in the chunk.
+     */
+    public static void putChunkHeader(byte[] chunk, long offset) {
+        putUint32(chunk, 0, offset);
+    }
+
+    /**
+     * Parses a raw status value into this instance.
+     *
+     * @param data   The raw value.
+     * @param offset The offset of the value in data.
+     * @param length The length of the value.
+     * @return Whether the value was well formed.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        mValid = false;
+        if (data == null || length < LENGTH) {
+            return false;
+        }
+        mState = data[offset] & 0xFF;
+        mError = data[offset + 1] & 0xFF;
+        mOffset = uint32(data, offset + 2);
+        mWindow = (data[offset + 6] & 0xFF)
+                | ((data[offset + 7] & 0xFF) << 8);
+        mValid = true;
+        return true;
+    }
+
+    /**
+     * Appends the text rendering of the last parsed value. This is only
+     * meant to be called when the value is actually displayed.
+     *
+     * @param sb The builder to append to.
+     * @return The builder.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (!mValid) {
+            return sb.append("Firmware Update Status: Invalid data");
+        }
+        sb.append("State: ").append(getStateName(mState));
+        if (mError != ERROR_NONE) {
+            sb.append("\nError: ").append(getErrorName(mError));
+        }
+        sb.append("\nOffset: ").append(mOffset)
+                .append("\nWindow: ").append(mWindow);
+        return sb;
+    }
+
+    private static long uint32(byte[] data, int pos) {
+        return (data[pos] & 0xFFL) | ((data[pos + 1] & 0xFFL) << 8)
+                | ((data[pos + 2] & 0xFFL) << 16)
+                | ((data[pos + 3] & 0xFFL) << 24);
+    }
+
+    private static void putUint32(byte[] data, int pos, long value) {
+        data[pos] = (byte) value;
+        data[pos + 1] = (byte) (value >> 8);
+        data[pos + 2] = (byte) (value >> 16);
+        data[pos + 3] = (byte) (value >> 24);
+    }
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getError() {
+        return mError;
+    }
+
+    /**
+     * @return The bytes of the image received and stored.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return The bytes the device can take beyond the offset.
+     */
+    public int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * @param state A state.
+     * @return Its name.
+     */
+    public static String getStateName(int state) {
+        return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state]
+                : "State " + state;
+    }
+
+    /**
+     * @param error An error code.
+     * @return Its name.
+     */
+    public static String getErrorName(int error) {
+        return error >= 0 && error < ERROR_NAMES.length ? ERROR_NAMES[error]
+                : "Error " + error;
+    }
+
+    /**
+     * Decoder for the registry. Parsing uses one shared record, so it is
+     * synchronized.
+     */
+    public static class Decoder implements CharacteristicDecoder {
+        private final FirmwareUpdateStatus mStatus =
+                new FirmwareUpdateStatus();
+
+        @Override
+        public synchronized void format(byte[] value, int offset,
+                                        int length, StringBuilder sb) {
+            mStatus.parse(value, offset, length);
+            mStatus.appendTo(sb);
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Uploads a firmware image to a device of a {@link GattConnection} through
+ * the Firmware Update Service, with the protocol described in
+ * {@link FirmwareUpdateStatus}.
+ * <p>
+ * The image is read from the file in blocks and written in chunks as large
+ * as the MTU allows, without response. The writes go through the
+ * {@link GattOperationQueue} at background priority, so other operations
+ * cut in, and a few are kept queued, so the next one starts as soon as the
+ * stack has taken the one before. That paces them to the buffers of the
+ * controller. A write the stack refuses because they are full is tried
+ * again after a backoff. On top of that, no more than the window in the
+ * status is sent beyond the offset the device has stored.
+ * <p>
+ * If the device drops a chunk, it goes back to the offset in the status.
+ * If the status stops coming, it is read to find where the device is. If
+ * the link is lost the upload is paused, and it is resumed where the
+ * device got to when the services are discovered again.
+ * <p>
+ * The upload runs on a thread of its own. The listener is called on the
+ * main thread.
+ */
+public class FirmwareUploader {
+    private static final String TAG = FirmwareUploader.class.getSimpleName();
+    private static final UUID UUID_FIRMWARE_UPDATE =
+            UUID.fromString(GattAttributes.FIRMWARE_UPDATE);
+    public static final UUID UUID_FIRMWARE_UPDATE_STATUS =
+            UUID.fromString(GattAttributes.FIRMWARE_UPDATE_STATUS);
+    private static final UUID UUID_FIRMWARE_IMAGE_DATA =
+            UUID.fromString(GattAttributes.FIRMWARE_IMAGE_DATA);
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_STARTING = 1;
+    public static final int STATE_SENDING = 2;
+    public static final int STATE_VERIFYING = 3;
+    public static final int STATE_PAUSED = 4;
+    public static final int STATE_COMPLETE = 5;
+    public static final int STATE_FAILED = 6;
+    public static final int STATE_CANCELLED = 7;
+    private static final String[] STATE_NAMES = {"Idle", "Starting",
+            "Sending", "Verifying", "Paused", "Complete", "Failed",
+            "Cancelled"};
+
+    /** The subdirectory of the external files directory for images. */
+    public static final String FIRMWARE_DIR = "firmware";
+    /** The most chunks queued or being written. */
+    public static final int MAX_IN_FLIGHT = 4;
+    /** The bytes read from the file at a time. */
+    private static final int BLOCK_SIZE = 64 * 1024;
+    /** The time without a status after which it is read. */
+    public static final long STATUS_TIMEOUT_MS = 5000;
+    /**
+     * The time to wait for the status with the window full before reading
+     * it, in case it was lost.
+     */
+    private static final long STALL_TIMEOUT_MS = 250;
+    /** The times the status is read before giving up. */
+    private static final int MAX_STATUS_RETRIES = 3;
+    private static final int MAX_BUSY_DELAY_MS = 64;
+    private static final long PROGRESS_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(250);
+    /** The time constant of the average rate. */
+    private static final double RATE_TIME_CONSTANT_NANOS = 3e9;
+
+    /**
+     * Receives the progress. Called on the main thread.
+     */
+    public interface Listener {
+        void onProgress(FirmwareUploader uploader);
+
+        void onFinished(FirmwareUploader uploader);
+    }
+
+    private final GattConnection mConnection;
+    private final Scheduler mMainScheduler;
+    private volatile Listener mListener;
+    /** Runs the upload on a thread of its own, null when not running. */
+    private volatile Scheduler mScheduler;
+
+    // Only used on the upload thread
+    private RandomAccessFile mFile;
+    private final byte[] mBlock = new byte[BLOCK_SIZE];
+    private long mBlockStart;
+    private int mBlockLength;
+    private GattCharacteristic mStatusCharacteristic;
+    private GattCharacteristic mDataCharacteristic;
+    private final FirmwareUpdateStatus mStatus = new FirmwareUpdateStatus();
+    /** The offset of the next chunk to send. */
+    private long mSent;
+    private int mWindow;
+    private int mInFlight;
+    private int mBusyDelayMs;
+    private boolean mBackingOff;
+    private int mStatusRetries;
+    private boolean mResync;
+    private long mRateNanos;
+    private long mRateOffset;
+    private long mProgressNanos;
+
+    // Written on the upload thread and read on others
+    private volatile int mState = STATE_IDLE;
+    private volatile String mFileName;
+    private volatile long mSize;
+    private volatile long mCrc;
+    private volatile long mAcked;
+    private volatile long mStartNanos;
+    private volatile long mEndNanos;
+    private volatile long mStartOffset;
+    private volatile double mByteRate;
+    private volatile long mChunkCount;
+    private volatile long mRetransmittedBytes;
+    private volatile long mBusyCount;
+    private volatile int mResumeCount;
+    private volatile String mError;
+
+    private final Runnable mPump = () -> {
+        mBackingOff = false;
+        pump();
+    };
+    private final Runnable mStatusTimeout = this::onStatusTimeout;
+    private final Runnable mStallCheck = () -> {
+        if (mState == STATE_SENDING) readStatus();
+    };
+
+    /**
+     * @param connection    The connection.
+     * @param mainScheduler A Scheduler on the main thread, for the
+     *                      listener.
+     */
+    FirmwareUploader(GattConnection connection, Scheduler mainScheduler) {
+        mConnection = connection;
+        mMainScheduler = mainScheduler;
+    }
+
+    /**
+     * Starts uploading an image.
+     *
+     * @param file     The image.
+     * @param listener The listener or null.
+     * @return False if an upload is already running.
+     */
+    public synchronized boolean start(final File file, Listener listener) {
+        if (mScheduler != null) return false;
+        mListener = listener;
+        mFileName = file.getName();
+        mState = STATE_STARTING;
+        mError = null;
+        mSize = 0;
+        mAcked = 0;
+        mByteRate = 0;
+        mChunkCount = 0;
+        mRetransmittedBytes = 0;
+        mBusyCount = 0;
+        mResumeCount = 0;
+        mStartNanos = 0;
+        mScheduler = mMainScheduler.newThread("FirmwareUploader "
+                + mConnection.getAddress());
+        mScheduler.post(() -> open(file));
+        return true;
+    }
+
+    /**
+     * Cancels the upload and tells the device to drop what it has.
+     */
+    public synchronized void cancel() {
+        if (mScheduler == null) return;
+        mScheduler.post(() -> {
+            if (!isActive() && mState != STATE_PAUSED) return;
+            if (mStatusCharacteristic != null && mConnection.isConnected()) {
+                writeCommand(FirmwareUpdateStatus.getCommand(
+                        FirmwareUpdateStatus.OP_ABORT));
+            }
+            finish(STATE_CANCELLED, null);
+        });
+    }
+
+    /**
+     * @param listener The listener or null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    private boolean isActive() {
+        return mState == STATE_STARTING || mState == STATE_SENDING
+                || mState == STATE_VERIFYING;
+    }
+
+    private void open(File file) {
+        final CRC32 crc = new CRC32();
+        try {
+            mFile = new RandomAccessFile(file, "r");
+            final long size = mFile.length();
+            if (size == 0 || size > 0xFFFFFFFFL) {
+                finish(STATE_FAILED, "Invalid image size " + size);
+                return;
+            }
+            for (long offset = 0; offset < size; offset += BLOCK_SIZE) {
+                final int length = (int) Math.min(BLOCK_SIZE, size - offset);
+                mFile.readFully(mBlock, 0, length);
+                crc.update(mBlock, 0, length);
+            }
+            mBlockLength = 0;
+            mSize = size;
+            mCrc = crc.getValue();
+        } catch (IOException ex) {
+            finish(STATE_FAILED, "Error reading " + file + ": " + ex);
+            return;
+        }
+        mStartNanos = System.nanoTime();
+        mStartOffset = -1;
+        sendStart();
+    }
+
+    /**
+     * Finds the characteristics, which are new after each discovery, and
+     * sends the start command. The device answers with the offset to
+     * start at.
+     */
+    private void sendStart() {
+        mStatusCharacteristic = null;
+        mDataCharacteristic = null;
+        final List<GattService> services =
+                mConnection.getSupportedGattServices();
+        if (services != null) {
+            for (GattService service : services) {
+                if (UUID_FIRMWARE_UPDATE.equals(service.getUuid())) {
+                    mStatusCharacteristic = service.getCharacteristic(
+                            UUID_FIRMWARE_UPDATE_STATUS);
+                    mDataCharacteristic = service.getCharacteristic(
+                            UUID_FIRMWARE_IMAGE_DATA);
+                }
+            }
+        }
+        if (mStatusCharacteristic == null || mDataCharacteristic == null) {
+            finish(STATE_FAILED, "No Firmware Update Service");
+            return;
+        }
+        if (!mConnection.isSubscribed(mStatusCharacteristic)) {
+            mConnection.setCharacteristicNotification(mStatusCharacteristic,
+                    true);
+        }
+        mState = STATE_STARTING;
+        mInFlight = 0;
+        mBackingOff = false;
+        mStatusRetries = 0;
+        writeCommand(FirmwareUpdateStatus.getStartCommand(mSize, mCrc));
+        restartStatusTimeout();
+    }
+
+    /**
+     * Queues a command behind the chunks, and behind the subscriptions
+     * enabled again after a reconnection.
+     */
+    private void writeCommand(byte[] command) {
+        mConnection.getOperationQueue().write(mStatusCharacteristic,
+                command, GattCharacteristic.WRITE_TYPE_DEFAULT,
+                GattOperationQueue.PRIORITY_BACKGROUND, null);
+    }
+
+    /**
+     * Handles a status read or notified. Called on the events thread of
+     * the connection, with a value it may keep.
+     *
+     * @param value  The raw value.
+     * @param length The length of the value.
+     */
+    void onStatus(final byte[] value, final int length) {
+        final Scheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.post(() -> handleStatus(value, length));
+        }
+    }
+
+    private void handleStatus(byte[] value, int length) {
+        if (!isActive() || !mStatus.parse(value, 0, length)) return;
+        restartStatusTimeout();
+        mScheduler.removeCallbacks(mStallCheck);
+        mStatusRetries = 0;
+        final int state = mStatus.getState();
+        final int error = mStatus.getError();
+        if (state == FirmwareUpdateStatus.STATE_FAILED) {
+            finish(STATE_FAILED, FirmwareUpdateStatus.getErrorName(error));
+            return;
+        }
+        if (mState == STATE_VERIFYING) {
+            if (state == FirmwareUpdateStatus.STATE_COMPLETE) {
+                finish(STATE_COMPLETE, null);
+            }
+            return;
+        }
+        if (state != FirmwareUpdateStatus.STATE_RECEIVING) return;
+        final long offset = mStatus.getOffset();
+        mWindow = mStatus.getWindow();
+        if (mState == STATE_STARTING) {
+            if (offset > 0) {
+                Log.i(TAG, mConnection.getAddress() + ": Resuming at "
+                        + offset);
+            }
+            mState = STATE_SENDING;
+            mSent = offset;
+            if (mStartOffset < 0) mStartOffset = offset;
+            mRateNanos = 0;
+        } else if (offset < mSent && (mResync
+                || error == FirmwareUpdateStatus.ERROR_OUT_OF_ORDER)) {
+            // Chunks were lost, go back
+            mRetransmittedBytes += mSent - offset;
+            mSent = offset;
+        }
+        mResync = false;
+        setAcked(offset);
+        if (offset >= mSize) {
+            mState = STATE_VERIFYING;
+            writeCommand(FirmwareUpdateStatus.getCommand(
+                    FirmwareUpdateStatus.OP_VERIFY));
+            return;
+        }
+        pump();
+    }
+
+    private void setAcked(long offset) {
+        final long now = System.nanoTime();
+        if (mRateNanos == 0) {
+            mRateNanos = now;
+            mRateOffset = offset;
+        } else if (offset > mRateOffset && now > mRateNanos) {
+            final long dt = now - mRateNanos;
+            final double rate = (offset - mRateOffset) * 1e9 / dt;
+            final double alpha = 1 - Math.exp(-dt / RATE_TIME_CONSTANT_NANOS);
+            mByteRate = mByteRate == 0 ? rate
+                    : mByteRate + alpha * (rate - mByteRate);
+            mRateNanos = now;
+            mRateOffset = offset;
+        }
+        mAcked = offset;
+        if (now - mProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+            mProgressNanos = now;
+            mMainScheduler.post(() -> {
+                final Listener listener = mListener;
+                if (listener != null) listener.onProgress(this);
+            });
+        }
+    }
+
+    /**
+     * Queues chunks while there is room in the queue and in the window of
+     * the device.
+     */
+    private void pump() {
+        if (mState != STATE_SENDING || mBackingOff) return;
+        final Scheduler scheduler = mScheduler;
+        final int maxData = mConnection.getMtu() - 3
+                - FirmwareUpdateStatus.CHUNK_HEADER_LENGTH;
+        while (mInFlight < MAX_IN_FLIGHT && mSent < mSize) {
+            // A window smaller than a chunk takes a shorter chunk
+            final long room = mWindow - (mSent - mAcked);
+            if (room <= 0) {
+                if (mInFlight == 0) {
+                    scheduler.removeCallbacks(mStallCheck);
+                    scheduler.postDelayed(mStallCheck, STALL_TIMEOUT_MS);
+                }
+                break;
+            }
+            final int length = (int) Math.min(Math.min(maxData, room),
+                    mSize - mSent);
+            final byte[] chunk = new byte[
+                    FirmwareUpdateStatus.CHUNK_HEADER_LENGTH + length];
+            final long offset = mSent;
+            FirmwareUpdateStatus.putChunkHeader(chunk, offset);
+            try {
+                read(offset, chunk, length);
+            } catch (IOException ex) {
+                finish(STATE_FAILED, "Error reading " + mFileName + ": "
+                        + ex);
+                return;
+            }
+            mSent += length;
+            mInFlight++;
+            mConnection.getOperationQueue().write(mDataCharacteristic, chunk,
+                    GattCharacteristic.WRITE_TYPE_NO_RESPONSE,
+                    GattOperationQueue.PRIORITY_BACKGROUND,
+                    success -> scheduler.post(() ->
+                            onChunkDone(offset, success)));
+        }
+    }
+
+    /**
+     * Copies image data into a chunk, from the block read last if it has
+     * it, or else from a new block starting at the offset.
+     */
+    private void read(long offset, byte[] chunk, int length)
+            throws IOException {
+        if (offset < mBlockStart
+                || offset + length > mBlockStart + mBlockLength) {
+            mBlockStart = offset;
+            mBlockLength = (int) Math.min(BLOCK_SIZE, mSize - offset);
+            mFile.seek(offset);
+            mFile.readFully(mBlock, 0, mBlockLength);
+        }
+        System.arraycopy(mBlock, (int) (offset - mBlockStart), chunk,
+                FirmwareUpdateStatus.CHUNK_HEADER_LENGTH, length);
+    }
+
+    private void onChunkDone(long offset, boolean success) {
+        if (mInFlight > 0) mInFlight--;
+        if (mState != STATE_SENDING) return;
+        if (success) {
+            mChunkCount++;
+            mBusyDelayMs = 0;
+            pump();
+            return;
+        }
+        // The buffers are full, or the link is going. Send it again later,
+        // with the ones after it.
+        mBusyCount++;
+        if (offset < mSent) {
+            mRetransmittedBytes += mSent - offset;
+            mSent = offset;
+        }
+        mBusyDelayMs = Math.min(MAX_BUSY_DELAY_MS,
+                Math.max(1, 2 * mBusyDelayMs));
+        if (!mBackingOff) {
+            mBackingOff = true;
+            mScheduler.postDelayed(mPump, mBusyDelayMs);
+        }
+    }
+
+    private void restartStatusTimeout() {
+        mScheduler.removeCallbacks(mStatusTimeout);
+        mScheduler.postDelayed(mStatusTimeout, STATUS_TIMEOUT_MS);
+    }
+
+    private void onStatusTimeout() {
+        if (!isActive()) return;
+        if (++mStatusRetries > MAX_STATUS_RETRIES) {
+            finish(STATE_FAILED, "No status from the device");
+            return;
+        }
+        Log.w(TAG, mConnection.getAddress() + ": No status, reading it");
+        if (mState == STATE_STARTING) {
+            writeCommand(FirmwareUpdateStatus.getStartCommand(mSize, mCrc));
+        } else {
+            readStatus();
+        }
+        mScheduler.postDelayed(mStatusTimeout, STATUS_TIMEOUT_MS);
+    }
+
+    /**
+     * Reads the status, to go back to where the device is.
+     */
+    private void readStatus() {
+        mResync = true;
+        mConnection.getOperationQueue().read(mStatusCharacteristic,
+                GattOperationQueue.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Pauses the upload when the link is lost. The queued chunks are gone.
+     */
+    void onDisconnected() {
+        final Scheduler scheduler = mScheduler;
+        if (scheduler == null) return;
+        scheduler.post(() -> {
+            if (!isActive()) return;
+            Log.i(TAG, mConnection.getAddress() + ": Paused at " + mAcked);
+            mState = STATE_PAUSED;
+            mInFlight = 0;
+            mScheduler.removeCallbacks(mStatusTimeout);
+            mScheduler.removeCallbacks(mStallCheck);
+            mScheduler.removeCallbacks(mPump);
+        });
+    }
+
+    /**
+     * Resumes a paused upload.
+     */
+    void onServicesDiscovered() {
+        final Scheduler scheduler = mScheduler;
+        if (scheduler == null) return;
+        scheduler.post(() -> {
+            if (mState != STATE_PAUSED) return;
+            mResumeCount++;
+            sendStart();
+        });
+    }
+
+    private void finish(int state, String error) {
+        mState = state;
+        mError = error;
+        mEndNanos = System.nanoTime();
+        if (error != null) {
+            Log.w(TAG, mConnection.getAddress() + ": Upload failed: "
+                    + error);
+        }
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+            mFile = null;
+        }
+        mScheduler.removeAll();
+        synchronized (this) {
+            mScheduler.quit();
+            mScheduler = null;
+        }
+        mMainScheduler.post(() -> {
+            final Listener listener = mListener;
+            if (listener != null) listener.onFinished(this);
+        });
+    }
+
+    /**
+     * @return If an upload is running or paused.
+     */
+    public synchronized boolean isRunning() {
+        return mScheduler != null;
+    }
+
+    /**
+     * @return One of the STATE values.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @param state One of the STATE values.
+     * @return Its name.
+     */
+    public static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    /**
+     * @return Why it failed, or null.
+     */
+    public String getError() {
+        return mError;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return The bytes the device has stored.
+     */
+    public long getAckedBytes() {
+        return mAcked;
+    }
+
+    /**
+     * @return The rate at which the device stores the image, averaged over
+     * the last few seconds, in bytes per second.
+     */
+    public double getByteRate() {
+        return mByteRate;
+    }
+
+    /**
+     * @return The seconds until all of the image is sent at the current
+     * rate, or NaN if it is not known.
+     */
+    public double getEtaSeconds() {
+        final double rate = mByteRate;
+        return rate > 0 ? (mSize - mAcked) / rate : Double.NaN;
+    }
+
+    /**
+     * @return A summary for display.
+     */
+    public String getStatistics() {
+        final long size = mSize;
+        final long acked = mAcked;
+        final long end = isRunning() ? System.nanoTime() : mEndNanos;
+        final double seconds = mStartNanos == 0 ? 0
+                : (end - mStartNanos) * 1e-9;
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "Firmware %s: %s\n%d of %d bytes (%.1f%%)\n" +
+                        "Rate: %.1f kB/s, average %.1f kB/s, ETA %s\n" +
+                        "Chunks: %d, retransmitted: %d bytes, busy: %d, " +
+                        "resumed: %d, elapsed: %.1f s",
+                mFileName, STATE_NAMES[mState], acked, size,
+                size == 0 ? 0 : 100. * acked / size, mByteRate / 1000,
+                seconds > 0 ? (acked - Math.max(0, mStartOffset)) / seconds
+                        / 1000 : 0,
+                formatEta(getEtaSeconds()), mChunkCount,
+                mRetransmittedBytes, mBusyCount, mResumeCount, seconds));
+        if (mError != null) sb.append("\nError: ").append(mError);
+        return sb.toString();
+    }
+
+    /**
+     * @param seconds The seconds left.
+     * @return As m:ss, or ? if NaN.
+     */
+    public static String formatEta(double seconds) {
+        if (Double.isNaN(seconds)) return "?";
+        final long s = Math.round(seconds);
+        return String.format(Locale.US, "%d:%02d", s / 60, s % 60);
+    }
+}
@@ -1,13 +1,13 @@
 package net.kenevans.android.bleexplorer;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.UUID;
 
 /**
- * This class includes a small subset of standard GATT attributes for
- * demonstration purposes.
+ * UUIDs of the GATT attributes the app uses, and the lookup of attribute
+ * names in {@link AssignedNumbers}.
  */
 public class GattAttributes {
-    private static final HashMap<String, String> attributes = new HashMap<>();
     public static final String BASE_UUID = "00000000-0000-1000-8000" +
 			"-00805f9b34fb";
     public static final String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000" +
@@ -20,92 +20,98 @@ public class GattAttributes {
 			"-0800200c9a66";
     public static final String TEST_MODE = "befdff12-c979-11e1-9b21" +
 			"-0800200c9a66";
+    public static final String PMD_SERVICE = "fb005c80-02e7-f387-1cad" +
+			"-8acd2d8df0c8";
+    public static final String PMD_CONTROL_POINT = "fb005c81-02e7-f387" +
+			"-1cad-8acd2d8df0c8";
+    public static final String PMD_DATA = "fb005c82-02e7-f387-1cad" +
+			"-8acd2d8df0c8";
+    public static final String FIRMWARE_UPDATE = "befdffb0-c979-11e1-9b21" +
+			"-0800200c9a66";
+    public static final String FIRMWARE_UPDATE_STATUS = "befdffb1-c979-11e1" +
+			"-9b21-0800200c9a66";
+    public static final String FIRMWARE_IMAGE_DATA = "befdffb2-c979-11e1" +
+			"-9b21-0800200c9a66";
+    public static final String GENERIC_ATTRIBUTE = "00001801-0000-1000-8000" +
+			"-00805f9b34fb";
+    public static final String SERVICE_CHANGED = "00002a05-0000-1000-8000" +
+			"-00805f9b34fb";
 
-    // The names of some of the services and characteristics. Should be lower
-    // case.
-    static {
-        // Services
-        attributes
-                .put("00001800-0000-1000-8000-00805f9b34fb", "Generic Access");
-        attributes.put("00001801-0000-1000-8000-00805f9b34fb",
-                "Generic Attribute");
-        attributes.put("0000180a-0000-1000-8000-00805f9b34fb",
-                "Device Information Service");
-        attributes.put("0000180d-0000-1000-8000-00805f9b34fb",
-                "Heart Rate Service");
-        attributes.put("0000180f-0000-1000-8000-00805f9b34fb",
-                "Battery Service");
-
-        attributes.put("befdffb0-c979-11e1-9b21-0800200c9a66",
-                "Firmware Update Service");
-        attributes.put("befdff10-c979-11e1-9b21-0800200c9a66",
-                "HxM2 Custom Data Service");
-
-        // Polar
-        attributes.put("fb005c80-02e7-f387-1cad-8acd2d8df0c8",
-                "PMD Service");
-
-        // Characteristics
-        attributes.put("00002a00-0000-1000-8000-00805f9b34fb", "Device Name");
-        attributes.put("00002a01-0000-1000-8000-00805f9b34fb", "Appearance");
-        attributes.put("00002a02-0000-1000-8000-00805f9b34fb",
-                "Peripheral Privacy Flag");
-        attributes.put("00002a03-0000-1000-8000-00805f9b34fb",
-                "Reconnection Address");
-        attributes.put("00002a04-0000-1000-8000-00805f9b34fb",
-                "Peripheral Preferred Connection Properties");
-        attributes.put("00002a05-0000-1000-8000-00805f9b34fb",
-                "Service Changed");
-        attributes.put("00002a23-0000-1000-8000-00805f9b34fb", "System ID");
-        attributes.put("00002a24-0000-1000-8000-00805f9b34fb",
-                "Model Number String");
-        attributes.put("00002a25-0000-1000-8000-00805f9b34fb",
-                "Serial Number String");
-        attributes.put("00002a26-0000-1000-8000-00805f9b34fb",
-                "Firmware Revision String");
-        attributes.put("00002a27-0000-1000-8000-00805f9b34fb",
-                "Hardware Revision String");
-        attributes.put("00002a28-0000-1000-8000-00805f9b34fb",
-                "Software Revision String");
-        attributes.put("00002a29-0000-1000-8000-00805f9b34fb",
-                "Manufacturer name String");
-        attributes.put("00002a38-0000-1000-8000-00805f9b34fb",
-                "Body Sensor Location");
-        attributes.put("00002a39-0000-1000-8000-00805f9b34fb",
-                "Heart Rate Control Point");
-        attributes.put("00002a50-0000-1000-8000-00805f9b34fb", "PnP ID");
-        attributes.put("00002a2a-0000-1000-8000-00805f9b34fb",
-                "IEEE Regulatory Certification Data List");
-
-        attributes.put(HEART_RATE_MEASUREMENT, "Heart Rate Measurement");
-        attributes.put(BATTERY_LEVEL, "Battery Level");
-
-        attributes.put(CUSTOM_MEASUREMENT, "Custom Measurement");
-        attributes.put(TEST_MODE, "Test Mode");
-        attributes.put("befdffb1-c979-11e1-9b21-0800200c9a66",
-                "Firmware Update Status");
-        attributes.put("befdffb2-c979-11e1-9b21-0800200c9a66",
-                "Firmware Image Data");
+    /** The values of the hex digits, indexed by char, -1 for others. */
+    private static final byte[] HEX_VALUES = new byte['f' + 1];
 
-        // Polar
-        attributes.put("fb005c81-02e7-f387-1cad-8acd2d8df0c8",
-                "PMD Control Point");
-        attributes.put("fb005c82-02e7-f387-1cad-8acd2d8df0c8",
-                "PMD Data MTU Characteristic");
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[Character.forDigit(i, 16)] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] =
+                    (byte) i;
+        }
     }
 
+    /**
+     * Gets the name of a service, characteristic or descriptor from
+     * {@link AssignedNumbers}. The UUID is parsed in place, so known names
+     * are found without allocating.
+     *
+     * @param uuid        The UUID in the usual string form, in either case.
+     * @param defaultName The start of the made-up name for unknown UUIDs.
+     * @return The name.
+     */
     public static String lookup(String uuid, String defaultName) {
-        String name = attributes.get(uuid.toLowerCase());
-        if (name == null) {
-            // Make up a name using part of the UUID
-            if (uuid.regionMatches(true, 0, BASE_UUID, 0, 4)
-                    && uuid.regionMatches(true, 8, BASE_UUID, 8, 28)) {
-                name = defaultName + " " + uuid.substring(4, 8);
-            } else {
-                name = defaultName + " *" + uuid.substring(4, 8);
+        long msb = 0;
+        long lsb = 0;
+        if (uuid.length() == 36) {
+            for (int i = 0; i < 36; i++) {
+                final char c = uuid.charAt(i);
+                if (i == 8 || i == 13 || i == 18 || i == 23) {
+                    if (c != '-') return makeName(uuid, defaultName);
+                    continue;
+                }
+                final int digit = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+                if (digit < 0) return makeName(uuid, defaultName);
+                if (i < 18) {
+                    msb = msb << 4 | digit;
+                } else {
+                    lsb = lsb << 4 | digit;
+                }
             }
+            return lookup(msb, lsb, defaultName);
         }
-        return name;
+        return makeName(uuid, defaultName);
+    }
+
+    public static String lookup(UUID uuid, String defaultName) {
+        return lookup(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits(), defaultName);
+    }
+
+    /**
+     * Gets the name of a service, characteristic or descriptor.
+     *
+     * @param msb         The most significant bits of the UUID.
+     * @param lsb         The least significant bits of the UUID.
+     * @param defaultName The start of the made-up name for unknown UUIDs.
+     * @return The name.
+     */
+    public static String lookup(long msb, long lsb, String defaultName) {
+        final String name = AssignedNumbers.getDefault()
+                .getAttributeName(msb, lsb);
+        if (name != null) return name;
+        // Make up a name using part of the UUID
+        final int part = (int) (msb >>> 32) & 0xffff;
+        final StringBuilder sb = new StringBuilder(defaultName.length() + 6)
+                .append(defaultName)
+                .append(AssignedNumbers.shortUuid(msb, lsb) >= 0 ? " " : " *");
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit(part >> shift & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String makeName(String uuid, String defaultName) {
+        return uuid.length() < 8 ? defaultName + " " + uuid
+                : defaultName + " *" + uuid.substring(4, 8);
     }
 
 }
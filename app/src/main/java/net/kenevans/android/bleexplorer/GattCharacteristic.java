@@ -0,0 +1,99 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A characteristic of a {@link GattService}. It mirrors
+ * BluetoothGattCharacteristic, with the same constant values, but holds no
+ * value. Values are passed to and from the {@link GattClient} with each
+ * operation, so one operation cannot change the value of another.
+ */
+public class GattCharacteristic {
+    public static final int PROPERTY_BROADCAST = 0x01;
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+    public static final int PROPERTY_SIGNED_WRITE = 0x40;
+    public static final int PROPERTY_EXTENDED_PROPS = 0x80;
+
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_WRITE = 0x10;
+
+    public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+    public static final int WRITE_TYPE_DEFAULT = 0x02;
+    public static final int WRITE_TYPE_SIGNED = 0x04;
+
+    private final UUID mUuid;
+    private final int mInstanceId;
+    private final int mProperties;
+    private final int mPermissions;
+    private GattService mService;
+    private final List<GattDescriptor> mDescriptors = new ArrayList<>();
+
+    /**
+     * @param uuid        The UUID.
+     * @param instanceId  The instance ID, 0 if it is not known.
+     * @param properties  The PROPERTY values.
+     * @param permissions The PERMISSION values.
+     */
+    public GattCharacteristic(UUID uuid, int instanceId, int properties,
+                              int permissions) {
+        mUuid = uuid;
+        mInstanceId = instanceId;
+        mProperties = properties;
+        mPermissions = permissions;
+    }
+
+    void setService(GattService service) {
+        mService = service;
+    }
+
+    /**
+     * Adds a descriptor and makes this its characteristic.
+     *
+     * @param descriptor The descriptor.
+     */
+    public void addDescriptor(GattDescriptor descriptor) {
+        descriptor.setCharacteristic(this);
+        mDescriptors.add(descriptor);
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getInstanceId() {
+        return mInstanceId;
+    }
+
+    public int getProperties() {
+        return mProperties;
+    }
+
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    public GattService getService() {
+        return mService;
+    }
+
+    public List<GattDescriptor> getDescriptors() {
+        return mDescriptors;
+    }
+
+    /**
+     * @param uuid The UUID.
+     * @return The descriptor with the UUID, or null if there is none.
+     */
+    public GattDescriptor getDescriptor(UUID uuid) {
+        for (GattDescriptor descriptor : mDescriptors) {
+            if (descriptor.getUuid().equals(uuid)) return descriptor;
+        }
+        return null;
+    }
+}
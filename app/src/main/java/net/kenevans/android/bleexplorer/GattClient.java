@@ -0,0 +1,172 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The operations on a GATT server that {@link GattConnection} and
+ * {@link GattOperationQueue} use. {@link AndroidGattClient} passes them to a
+ * BluetoothGatt, and {@link SimulatedPeripheral} answers them in software,
+ * so the rest of the app can run without a radio. The methods mirror those
+ * of BluetoothGatt, and the results are reported through a
+ * {@link Callback}.
+ * <p>
+ * The services, characteristics and descriptors are the app's own
+ * {@link GattService} classes, and values are passed with each operation,
+ * so nothing here depends on Android. With a simulated client and an
+ * {@link ExecutorScheduler}, a connection runs on a plain JVM, which is how
+ * the load test drives it.
+ */
+public interface GattClient {
+    /** The ATT MTU before any MTU exchange. */
+    int DEFAULT_MTU = 23;
+
+    // The same values as in BluetoothGatt, BluetoothProfile and
+    // BluetoothDevice
+    int GATT_SUCCESS = 0;
+    int GATT_FAILURE = 0x101;
+
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+    int STATE_DISCONNECTING = 3;
+
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    int PHY_LE_1M = 1;
+    int PHY_LE_2M = 2;
+    int PHY_LE_1M_MASK = 1;
+    int PHY_LE_2M_MASK = 2;
+    int PHY_OPTION_NO_PREFERRED = 0;
+
+    /**
+     * Receives the results. It is called on a thread of the client, the
+     * Binder thread for Android, and must not block.
+     */
+    interface Callback {
+        /**
+         * @param status   The GATT status.
+         * @param newState One of the STATE values.
+         */
+        void onConnectionStateChange(int status, int newState);
+
+        void onServicesDiscovered(int status);
+
+        /**
+         * @param characteristic The characteristic.
+         * @param value          The value, null if the read failed.
+         * @param status         The GATT status.
+         */
+        void onCharacteristicRead(GattCharacteristic characteristic,
+                                  byte[] value, int status);
+
+        void onCharacteristicWrite(GattCharacteristic characteristic,
+                                   int status);
+
+        /**
+         * @param descriptor The descriptor.
+         * @param value      The value, null if the read failed.
+         * @param status     The GATT status.
+         */
+        void onDescriptorRead(GattDescriptor descriptor, byte[] value,
+                              int status);
+
+        void onDescriptorWrite(GattDescriptor descriptor, int status);
+
+        void onMtuChanged(int mtu, int status);
+
+        void onPhyUpdate(int txPhy, int rxPhy, int status);
+
+        /**
+         * @param characteristic The characteristic.
+         * @param value          The value notified or indicated. It is not
+         *                       used by the client afterward.
+         */
+        void onCharacteristicChanged(GattCharacteristic characteristic,
+                                     byte[] value);
+    }
+
+    /**
+     * Creates clients.
+     */
+    interface Factory {
+        /**
+         * Creates a client for a device and starts connecting.
+         *
+         * @param address  The device address.
+         * @param callback The callback for the results.
+         * @return The client, or null if the device cannot be found.
+         */
+        GattClient connect(String address, Callback callback);
+    }
+
+    /**
+     * Connects again after a disconnect.
+     *
+     * @return If the attempt was started.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Releases the client. It cannot be used afterward.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * @return The services found by the last discovery. The objects are
+     * new after each discovery.
+     */
+    List<GattService> getServices();
+
+    GattService getService(UUID uuid);
+
+    boolean readCharacteristic(GattCharacteristic characteristic);
+
+    /**
+     * Writes a characteristic.
+     *
+     * @param characteristic The characteristic.
+     * @param value          The value. It must not be changed until the
+     *                       callback.
+     * @param writeType      One of the GattCharacteristic WRITE_TYPE
+     *                       values.
+     * @return If the write was started.
+     */
+    boolean writeCharacteristic(GattCharacteristic characteristic,
+                                byte[] value, int writeType);
+
+    boolean readDescriptor(GattDescriptor descriptor);
+
+    /**
+     * Writes a descriptor.
+     *
+     * @param descriptor The descriptor.
+     * @param value      The value. It must not be changed until the
+     *                   callback.
+     * @return If the write was started.
+     */
+    boolean writeDescriptor(GattDescriptor descriptor, byte[] value);
+
+    boolean setCharacteristicNotification(GattCharacteristic characteristic,
+                                          boolean enable);
+
+    boolean requestMtu(int mtu);
+
+    boolean requestConnectionPriority(int connectionPriority);
+
+    /**
+     * Sets the preferred PHY. Clients that cannot set it return false.
+     *
+     * @param txPhy      The transmitter PHY mask.
+     * @param rxPhy      The receiver PHY mask.
+     * @param phyOptions The coding options.
+     * @return If the request was made.
+     */
+    boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions);
+}
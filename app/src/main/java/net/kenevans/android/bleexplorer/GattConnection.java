@@ -0,0 +1,1108 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection to one GATT server in the connection pool of a
+ * {@link Host}, which is {@link BluetoothLeService} in the app. Each
+ * connection has its own
+ * {@link GattClient}, callback, {@link GattOperationQueue} and {@link GattEventBus}, so the
+ * single-producer rule of the bus holds even though the callbacks of
+ * different devices may run concurrently.
+ * <p>
+ * When the link drops without the user disconnecting, the
+ * {@link ReconnectEngine} brings it back, and the notifications that were
+ * enabled are enabled again after service discovery.
+ * <p>
+ * The callback thread only copies each value onto the bus and the decode
+ * stage. The HRV, PMD and firmware update parsing the connection does
+ * itself runs on an events thread that subscribes to the bus like any
+ * other consumer.
+ * <p>
+ * It only uses Android for logging. Its timeouts run on a
+ * {@link Scheduler}, and the GattClient uses the app's own GATT types, so
+ * the load test runs connections to simulated peripherals on a plain JVM.
+ */
+public class GattConnection {
+    private static final String TAG = GattConnection.class.getSimpleName();
+    private static final int EVENT_BUS_CAPACITY = 1024;
+    private static final int DECODE_CAPACITY = 64;
+    private static final UUID UUID_GENERIC_ATTRIBUTE =
+            UUID.fromString(GattAttributes.GENERIC_ATTRIBUTE);
+    private static final UUID UUID_SERVICE_CHANGED =
+            UUID.fromString(GattAttributes.SERVICE_CHANGED);
+    private static final UUID UUID_CCCD =
+            UUID.fromString(GattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+    private static final UUID UUID_HEART_RATE_MEASUREMENT =
+            UUID.fromString(GattAttributes.HEART_RATE_MEASUREMENT);
+
+    /**
+     * What a connection needs from the pool it is in. The methods are
+     * called on the Scheduler thread unless noted.
+     */
+    public interface Host {
+        int EVENT_CONNECTED = 1;
+        int EVENT_DISCONNECTED = 2;
+        int EVENT_SERVICES_DISCOVERED = 3;
+        int EVENT_SERVICE_CACHE_LOADED = 4;
+
+        /**
+         * Reports a change of the connection. Called on the GATT callback
+         * thread, the cache thread or the Scheduler thread.
+         *
+         * @param connection The connection.
+         * @param event      One of the EVENT values.
+         */
+        void onConnectionEvent(GattConnection connection, int event);
+
+        /**
+         * Called by the {@link ReconnectEngine} when it is time for another
+         * attempt.
+         *
+         * @param connection The connection.
+         */
+        void reconnect(GattConnection connection);
+
+        /**
+         * Called when a connection attempt has succeeded, failed, or timed
+         * out.
+         *
+         * @param connection The connection.
+         */
+        void onConnectAttemptFinished(GattConnection connection);
+
+        DecodeStage.Policy getDecodePolicy();
+
+        /**
+         * @return Whether values are passed to the data broadcaster. Called
+         * on the GATT callback thread.
+         */
+        boolean isDataBroadcastsEnabled();
+
+        /**
+         * Creates what sends the values of a connection on, which is run on
+         * its decode thread. It is created with the connection, so it must
+         * not use the connection until it is called.
+         *
+         * @param connection The connection.
+         * @return The decoder.
+         */
+        DecodeStage.Decoder newDataBroadcaster(GattConnection connection);
+
+        /**
+         * Writes a service table to the cache in the background.
+         *
+         * @param address The device address.
+         * @param table   The encoded table.
+         */
+        void writeServiceCache(String address, byte[] table);
+
+        /**
+         * Removes a service table from the cache in the background.
+         *
+         * @param address The device address.
+         */
+        void deleteServiceCache(String address);
+
+        /**
+         * Runs a task on the thread that reads and writes the cache.
+         *
+         * @param task The task.
+         */
+        void executeOnCacheThread(Runnable task);
+    }
+
+    private final Host mHost;
+    private final Scheduler mScheduler;
+    private final String mAddress;
+    private volatile GattClient mGatt;
+    private volatile int mConnectionState = GattClient.STATE_DISCONNECTED;
+    /** Whether this holds one of the pending connection slots. */
+    private boolean mConnectAttemptPending;
+    private final GattOperationQueue mOperationQueue;
+    private final GattEventBus mEventBus =
+            new GattEventBus(EVENT_BUS_CAPACITY);
+    private volatile int mMtu = GattClient.DEFAULT_MTU;
+    private volatile int mTxPhy = GattClient.PHY_LE_1M;
+    private volatile int mRxPhy = GattClient.PHY_LE_1M;
+    /** HRV from the heart rate notifications, for as long as it runs. */
+    private final HrvAnalyzer mHrvAnalyzer = new HrvAnalyzer();
+    /** Starts the Polar PMD streams and parses their data. */
+    private final PmdController mPmdController = new PmdController(this);
+    /** The default decoders, with PMD Data decoded for this connection. */
+    private final DecoderRegistry mDecoders =
+            new DecoderRegistry(DecoderRegistry.getDefault());
+    /** Uploads firmware images to the Firmware Update Service. */
+    private final FirmwareUploader mFirmwareUploader;
+    /** Formats the values for the broadcasts off the callback thread. */
+    private final DecodeStage mDecodeStage;
+    /**
+     * Runs onEvent for each event on the bus, null when stopped. A thread
+     * that is no longer it exits. Set on the Scheduler thread.
+     */
+    private volatile Thread mEventThread;
+    private GattEventBus.Subscription mEventSubscription;
+
+    // Statistics. These are only written on the GATT callback thread.
+    private volatile long mNotificationCount;
+    private volatile long mByteCount;
+    private volatile long mConnectedAtNanos;
+
+    private final Runnable mConnectTimeout = this::onConnectTimeout;
+
+    /**
+     * The encoded service table from the cache or the last discovery, and
+     * it decoded on the cache thread, null until then. They are set with
+     * mServiceCacheLock held.
+     */
+    private volatile byte[] mServiceTable;
+    private volatile List<GattService> mCachedServices;
+    private final Object mServiceCacheLock = new Object();
+    private volatile boolean mServiceCacheValid;
+    private long mConnectStartNanos;
+
+    private final ReconnectEngine mReconnectEngine;
+    /** Whether the user asked to disconnect, so no reconnect is wanted. */
+    private volatile boolean mUserDisconnect;
+    /** Whether the link has been up since the user asked to connect. */
+    private volatile boolean mWasConnected;
+    /** Whether the services of the current link have been discovered. */
+    private volatile boolean mServicesDiscovered;
+    /**
+     * The characteristics with notifications or indications enabled, as
+     * service and characteristic UUID pairs, in the order subscribed.
+     * Guarded by itself.
+     */
+    private final ArrayList<UUID[]> mSubscriptions = new ArrayList<>();
+
+    /**
+     * @param host      The pool the connection is in.
+     * @param scheduler The Scheduler for the timeouts and retries, on the
+     *                  thread the host calls the connection on.
+     * @param address   The device address.
+     */
+    public GattConnection(Host host, Scheduler scheduler, String address) {
+        mHost = host;
+        mScheduler = scheduler;
+        mAddress = address;
+        mOperationQueue = new GattOperationQueue(scheduler);
+        mFirmwareUploader = new FirmwareUploader(this, scheduler);
+        mDecoders.register(PmdController.UUID_PMD_DATA,
+                mPmdController.getDecoder());
+        mReconnectEngine = new ReconnectEngine(scheduler,
+                () -> mHost.reconnect(this));
+        mDecodeStage = new DecodeStage("Decode " + address, DECODE_CAPACITY,
+                host.newDataBroadcaster(this));
+        mDecodeStage.setPolicy(host.getDecodePolicy());
+    }
+
+    // Implements callback methods for GATT events that the app cares about. For
+    // example, connection change and services discovered.
+    private final GattClient.Callback mGattCallback = new
+            GattClient.Callback() {
+                @Override
+                public void onConnectionStateChange(int status,
+                                                    int newState) {
+                    if (newState == GattClient.STATE_CONNECTED) {
+                        mConnectionState = GattClient.STATE_CONNECTED;
+                        mConnectedAtNanos = System.nanoTime();
+                        mWasConnected = true;
+                        mReconnectEngine.onConnected();
+                        mEventBus.publish(GattEventBus.TYPE_CONNECTED, status);
+                        mHost.onConnectionEvent(GattConnection.this,
+                                Host.EVENT_CONNECTED);
+                        Log.i(TAG, mAddress + ": Connected to GATT server.");
+                        // Attempts to discover services after successful
+                        // connection.
+                        final GattClient client = mGatt;
+                        Log.i(TAG, "Attempting to start service discovery:"
+                                + (client != null
+                                && client.discoverServices()));
+                    } else if (newState == GattClient.STATE_DISCONNECTED) {
+                        mConnectionState = GattClient.STATE_DISCONNECTED;
+                        mServicesDiscovered = false;
+                        Log.i(TAG, mAddress
+                                + ": Disconnected from GATT server.");
+                        Log.i(TAG, mOperationQueue.getStatistics());
+                        mOperationQueue.clear();
+                        mPmdController.reset();
+                        mFirmwareUploader.onDisconnected();
+                        mMtu = GattClient.DEFAULT_MTU;
+                        mTxPhy = GattClient.PHY_LE_1M;
+                        mRxPhy = GattClient.PHY_LE_1M;
+                        mEventBus.publish(GattEventBus.TYPE_DISCONNECTED,
+                                status);
+                        mHost.onConnectionEvent(GattConnection.this,
+                                Host.EVENT_DISCONNECTED);
+                        onConnectFailed();
+                    }
+                    mScheduler.post(() -> finishConnectAttempt());
+                }
+
+                @Override
+                public void onServicesDiscovered(int status) {
+                    final GattClient client = mGatt;
+                    if (client == null) return;
+                    if (status == GattClient.GATT_SUCCESS) {
+                        checkServiceCache(client.getServices());
+                        mServicesDiscovered = true;
+                        tuneLink();
+                        enableSubscriptions(client);
+                        enableServiceChangedIndication(client);
+                        mFirmwareUploader.onServicesDiscovered();
+                        mEventBus.publish(
+                                GattEventBus.TYPE_SERVICES_DISCOVERED, status);
+                        mHost.onConnectionEvent(GattConnection.this,
+                                Host.EVENT_SERVICES_DISCOVERED);
+                    } else {
+                        Log.w(TAG, "onServicesDiscovered received: " + status);
+                    }
+                }
+
+                @Override
+                public void onCharacteristicRead(GattCharacteristic
+                                                         characteristic,
+                                                 byte[] value, int status) {
+                    if (status == GattClient.GATT_SUCCESS) {
+                        broadcastUpdate(GattEventBus.TYPE_READ, characteristic,
+                                value);
+                    }
+                    mOperationQueue.onComplete(GattOperationQueue.OP_READ,
+                            status);
+                }
+
+                @Override
+                public void onCharacteristicWrite(GattCharacteristic
+                                                          characteristic,
+                                                  int status) {
+                    mOperationQueue.onComplete(GattOperationQueue.OP_WRITE,
+                            status);
+                }
+
+                @Override
+                public void onDescriptorRead(GattDescriptor descriptor,
+                                             byte[] value, int status) {
+                    mOperationQueue.onComplete(
+                            GattOperationQueue.OP_READ_DESCRIPTOR, status);
+                }
+
+                @Override
+                public void onDescriptorWrite(GattDescriptor descriptor,
+                                              int status) {
+                    mOperationQueue.onComplete(
+                            GattOperationQueue.OP_WRITE_DESCRIPTOR, status);
+                }
+
+                @Override
+                public void onMtuChanged(int mtu, int status) {
+                    Log.i(TAG, mAddress + ": MTU changed: mtu=" + mtu
+                            + " status=" + status);
+                    if (status == GattClient.GATT_SUCCESS) {
+                        mMtu = mtu;
+                    }
+                    mOperationQueue.onComplete(
+                            GattOperationQueue.OP_REQUEST_MTU, status);
+                }
+
+                @Override
+                public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+                    Log.i(TAG, mAddress + ": PHY changed: tx=" + txPhy
+                            + " rx=" + rxPhy + " status=" + status);
+                    if (status == GattClient.GATT_SUCCESS) {
+                        mTxPhy = txPhy;
+                        mRxPhy = rxPhy;
+                    }
+                }
+
+                @Override
+                public void onCharacteristicChanged(GattCharacteristic
+                                                            characteristic,
+                                                    byte[] value) {
+                    onNotification(characteristic, value);
+                }
+            };
+
+    private void onNotification(GattCharacteristic characteristic,
+                                byte[] value) {
+        if (UUID_SERVICE_CHANGED.equals(characteristic.getUuid())) {
+            final GattClient client = mGatt;
+            if (client != null) onServiceTableChanged(client);
+        }
+        mReconnectEngine.onNotification();
+        broadcastUpdate(GattEventBus.TYPE_NOTIFICATION, characteristic, value);
+    }
+
+    /**
+     * Publishes a read or notified value on the event bus and, if enabled,
+     * queues it for an ACTION_DATA_AVAILABLE broadcast. Both copy the value,
+     * so it is not changed by a later callback, and the formatting is done
+     * on the decode thread, so this returns quickly.
+     *
+     * @param type           GattEventBus.TYPE_READ or TYPE_NOTIFICATION.
+     * @param characteristic The characteristic.
+     * @param value          The value.
+     */
+    private void broadcastUpdate(final int type,
+                                 final GattCharacteristic characteristic,
+                                 final byte[] value) {
+        final UUID uuid = characteristic.getUuid();
+        final int length = value == null ? 0 : value.length;
+        final long now = System.nanoTime();
+        mNotificationCount++;
+        mByteCount += length;
+        mEventBus.publish(type, GattClient.GATT_SUCCESS,
+                uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                characteristic.getInstanceId(), value, 0, length);
+        if (!mHost.isDataBroadcastsEnabled()) {
+            return;
+        }
+        mDecodeStage.offer(type, uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits(), characteristic.getInstanceId(),
+                value, length, now);
+    }
+
+    /**
+     * Starts the events thread if it is not running. Must be called on the
+     * Scheduler thread.
+     */
+    private void startEvents() {
+        if (mEventThread != null) return;
+        final GattEventBus.Subscription subscription = mEventBus.subscribe();
+        final Thread thread = new Thread(() -> runEvents(subscription),
+                "Events " + mAddress);
+        mEventSubscription = subscription;
+        mEventThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the events thread and waits for it to exit, so no event is
+     * handled after this returns. Must be called on the Scheduler thread.
+     */
+    private void stopEvents() {
+        final Thread thread = mEventThread;
+        if (thread == null) return;
+        mEventThread = null;
+        // Wakes up the thread if it is waiting
+        mEventSubscription.close();
+        mEventSubscription = null;
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runEvents(GattEventBus.Subscription subscription) {
+        final Thread self = Thread.currentThread();
+        final GattEventBus.Event event = new GattEventBus.Event();
+        try {
+            while (mEventThread == self) {
+                if (subscription.take(event, 1, TimeUnit.SECONDS)) {
+                    onEvent(event);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Log.d(TAG, mAddress + ": Events thread interrupted");
+        }
+    }
+
+    /**
+     * Passes a read or notified value to the analyzers of this connection.
+     * Called on the events thread. The PMD intervals are measured here, so
+     * a consumer decoding PMD data may use the ones from the frame before.
+     *
+     * @param event The event.
+     */
+    private void onEvent(GattEventBus.Event event) {
+        if (!event.isData()) return;
+        final UUID uuid = new UUID(event.uuidMsb, event.uuidLsb);
+        if (event.type == GattEventBus.TYPE_NOTIFICATION
+                && UUID_HEART_RATE_MEASUREMENT.equals(uuid)) {
+            mHrvAnalyzer.addMeasurement(event.value, 0, event.length);
+        } else if (PmdController.UUID_PMD_DATA.equals(uuid)) {
+            mPmdController.onData(event.value, event.length);
+        } else if (PmdController.UUID_PMD_CONTROL_POINT.equals(uuid)) {
+            mPmdController.onControlPoint(event.value, event.length);
+        } else if (FirmwareUploader.UUID_FIRMWARE_UPDATE_STATUS.equals(uuid)) {
+            // The event is reused, and the status is handled on the upload
+            // thread
+            mFirmwareUploader.onStatus(Arrays.copyOf(event.value,
+                    event.length), event.length);
+        }
+    }
+
+    /**
+     * Loads and decodes the cached service table for this device, so it can
+     * be shown before discovery completes. Called on the cache thread, and
+     * reports EVENT_SERVICE_CACHE_LOADED if there is one.
+     *
+     * @param cache The cache.
+     */
+    void loadServiceCache(GattServiceCache cache) {
+        final long start = System.nanoTime();
+        final byte[] table = cache.read(mAddress);
+        final List<GattService> services = table == null ? null :
+                GattServiceCache.decode(table);
+        final boolean loaded;
+        synchronized (mServiceCacheLock) {
+            // A discovery that finished first has the newer table
+            loaded = services != null && mServiceTable == null;
+            if (loaded) {
+                mServiceTable = table;
+                mCachedServices = services;
+            }
+        }
+        Log.i(TAG, String.format(Locale.US,
+                "%s: Service cache %s, loaded in %.2f ms", mAddress,
+                table != null ? "hit" : "miss",
+                (System.nanoTime() - start) * 1e-6));
+        if (loaded) {
+            mHost.onConnectionEvent(this, Host.EVENT_SERVICE_CACHE_LOADED);
+        }
+    }
+
+    /**
+     * Decodes a table found by discovery, for getCachedServices(). Called
+     * on the cache thread.
+     *
+     * @param table The encoded table.
+     */
+    private void decodeServiceTable(byte[] table) {
+        final List<GattService> services =
+                GattServiceCache.decode(table);
+        synchronized (mServiceCacheLock) {
+            if (mServiceTable == table) {
+                mCachedServices = services;
+            }
+        }
+    }
+
+    /**
+     * Compares the discovered service table with the cached one and updates
+     * the cache if it is different.
+     *
+     * @param services The discovered services.
+     */
+    private void checkServiceCache(List<GattService> services) {
+        final byte[] table = GattServiceCache.encode(services);
+        final byte[] cached;
+        synchronized (mServiceCacheLock) {
+            cached = mServiceTable;
+            mServiceCacheValid = cached != null
+                    && Arrays.equals(table, cached);
+            if (!mServiceCacheValid) {
+                mServiceTable = table;
+                mCachedServices = null;
+            }
+        }
+        Log.i(TAG, String.format(Locale.US,
+                "%s: Service discovery done %.1f ms after connecting, " +
+                        "cache %s", mAddress,
+                (System.nanoTime() - mConnectStartNanos) * 1e-6,
+                cached == null ? "miss" : mServiceCacheValid ? "valid"
+                        : "stale"));
+        if (!mServiceCacheValid) {
+            mHost.writeServiceCache(mAddress, table);
+            mHost.executeOnCacheThread(() -> decodeServiceTable(table));
+        }
+    }
+
+    /**
+     * Requests high connection priority and a larger MTU, if the
+     * {@link ReconnectEngine} says to. These go ahead of the descriptor
+     * writes queued after discovery, so notifications start on a fast link.
+     */
+    private void tuneLink() {
+        if (!mReconnectEngine.isLinkTuningEnabled()) return;
+        mOperationQueue.requestConnectionPriority(
+                GattClient.CONNECTION_PRIORITY_HIGH,
+                GattOperationQueue.PRIORITY_BACKGROUND);
+        if (mMtu < mReconnectEngine.getRequestedMtu()) {
+            mOperationQueue.requestMtu(mReconnectEngine.getRequestedMtu(),
+                    GattOperationQueue.PRIORITY_BACKGROUND);
+        }
+    }
+
+    /**
+     * Queues the CCCD writes for all the subscriptions in one batch after
+     * discovery. These are the ones made before the services were
+     * discovered, and the ones that were enabled before the link was lost
+     * or the services changed. The characteristic objects are new after
+     * each discovery, so they are looked up by UUID.
+     *
+     * @param gatt The GattClient.
+     */
+    private void enableSubscriptions(GattClient gatt) {
+        synchronized (mSubscriptions) {
+            for (UUID[] subscription : mSubscriptions) {
+                final GattService service =
+                        gatt.getService(subscription[0]);
+                final GattCharacteristic characteristic =
+                        service == null ? null :
+                                service.getCharacteristic(subscription[1]);
+                if (characteristic == null) {
+                    Log.w(TAG, mAddress + ": Cannot enable notification for "
+                            + subscription[1]);
+                    continue;
+                }
+                Log.d(TAG, mAddress + ": Enabling notification for "
+                        + subscription[1]);
+                enableNotification(characteristic, true,
+                        GattOperationQueue.PRIORITY_BACKGROUND);
+            }
+        }
+    }
+
+    /**
+     * Subscribes to Service Changed indications, so the cache can be
+     * invalidated when the peer changes its table.
+     *
+     * @param gatt The GattClient.
+     */
+    private void enableServiceChangedIndication(GattClient gatt) {
+        final GattService service =
+                gatt.getService(UUID_GENERIC_ATTRIBUTE);
+        if (service == null) return;
+        final GattCharacteristic characteristic =
+                service.getCharacteristic(UUID_SERVICE_CHANGED);
+        if (characteristic == null || (characteristic.getProperties()
+                & GattCharacteristic.PROPERTY_INDICATE) == 0) {
+            return;
+        }
+        final GattDescriptor descriptor =
+                characteristic.getDescriptor(UUID_CCCD);
+        if (descriptor == null) return;
+        gatt.setCharacteristicNotification(characteristic, true);
+        mOperationQueue.writeDescriptor(descriptor,
+                GattDescriptor.ENABLE_INDICATION_VALUE,
+                GattOperationQueue.PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * Handles a Service Changed indication by dropping the cached table and
+     * discovering the services again.
+     *
+     * @param gatt The GattClient.
+     */
+    private void onServiceTableChanged(GattClient gatt) {
+        Log.i(TAG, mAddress + ": Service Changed, invalidating the cache");
+        synchronized (mServiceCacheLock) {
+            mServiceTable = null;
+            mCachedServices = null;
+        }
+        mServiceCacheValid = false;
+        mHost.deleteServiceCache(mAddress);
+        gatt.discoverServices();
+    }
+
+    /**
+     * @return The services from the cache, which are not from the
+     * GattClient, or null if there are none or they are not decoded yet.
+     * They are decoded on the cache thread, so this does no I/O.
+     */
+    public List<GattService> getCachedServices() {
+        return mCachedServices;
+    }
+
+    /**
+     * @return Whether the last service discovery found the same table as
+     * the cache.
+     */
+    public boolean isServiceCacheValid() {
+        return mServiceCacheValid;
+    }
+
+    /**
+     * Starts a connection attempt. Called by the service when a pending
+     * connection slot is free. Must be called on the Scheduler thread.
+     *
+     * @param factory Creates the GattClient if there is none yet.
+     * @param timeout The time after which the attempt is given up, in ms.
+     * @return If the attempt was started.
+     */
+    boolean startConnect(GattClient.Factory factory, long timeout) {
+        // Previously connected device. Try to reconnect.
+        if (mGatt != null) {
+            Log.d(TAG, mAddress
+                    + ": Trying to use an existing GattClient for connection.");
+            if (!mGatt.connect()) {
+                mConnectionState = GattClient.STATE_DISCONNECTED;
+                return false;
+            }
+        } else {
+            final GattClient client = factory.connect(mAddress,
+                    mGattCallback);
+            if (client == null) {
+                mConnectionState = GattClient.STATE_DISCONNECTED;
+                return false;
+            }
+            mGatt = client;
+            mOperationQueue.setGatt(client);
+            Log.d(TAG, mAddress + ": Trying to create a new connection.");
+        }
+        mDecodeStage.start();
+        startEvents();
+        mConnectionState = GattClient.STATE_CONNECTING;
+        mConnectStartNanos = System.nanoTime();
+        mReconnectEngine.onAttemptStarted();
+        mConnectAttemptPending = true;
+        mScheduler.postDelayed(mConnectTimeout, timeout);
+        return true;
+    }
+
+    /**
+     * Marks the connection as waiting for a pending connection slot.
+     */
+    void setQueued() {
+        mConnectionState = GattClient.STATE_CONNECTING;
+    }
+
+    /**
+     * Marks a connection that was waiting for a pending connection slot as
+     * disconnected again.
+     */
+    void cancelQueued() {
+        mUserDisconnect = true;
+        mReconnectEngine.cancel();
+        mConnectionState = GattClient.STATE_DISCONNECTED;
+        mHost.onConnectionEvent(this, Host.EVENT_DISCONNECTED);
+    }
+
+    /**
+     * Called when the user asks to connect. Any scheduled reconnect is
+     * dropped, since this attempt replaces it.
+     */
+    void onConnectRequested() {
+        mUserDisconnect = false;
+        mWasConnected = false;
+        mReconnectEngine.cancel();
+    }
+
+    /**
+     * Called when the link was lost or a connection attempt failed or could
+     * not be started. Schedules a reconnect if the link had been up and the
+     * user did not ask for this.
+     */
+    void onConnectFailed() {
+        if (mUserDisconnect || !mWasConnected) return;
+        mReconnectEngine.onLinkLost();
+    }
+
+    private void finishConnectAttempt() {
+        if (!mConnectAttemptPending) return;
+        mConnectAttemptPending = false;
+        mScheduler.removeCallbacks(mConnectTimeout);
+        mHost.onConnectAttemptFinished(this);
+    }
+
+    private void onConnectTimeout() {
+        if (!mConnectAttemptPending
+                || mConnectionState == GattClient.STATE_CONNECTED) {
+            return;
+        }
+        Log.w(TAG, mAddress + ": Connection attempt timed out");
+        if (mGatt != null) {
+            mGatt.disconnect();
+        }
+        mConnectionState = GattClient.STATE_DISCONNECTED;
+        mHost.onConnectionEvent(this, Host.EVENT_DISCONNECTED);
+        finishConnectAttempt();
+        onConnectFailed();
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection. The
+     * disconnection result is reported asynchronously through the
+     * {@code GattClient.Callback#onConnectionStateChange(int, int)}
+     * callback.
+     */
+    public void disconnect() {
+        mUserDisconnect = true;
+        mReconnectEngine.cancel();
+        if (mGatt == null) {
+            Log.w(TAG, mAddress + ": GattClient not initialized");
+            return;
+        }
+        mGatt.disconnect();
+    }
+
+    /**
+     * Releases the GattClient. The connection can be used again with
+     * connect, which will create a new one.
+     */
+    void close() {
+        mUserDisconnect = true;
+        mReconnectEngine.cancel();
+        mScheduler.removeCallbacks(mConnectTimeout);
+        if (mConnectAttemptPending) {
+            finishConnectAttempt();
+        }
+        mOperationQueue.setGatt(null);
+        mDecodeStage.stop();
+        stopEvents();
+        mPmdController.reset();
+        mFirmwareUploader.cancel();
+        mServicesDiscovered = false;
+        if (mGatt == null) {
+            return;
+        }
+        mGatt.close();
+        mGatt = null;
+        mConnectionState = GattClient.STATE_DISCONNECTED;
+    }
+
+    /**
+     * Request a read on a given {@code GattCharacteristic}. The read
+     * result is reported asynchronously through the
+     * {@code GattClient.Callback#onCharacteristicRead(GattCharacteristic,
+     * byte[], int)} callback.
+     *
+     * @param characteristic The characteristic to read from.
+     */
+    public void readCharacteristic(GattCharacteristic characteristic) {
+        if (mGatt == null) {
+            Log.w(TAG, mAddress + ": GattClient not initialized");
+            return;
+        }
+        mOperationQueue.read(characteristic,
+                GattOperationQueue.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Request a write on a given {@code GattCharacteristic}. The write is
+     * queued, and its result is reported asynchronously through the
+     * {@code GattClient.Callback#onCharacteristicWrite(GattCharacteristic,
+     * int)} callback.
+     *
+     * @param characteristic The characteristic to write to.
+     * @param value          The value to write.
+     * @param writeType      One of the GattCharacteristic WRITE_TYPE
+     *                       values.
+     */
+    public void writeCharacteristic(GattCharacteristic characteristic,
+                                    byte[] value, int writeType) {
+        writeCharacteristic(characteristic, value, writeType,
+                GattOperationQueue.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Request a write in a given lane of the operation queue.
+     *
+     * @param characteristic The characteristic to write to.
+     * @param value          The value to write.
+     * @param writeType      One of the GattCharacteristic WRITE_TYPE
+     *                       values.
+     * @param priority       One of the GattOperationQueue PRIORITY values.
+     */
+    void writeCharacteristic(GattCharacteristic characteristic,
+                             byte[] value, int writeType, int priority) {
+        if (mGatt == null) {
+            Log.w(TAG, mAddress + ": GattClient not initialized");
+            return;
+        }
+        mOperationQueue.write(characteristic, value, writeType, priority);
+    }
+
+    /**
+     * Enables or disables notification or indication on a given
+     * characteristic. Any number of characteristics may be subscribed at
+     * once. The descriptor write is queued behind any pending operations.
+     * If the services have not been discovered yet, as when the
+     * characteristic is from the cache, the subscription is only recorded
+     * and is enabled with the others after discovery.
+     *
+     * @param characteristic Characteristic to act on.
+     * @param enabled        If true, enable notification. False otherwise.
+     */
+    public void setCharacteristicNotification(
+            GattCharacteristic characteristic, boolean enabled) {
+        final UUID[] subscription = {
+                characteristic.getService().getUuid(),
+                characteristic.getUuid()};
+        synchronized (mSubscriptions) {
+            for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+                if (Arrays.equals(mSubscriptions.get(i), subscription)) {
+                    mSubscriptions.remove(i);
+                }
+            }
+            if (enabled) mSubscriptions.add(subscription);
+        }
+        if (mGatt == null || !mServicesDiscovered) {
+            Log.d(TAG, mAddress + ": Notification for "
+                    + characteristic.getUuid() + " deferred to discovery");
+            return;
+        }
+        enableNotification(characteristic, enabled,
+                GattOperationQueue.PRIORITY_INTERACTIVE);
+    }
+
+    private void enableNotification(GattCharacteristic characteristic,
+                                    boolean enabled, int priority) {
+        final int properties = characteristic.getProperties();
+        if ((properties & (GattCharacteristic.PROPERTY_NOTIFY
+                | GattCharacteristic.PROPERTY_INDICATE)) == 0) {
+            Log.w(TAG, mAddress + ": " + characteristic.getUuid()
+                    + " does not support notification or indication");
+            return;
+        }
+        final GattDescriptor descriptor =
+                characteristic.getDescriptor(UUID_CCCD);
+        if (descriptor == null) {
+            Log.w(TAG, mAddress + ": " + characteristic.getUuid()
+                    + " has no CCCD");
+            return;
+        }
+        mGatt.setCharacteristicNotification(characteristic, enabled);
+        final byte[] value;
+        if (!enabled) {
+            value = GattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if (usesIndication(characteristic)) {
+            value = GattDescriptor.ENABLE_INDICATION_VALUE;
+        } else {
+            value = GattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        }
+        mOperationQueue.writeDescriptor(descriptor, value, priority);
+    }
+
+    /**
+     * @param characteristic The characteristic.
+     * @return If it can be subscribed to.
+     */
+    public static boolean isSubscribable(
+            GattCharacteristic characteristic) {
+        return (characteristic.getProperties()
+                & (GattCharacteristic.PROPERTY_NOTIFY
+                | GattCharacteristic.PROPERTY_INDICATE)) != 0;
+    }
+
+    /**
+     * @param characteristic The characteristic.
+     * @return If a subscription uses indications, which is only when
+     * notifications are not supported, since they need no confirmation.
+     */
+    public static boolean usesIndication(
+            GattCharacteristic characteristic) {
+        final int properties = characteristic.getProperties();
+        return (properties & GattCharacteristic.PROPERTY_NOTIFY) == 0
+                && (properties
+                & GattCharacteristic.PROPERTY_INDICATE) != 0;
+    }
+
+    /**
+     * Queues an MTU request. The result is reported through
+     * {@code GattClient.Callback#onMtuChanged}.
+     *
+     * @param mtu      The requested MTU.
+     * @param priority One of the GattOperationQueue PRIORITY values.
+     */
+    public void requestMtu(int mtu, int priority) {
+        if (mGatt == null) {
+            Log.w(TAG, mAddress + ": GattClient not initialized");
+            return;
+        }
+        mOperationQueue.requestMtu(mtu, priority);
+    }
+
+    /**
+     * Queues a connection priority request.
+     *
+     * @param connectionPriority One of the GattClient
+     *                           CONNECTION_PRIORITY values.
+     * @param priority           One of the GattOperationQueue PRIORITY
+     *                           values.
+     */
+    public void requestConnectionPriority(int connectionPriority,
+                                          int priority) {
+        if (mGatt == null) {
+            Log.w(TAG, mAddress + ": GattClient not initialized");
+            return;
+        }
+        mOperationQueue.requestConnectionPriority(connectionPriority,
+                priority);
+    }
+
+    /**
+     * Sets the preferred PHY for both directions. This is not a GATT
+     * operation, so it does not go through the queue. The result is
+     * reported through {@code GattClient.Callback#onPhyUpdate}. Before
+     * Android 8 only the LE 1M PHY is available.
+     *
+     * @param phy GattClient.PHY_LE_1M or PHY_LE_2M.
+     * @return If the request was made or the PHY is already the only one.
+     */
+    public boolean setPreferredPhy(int phy) {
+        if (mGatt == null) {
+            Log.w(TAG, mAddress + ": GattClient not initialized");
+            return false;
+        }
+        final int mask = phy == GattClient.PHY_LE_2M ?
+                GattClient.PHY_LE_2M_MASK : GattClient.PHY_LE_1M_MASK;
+        if (!mGatt.setPreferredPhy(mask, mask,
+                GattClient.PHY_OPTION_NO_PREFERRED)) {
+            return phy == GattClient.PHY_LE_1M;
+        }
+        return true;
+    }
+
+    /**
+     * @param characteristic The characteristic.
+     * @return Whether notifications were enabled for it through
+     * {@link #setCharacteristicNotification}.
+     */
+    public boolean isSubscribed(GattCharacteristic characteristic) {
+        final UUID serviceUuid = characteristic.getService().getUuid();
+        final UUID uuid = characteristic.getUuid();
+        synchronized (mSubscriptions) {
+            for (UUID[] subscription : mSubscriptions) {
+                if (subscription[0].equals(serviceUuid)
+                        && subscription[1].equals(uuid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A copy of the subscriptions, as service and characteristic
+     * UUID pairs, in the order subscribed.
+     */
+    public List<UUID[]> getSubscriptions() {
+        synchronized (mSubscriptions) {
+            return new ArrayList<>(mSubscriptions);
+        }
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on the connected device.
+     * This should be invoked only after {@code GattClient#discoverServices()}
+     * completes successfully.
+     *
+     * @return A {@code List} of supported services.
+     */
+    public List<GattService> getSupportedGattServices() {
+        if (mGatt == null)
+            return null;
+
+        return mGatt.getServices();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Returns the connection state.
+     *
+     * @return The connection state.
+     */
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    public boolean isConnected() {
+        return mConnectionState == GattClient.STATE_CONNECTED;
+    }
+
+    /**
+     * @return The bus on which the GATT events for this device are
+     * published.
+     */
+    public GattEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * @return The queue through which all GATT operations go.
+     */
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    /**
+     * @return The stage that formats the values for the broadcasts.
+     */
+    public DecodeStage getDecodeStage() {
+        return mDecodeStage;
+    }
+
+    /**
+     * @return The HRV of the heart rate notifications from this device.
+     */
+    public HrvAnalyzer getHrvAnalyzer() {
+        return mHrvAnalyzer;
+    }
+
+    /**
+     * @return The controller of the Polar PMD streams of this device.
+     */
+    public PmdController getPmdController() {
+        return mPmdController;
+    }
+
+    /**
+     * @return The decoders to display and chart the values of this
+     * connection with.
+     */
+    public DecoderRegistry getDecoderRegistry() {
+        return mDecoders;
+    }
+
+    /**
+     * @return The uploader of firmware images to this device.
+     */
+    public FirmwareUploader getFirmwareUploader() {
+        return mFirmwareUploader;
+    }
+
+    /**
+     * @return The engine that reconnects this device and tunes its link.
+     */
+    public ReconnectEngine getReconnectEngine() {
+        return mReconnectEngine;
+    }
+
+    /**
+     * @return The current ATT MTU.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * @return The number of values read or notified.
+     */
+    public long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    /**
+     * @return The number of value bytes read or notified.
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * @return The System.nanoTime() of the last connection.
+     */
+    public long getConnectedAtNanos() {
+        return mConnectedAtNanos;
+    }
+}
@@ -0,0 +1,47 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.UUID;
+
+/**
+ * A descriptor of a {@link GattCharacteristic}. It mirrors
+ * BluetoothGattDescriptor, with the same constant values, but holds no
+ * value.
+ */
+public class GattDescriptor {
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_WRITE = 0x10;
+
+    /** The Client Characteristic Configuration values. */
+    public static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    public static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+    public static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    private final UUID mUuid;
+    private final int mPermissions;
+    private GattCharacteristic mCharacteristic;
+
+    /**
+     * @param uuid        The UUID.
+     * @param permissions The PERMISSION values.
+     */
+    public GattDescriptor(UUID uuid, int permissions) {
+        mUuid = uuid;
+        mPermissions = permissions;
+    }
+
+    void setCharacteristic(GattCharacteristic characteristic) {
+        mCharacteristic = characteristic;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    public GattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+}
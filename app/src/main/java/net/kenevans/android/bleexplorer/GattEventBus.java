@@ -0,0 +1,309 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process bus for GATT events. It is a preallocated ring buffer with a
+ * single producer (the GATT callback) and any number of consumers, each with
+ * its own {@link Subscription}. Events are copied into and out of the ring,
+ * so publishing and consuming do not allocate.
+ * <p>
+ * The producer never overwrites a slot that a subscriber has not consumed
+ * yet. If the ring is full, the new event is dropped and counted instead.
+ * Subscribers that stop consuming should therefore be closed.
+ */
+public class GattEventBus {
+    public static final int TYPE_CONNECTED = 1;
+    public static final int TYPE_DISCONNECTED = 2;
+    public static final int TYPE_SERVICES_DISCOVERED = 3;
+    public static final int TYPE_READ = 4;
+    public static final int TYPE_NOTIFICATION = 5;
+
+    /** The maximum length of an attribute value. */
+    public static final int MAX_VALUE_LENGTH = 512;
+
+    private final Event[] mSlots;
+    private final int mMask;
+    /** The sequence of the last published event. */
+    private final AtomicLong mCursor = new AtomicLong(-1);
+    /** Cached minimum of the subscriber sequences. Producer only. */
+    private long mGatingSequence = -1;
+    private final AtomicLong mDropped = new AtomicLong();
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<>();
+    private final AtomicInteger mWaiters = new AtomicInteger();
+    private final Object mLock = new Object();
+
+    /**
+     * A single GATT event. Instances in the ring are owned by the bus.
+     * Consumers poll into their own instance.
+     */
+    public static class Event {
+        public long sequence;
+        public int type;
+        /** Time the event was received, from System.nanoTime(). */
+        public long timestampNanos;
+        public int status;
+        public long uuidMsb;
+        public long uuidLsb;
+        public int instanceId;
+        public final byte[] value = new byte[MAX_VALUE_LENGTH];
+        public int length;
+
+        void copyFrom(Event src) {
+            sequence = src.sequence;
+            type = src.type;
+            timestampNanos = src.timestampNanos;
+            status = src.status;
+            uuidMsb = src.uuidMsb;
+            uuidLsb = src.uuidLsb;
+            instanceId = src.instanceId;
+            length = src.length;
+            System.arraycopy(src.value, 0, value, 0, length);
+        }
+
+        public boolean isData() {
+            return type == TYPE_READ || type == TYPE_NOTIFICATION;
+        }
+    }
+
+    /**
+     * @param capacity The number of slots. Rounded up to a power of 2.
+     */
+    public GattEventBus(int capacity) {
+        int size = capacity <= 2 ? 2 :
+                Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new Event[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Event();
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Publishes an event with no value. There must only be one producer.
+     *
+     * @param type   The type.
+     * @param status The GATT status.
+     * @return If the event was published, false if it was dropped.
+     */
+    public boolean publish(int type, int status) {
+        return publish(type, status, 0, 0, 0, null, 0, 0);
+    }
+
+    /**
+     * Publishes an event. The value is copied, so the caller may reuse it.
+     * There must only be one producer.
+     *
+     * @param type       The type.
+     * @param status     The GATT status.
+     * @param uuidMsb    The most significant bits of the UUID.
+     * @param uuidLsb    The least significant bits of the UUID.
+     * @param instanceId The characteristic instance ID.
+     * @param value      The value or null.
+     * @param offset     The offset of the value.
+     * @param length     The length of the value. Values longer than
+     *                   MAX_VALUE_LENGTH are truncated.
+     * @return If the event was published, false if it was dropped.
+     */
+    public boolean publish(int type, int status, long uuidMsb, long uuidLsb,
+                           int instanceId, byte[] value, int offset,
+                           int length) {
+        final long next = mCursor.get() + 1;
+        final long wrapPoint = next - mSlots.length;
+        if (wrapPoint > mGatingSequence) {
+            mGatingSequence = minimumSequence(next - 1);
+            if (wrapPoint > mGatingSequence) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+        }
+        final Event slot = mSlots[(int) next & mMask];
+        slot.sequence = next;
+        slot.type = type;
+        slot.timestampNanos = System.nanoTime();
+        slot.status = status;
+        slot.uuidMsb = uuidMsb;
+        slot.uuidLsb = uuidLsb;
+        slot.instanceId = instanceId;
+        if (value == null) {
+            slot.length = 0;
+        } else {
+            slot.length = Math.min(length, MAX_VALUE_LENGTH);
+            System.arraycopy(value, offset, slot.value, 0, slot.length);
+        }
+        // The volatile write publishes the slot contents
+        mCursor.set(next);
+        if (mWaiters.get() > 0) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the next publish will succeed. Only the producer may
+     * call this, and since consumers only free slots, the answer stays true
+     * until it publishes. A producer that can wait, such as a replay, uses
+     * this to avoid dropping events.
+     *
+     * @return If there is a free slot.
+     */
+    public boolean hasRoom() {
+        final long wrapPoint = mCursor.get() + 1 - mSlots.length;
+        if (wrapPoint > mGatingSequence) {
+            mGatingSequence = minimumSequence(mCursor.get());
+        }
+        return wrapPoint <= mGatingSequence;
+    }
+
+    private long minimumSequence(long minimum) {
+        for (Subscription subscription : mSubscriptions) {
+            long sequence = subscription.mSequence.get();
+            if (sequence < minimum) minimum = sequence;
+        }
+        return minimum;
+    }
+
+    /**
+     * Creates a subscription that sees the events published from now on.
+     * Close it when it is no longer used.
+     *
+     * @return The subscription.
+     */
+    public Subscription subscribe() {
+        Subscription subscription = new Subscription(mCursor.get());
+        mSubscriptions.add(subscription);
+        // The producer may have passed the old cursor before it saw the
+        // new subscription, so start again from the current one
+        subscription.mSequence.set(mCursor.get());
+        return subscription;
+    }
+
+    /**
+     * @return The sequence of the last published event.
+     */
+    public long getCursor() {
+        return mCursor.get();
+    }
+
+    /**
+     * @return The number of events dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * A consumer of the bus. A Subscription is meant to be used by one
+     * thread.
+     */
+    public class Subscription {
+        /** The sequence of the last consumed event. */
+        private final AtomicLong mSequence;
+        private final long mDroppedAtStart;
+        private volatile boolean mClosed;
+
+        private Subscription(long sequence) {
+            mSequence = new AtomicLong(sequence);
+            mDroppedAtStart = mDropped.get();
+        }
+
+        /**
+         * Copies the next event into out if there is one.
+         *
+         * @param out The event to copy into.
+         * @return If there was an event.
+         */
+        public boolean poll(Event out) {
+            final long next = mSequence.get() + 1;
+            if (mClosed || next > mCursor.get()) {
+                return false;
+            }
+            out.copyFrom(mSlots[(int) next & mMask]);
+            // The volatile write releases the slot to the producer
+            mSequence.set(next);
+            return true;
+        }
+
+        /**
+         * Waits until there is an event to poll.
+         *
+         * @param timeout The maximum time to wait.
+         * @param unit    The unit of timeout.
+         * @return If there is an event.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        public boolean await(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            if (isAvailable()) return true;
+            long remaining = unit.toNanos(timeout);
+            final long deadline = System.nanoTime() + remaining;
+            mWaiters.incrementAndGet();
+            try {
+                synchronized (mLock) {
+                    while (!isAvailable() && !mClosed && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                        remaining = deadline - System.nanoTime();
+                    }
+                }
+            } finally {
+                mWaiters.decrementAndGet();
+            }
+            return isAvailable();
+        }
+
+        /**
+         * Waits for the next event and copies it into out.
+         *
+         * @param out     The event to copy into.
+         * @param timeout The maximum time to wait.
+         * @param unit    The unit of timeout.
+         * @return If there was an event.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        public boolean take(Event out, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return await(timeout, unit) && poll(out);
+        }
+
+        public boolean isAvailable() {
+            return !mClosed && mSequence.get() < mCursor.get();
+        }
+
+        /**
+         * @return The number of events that were available but not yet
+         * consumed.
+         */
+        public long getBacklog() {
+            return mCursor.get() - mSequence.get();
+        }
+
+        /**
+         * @return The number of events the bus dropped since this
+         * subscription was created.
+         */
+        public long getDroppedCount() {
+            return mDropped.get() - mDroppedAtStart;
+        }
+
+        /**
+         * Stops the subscription and wakes up any thread waiting on it.
+         */
+        public void close() {
+            mClosed = true;
+            mSubscriptions.remove(this);
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Serializes operations on a {@link GattClient}. Android only allows one
+ * outstanding GATT operation, and starting another one before the callback
+ * for the first arrives fails or is silently dropped. Operations are queued
+ * in two priority lanes, interactive before background, and the next one is
+ * started as soon as the callback for the current one arrives. Each
+ * operation has a timeout after which the queue moves on, which is set for
+ * each type of operation with {@link #setTimeout(int, long)}.
+ * <p>
+ * The methods are synchronized, since operations are queued from the UI
+ * thread and completed from the GATT callback thread.
+ */
+public class GattOperationQueue {
+    private static final String TAG = GattOperationQueue.class
+            .getSimpleName();
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+    private static final int N_PRIORITIES = 2;
+
+    public static final int OP_READ = 1;
+    public static final int OP_WRITE = 2;
+    public static final int OP_READ_DESCRIPTOR = 3;
+    public static final int OP_WRITE_DESCRIPTOR = 4;
+    public static final int OP_REQUEST_MTU = 5;
+    public static final int OP_REQUEST_PRIORITY = 6;
+
+    /**
+     * Gets the result of an operation. It is called with the queue locked,
+     * on the GATT callback thread, the Scheduler thread on a timeout, or the
+     * thread queuing an operation if one fails to start. So it must return
+     * quickly and not call the queue. It is not called for operations that
+     * are discarded, as when the link is lost.
+     */
+    public interface Callback {
+        void onComplete(boolean success);
+    }
+
+    /** Default timeout for an operation. */
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+    /**
+     * Default timeout for an MTU request, which some peripherals only
+     * answer after several connection events.
+     */
+    public static final long DEFAULT_MTU_TIMEOUT_MS = 10000;
+
+    private final Scheduler mScheduler;
+    private GattClient mGatt;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Operation>[] mLanes =
+            new ArrayDeque[N_PRIORITIES];
+    private Operation mCurrent;
+    /** The timeout for each type of operation, in ms. */
+    private final long[] mTimeouts = new long[OP_REQUEST_PRIORITY + 1];
+
+    // Statistics
+    private long mCompletedCount;
+    private long mFailedCount;
+    private long mTimeoutCount;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+    private long mTotalWaitNanos;
+    private int mMaxDepth;
+
+    private static class Operation {
+        int type;
+        int priority;
+        GattCharacteristic characteristic;
+        GattDescriptor descriptor;
+        byte[] value;
+        int intArg;
+        long timeoutMs;
+        long enqueuedNanos;
+        long startedNanos;
+        Callback callback;
+        /** Posted when it starts, so a late timeout finds it finished. */
+        Runnable timeout;
+    }
+
+    /**
+     * @param scheduler The Scheduler on which timeouts are run.
+     */
+    public GattOperationQueue(Scheduler scheduler) {
+        mScheduler = scheduler;
+        for (int i = 0; i < N_PRIORITIES; i++) {
+            mLanes[i] = new ArrayDeque<>();
+        }
+        Arrays.fill(mTimeouts, DEFAULT_TIMEOUT_MS);
+        mTimeouts[OP_REQUEST_MTU] = DEFAULT_MTU_TIMEOUT_MS;
+    }
+
+    /**
+     * Sets the timeout for operations of a type queued from now on. A
+     * connection priority request has no callback, so it completes as
+     * soon as it is started and its timeout is not used.
+     *
+     * @param type      One of the OP values.
+     * @param timeoutMs The timeout in ms.
+     */
+    public synchronized void setTimeout(int type, long timeoutMs) {
+        mTimeouts[type] = timeoutMs;
+    }
+
+    /**
+     * @param type One of the OP values.
+     * @return The timeout for operations of the type, in ms.
+     */
+    public synchronized long getTimeout(int type) {
+        return mTimeouts[type];
+    }
+
+    /**
+     * Sets the client to operate on. Any pending operations are discarded.
+     *
+     * @param gatt The GattClient or null.
+     */
+    public synchronized void setGatt(GattClient gatt) {
+        clear();
+        mGatt = gatt;
+    }
+
+    /**
+     * Discards all pending operations, including the current one.
+     */
+    public synchronized void clear() {
+        int discarded = 0;
+        for (ArrayDeque<Operation> lane : mLanes) {
+            discarded += lane.size();
+            lane.clear();
+        }
+        if (mCurrent != null) {
+            discarded++;
+            mScheduler.removeCallbacks(mCurrent.timeout);
+            mCurrent = null;
+        }
+        if (discarded > 0) {
+            Log.d(TAG, "Discarded " + discarded + " operations");
+        }
+    }
+
+    public void read(GattCharacteristic characteristic,
+                     int priority) {
+        Operation op = newOperation(OP_READ, priority);
+        op.characteristic = characteristic;
+        enqueue(op);
+    }
+
+    /**
+     * Queues a write of a characteristic.
+     *
+     * @param characteristic The characteristic.
+     * @param value          The value, which is copied.
+     * @param writeType      One of the GattCharacteristic WRITE_TYPE
+     *                       values.
+     * @param priority       The priority.
+     */
+    public void write(GattCharacteristic characteristic,
+                      byte[] value, int writeType, int priority) {
+        Operation op = newOperation(OP_WRITE, priority);
+        op.characteristic = characteristic;
+        op.value = value.clone();
+        op.intArg = writeType;
+        enqueue(op);
+    }
+
+    /**
+     * Queues a write of a characteristic, with a callback for the result.
+     * For a write without response, the result comes when the stack has
+     * taken the value, so the callbacks pace the writes to the buffers of
+     * the controller.
+     *
+     * @param characteristic The characteristic.
+     * @param value          The value, which is not copied, so it must not
+     *                       be changed until the callback.
+     * @param writeType      One of the GattCharacteristic WRITE_TYPE
+     *                       values.
+     * @param priority       The priority.
+     * @param callback       The callback.
+     */
+    public void write(GattCharacteristic characteristic,
+                      byte[] value, int writeType, int priority,
+                      Callback callback) {
+        Operation op = newOperation(OP_WRITE, priority);
+        op.characteristic = characteristic;
+        op.value = value;
+        op.intArg = writeType;
+        op.callback = callback;
+        enqueue(op);
+    }
+
+    public void readDescriptor(GattDescriptor descriptor,
+                               int priority) {
+        Operation op = newOperation(OP_READ_DESCRIPTOR, priority);
+        op.descriptor = descriptor;
+        enqueue(op);
+    }
+
+    public void writeDescriptor(GattDescriptor descriptor,
+                                byte[] value, int priority) {
+        Operation op = newOperation(OP_WRITE_DESCRIPTOR, priority);
+        op.descriptor = descriptor;
+        op.value = value.clone();
+        enqueue(op);
+    }
+
+    public void requestMtu(int mtu, int priority) {
+        Operation op = newOperation(OP_REQUEST_MTU, priority);
+        op.intArg = mtu;
+        enqueue(op);
+    }
+
+    /**
+     * Queues a connection priority request.
+     *
+     * @param connectionPriority One of the GattClient
+     *                           CONNECTION_PRIORITY values.
+     * @param priority           The queue priority.
+     */
+    public void requestConnectionPriority(int connectionPriority,
+                                          int priority) {
+        Operation op = newOperation(OP_REQUEST_PRIORITY, priority);
+        op.intArg = connectionPriority;
+        enqueue(op);
+    }
+
+    /**
+     * Called from the GATT callback when an operation has completed.
+     *
+     * @param type   The type of operation the callback is for.
+     * @param status The GATT status.
+     */
+    public synchronized void onComplete(int type, int status) {
+        final Operation op = mCurrent;
+        if (op == null || op.type != type) {
+            // Probably the callback for an operation that timed out
+            Log.d(TAG, "Unexpected completion: type=" + type
+                    + " status=" + status);
+            return;
+        }
+        mScheduler.removeCallbacks(op.timeout);
+        finish(op, status == GattClient.GATT_SUCCESS);
+        next();
+    }
+
+    private Operation newOperation(int type, int priority) {
+        Operation op = new Operation();
+        op.type = type;
+        op.priority = Math.max(0, Math.min(priority, N_PRIORITIES - 1));
+        op.timeoutMs = getTimeout(type);
+        op.timeout = () -> onTimeout(op);
+        return op;
+    }
+
+    private synchronized void enqueue(Operation op) {
+        op.enqueuedNanos = System.nanoTime();
+        mLanes[op.priority].add(op);
+        int depth = getQueueDepth();
+        if (depth > mMaxDepth) mMaxDepth = depth;
+        if (mCurrent == null) {
+            next();
+        }
+    }
+
+    /**
+     * Starts the next operation. Operations that fail to start are counted
+     * as failed and skipped.
+     */
+    private void next() {
+        mCurrent = null;
+        Operation op;
+        while ((op = poll()) != null) {
+            op.startedNanos = System.nanoTime();
+            mTotalWaitNanos += op.startedNanos - op.enqueuedNanos;
+            if (!start(op)) {
+                Log.w(TAG, "Failed to start " + typeName(op.type));
+                finish(op, false);
+                continue;
+            }
+            if (op.type == OP_REQUEST_PRIORITY) {
+                // There is no callback for this one
+                finish(op, true);
+                continue;
+            }
+            mCurrent = op;
+            mScheduler.postDelayed(op.timeout, op.timeoutMs);
+            return;
+        }
+    }
+
+    private Operation poll() {
+        for (ArrayDeque<Operation> lane : mLanes) {
+            Operation op = lane.poll();
+            if (op != null) return op;
+        }
+        return null;
+    }
+
+    private boolean start(Operation op) {
+        final GattClient gatt = mGatt;
+        if (gatt == null) return false;
+        switch (op.type) {
+            case OP_READ:
+                return gatt.readCharacteristic(op.characteristic);
+            case OP_WRITE:
+                return gatt.writeCharacteristic(op.characteristic, op.value,
+                        op.intArg);
+            case OP_READ_DESCRIPTOR:
+                return gatt.readDescriptor(op.descriptor);
+            case OP_WRITE_DESCRIPTOR:
+                return gatt.writeDescriptor(op.descriptor, op.value);
+            case OP_REQUEST_MTU:
+                return gatt.requestMtu(op.intArg);
+            case OP_REQUEST_PRIORITY:
+                return gatt.requestConnectionPriority(op.intArg);
+            default:
+                return false;
+        }
+    }
+
+    private void finish(Operation op, boolean success) {
+        final long latency = System.nanoTime() - op.startedNanos;
+        if (success) {
+            mCompletedCount++;
+        } else {
+            mFailedCount++;
+        }
+        mTotalLatencyNanos += latency;
+        if (latency > mMaxLatencyNanos) mMaxLatencyNanos = latency;
+        if (op.callback != null) op.callback.onComplete(success);
+    }
+
+    /**
+     * @param op The operation whose timeout this is. If it has completed
+     *           in the meantime, as when the timeout was already running
+     *           and waiting for the lock, nothing is done.
+     */
+    private synchronized void onTimeout(Operation op) {
+        if (mCurrent != op) return;
+        Log.w(TAG, "Timed out: " + typeName(op.type));
+        mTimeoutCount++;
+        finish(op, false);
+        next();
+    }
+
+    /**
+     * @return The number of operations waiting, not counting the current
+     * one.
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (ArrayDeque<Operation> lane : mLanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    public synchronized boolean isBusy() {
+        return mCurrent != null;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    /**
+     * @return The average time from starting an operation to its
+     * completion, in nanoseconds.
+     */
+    public synchronized long getAverageLatencyNanos() {
+        long n = mCompletedCount + mFailedCount;
+        return n == 0 ? 0 : mTotalLatencyNanos / n;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    /**
+     * @return The average time an operation waited in the queue, in
+     * nanoseconds.
+     */
+    public synchronized long getAverageWaitNanos() {
+        long n = mCompletedCount + mFailedCount;
+        return n == 0 ? 0 : mTotalWaitNanos / n;
+    }
+
+    /**
+     * @return A summary of the statistics.
+     */
+    public synchronized String getStatistics() {
+        return String.format(Locale.US,
+                "GATT operations: depth=%d maxDepth=%d completed=%d " +
+                        "failed=%d timeouts=%d avgLatency=%.1f ms " +
+                        "maxLatency=%.1f ms avgWait=%.1f ms",
+                getQueueDepth(), mMaxDepth, mCompletedCount, mFailedCount,
+                mTimeoutCount, getAverageLatencyNanos() * 1e-6,
+                mMaxLatencyNanos * 1e-6, getAverageWaitNanos() * 1e-6);
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case OP_READ:
+                return "read";
+            case OP_WRITE:
+                return "write";
+            case OP_READ_DESCRIPTOR:
+                return "readDescriptor";
+            case OP_WRITE_DESCRIPTOR:
+                return "writeDescriptor";
+            case OP_REQUEST_MTU:
+                return "requestMtu";
+            case OP_REQUEST_PRIORITY:
+                return "requestConnectionPriority";
+            default:
+                return "unknown(" + type + ")";
+        }
+    }
+}
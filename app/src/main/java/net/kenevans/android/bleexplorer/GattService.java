@@ -0,0 +1,72 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A service of a GATT server, as a {@link GattClient} reports it. It
+ * mirrors BluetoothGattService, with the same constant values, so the app
+ * does not depend on the Android classes outside {@link AndroidGattClient}.
+ * It is only built before it is handed out, and not changed afterward, so
+ * it may be read from any thread.
+ */
+public class GattService {
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+    public static final int SERVICE_TYPE_SECONDARY = 1;
+
+    private final UUID mUuid;
+    private final int mInstanceId;
+    private final int mType;
+    private final List<GattCharacteristic> mCharacteristics =
+            new ArrayList<>();
+
+    /**
+     * @param uuid       The UUID.
+     * @param instanceId The instance ID, 0 if it is not known.
+     * @param type       SERVICE_TYPE_PRIMARY or SERVICE_TYPE_SECONDARY.
+     */
+    public GattService(UUID uuid, int instanceId, int type) {
+        mUuid = uuid;
+        mInstanceId = instanceId;
+        mType = type;
+    }
+
+    /**
+     * Adds a characteristic and makes this its service.
+     *
+     * @param characteristic The characteristic.
+     */
+    public void addCharacteristic(GattCharacteristic characteristic) {
+        characteristic.setService(this);
+        mCharacteristics.add(characteristic);
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getInstanceId() {
+        return mInstanceId;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public List<GattCharacteristic> getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    /**
+     * @param uuid The UUID.
+     * @return The first characteristic with the UUID, or null if there is
+     * none.
+     */
+    public GattCharacteristic getCharacteristic(UUID uuid) {
+        for (GattCharacteristic characteristic : mCharacteristics) {
+            if (characteristic.getUuid().equals(uuid)) return characteristic;
+        }
+        return null;
+    }
+}
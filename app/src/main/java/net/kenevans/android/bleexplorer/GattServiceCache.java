@@ -0,0 +1,203 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Persistent cache of the GATT service tables of devices, one binary file per
+ * device address. The file holds the services, characteristics and
+ * descriptors with their UUIDs, instance IDs, properties and permissions, so
+ * the tree can be shown before service discovery completes. The encoded
+ * bytes are also used to check whether the live table has changed.
+ */
+public class GattServiceCache {
+    private static final String TAG = GattServiceCache.class.getSimpleName();
+    private static final int MAGIC = 0x47534331; // "GSC1"
+    private static final String EXTENSION = ".gatt";
+
+    private final File mDir;
+
+    /**
+     * @param dir The directory for the cache files. It is created if it does
+     *            not exist.
+     */
+    public GattServiceCache(File dir) {
+        mDir = dir;
+    }
+
+    private File getFile(String address) {
+        return new File(mDir, address.replace(":", "") + EXTENSION);
+    }
+
+    /**
+     * Reads the cached table for a device.
+     *
+     * @param address The device address.
+     * @return The encoded table or null if there is none.
+     */
+    public byte[] read(String address) {
+        final File file = getFile(address);
+        if (!file.exists()) return null;
+        byte[] bytes = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int n = 0;
+            while (n < bytes.length) {
+                int read = in.read(bytes, n, bytes.length - n);
+                if (read < 0) break;
+                n += read;
+            }
+            if (n != bytes.length) return null;
+        } catch (IOException ex) {
+            Log.e(TAG, "Error reading " + file, ex);
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the table for a device. The file is written to a temporary file
+     * first and renamed, so readers never see a partial file.
+     *
+     * @param address The device address.
+     * @param bytes   The encoded table.
+     */
+    public void write(String address, byte[] bytes) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + mDir);
+            return;
+        }
+        final File file = getFile(address);
+        final File tmp = new File(mDir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(bytes);
+            out.getFD().sync();
+        } catch (IOException ex) {
+            Log.e(TAG, "Error writing " + tmp, ex);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Removes the cached table for a device.
+     *
+     * @param address The device address.
+     */
+    public void delete(String address) {
+        final File file = getFile(address);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Encodes a service table.
+     *
+     * @param services The services.
+     * @return The encoded table.
+     */
+    public static byte[] encode(List<GattService> services) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeShort(services.size());
+            for (GattService service : services) {
+                writeUuid(out, service.getUuid());
+                out.writeShort(service.getInstanceId());
+                out.writeByte(service.getType());
+                final List<GattCharacteristic> characteristics =
+                        service.getCharacteristics();
+                out.writeShort(characteristics.size());
+                for (GattCharacteristic characteristic :
+                        characteristics) {
+                    writeUuid(out, characteristic.getUuid());
+                    out.writeShort(characteristic.getInstanceId());
+                    out.writeByte(characteristic.getProperties());
+                    out.writeShort(characteristic.getPermissions());
+                    final List<GattDescriptor> descriptors =
+                            characteristic.getDescriptors();
+                    out.writeByte(descriptors.size());
+                    for (GattDescriptor descriptor : descriptors) {
+                        writeUuid(out, descriptor.getUuid());
+                        out.writeShort(descriptor.getPermissions());
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // Does not happen with a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a service table. The objects are not from a
+     * {@link GattClient}, so they can be displayed but not used for
+     * operations.
+     *
+     * @param bytes The encoded table.
+     * @return The services or null if the bytes are not a valid table.
+     */
+    public static List<GattService> decode(byte[] bytes) {
+        try (DataInputStream in =
+                     new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC) return null;
+            final int nServices = in.readUnsignedShort();
+            final List<GattService> services =
+                    new ArrayList<>(nServices);
+            for (int i = 0; i < nServices; i++) {
+                final UUID serviceUuid = readUuid(in);
+                final int serviceInstanceId = in.readUnsignedShort();
+                final GattService service = new GattService(serviceUuid,
+                        serviceInstanceId, in.readUnsignedByte());
+                final int nCharacteristics = in.readUnsignedShort();
+                for (int j = 0; j < nCharacteristics; j++) {
+                    final UUID uuid = readUuid(in);
+                    final int instanceId = in.readUnsignedShort();
+                    final int properties = in.readUnsignedByte();
+                    final int permissions = in.readUnsignedShort();
+                    final GattCharacteristic characteristic =
+                            new GattCharacteristic(uuid, instanceId,
+                                    properties, permissions);
+                    final int nDescriptors = in.readUnsignedByte();
+                    for (int k = 0; k < nDescriptors; k++) {
+                        final UUID descriptorUuid = readUuid(in);
+                        characteristic.addDescriptor(
+                                new GattDescriptor(descriptorUuid,
+                                        in.readUnsignedShort()));
+                    }
+                    service.addCharacteristic(characteristic);
+                }
+                services.add(service);
+            }
+            return services;
+        } catch (IOException ex) {
+            Log.w(TAG, "Invalid service table", ex);
+            return null;
+        }
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid)
+            throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        final long msb = in.readLong();
+        return new UUID(msb, in.readLong());
+    }
+}
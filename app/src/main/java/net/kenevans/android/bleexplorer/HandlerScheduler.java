@@ -0,0 +1,57 @@
+package net.kenevans.android.bleexplorer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * A {@link Scheduler} that posts to a Handler, which is what the app uses.
+ */
+public class HandlerScheduler implements Scheduler {
+    private final Handler mHandler;
+    /** The thread of a scheduler made by newThread, else null. */
+    private final HandlerThread mThread;
+
+    /**
+     * @param handler The Handler.
+     */
+    public HandlerScheduler(Handler handler) {
+        this(handler, null);
+    }
+
+    private HandlerScheduler(Handler handler, HandlerThread thread) {
+        mHandler = handler;
+        mThread = thread;
+    }
+
+    @Override
+    public boolean post(Runnable task) {
+        return mHandler.post(task);
+    }
+
+    @Override
+    public boolean postDelayed(Runnable task, long delayMs) {
+        return mHandler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+    @Override
+    public void removeAll() {
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public Scheduler newThread(String name) {
+        final HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return new HandlerScheduler(new Handler(thread.getLooper()), thread);
+    }
+
+    @Override
+    public void quit() {
+        if (mThread != null) mThread.quitSafely();
+    }
+}
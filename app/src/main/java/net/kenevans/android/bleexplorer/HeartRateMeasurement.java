@@ -0,0 +1,201 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Decoded Heart Rate Measurement (0x2A37). An instance is meant to be reused
+ * for every notification: parse() overwrites the fields in place and does
+ * not allocate. Data parsing is carried out as per the profile
+ * specification:
+ * https://www.bluetooth.com/specifications/specs/heart-rate-service-1-0/
+ */
+public class HeartRateMeasurement {
+    /** Flag bit for a UINT16 heart rate value. */
+    public static final int FLAG_HR_UINT16 = 0x01;
+    /** Flag bit for Energy Expended present. */
+    public static final int FLAG_ENERGY_EXPENDED = 0x08;
+    /** Flag bit for R-R intervals present. */
+    public static final int FLAG_RR_INTERVALS = 0x10;
+
+    public static final int SENSOR_CONTACT_NOT_SUPPORTED = 0;
+    public static final int SENSOR_CONTACT_NOT_DETECTED = 2;
+    public static final int SENSOR_CONTACT_DETECTED = 3;
+
+    /** Value used for fields that are not present. */
+    public static final int NA = -1;
+
+    /**
+     * Maximum number of R-R intervals. A value is at most 512 bytes, and
+     * the flags and heart rate take at least 2 of them.
+     */
+    public static final int MAX_RR_INTERVALS = 255;
+
+    private int mFlags;
+    private int mHeartRate;
+    private int mSensorContact;
+    private int mEnergyExpended = NA;
+    /** R-R intervals in units of 1/1024 sec. */
+    private final int[] mRrIntervals = new int[MAX_RR_INTERVALS];
+    private int mRrCount;
+    private boolean mValid;
+
+    /**
+     * Parses a raw Heart Rate Measurement value into this instance.
+     *
+     * @param data   The raw value.
+     * @param offset The offset of the value in data.
+     * @param length The length of the value.
+     * @return Whether the value was well formed. If not, the fields are
+     * invalid.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        mValid = false;
+        mRrCount = 0;
+        mEnergyExpended = NA;
+        if (data == null || length < 2) {
+            return false;
+        }
+        final int end = offset + length;
+        int pos = offset;
+        final int flags = data[pos++] & 0xFF;
+        mFlags = flags;
+        if ((flags & FLAG_HR_UINT16) != 0) {
+            if (end - pos < 2) return false;
+            mHeartRate = uint16(data, pos);
+            pos += 2;
+        } else {
+            mHeartRate = data[pos++] & 0xFF;
+        }
+        // Sensor Contact
+        final int sensor = (flags >> 1) & 0x3;
+        mSensorContact = sensor == 1 ? SENSOR_CONTACT_NOT_SUPPORTED : sensor;
+        // Energy Expended
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (end - pos < 2) return false;
+            mEnergyExpended = uint16(data, pos);
+            pos += 2;
+        }
+        // R-R. There may be more than 1 R-R value
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            while (end - pos >= 2 && mRrCount < MAX_RR_INTERVALS) {
+                mRrIntervals[mRrCount++] = uint16(data, pos);
+                pos += 2;
+            }
+        }
+        mValid = true;
+        return true;
+    }
+
+    /**
+     * Appends the text rendering of the last parsed value. This is only
+     * meant to be called when the value is actually displayed.
+     *
+     * @param sb The builder to append to.
+     * @return The builder.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (!mValid) {
+            return sb.append("Heart Rate: Invalid data");
+        }
+        sb.append("Heart Rate: ").append(mHeartRate);
+        switch (mSensorContact) {
+            case SENSOR_CONTACT_NOT_DETECTED:
+                sb.append("\nSensor contact not detected");
+                break;
+            case SENSOR_CONTACT_DETECTED:
+                sb.append("\nSensor contact detected");
+                break;
+            default:
+                sb.append("\nSensor contact not supported");
+                break;
+        }
+        sb.append("\nEnergy Expended: ");
+        if (mEnergyExpended != NA) {
+            sb.append(mEnergyExpended);
+        } else {
+            sb.append("NA");
+        }
+        if ((mFlags & FLAG_RR_INTERVALS) != 0 && mRrCount > 0) {
+            sb.append("\nR-R: ").append(mRrIntervals[0]);
+            for (int i = 1; i < mRrCount; i++) {
+                sb.append(' ').append(mRrIntervals[i]);
+            }
+        } else {
+            sb.append("\nR-R: NA");
+        }
+        return sb;
+    }
+
+    private static int uint16(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+    }
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getHeartRate() {
+        return mHeartRate;
+    }
+
+    public int getSensorContact() {
+        return mSensorContact;
+    }
+
+    /**
+     * @return The energy expended in kJ or {@link #NA}.
+     */
+    public int getEnergyExpended() {
+        return mEnergyExpended;
+    }
+
+    public int getRrCount() {
+        return mRrCount;
+    }
+
+    /**
+     * @param index The index, less than getRrCount().
+     * @return The R-R interval in units of 1/1024 sec.
+     */
+    public int getRrInterval(int index) {
+        return mRrIntervals[index];
+    }
+
+    /**
+     * Decoder for the registry. Parsing uses one shared record, so it is
+     * synchronized. The samples are the heart rate in bpm and each R-R
+     * interval in ms.
+     */
+    public static class Decoder implements CharacteristicDecoder,
+            SampleDecoder {
+        private static final String[] SERIES_NAMES = {"HR (bpm)", "RR (ms)"};
+        private final HeartRateMeasurement mMeasurement =
+                new HeartRateMeasurement();
+
+        @Override
+        public synchronized void format(byte[] value, int offset,
+                                        int length, StringBuilder sb) {
+            mMeasurement.parse(value, offset, length);
+            mMeasurement.appendTo(sb);
+        }
+
+        @Override
+        public String[] getSeriesNames() {
+            return SERIES_NAMES;
+        }
+
+        @Override
+        public synchronized void decode(byte[] value, int offset,
+                                        int length, long timeNanos,
+                                        Sink sink) {
+            if (!mMeasurement.parse(value, offset, length)) return;
+            sink.add(0, timeNanos, mMeasurement.getHeartRate());
+            for (int i = 0; i < mMeasurement.getRrCount(); i++) {
+                sink.add(1, timeNanos,
+                        mMeasurement.getRrInterval(i) * 1000f / 1024f);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.Locale;
+
+/**
+ * Heart rate variability over a sliding window of R-R intervals, updated
+ * as each beat comes. The accepted intervals and the differences between
+ * successive ones are kept in a ring of ints, in the 1/1024 s units of the
+ * Heart Rate Measurement, with running sums of them and of their squares.
+ * The sums are longs, so they are exact and do not drift however long it
+ * runs. Adding a beat and dropping the ones that leave the window is O(1)
+ * amortized, and each statistic is computed from the sums in O(1).
+ * <p>
+ * Intervals outside {@link #MIN_RR_MS} to {@link #MAX_RR_MS}, or that
+ * differ from the recent average by more than {@link #MAX_CHANGE}, are
+ * rejected as artifacts, like missed or extra beats, and counted. No
+ * successive difference is taken across a rejected one. After
+ * {@link #MAX_CONSECUTIVE_REJECTS} rejected in a row the rate is taken to
+ * have really changed, and the average starts again.
+ * <p>
+ * Beats come on the events thread of the connection while the UI reads the
+ * statistics, so the methods are synchronized.
+ */
+public class HrvAnalyzer {
+    public static final long DEFAULT_WINDOW_MS = 5 * 60 * 1000;
+    public static final int MIN_RR_MS = 300;
+    public static final int MAX_RR_MS = 2000;
+    public static final double MAX_CHANGE = 0.2;
+    public static final int MAX_CONSECUTIVE_REJECTS = 5;
+    /** The units of an R-R interval per second. */
+    private static final int UNITS = 1024;
+    /** The weight of a beat in the recent average. */
+    private static final double ALPHA = 0.1;
+    private static final int NO_DIFF = Integer.MIN_VALUE;
+
+    private final long mWindowUnits;
+    private final int mMinRr;
+    private final int mMaxRr;
+    /** The accepted intervals in the window, a ring. */
+    private final int[] mRr;
+    /** The difference of each from the one before, or NO_DIFF. */
+    private final int[] mDiff;
+    private int mHead;
+    private int mCount;
+    private long mSum;
+    private long mSumSquares;
+    private long mDiffSumSquares;
+    private int mDiffCount;
+    private int mNn50;
+    /** The last accepted interval, or 0 after an artifact. */
+    private int mLastRr;
+    private double mReference;
+    private int mConsecutiveRejects;
+
+    private final HeartRateMeasurement mMeasurement =
+            new HeartRateMeasurement();
+
+    // Counts since the start
+    private long mBeats;
+    private long mRejectedRange;
+    private long mRejectedChange;
+
+    public HrvAnalyzer() {
+        this(DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * @param windowMs The length of the window, as the sum of the
+     *                 intervals in it.
+     */
+    public HrvAnalyzer(long windowMs) {
+        mWindowUnits = windowMs * UNITS / 1000;
+        mMinRr = MIN_RR_MS * UNITS / 1000;
+        mMaxRr = MAX_RR_MS * UNITS / 1000;
+        // Enough for a window of the shortest intervals
+        final int capacity = (int) (mWindowUnits / mMinRr) + 2;
+        mRr = new int[capacity];
+        mDiff = new int[capacity];
+    }
+
+    /**
+     * Adds the R-R intervals in a Heart Rate Measurement value.
+     *
+     * @param value  The raw value.
+     * @param offset The offset of the value.
+     * @param length The length of the value.
+     */
+    public synchronized void addMeasurement(byte[] value, int offset,
+                                            int length) {
+        if (!mMeasurement.parse(value, offset, length)) return;
+        for (int i = 0; i < mMeasurement.getRrCount(); i++) {
+            add(mMeasurement.getRrInterval(i));
+        }
+    }
+
+    /**
+     * Adds a beat.
+     *
+     * @param rr The R-R interval in units of 1/1024 s.
+     * @return If it was accepted.
+     */
+    public synchronized boolean add(int rr) {
+        mBeats++;
+        if (rr < mMinRr || rr > mMaxRr) {
+            mRejectedRange++;
+            mLastRr = 0;
+            return false;
+        }
+        if (mReference > 0
+                && Math.abs(rr - mReference) > MAX_CHANGE * mReference) {
+            if (++mConsecutiveRejects < MAX_CONSECUTIVE_REJECTS) {
+                mRejectedChange++;
+                mLastRr = 0;
+                return false;
+            }
+            // Not an artifact, the rate has changed
+            mReference = 0;
+            mLastRr = 0;
+        }
+        mConsecutiveRejects = 0;
+        mReference = mReference == 0 ? rr :
+                mReference + ALPHA * (rr - mReference);
+
+        if (mCount == mRr.length) removeOldest();
+        int i = mHead + mCount;
+        if (i >= mRr.length) i -= mRr.length;
+        mRr[i] = rr;
+        mCount++;
+        mSum += rr;
+        mSumSquares += (long) rr * rr;
+        if (mLastRr > 0) {
+            final int diff = rr - mLastRr;
+            mDiff[i] = diff;
+            mDiffSumSquares += (long) diff * diff;
+            mDiffCount++;
+            if (isNn50(diff)) mNn50++;
+        } else {
+            mDiff[i] = NO_DIFF;
+        }
+        mLastRr = rr;
+        while (mSum > mWindowUnits && mCount > 1) {
+            removeOldest();
+        }
+        return true;
+    }
+
+    private static boolean isNn50(int diff) {
+        return Math.abs(diff) * 1000L > 50L * UNITS;
+    }
+
+    private void removeOldest() {
+        final int rr = mRr[mHead];
+        mSum -= rr;
+        mSumSquares -= (long) rr * rr;
+        // The difference of the next one was with this one
+        int next = mHead + 1;
+        if (next == mRr.length) next = 0;
+        if (mCount > 1 && mDiff[next] != NO_DIFF) {
+            final int diff = mDiff[next];
+            mDiffSumSquares -= (long) diff * diff;
+            mDiffCount--;
+            if (isNn50(diff)) mNn50--;
+            mDiff[next] = NO_DIFF;
+        }
+        mHead = next;
+        mCount--;
+    }
+
+    public synchronized void reset() {
+        mHead = 0;
+        mCount = 0;
+        mSum = 0;
+        mSumSquares = 0;
+        mDiffSumSquares = 0;
+        mDiffCount = 0;
+        mNn50 = 0;
+        mLastRr = 0;
+        mReference = 0;
+        mConsecutiveRejects = 0;
+        mBeats = 0;
+        mRejectedRange = 0;
+        mRejectedChange = 0;
+    }
+
+    /**
+     * @return The number of intervals in the window.
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The mean R-R interval in ms, or NaN if none.
+     */
+    public synchronized double getMeanRr() {
+        return mCount == 0 ? Double.NaN : toMs((double) mSum / mCount);
+    }
+
+    /**
+     * @return The mean heart rate in bpm, or NaN if none.
+     */
+    public synchronized double getMeanHr() {
+        return 60000 / getMeanRr();
+    }
+
+    /**
+     * @return The standard deviation of the intervals in ms, or NaN if
+     * there are fewer than 2.
+     */
+    public synchronized double getSdnn() {
+        if (mCount < 2) return Double.NaN;
+        // Exact in longs, so there is no cancellation
+        final long n = mCount;
+        final double variance = (double) (n * mSumSquares - mSum * mSum)
+                / (n * (n - 1));
+        return toMs(Math.sqrt(variance));
+    }
+
+    /**
+     * @return The root mean square of the successive differences in ms,
+     * or NaN if there are none.
+     */
+    public synchronized double getRmssd() {
+        if (mDiffCount == 0) return Double.NaN;
+        return toMs(Math.sqrt((double) mDiffSumSquares / mDiffCount));
+    }
+
+    /**
+     * @return The percentage of successive differences over 50 ms, or NaN
+     * if there are none.
+     */
+    public synchronized double getPnn50() {
+        return mDiffCount == 0 ? Double.NaN : 100. * mNn50 / mDiffCount;
+    }
+
+    public synchronized long getBeatCount() {
+        return mBeats;
+    }
+
+    /**
+     * @return The number of intervals rejected as out of range.
+     */
+    public synchronized long getRejectedRangeCount() {
+        return mRejectedRange;
+    }
+
+    /**
+     * @return The number of intervals rejected as too different from the
+     * recent average.
+     */
+    public synchronized long getRejectedChangeCount() {
+        return mRejectedChange;
+    }
+
+    private static double toMs(double units) {
+        return units * 1000 / UNITS;
+    }
+
+    /**
+     * @return A summary for display.
+     */
+    public synchronized String getStatistics() {
+        return String.format(Locale.US,
+                "HRV over %d beats (%.0f s)\n" +
+                        "Mean HR: %.1f bpm, mean RR: %.0f ms\n" +
+                        "SDNN: %.1f ms, RMSSD: %.1f ms, pNN50: %.1f%%\n" +
+                        "Beats: %d, rejected: %d out of range, %d changed " +
+                        "more than %.0f%%",
+                mCount, toMs(mSum) / 1000, getMeanHr(), getMeanRr(),
+                getSdnn(), getRmssd(), getPnn50(), mBeats, mRejectedRange,
+                mRejectedChange, 100 * MAX_CHANGE);
+    }
+}
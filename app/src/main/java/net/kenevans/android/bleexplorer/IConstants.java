@@ -57,6 +57,11 @@ public interface IConstants {
     String DEVICE_ADDRESS_CODE = PACKAGE_NAME
             + "deviceAddress";
 
+    /**
+     * Whether to also show the raw bytes of decoded characteristic values.
+     */
+    boolean DEBUG_DATA = true;
+
     String LIST_NAME = "NAME";
     String LIST_UUID = "UUID";
 
@@ -0,0 +1,259 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling (Steinarsson, 2013). The
+ * samples between the first and the last are split into buckets, and from
+ * each the one that makes the largest triangle with the one kept from the
+ * bucket before and the average of the bucket after is kept. Peaks
+ * survive, unlike with averaging or decimation, so the shape of the plot
+ * is kept with as few points as there are pixels across.
+ * <p>
+ * It is one pass over the samples, and it writes the indexes of the ones
+ * kept into an array given by the caller, so it does not allocate.
+ * {@link Incremental} keeps what it chose, for a window that slides.
+ */
+public class Lttb {
+    private Lttb() {
+    }
+
+    /**
+     * Selects samples from a range of a series.
+     *
+     * @param series    The series.
+     * @param start     The index of the first sample.
+     * @param count     The number of samples.
+     * @param threshold The most samples to keep. If less than 3, or not
+     *                  less than count, all are kept.
+     * @param out       Gets the indexes kept, in order. Must have room for
+     *                  min(count, threshold).
+     * @return The number of indexes in out.
+     */
+    public static int downsample(SampleSeries series, int start, int count,
+                                 int threshold, int[] out) {
+        if (threshold < 3 || count <= threshold) {
+            for (int i = 0; i < count; i++) {
+                out[i] = start + i;
+            }
+            return count;
+        }
+        // Times relative to the first, so doubles keep ns precision
+        final long t0 = series.getTime(start);
+        final double bucketSize = (double) (count - 2) / (threshold - 2);
+        int n = 0;
+        int a = start;
+        out[n++] = a;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // The average of the next bucket, or the last sample
+            final int nextStart = start + 1
+                    + (int) ((bucket + 1) * bucketSize);
+            final int nextEnd = Math.min(start + 1
+                    + (int) ((bucket + 2) * bucketSize), start + count);
+            double avgX = 0, avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += series.getTime(i) - t0;
+                avgY += series.getValue(i);
+            }
+            final int nextCount = nextEnd - nextStart;
+            avgX /= nextCount;
+            avgY /= nextCount;
+
+            final int rangeStart = start + 1 + (int) (bucket * bucketSize);
+            final double ax = series.getTime(a) - t0;
+            final double ay = series.getValue(a);
+            double maxArea = -1;
+            int selected = rangeStart;
+            for (int i = rangeStart; i < nextStart; i++) {
+                // Twice the area, which is as good for comparing
+                final double area = Math.abs(
+                        (ax - avgX) * (series.getValue(i) - ay)
+                                - (ax - (series.getTime(i) - t0))
+                                * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    selected = i;
+                }
+            }
+            out[n++] = selected;
+            a = selected;
+        }
+        out[n++] = start + count - 1;
+        return n;
+    }
+
+    /**
+     * LTTB over a series as it grows, for a window that slides. The
+     * buckets span a fixed time and start at multiples of it, so a bucket
+     * keeps the sample chosen from it as the window moves, and the chosen
+     * samples are kept. Each update only chooses from the buckets that
+     * are complete since the last, so its cost depends on the samples
+     * added, and the chosen ones are as many as there are buckets in the
+     * window. A bucket is chosen from once the bucket after it that has
+     * samples is complete, since its average is used. The samples after
+     * the last bucket chosen from, which are at most those of two
+     * buckets, are left to the caller.
+     * <p>
+     * It is not thread safe.
+     */
+    public static class Incremental {
+        private final int mCapacity;
+        private final long[] mTimes;
+        private final float[] mValues;
+        /** The index in the arrays of the oldest chosen sample. */
+        private int mHead;
+        private int mSize;
+        private long mBucketNanos = 1;
+        /** The start of the first bucket not chosen from yet. */
+        private long mNextNanos = Long.MIN_VALUE;
+
+        /**
+         * @param capacity The most chosen samples kept, which should be
+         *                 the buckets in the window and two more, at
+         *                 least 1.
+         */
+        public Incremental(int capacity) {
+            mCapacity = capacity;
+            mTimes = new long[capacity];
+            mValues = new float[capacity];
+        }
+
+        /**
+         * Drops the chosen samples and sets the time a bucket spans. Must
+         * also be called when the series is cleared.
+         *
+         * @param bucketNanos The time a bucket spans, at least 1.
+         */
+        public void reset(long bucketNanos) {
+            mBucketNanos = Math.max(1, bucketNanos);
+            mNextNanos = Long.MIN_VALUE;
+            mHead = 0;
+            mSize = 0;
+        }
+
+        /**
+         * Chooses from the buckets that are complete since the last
+         * update.
+         *
+         * @param series The series.
+         */
+        public void update(SampleSeries series) {
+            final int size = series.size();
+            int start = series.indexOf(mNextNanos);
+            while (start < size) {
+                final long bucket = bucketOf(series.getTime(start));
+                final int end = series.indexOf((bucket + 1) * mBucketNanos);
+                if (end == size) return;
+                final long next = bucketOf(series.getTime(end));
+                final int nextEnd = series.indexOf((next + 1) * mBucketNanos);
+                if (nextEnd == size) return;
+                add(series, start, end, nextEnd);
+                mNextNanos = (bucket + 1) * mBucketNanos;
+                start = end;
+            }
+        }
+
+        /** The bucket of a time, rounded down for negative times too. */
+        private long bucketOf(long timeNanos) {
+            final long bucket = timeNanos / mBucketNanos;
+            return timeNanos < bucket * mBucketNanos ? bucket - 1 : bucket;
+        }
+
+        /**
+         * Chooses from the samples from start to end the one making the
+         * largest triangle with the last chosen and the average of those
+         * from end to nextEnd. The first is chosen if there is no last.
+         */
+        private void add(SampleSeries series, int start, int end,
+                         int nextEnd) {
+            int selected = start;
+            if (mSize > 0) {
+                final int last = index(mSize - 1);
+                // Times relative to the last chosen, so doubles keep ns
+                // precision
+                final long t0 = mTimes[last];
+                final double ay = mValues[last];
+                double avgX = 0, avgY = 0;
+                for (int i = end; i < nextEnd; i++) {
+                    avgX += series.getTime(i) - t0;
+                    avgY += series.getValue(i);
+                }
+                avgX /= nextEnd - end;
+                avgY /= nextEnd - end;
+                double maxArea = -1;
+                for (int i = start; i < end; i++) {
+                    // Twice the area, with the last chosen at x = 0
+                    final double area = Math.abs(
+                            -avgX * (series.getValue(i) - ay)
+                                    + (series.getTime(i) - t0)
+                                    * (avgY - ay));
+                    if (area > maxArea) {
+                        maxArea = area;
+                        selected = i;
+                    }
+                }
+            }
+            final int i;
+            if (mSize < mCapacity) {
+                i = index(mSize++);
+            } else {
+                i = mHead;
+                if (++mHead == mCapacity) mHead = 0;
+            }
+            mTimes[i] = series.getTime(selected);
+            mValues[i] = series.getValue(selected);
+        }
+
+        private int index(int i) {
+            i += mHead;
+            return i >= mCapacity ? i - mCapacity : i;
+        }
+
+        /**
+         * @return The number of chosen samples.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * @param index The index, 0 for the oldest chosen sample.
+         * @return Its time.
+         */
+        public long getTime(int index) {
+            return mTimes[index(index)];
+        }
+
+        /**
+         * @param index The index, 0 for the oldest chosen sample.
+         * @return Its value.
+         */
+        public float getValue(int index) {
+            return mValues[index(index)];
+        }
+
+        /**
+         * @param timeNanos A time.
+         * @return The index of the first chosen sample at or after the
+         * time, size() if none.
+         */
+        public int indexOf(long timeNanos) {
+            int low = 0, high = mSize;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (getTime(mid) < timeNanos) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return The start of the first bucket not chosen from yet. The
+         * samples from there on are not represented.
+         */
+        public long getNextNanos() {
+            return mNextNanos;
+        }
+    }
+}
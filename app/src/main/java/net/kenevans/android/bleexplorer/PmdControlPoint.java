@@ -0,0 +1,275 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * The Polar PMD Control Point (fb005c81). A command is an op code and a
+ * measurement type, from {@link PmdFrame}, and for a start the settings to
+ * use. Settings are a setting type, a count, and that many uint16 values.
+ * <p>
+ * The response is indicated. It is {@link #RESPONSE}, the op code, the
+ * measurement type, an error code, a byte that is not 0 if more follows,
+ * and for {@link #OP_GET_SETTINGS} the settings that are available. A read
+ * gives the features, {@link #FEATURES} and a bit mask of the measurement
+ * types.
+ * <p>
+ * Like {@link HeartRateMeasurement}, an instance is reused: parse()
+ * overwrites the fields in place and does not allocate.
+ */
+public class PmdControlPoint {
+    public static final int OP_GET_SETTINGS = 0x01;
+    public static final int OP_START = 0x02;
+    public static final int OP_STOP = 0x03;
+    /** The first byte of a response. */
+    public static final int RESPONSE = 0xF0;
+    /** The first byte of the features. */
+    public static final int FEATURES = 0x0F;
+
+    public static final int SETTING_SAMPLE_RATE = 0;
+    public static final int SETTING_RESOLUTION = 1;
+    public static final int SETTING_RANGE = 2;
+    private static final int N_SETTINGS = 3;
+    /** Maximum number of values of a setting that are kept. */
+    public static final int MAX_SETTING_VALUES = 16;
+
+    public static final int ERROR_SUCCESS = 0;
+    public static final int ERROR_ALREADY_IN_STATE = 6;
+    private static final String[] ERROR_NAMES = {"Success",
+            "Invalid op code", "Invalid measurement type", "Not supported",
+            "Invalid length", "Invalid parameter", "Already in state",
+            "Invalid resolution", "Invalid sample rate", "Invalid range",
+            "Invalid MTU"};
+    private static final String[] OP_NAMES = {"", "Get settings", "Start",
+            "Stop"};
+    private static final String[] SETTING_NAMES = {"Sample rate",
+            "Resolution", "Range"};
+
+    private boolean mFeatures;
+    private int mFeatureMask;
+    private int mOpCode;
+    private int mType;
+    private int mError;
+    private final int[][] mSettings =
+            new int[N_SETTINGS][MAX_SETTING_VALUES];
+    private final int[] mSettingCounts = new int[N_SETTINGS];
+    private boolean mValid;
+
+    /**
+     * @param type A measurement type.
+     * @return The command to get the settings that are available.
+     */
+    public static byte[] getSettingsCommand(int type) {
+        return new byte[]{OP_GET_SETTINGS, (byte) type};
+    }
+
+    /**
+     * @param type       A measurement type.
+     * @param sampleRate The sample rate in Hz.
+     * @param resolution The resolution in bits.
+     * @param range      The range, or 0 to leave it out, as for ECG.
+     * @return The command to start the measurement.
+     */
+    public static byte[] getStartCommand(int type, int sampleRate,
+                                         int resolution, int range) {
+        final byte[] command = new byte[range > 0 ? 14 : 10];
+        command[0] = OP_START;
+        command[1] = (byte) type;
+        putSetting(command, 2, SETTING_SAMPLE_RATE, sampleRate);
+        putSetting(command, 6, SETTING_RESOLUTION, resolution);
+        if (range > 0) putSetting(command, 10, SETTING_RANGE, range);
+        return command;
+    }
+
+    private static void putSetting(byte[] command, int pos, int setting,
+                                   int value) {
+        command[pos] = (byte) setting;
+        command[pos + 1] = 1;
+        command[pos + 2] = (byte) value;
+        command[pos + 3] = (byte) (value >> 8);
+    }
+
+    /**
+     * @param type A measurement type.
+     * @return The command to stop the measurement.
+     */
+    public static byte[] getStopCommand(int type) {
+        return new byte[]{OP_STOP, (byte) type};
+    }
+
+    /**
+     * Parses a raw response or features value into this instance.
+     *
+     * @param data   The raw value.
+     * @param offset The offset of the value in data.
+     * @param length The length of the value.
+     * @return Whether the value was well formed.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        mValid = false;
+        mFeatures = false;
+        for (int i = 0; i < N_SETTINGS; i++) {
+            mSettingCounts[i] = 0;
+        }
+        if (data == null || length < 2) {
+            return false;
+        }
+        final int end = offset + length;
+        final int first = data[offset] & 0xFF;
+        if (first == FEATURES) {
+            mFeatures = true;
+            mFeatureMask = 0;
+            for (int i = offset + 1; i < end && i < offset + 5; i++) {
+                mFeatureMask |= (data[i] & 0xFF) << 8 * (i - offset - 1);
+            }
+            mValid = true;
+            return true;
+        }
+        if (first != RESPONSE || length < 4) {
+            return false;
+        }
+        mOpCode = data[offset + 1] & 0xFF;
+        mType = data[offset + 2] & 0xFF;
+        mError = data[offset + 3] & 0xFF;
+        // The byte after the error code says if more follows
+        int pos = offset + 5;
+        while (end - pos >= 2) {
+            final int setting = data[pos++] & 0xFF;
+            final int count = data[pos++] & 0xFF;
+            if (end - pos < 2 * count) return false;
+            if (setting < N_SETTINGS) {
+                final int n = Math.min(count, MAX_SETTING_VALUES);
+                for (int i = 0; i < n; i++) {
+                    mSettings[setting][i] = uint16(data, pos + 2 * i);
+                }
+                mSettingCounts[setting] = n;
+            }
+            pos += 2 * count;
+        }
+        mValid = true;
+        return true;
+    }
+
+    /**
+     * Appends the text rendering of the last parsed value. This is only
+     * meant to be called when the value is actually displayed.
+     *
+     * @param sb The builder to append to.
+     * @return The builder.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (!mValid) {
+            return sb.append("PMD Control Point: Invalid data");
+        }
+        if (mFeatures) {
+            sb.append("Features:");
+            for (int type = 0; type < 32; type++) {
+                if ((mFeatureMask & 1 << type) != 0) {
+                    sb.append(' ').append(PmdFrame.getTypeName(type));
+                }
+            }
+            return sb;
+        }
+        sb.append(mOpCode < OP_NAMES.length && mOpCode > 0 ?
+                OP_NAMES[mOpCode] : "Op " + mOpCode)
+                .append(' ').append(PmdFrame.getTypeName(mType))
+                .append(": ").append(getErrorName(mError));
+        for (int setting = 0; setting < N_SETTINGS; setting++) {
+            final int count = mSettingCounts[setting];
+            if (count == 0) continue;
+            sb.append('\n').append(SETTING_NAMES[setting]).append(':');
+            for (int i = 0; i < count; i++) {
+                sb.append(' ').append(mSettings[setting][i]);
+            }
+        }
+        return sb;
+    }
+
+    private static int uint16(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+    }
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * @return If the value was the features rather than a response.
+     */
+    public boolean isFeatures() {
+        return mFeatures;
+    }
+
+    /**
+     * @param type A measurement type.
+     * @return If the features have it.
+     */
+    public boolean hasFeature(int type) {
+        return mFeatures && (mFeatureMask & 1 << type) != 0;
+    }
+
+    public int getOpCode() {
+        return mOpCode;
+    }
+
+    public int getMeasurementType() {
+        return mType;
+    }
+
+    /**
+     * @return The error code, {@link #ERROR_SUCCESS} if none.
+     */
+    public int getError() {
+        return mError;
+    }
+
+    /**
+     * @param setting One of the SETTING values.
+     * @return The number of values available for it, 0 if none.
+     */
+    public int getSettingCount(int setting) {
+        return mSettingCounts[setting];
+    }
+
+    /**
+     * @param setting One of the SETTING values.
+     * @param index   The index, less than getSettingCount(setting).
+     * @return The value.
+     */
+    public int getSetting(int setting, int index) {
+        return mSettings[setting][index];
+    }
+
+    /**
+     * @param setting One of the SETTING values.
+     * @return The largest value available for it, 0 if none.
+     */
+    public int getMaxSetting(int setting) {
+        int max = 0;
+        for (int i = 0; i < mSettingCounts[setting]; i++) {
+            max = Math.max(max, mSettings[setting][i]);
+        }
+        return max;
+    }
+
+    /**
+     * @param error An error code.
+     * @return Its name.
+     */
+    public static String getErrorName(int error) {
+        return error >= 0 && error < ERROR_NAMES.length ? ERROR_NAMES[error]
+                : "Error " + error;
+    }
+
+    /**
+     * Decoder for the registry. Parsing uses one shared record, so it is
+     * synchronized.
+     */
+    public static class Decoder implements CharacteristicDecoder {
+        private final PmdControlPoint mControlPoint = new PmdControlPoint();
+
+        @Override
+        public synchronized void format(byte[] value, int offset,
+                                        int length, StringBuilder sb) {
+            mControlPoint.parse(value, offset, length);
+            mControlPoint.appendTo(sb);
+        }
+    }
+}
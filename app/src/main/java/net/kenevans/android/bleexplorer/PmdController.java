@@ -0,0 +1,292 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Starts and stops the Polar PMD streams of a {@link GattConnection} through
+ * the {@link PmdControlPoint}. Starting a stream subscribes to the control
+ * point and the data, then asks for the settings of the measurement. When
+ * they come, it is started with the highest sample rate, resolution and
+ * range available. These settings and the sample intervals measured from
+ * the data are kept for the connection, and {@link #getDecoder()} decodes
+ * the data with them, so the sample times and compressed frames come out
+ * right where it is displayed and charted.
+ * <p>
+ * Responses and data come on the events thread of the connection while the
+ * UI starts and stops streams, so the methods are synchronized.
+ */
+public class PmdController {
+    private static final String TAG = PmdController.class.getSimpleName();
+    private static final UUID UUID_PMD_SERVICE =
+            UUID.fromString(GattAttributes.PMD_SERVICE);
+    public static final UUID UUID_PMD_CONTROL_POINT =
+            UUID.fromString(GattAttributes.PMD_CONTROL_POINT);
+    public static final UUID UUID_PMD_DATA =
+            UUID.fromString(GattAttributes.PMD_DATA);
+
+    public static final int STATE_STOPPED = 0;
+    public static final int STATE_GETTING_SETTINGS = 1;
+    public static final int STATE_STARTING = 2;
+    public static final int STATE_STREAMING = 3;
+    public static final int STATE_STOPPING = 4;
+    private static final String[] STATE_NAMES = {"Stopped",
+            "Getting settings", "Starting", "Streaming", "Stopping"};
+
+    private final GattConnection mConnection;
+    private final PmdControlPoint mResponse = new PmdControlPoint();
+    /** Holds the settings, and tracks the data for them. */
+    private final PmdFrame mFrame = new PmdFrame();
+    private final PmdFrame.Decoder mDecoder = new PmdFrame.Decoder(mFrame);
+    private final int[] mStates = new int[PmdFrame.N_TYPES];
+    /** The last error code from the sensor for each type. */
+    private final int[] mErrors = new int[PmdFrame.N_TYPES];
+
+    // Statistics for each type, since the stream was started
+    private final long[] mFrames = new long[PmdFrame.N_TYPES];
+    private final long[] mSamples = new long[PmdFrame.N_TYPES];
+    private final long[] mFirstTimestamps = new long[PmdFrame.N_TYPES];
+    private final long[] mFirstSamples = new long[PmdFrame.N_TYPES];
+    private final long[] mLastTimestamps = new long[PmdFrame.N_TYPES];
+    private long mInvalidFrames;
+
+    PmdController(GattConnection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Starts a stream, or does nothing if it is not stopped.
+     *
+     * @param type One of the PmdFrame TYPE values.
+     * @return If the device has PMD and the commands were queued.
+     */
+    public synchronized boolean start(int type) {
+        if (mStates[type] != STATE_STOPPED) return true;
+        final GattCharacteristic control =
+                findCharacteristic(UUID_PMD_CONTROL_POINT);
+        final GattCharacteristic data =
+                findCharacteristic(UUID_PMD_DATA);
+        if (control == null || data == null) {
+            Log.w(TAG, mConnection.getAddress() + ": No PMD service");
+            return false;
+        }
+        // The descriptor writes are queued ahead of the command. After a
+        // reconnect the subscriptions are already recorded, and they are
+        // enabled again in the background lane, so the commands go there
+        // too, behind them. Otherwise the device would not have its
+        // control point enabled when it answers.
+        if (!mConnection.isSubscribed(control)) {
+            mConnection.setCharacteristicNotification(control, true);
+        }
+        if (!mConnection.isSubscribed(data)) {
+            mConnection.setCharacteristicNotification(data, true);
+        }
+        mStates[type] = STATE_GETTING_SETTINGS;
+        mErrors[type] = PmdControlPoint.ERROR_SUCCESS;
+        mConnection.writeCharacteristic(control,
+                PmdControlPoint.getSettingsCommand(type),
+                GattCharacteristic.WRITE_TYPE_DEFAULT,
+                GattOperationQueue.PRIORITY_BACKGROUND);
+        return true;
+    }
+
+    /**
+     * Stops a stream. The subscriptions are left, since other streams
+     * may use them.
+     *
+     * @param type One of the PmdFrame TYPE values.
+     * @return If the device has PMD and the command was queued.
+     */
+    public synchronized boolean stop(int type) {
+        final GattCharacteristic control =
+                findCharacteristic(UUID_PMD_CONTROL_POINT);
+        if (control == null) return false;
+        mStates[type] = STATE_STOPPING;
+        mConnection.writeCharacteristic(control,
+                PmdControlPoint.getStopCommand(type),
+                GattCharacteristic.WRITE_TYPE_DEFAULT,
+                GattOperationQueue.PRIORITY_BACKGROUND);
+        return true;
+    }
+
+    private GattCharacteristic findCharacteristic(UUID uuid) {
+        final List<GattService> services =
+                mConnection.getSupportedGattServices();
+        if (services == null) return null;
+        for (GattService service : services) {
+            if (UUID_PMD_SERVICE.equals(service.getUuid())) {
+                return service.getCharacteristic(uuid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Handles a response indicated on the control point. Called on the
+     * events thread of the connection.
+     *
+     * @param value  The raw value.
+     * @param length The length of the value.
+     */
+    synchronized void onControlPoint(byte[] value, int length) {
+        if (!mResponse.parse(value, 0, length) || mResponse.isFeatures()) {
+            return;
+        }
+        final int type = mResponse.getMeasurementType();
+        if (type >= PmdFrame.N_TYPES) return;
+        int error = mResponse.getError();
+        if (error == PmdControlPoint.ERROR_ALREADY_IN_STATE
+                && mResponse.getOpCode() == PmdControlPoint.OP_START) {
+            // Left running, as by another app
+            error = PmdControlPoint.ERROR_SUCCESS;
+        }
+        if (error != PmdControlPoint.ERROR_SUCCESS) {
+            Log.w(TAG, mConnection.getAddress() + ": PMD "
+                    + PmdFrame.getTypeName(type) + ": "
+                    + PmdControlPoint.getErrorName(error));
+            mErrors[type] = error;
+            mStates[type] = STATE_STOPPED;
+            return;
+        }
+        switch (mResponse.getOpCode()) {
+            case PmdControlPoint.OP_GET_SETTINGS:
+                if (mStates[type] != STATE_GETTING_SETTINGS) return;
+                startWithSettings(type);
+                break;
+            case PmdControlPoint.OP_START:
+                if (mStates[type] != STATE_STARTING) return;
+                mStates[type] = STATE_STREAMING;
+                break;
+            case PmdControlPoint.OP_STOP:
+                mStates[type] = STATE_STOPPED;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void startWithSettings(int type) {
+        final GattCharacteristic control =
+                findCharacteristic(UUID_PMD_CONTROL_POINT);
+        if (control == null) {
+            mStates[type] = STATE_STOPPED;
+            return;
+        }
+        final int sampleRate = mResponse.getMaxSetting(
+                PmdControlPoint.SETTING_SAMPLE_RATE);
+        final int resolution = mResponse.getMaxSetting(
+                PmdControlPoint.SETTING_RESOLUTION);
+        final int range = mResponse.getMaxSetting(
+                PmdControlPoint.SETTING_RANGE);
+        Log.d(TAG, mConnection.getAddress() + ": Starting PMD "
+                + PmdFrame.getTypeName(type) + " at " + sampleRate
+                + " Hz, " + resolution + " bits");
+        mFrame.setSettings(type, sampleRate, resolution);
+        mFrame.reset();
+        mFrames[type] = 0;
+        mSamples[type] = 0;
+        mStates[type] = STATE_STARTING;
+        mConnection.writeCharacteristic(control,
+                PmdControlPoint.getStartCommand(type, sampleRate,
+                        resolution, range),
+                GattCharacteristic.WRITE_TYPE_DEFAULT,
+                GattOperationQueue.PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * Parses a frame notified on the data. Called on the events thread of
+     * the connection.
+     *
+     * @param value  The raw value.
+     * @param length The length of the value.
+     */
+    synchronized void onData(byte[] value, int length) {
+        if (!mFrame.parse(value, 0, length)) {
+            mInvalidFrames++;
+            return;
+        }
+        mFrame.track();
+        final int type = mFrame.getMeasurementType();
+        if (mFrames[type] == 0) {
+            mFirstTimestamps[type] = mFrame.getTimestamp();
+            mFirstSamples[type] = mFrame.getSampleCount();
+        }
+        mFrames[type]++;
+        mSamples[type] += mFrame.getSampleCount();
+        mLastTimestamps[type] = mFrame.getTimestamp();
+    }
+
+    /**
+     * Marks the streams stopped, as they are when the link is lost.
+     */
+    synchronized void reset() {
+        for (int type = 0; type < PmdFrame.N_TYPES; type++) {
+            mStates[type] = STATE_STOPPED;
+        }
+        mFrame.reset();
+    }
+
+    /**
+     * @return The decoder for the data of this connection, with the
+     * settings the streams were started with.
+     */
+    public PmdFrame.Decoder getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * @param type One of the PmdFrame TYPE values.
+     * @return One of the STATE values.
+     */
+    public synchronized int getState(int type) {
+        return mStates[type];
+    }
+
+    /**
+     * @param type One of the PmdFrame TYPE values.
+     * @return The last error code from the sensor.
+     */
+    public synchronized int getError(int type) {
+        return mErrors[type];
+    }
+
+    /**
+     * @param state One of the STATE values.
+     * @return Its name.
+     */
+    public static String getStateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    /**
+     * @return A summary for display, with the sample rate measured by the
+     * sensor timestamps.
+     */
+    public synchronized String getStatistics() {
+        final StringBuilder sb = new StringBuilder("PMD streams");
+        for (int type = 0; type < PmdFrame.N_TYPES; type++) {
+            sb.append(String.format(Locale.US, "\n%s: %s",
+                    PmdFrame.getTypeName(type),
+                    STATE_NAMES[mStates[type]]));
+            if (mErrors[type] != PmdControlPoint.ERROR_SUCCESS) {
+                sb.append(" (").append(PmdControlPoint.getErrorName(
+                        mErrors[type])).append(')');
+            }
+            if (mFrames[type] > 1) {
+                // The first timestamp is of the last sample of its frame
+                final double seconds = (mLastTimestamps[type]
+                        - mFirstTimestamps[type]) * 1e-9;
+                sb.append(String.format(Locale.US,
+                        ", frames=%d samples=%d rate=%.1f Hz",
+                        mFrames[type], mSamples[type], seconds > 0 ?
+                                (mSamples[type] - mFirstSamples[type])
+                                        / seconds : 0));
+            }
+        }
+        sb.append("\nInvalid frames: ").append(mInvalidFrames);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,448 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Decoded Polar Measurement Data frame, from PMD Data (fb005c82). Like
+ * {@link HeartRateMeasurement}, an instance is meant to be reused for every
+ * notification: parse() writes the samples and their times into arrays
+ * allocated once, so it does not allocate.
+ * <p>
+ * A frame starts with the measurement type, the sensor timestamp of its
+ * last sample in ns as a uint64, and the frame type. The samples follow,
+ * with the channels of each sample together, little endian and signed:
+ * <ul>
+ * <li>ECG, frame type 0: the voltage in uV, in 24 bits.</li>
+ * <li>PPG, frame type 0: three PPG channels and the ambient light, in 24
+ * bits each.</li>
+ * <li>ACC, frame types 0, 1 and 2: x, y and z in mG, in 8, 16 or 24 bits
+ * each.</li>
+ * </ul>
+ * Frame type {@link #FRAME_COMPRESSED} is delta compressed. It has the
+ * first sample as a reference, each channel in as many bytes as the
+ * resolution of the measurement needs. Then come blocks of a delta width
+ * in bits, a sample count, and that many samples of signed deltas from the
+ * sample before, packed least significant bit first. Each block starts on
+ * a byte.
+ * <p>
+ * The times of the samples are spread back from the timestamp at the
+ * sample interval of the type. It is the nominal one of the sample rate
+ * unless track() has measured it. parse() does not change the settings or
+ * the intervals, so parsing the same frame twice gives the same times.
+ * <p>
+ * The {@link PmdController} of a connection tracks every frame in one
+ * instance, which holds the negotiated settings. Its {@link Decoder} copies
+ * them into its own instance before each parse, so the values displayed and
+ * charted for the connection are decoded with them.
+ */
+public class PmdFrame {
+    public static final int TYPE_ECG = 0;
+    public static final int TYPE_PPG = 1;
+    public static final int TYPE_ACC = 2;
+    /** The number of measurement types that are decoded. */
+    public static final int N_TYPES = 3;
+    /** The frame type of delta-compressed frames. */
+    public static final int FRAME_COMPRESSED = 0x80;
+    /** Bytes before the samples. */
+    public static final int HEADER_LENGTH = 10;
+    public static final int MAX_CHANNELS = 4;
+    /**
+     * Maximum number of values, a sample of each channel, in a frame. A
+     * value is at most 512 bytes, and a delta takes at least a bit.
+     */
+    public static final int MAX_VALUES = 8 * 512;
+
+    private static final String[] TYPE_NAMES = {"ECG", "PPG", "ACC"};
+    /** The defaults, those of the Polar H10 and OH1. */
+    private static final int[] DEFAULT_SAMPLE_RATES = {130, 135, 200};
+    private static final int[] DEFAULT_RESOLUTIONS = {14, 22, 16};
+    private static final int[] CHANNELS = {1, 4, 3};
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final int[] mSampleRates = DEFAULT_SAMPLE_RATES.clone();
+    private final int[] mResolutions = DEFAULT_RESOLUTIONS.clone();
+    /** The timestamp of the last frame of each type, 0 if none. */
+    private final long[] mLastTimestamps = new long[N_TYPES];
+    /** The interval from the frame before of each type, 0 if none. */
+    private final long[] mLastIntervals = new long[N_TYPES];
+    /** The measured sample interval of each type in ns, 0 if none. */
+    private final long[] mIntervals = new long[N_TYPES];
+
+    private int mType;
+    private int mFrameType;
+    private long mTimestamp;
+    private int mChannels;
+    private int mSampleCount;
+    /** The samples, with the channels of each together. */
+    private final int[] mValues = new int[MAX_VALUES];
+    /** The sensor time of each sample in ns. */
+    private final long[] mTimes = new long[MAX_VALUES];
+    private boolean mValid;
+
+    /**
+     * Parses a raw PMD Data value into this instance.
+     *
+     * @param data   The raw value.
+     * @param offset The offset of the value in data.
+     * @param length The length of the value.
+     * @return Whether the value was a well formed frame of a type that is
+     * decoded. If not, the fields are invalid.
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        mValid = false;
+        mSampleCount = 0;
+        if (data == null || length < HEADER_LENGTH) {
+            return false;
+        }
+        final int end = offset + length;
+        mType = data[offset] & 0xFF;
+        long timestamp = 0;
+        for (int i = 8; i >= 1; i--) {
+            timestamp = timestamp << 8 | (data[offset + i] & 0xFF);
+        }
+        mTimestamp = timestamp;
+        mFrameType = data[offset + 9] & 0xFF;
+        if (mType >= N_TYPES) return false;
+        mChannels = CHANNELS[mType];
+        final int pos = offset + HEADER_LENGTH;
+        final boolean ok;
+        if (mFrameType == FRAME_COMPRESSED) {
+            ok = parseDeltas(data, pos, end);
+        } else if (mFrameType == 0
+                || (mType == TYPE_ACC && mFrameType <= 2)) {
+            final int bytes = mType == TYPE_ACC ? mFrameType + 1 : 3;
+            ok = parseSamples(data, pos, end, bytes);
+        } else {
+            ok = false;
+        }
+        if (!ok || mSampleCount == 0) {
+            mSampleCount = 0;
+            return false;
+        }
+        setTimes();
+        mValid = true;
+        return true;
+    }
+
+    private boolean parseSamples(byte[] data, int pos, int end, int bytes) {
+        final int count = (end - pos) / (mChannels * bytes);
+        final int n = count * mChannels;
+        for (int i = 0; i < n; i++) {
+            mValues[i] = intLe(data, pos, bytes);
+            pos += bytes;
+        }
+        mSampleCount = count;
+        return true;
+    }
+
+    private boolean parseDeltas(byte[] data, int pos, int end) {
+        final int channels = mChannels;
+        final int referenceBytes = (mResolutions[mType] + 7) / 8;
+        if (referenceBytes > 4 || end - pos < channels * referenceBytes) {
+            return false;
+        }
+        for (int c = 0; c < channels; c++) {
+            mValues[c] = intLe(data, pos, referenceBytes);
+            pos += referenceBytes;
+        }
+        int i = channels;
+        while (end - pos >= 2) {
+            final int width = data[pos++] & 0xFF;
+            final int count = data[pos++] & 0xFF;
+            if (width == 0 || width > 32) return false;
+            final int n = count * channels;
+            final int bytes = (int) (((long) width * n + 7) / 8);
+            if (end - pos < bytes || i + n > MAX_VALUES) return false;
+            final long mask = (1L << width) - 1;
+            final int shift = 32 - width;
+            long bits = 0;
+            int available = 0;
+            int p = pos;
+            for (int k = 0; k < n; k++) {
+                while (available < width) {
+                    bits |= (long) (data[p++] & 0xFF) << available;
+                    available += 8;
+                }
+                final int delta = (int) (bits & mask) << shift >> shift;
+                bits >>>= width;
+                available -= width;
+                mValues[i] = mValues[i - channels] + delta;
+                i++;
+            }
+            pos += bytes;
+        }
+        mSampleCount = i / channels;
+        return true;
+    }
+
+    private void setTimes() {
+        final int count = mSampleCount;
+        long interval = mIntervals[mType];
+        if (interval <= 0) {
+            interval = NANOS_PER_SECOND / mSampleRates[mType];
+        }
+        long time = mTimestamp - (count - 1) * interval;
+        for (int i = 0; i < count; i++) {
+            mTimes[i] = time;
+            time += interval;
+        }
+    }
+
+    /**
+     * Measures the sample interval of the type of the last parsed frame,
+     * which is then used to parse the frames after it. It is the interval
+     * between that frame and the one before of the same type, if it agrees
+     * with the interval of the frame before, so a lost frame does not
+     * stretch the times. Otherwise it is the nominal one.
+     */
+    public synchronized void track() {
+        if (!mValid) return;
+        final int type = mType;
+        final long last = mLastTimestamps[type];
+        final long interval = last > 0 && mTimestamp > last ?
+                (mTimestamp - last) / mSampleCount : 0;
+        final long lastInterval = mLastIntervals[type];
+        mLastTimestamps[type] = mTimestamp;
+        mLastIntervals[type] = interval;
+        // Within a factor of 1.5 of the one before
+        if (interval <= 0 || lastInterval <= 0
+                || 2 * interval > 3 * lastInterval
+                || 2 * lastInterval > 3 * interval) {
+            mIntervals[type] = 0;
+        } else {
+            mIntervals[type] = interval;
+        }
+    }
+
+    /**
+     * Copies the settings and the measured sample intervals of another
+     * instance, as one that tracks the frames of a connection.
+     *
+     * @param from The instance to copy from.
+     */
+    public void copySettings(PmdFrame from) {
+        synchronized (from) {
+            System.arraycopy(from.mSampleRates, 0, mSampleRates, 0, N_TYPES);
+            System.arraycopy(from.mResolutions, 0, mResolutions, 0, N_TYPES);
+            System.arraycopy(from.mIntervals, 0, mIntervals, 0, N_TYPES);
+        }
+    }
+
+    /** Reads a little endian signed integer of 1 to 4 bytes. */
+    private static int intLe(byte[] data, int pos, int bytes) {
+        int value = 0;
+        for (int i = bytes - 1; i >= 0; i--) {
+            value = value << 8 | (data[pos + i] & 0xFF);
+        }
+        final int shift = 32 - 8 * bytes;
+        return value << shift >> shift;
+    }
+
+    /**
+     * Appends the text rendering of the last parsed value. This is only
+     * meant to be called when the value is actually displayed.
+     *
+     * @param sb The builder to append to.
+     * @return The builder.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (!mValid) {
+            return sb.append("PMD: Invalid or unsupported frame");
+        }
+        sb.append(TYPE_NAMES[mType]).append(": ").append(mSampleCount)
+                .append(" samples");
+        if (mFrameType == FRAME_COMPRESSED) {
+            sb.append(", compressed");
+        }
+        sb.append("\nTimestamp: ").append(mTimestamp).append(" ns");
+        final int last = (mSampleCount - 1) * mChannels;
+        switch (mType) {
+            case TYPE_ECG:
+                sb.append("\nLast: ").append(mValues[last]).append(" uV");
+                break;
+            case TYPE_PPG:
+                sb.append("\nLast: ").append(mValues[last]).append(' ')
+                        .append(mValues[last + 1]).append(' ')
+                        .append(mValues[last + 2]).append(" Ambient: ")
+                        .append(mValues[last + 3]);
+                break;
+            default:
+                sb.append("\nLast: x=").append(mValues[last])
+                        .append(" y=").append(mValues[last + 1])
+                        .append(" z=").append(mValues[last + 2])
+                        .append(" mG");
+                break;
+        }
+        return sb;
+    }
+
+    /**
+     * Forgets the timestamps of the frames before and the measured
+     * intervals, as when a stream is started again.
+     */
+    public synchronized void reset() {
+        for (int type = 0; type < N_TYPES; type++) {
+            mLastTimestamps[type] = 0;
+            mLastIntervals[type] = 0;
+            mIntervals[type] = 0;
+        }
+    }
+
+    /**
+     * Sets the settings a measurement was started with.
+     *
+     * @param type       One of the TYPE values.
+     * @param sampleRate The sample rate in Hz.
+     * @param resolution The resolution in bits.
+     */
+    public synchronized void setSettings(int type, int sampleRate,
+                                         int resolution) {
+        if (sampleRate > 0) mSampleRates[type] = sampleRate;
+        if (resolution > 0) mResolutions[type] = resolution;
+    }
+
+    /**
+     * @param type One of the TYPE values.
+     * @return The sample rate in Hz.
+     */
+    public int getSampleRate(int type) {
+        return mSampleRates[type];
+    }
+
+    /**
+     * @param type One of the TYPE values.
+     * @return The resolution in bits.
+     */
+    public int getResolution(int type) {
+        return mResolutions[type];
+    }
+
+    /**
+     * @param type A measurement type.
+     * @return Its name.
+     */
+    public static String getTypeName(int type) {
+        return type >= 0 && type < N_TYPES ? TYPE_NAMES[type]
+                : "Type " + type;
+    }
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public int getMeasurementType() {
+        return mType;
+    }
+
+    public int getFrameType() {
+        return mFrameType;
+    }
+
+    /**
+     * @return The sensor time of the last sample in ns.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @param index   The index, less than getSampleCount().
+     * @param channel The channel, less than getChannelCount().
+     * @return The sample, in uV for ECG and mG for ACC.
+     */
+    public int getSample(int index, int channel) {
+        return mValues[index * mChannels + channel];
+    }
+
+    /**
+     * @param index The index, less than getSampleCount().
+     * @return The sensor time of the sample in ns.
+     */
+    public long getTime(int index) {
+        return mTimes[index];
+    }
+
+    /**
+     * Decoder for the registry. Parsing uses one shared record, so it is
+     * synchronized. The samples are at their sensor times, and for PPG only
+     * the first channel is charted. format() and decode() do not change
+     * anything beyond the record, so they can both be given the same frame.
+     */
+    public static class Decoder implements CharacteristicDecoder,
+            SampleDecoder {
+        private static final String[] SERIES_NAMES = {"ECG (uV)",
+                "ACC X (mG)", "ACC Y (mG)", "ACC Z (mG)", "PPG"};
+        private final PmdFrame mFrame = new PmdFrame();
+        private final PmdFrame mSettings;
+
+        /**
+         * Makes a decoder with the default settings, which are those the
+         * sensors use, and the nominal sample intervals.
+         */
+        public Decoder() {
+            this(null);
+        }
+
+        /**
+         * @param settings The instance to copy the settings and sample
+         *                 intervals from before each parse, or null for the
+         *                 defaults.
+         */
+        public Decoder(PmdFrame settings) {
+            mSettings = settings;
+        }
+
+        private boolean parse(byte[] value, int offset, int length) {
+            if (mSettings != null) {
+                mFrame.copySettings(mSettings);
+            }
+            return mFrame.parse(value, offset, length);
+        }
+
+        @Override
+        public synchronized void format(byte[] value, int offset,
+                                        int length, StringBuilder sb) {
+            parse(value, offset, length);
+            mFrame.appendTo(sb);
+        }
+
+        @Override
+        public String[] getSeriesNames() {
+            return SERIES_NAMES;
+        }
+
+        @Override
+        public synchronized void decode(byte[] value, int offset,
+                                        int length, long timeNanos,
+                                        Sink sink) {
+            if (!parse(value, offset, length)) return;
+            final int count = mFrame.getSampleCount();
+            switch (mFrame.getMeasurementType()) {
+                case TYPE_ECG:
+                    for (int i = 0; i < count; i++) {
+                        sink.add(0, mFrame.getTime(i), mFrame.getSample(i, 0));
+                    }
+                    break;
+                case TYPE_PPG:
+                    for (int i = 0; i < count; i++) {
+                        sink.add(4, mFrame.getTime(i), mFrame.getSample(i, 0));
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < count; i++) {
+                        final long time = mFrame.getTime(i);
+                        sink.add(1, time, mFrame.getSample(i, 0));
+                        sink.add(2, time, mFrame.getSample(i, 1));
+                        sink.add(3, time, mFrame.getSample(i, 2));
+                    }
+                    break;
+            }
+        }
+    }
+}
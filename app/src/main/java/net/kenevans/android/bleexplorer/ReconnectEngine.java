@@ -0,0 +1,248 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Reconnects a {@link GattConnection} when its link drops without the user
+ * asking for it. Attempts are spaced with exponential backoff and random
+ * jitter. It also keeps the link tuning settings applied after each
+ * connect, and records for each attempt how long it took to connect and to
+ * receive the first notification, since that is how long data is lost.
+ * <p>
+ * The methods are synchronized, since they are called from the GATT
+ * callback thread as well as the main thread.
+ */
+public class ReconnectEngine {
+    private static final String TAG = ReconnectEngine.class.getSimpleName();
+    /** The number of attempts kept in the history. */
+    private static final int HISTORY_SIZE = 32;
+    /** The largest ATT MTU. */
+    public static final int MAX_MTU = 517;
+
+    private final Scheduler mScheduler;
+    private final Runnable mReconnect;
+    private final Random mRandom = new Random();
+
+    // Configuration
+    private boolean mEnabled = true;
+    private long mInitialDelayMs = 500;
+    private long mMaxDelayMs = 30000;
+    private double mMultiplier = 2;
+    private double mJitter = .2;
+    private int mMaxAttempts;
+    private boolean mLinkTuningEnabled = true;
+    private int mRequestedMtu = MAX_MTU;
+
+    /** The number of consecutive attempts since the link was lost. */
+    private int mAttempt;
+    private boolean mScheduled;
+    private long mLinkLostNanos;
+    private long mAttemptStartNanos;
+    private long mConnectedNanos;
+    /**
+     * The attempts the current link took and when the link before it was
+     * lost, 0 if it was not, for the record at the first notification.
+     */
+    private int mConnectedAttempt;
+    private long mConnectedLinkLostNanos;
+    /** Volatile, since it is checked without the lock. */
+    private volatile boolean mAwaitingFirstNotification;
+
+    // History, a ring of the last HISTORY_SIZE attempts
+    private final long[] mConnectLatencyNanos = new long[HISTORY_SIZE];
+    private final long[] mFirstNotificationNanos = new long[HISTORY_SIZE];
+    private final long[] mDowntimeNanos = new long[HISTORY_SIZE];
+    private int mHistoryCount;
+    private long mReconnectCount;
+
+    private final Runnable mAttemptRunnable = this::attempt;
+
+    /**
+     * @param scheduler The Scheduler on which reconnects are run.
+     * @param reconnect Starts a connection attempt.
+     */
+    public ReconnectEngine(Scheduler scheduler, Runnable reconnect) {
+        mScheduler = scheduler;
+        mReconnect = reconnect;
+    }
+
+    /**
+     * Sets the backoff parameters.
+     *
+     * @param initialDelayMs The delay before the first attempt.
+     * @param maxDelayMs     The maximum delay.
+     * @param multiplier     The factor the delay grows by per attempt.
+     * @param jitter         The fraction of the delay that is randomized,
+     *                       from 0 to 1.
+     * @param maxAttempts    The maximum number of attempts, 0 for no
+     *                       limit.
+     */
+    public synchronized void setBackoff(long initialDelayMs, long maxDelayMs,
+                                        double multiplier, double jitter,
+                                        int maxAttempts) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMultiplier = Math.max(1, multiplier);
+        mJitter = Math.max(0, Math.min(1, jitter));
+        mMaxAttempts = maxAttempts;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) cancel();
+    }
+
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Sets whether to request high connection priority and a larger MTU
+     * after each connect.
+     *
+     * @param enabled Whether to tune the link.
+     * @param mtu     The MTU to request.
+     */
+    public synchronized void setLinkTuning(boolean enabled, int mtu) {
+        mLinkTuningEnabled = enabled;
+        mRequestedMtu = mtu;
+    }
+
+    public synchronized boolean isLinkTuningEnabled() {
+        return mLinkTuningEnabled;
+    }
+
+    public synchronized int getRequestedMtu() {
+        return mRequestedMtu;
+    }
+
+    /**
+     * Computes the delay before an attempt.
+     *
+     * @param attempt The attempt, starting at 0.
+     * @return The delay in ms.
+     */
+    synchronized long getDelayMs(int attempt) {
+        double delay = mInitialDelayMs * Math.pow(mMultiplier, attempt);
+        delay = Math.min(delay, mMaxDelayMs);
+        // Spread the delay over [1 - jitter, 1] of its value, so devices
+        // that dropped together do not all come back at once
+        delay *= 1 - mJitter * mRandom.nextDouble();
+        return (long) delay;
+    }
+
+    /**
+     * Called when the link was lost or a connection attempt failed, other
+     * than by the user disconnecting.
+     */
+    public synchronized void onLinkLost() {
+        final long now = System.nanoTime();
+        if (mAttempt == 0 && !mScheduled) {
+            mLinkLostNanos = now;
+        }
+        mAwaitingFirstNotification = false;
+        if (!mEnabled || mScheduled) return;
+        if (mMaxAttempts > 0 && mAttempt >= mMaxAttempts) {
+            Log.w(TAG, "Giving up after " + mAttempt + " attempts");
+            return;
+        }
+        final long delay = getDelayMs(mAttempt);
+        Log.i(TAG, "Reconnect attempt " + (mAttempt + 1) + " in " + delay
+                + " ms");
+        mScheduled = true;
+        mScheduler.postDelayed(mAttemptRunnable, delay);
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            if (!mScheduled) return;
+            mScheduled = false;
+            mAttempt++;
+            mReconnectCount++;
+        }
+        mReconnect.run();
+    }
+
+    /**
+     * Cancels any scheduled attempt, for example because the user
+     * disconnected.
+     */
+    public synchronized void cancel() {
+        mScheduler.removeCallbacks(mAttemptRunnable);
+        mScheduled = false;
+        mAttempt = 0;
+        mLinkLostNanos = 0;
+    }
+
+    /**
+     * Called when a connection attempt is started.
+     */
+    public synchronized void onAttemptStarted() {
+        mAttemptStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Called when the link is up. It counts as recovered, so the next drop
+     * starts again with the shortest delay, even if nothing is ever
+     * notified on it.
+     */
+    public synchronized void onConnected() {
+        mConnectedNanos = System.nanoTime();
+        mConnectedAttempt = mAttempt;
+        mConnectedLinkLostNanos = mLinkLostNanos;
+        mAttempt = 0;
+        mLinkLostNanos = 0;
+        mAwaitingFirstNotification = true;
+    }
+
+    /**
+     * Called for each notification. Only the first after a connect is
+     * recorded, so this is cheap.
+     */
+    public void onNotification() {
+        // Checked without locking to keep the common case cheap
+        if (!mAwaitingFirstNotification) return;
+        synchronized (this) {
+            if (!mAwaitingFirstNotification) return;
+            mAwaitingFirstNotification = false;
+            final long now = System.nanoTime();
+            final int i = mHistoryCount++ % HISTORY_SIZE;
+            mConnectLatencyNanos[i] = mConnectedNanos - mAttemptStartNanos;
+            mFirstNotificationNanos[i] = now - mAttemptStartNanos;
+            mDowntimeNanos[i] = mConnectedLinkLostNanos == 0 ? 0 :
+                    now - mConnectedLinkLostNanos;
+            Log.i(TAG, String.format(Locale.US,
+                    "Attempt %d: connect %.1f ms, first notification %.1f " +
+                            "ms, data lost for %.1f ms", mConnectedAttempt,
+                    mConnectLatencyNanos[i] * 1e-6,
+                    mFirstNotificationNanos[i] * 1e-6,
+                    mDowntimeNanos[i] * 1e-6));
+        }
+    }
+
+    /**
+     * @return A summary of the recent attempts.
+     */
+    public synchronized String getStatistics() {
+        final int n = Math.min(mHistoryCount, HISTORY_SIZE);
+        if (n == 0) {
+            return "Reconnects: " + mReconnectCount + ", no data yet";
+        }
+        long sumConnect = 0, sumFirst = 0, maxFirst = 0, maxDowntime = 0;
+        for (int i = 0; i < n; i++) {
+            sumConnect += mConnectLatencyNanos[i];
+            sumFirst += mFirstNotificationNanos[i];
+            maxFirst = Math.max(maxFirst, mFirstNotificationNanos[i]);
+            maxDowntime = Math.max(maxDowntime, mDowntimeNanos[i]);
+        }
+        return String.format(Locale.US,
+                "Reconnects: %d, last %d connects: avg connect %.1f ms, " +
+                        "avg first notification %.1f ms (max %.1f ms), " +
+                        "max data loss %.1f ms",
+                mReconnectCount, n, sumConnect * 1e-6 / n,
+                sumFirst * 1e-6 / n, maxFirst * 1e-6, maxDowntime * 1e-6);
+    }
+}
@@ -0,0 +1,42 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Decodes the numeric fields of a characteristic value for plotting. A
+ * {@link CharacteristicDecoder} that has numeric fields also implements
+ * this, so the charts find it in the {@link DecoderRegistry}. Like the
+ * text decoders, an instance may be used from several threads.
+ */
+public interface SampleDecoder {
+    /**
+     * Receives the samples of a value.
+     */
+    interface Sink {
+        /**
+         * @param series    The index of the series in getSeriesNames().
+         * @param timeNanos The time of the sample.
+         * @param value     The sample.
+         */
+        void add(int series, long timeNanos, float value);
+    }
+
+    /**
+     * @return The names of the series, with their units. The same for
+     * every value.
+     */
+    String[] getSeriesNames();
+
+    /**
+     * Decodes the samples in a value. A value may have none, or several for
+     * a series, like the R-R intervals of a heart rate measurement. The
+     * samples are given the time the value was received, unless the value
+     * has times of its own, which must be in ns and must not decrease.
+     *
+     * @param value     The raw value.
+     * @param offset    The offset of the value.
+     * @param length    The length of the value.
+     * @param timeNanos When it was received, from System.nanoTime().
+     * @param sink      Gets the samples.
+     */
+    void decode(byte[] value, int offset, int length, long timeNanos,
+                Sink sink);
+}
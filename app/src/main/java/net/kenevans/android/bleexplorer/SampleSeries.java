@@ -0,0 +1,117 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * A ring buffer of timestamped samples for plotting, as primitive arrays.
+ * The arrays start small and double as needed up to the capacity, so a
+ * slow series like heart rate does not take the memory of a 130 Hz one.
+ * When full, the oldest sample is overwritten.
+ * <p>
+ * Samples are indexed from 0, the oldest, to size() - 1, the newest. The
+ * timestamps must not decrease. It is not thread safe.
+ */
+public class SampleSeries {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final String mName;
+    private final int mCapacity;
+    private long[] mTimes;
+    private float[] mValues;
+    /** The index in the arrays of the oldest sample. */
+    private int mHead;
+    private int mSize;
+
+    /**
+     * @param name     The name, for the legend.
+     * @param capacity The most samples kept.
+     */
+    public SampleSeries(String name, int capacity) {
+        mName = name;
+        mCapacity = capacity;
+        final int initial = Math.min(capacity, INITIAL_CAPACITY);
+        mTimes = new long[initial];
+        mValues = new float[initial];
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @param timeNanos The time of the sample.
+     * @param value     The sample.
+     */
+    public void add(long timeNanos, float value) {
+        if (mSize == mTimes.length && mSize < mCapacity) grow();
+        int i = mHead + mSize;
+        if (i >= mTimes.length) i -= mTimes.length;
+        mTimes[i] = timeNanos;
+        mValues[i] = value;
+        if (mSize < mTimes.length) {
+            mSize++;
+        } else if (++mHead == mTimes.length) {
+            mHead = 0;
+        }
+    }
+
+    private void grow() {
+        final int capacity = Math.min(mCapacity, 2 * mTimes.length);
+        // Unwrap, so the oldest is at 0
+        final long[] times = new long[capacity];
+        final float[] values = new float[capacity];
+        final int first = mTimes.length - mHead;
+        System.arraycopy(mTimes, mHead, times, 0, first);
+        System.arraycopy(mTimes, 0, times, first, mHead);
+        System.arraycopy(mValues, mHead, values, 0, first);
+        System.arraycopy(mValues, 0, values, first, mHead);
+        mTimes = times;
+        mValues = values;
+        mHead = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index The index, 0 for the oldest.
+     * @return The time of the sample.
+     */
+    public long getTime(int index) {
+        int i = mHead + index;
+        if (i >= mTimes.length) i -= mTimes.length;
+        return mTimes[i];
+    }
+
+    /**
+     * @param index The index, 0 for the oldest.
+     * @return The sample.
+     */
+    public float getValue(int index) {
+        int i = mHead + index;
+        if (i >= mValues.length) i -= mValues.length;
+        return mValues[i];
+    }
+
+    /**
+     * @param timeNanos A time.
+     * @return The index of the first sample at or after the time, size()
+     * if none.
+     */
+    public int indexOf(long timeNanos) {
+        int low = 0, high = mSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getTime(mid) < timeNanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,108 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.Locale;
+
+/**
+ * Counts the scan callbacks and the results they bring, so the effect of
+ * scan filters and batching on the rate at which the app is woken can be
+ * seen. Results dropped by the checks done in the app, like a name prefix,
+ * are counted separately.
+ * <p>
+ * Callbacks come on a binder thread while the UI reads the counts, so the
+ * methods are synchronized.
+ */
+public class ScanMetrics {
+    private long mStartNanos;
+    private long mStopNanos;
+    private long mCallbacks;
+    private long mResults;
+    private long mFiltered;
+    private long mMaxBatch;
+    private String mDescription = "";
+
+    /**
+     * Resets the counts at the start of a scan.
+     *
+     * @param nowNanos    The time, from System.nanoTime().
+     * @param description What is being scanned for.
+     */
+    public synchronized void start(long nowNanos, String description) {
+        mStartNanos = nowNanos;
+        mStopNanos = 0;
+        mCallbacks = 0;
+        mResults = 0;
+        mFiltered = 0;
+        mMaxBatch = 0;
+        mDescription = description;
+    }
+
+    /**
+     * @param nowNanos The time the scan stopped, from System.nanoTime().
+     */
+    public synchronized void stop(long nowNanos) {
+        if (mStartNanos != 0 && mStopNanos == 0) mStopNanos = nowNanos;
+    }
+
+    /**
+     * Counts a callback.
+     *
+     * @param results The number of results it brought.
+     */
+    public synchronized void addCallback(int results) {
+        mCallbacks++;
+        mResults += results;
+        if (results > mMaxBatch) mMaxBatch = results;
+    }
+
+    /**
+     * Counts a result dropped by the app.
+     */
+    public synchronized void addFiltered() {
+        mFiltered++;
+    }
+
+    public synchronized long getCallbacks() {
+        return mCallbacks;
+    }
+
+    public synchronized long getResults() {
+        return mResults;
+    }
+
+    /**
+     * @param nowNanos The current time, from System.nanoTime().
+     * @return The time scanned in ns, up to now if still scanning.
+     */
+    public synchronized long getElapsedNanos(long nowNanos) {
+        if (mStartNanos == 0) return 0;
+        return (mStopNanos != 0 ? mStopNanos : nowNanos) - mStartNanos;
+    }
+
+    /**
+     * @param nowNanos The current time, from System.nanoTime().
+     * @return The callbacks per second.
+     */
+    public synchronized double getCallbackRate(long nowNanos) {
+        final long elapsed = getElapsedNanos(nowNanos);
+        return elapsed <= 0 ? 0 : mCallbacks * 1e9 / elapsed;
+    }
+
+    /**
+     * @param nowNanos The current time, from System.nanoTime().
+     * @return A summary for display.
+     */
+    public synchronized String getStatistics(long nowNanos) {
+        final long elapsed = getElapsedNanos(nowNanos);
+        final double seconds = elapsed * 1e-9;
+        final double resultRate = seconds <= 0 ? 0 : mResults / seconds;
+        return String.format(Locale.US,
+                "Scan: %s\nTime: %.1f s\n" +
+                        "Callbacks: %d (%.1f/s)\n" +
+                        "Results: %d (%.1f/s), largest batch %d\n" +
+                        "Dropped by name prefix: %d (%.1f/s shown)",
+                mDescription, seconds, mCallbacks,
+                getCallbackRate(nowNanos), mResults, resultRate, mMaxBatch,
+                mFiltered, seconds <= 0 ? 0 :
+                        (mResults - mFiltered) / seconds);
+    }
+}
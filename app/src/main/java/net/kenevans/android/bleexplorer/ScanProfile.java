@@ -0,0 +1,307 @@
+package net.kenevans.android.bleexplorer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * A named set of scan filter criteria and settings. The service UUID, MAC
+ * address and manufacturer ID are pushed down to the controller as a
+ * {@link ScanFilter}, so advertisements that do not match never reach the
+ * app. All the criteria that are set must match. The controller can only
+ * match a whole name, so the name prefix is checked in the scan callback.
+ * <p>
+ * Profiles are kept as JSON in the shared preferences {@link #PREFS_NAME}.
+ */
+public class ScanProfile {
+    private static final String TAG = ScanProfile.class.getSimpleName();
+    public static final String PREFS_NAME = "scan_profiles";
+    private static final String PREF_PROFILES = "profiles";
+    private static final String PREF_ACTIVE = "active";
+    public static final int NO_MANUFACTURER = -1;
+    /** The report delays that can be chosen, in ms. */
+    public static final long[] REPORT_DELAYS = {0, 500, 1000, 5000};
+
+    public String name = "";
+    /** The service UUID, or null. */
+    public UUID serviceUuid;
+    /** The start of the device name, or empty. */
+    public String namePrefix = "";
+    /** The MAC address, or empty. */
+    public String address = "";
+    /** The company identifier, or {@link #NO_MANUFACTURER}. */
+    public int manufacturerId = NO_MANUFACTURER;
+    /** The report delay in ms. 0 reports each result as it comes. */
+    public long reportDelayMs = 1000;
+    /** One of the ScanSettings MATCH_MODE constants. */
+    public int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+    /** One of the ScanSettings SCAN_MODE constants. */
+    public int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+
+    /**
+     * @return A copy, which can be changed without changing this one.
+     */
+    public ScanProfile copy() {
+        final ScanProfile copy = new ScanProfile();
+        copy.name = name;
+        copy.serviceUuid = serviceUuid;
+        copy.namePrefix = namePrefix;
+        copy.address = address;
+        copy.manufacturerId = manufacturerId;
+        copy.reportDelayMs = reportDelayMs;
+        copy.matchMode = matchMode;
+        copy.scanMode = scanMode;
+        return copy;
+    }
+
+    /**
+     * @return If any criterion is set.
+     */
+    public boolean hasCriteria() {
+        return serviceUuid != null || !namePrefix.isEmpty()
+                || !address.isEmpty() || manufacturerId != NO_MANUFACTURER;
+    }
+
+    /**
+     * @return The filters to give to startScan, or null if no criteria
+     * can be matched by the controller.
+     */
+    public List<ScanFilter> buildFilters() {
+        if (serviceUuid == null && address.isEmpty()
+                && manufacturerId == NO_MANUFACTURER) {
+            return null;
+        }
+        final ScanFilter.Builder builder = new ScanFilter.Builder();
+        if (serviceUuid != null) {
+            builder.setServiceUuid(new ParcelUuid(serviceUuid));
+        }
+        if (!address.isEmpty()) {
+            builder.setDeviceAddress(address);
+        }
+        if (manufacturerId != NO_MANUFACTURER) {
+            // Empty data matches any data with this ID
+            builder.setManufacturerData(manufacturerId, new byte[0]);
+        }
+        return Collections.singletonList(builder.build());
+    }
+
+    /**
+     * @param adapter The adapter, used to check whether batching is
+     *                supported.
+     * @return The settings to give to startScan.
+     */
+    public ScanSettings buildSettings(BluetoothAdapter adapter) {
+        long delay = reportDelayMs;
+        if (delay > 0 && !adapter.isOffloadedScanBatchingSupported()) {
+            Log.d(TAG, "Batching not supported, not using a report delay");
+            delay = 0;
+        }
+        return new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setMatchMode(matchMode)
+                .setReportDelay(delay)
+                .build();
+    }
+
+    /**
+     * Checks the criteria the controller does not.
+     *
+     * @param record The parsed scan record.
+     * @return If it matches.
+     */
+    public boolean matchesName(AdvertisementParser record) {
+        return record.nameStartsWith(namePrefix);
+    }
+
+    /**
+     * @return A one line summary of the criteria.
+     */
+    public String describeCriteria() {
+        final StringBuilder sb = new StringBuilder();
+        if (serviceUuid != null) {
+            sb.append("service=").append(GattAttributes.lookup(serviceUuid,
+                    serviceUuid.toString())).append(' ');
+        }
+        if (!namePrefix.isEmpty()) {
+            sb.append("name=").append(namePrefix).append("* ");
+        }
+        if (!address.isEmpty()) {
+            sb.append("address=").append(address).append(' ');
+        }
+        if (manufacturerId != NO_MANUFACTURER) {
+            sb.append(String.format(Locale.US, "manufacturer=0x%04X ",
+                    manufacturerId));
+        }
+        if (sb.length() == 0) sb.append("all devices ");
+        sb.append("delay=").append(reportDelayMs).append("ms match=")
+                .append(matchMode == ScanSettings.MATCH_MODE_STICKY ?
+                        "sticky" : "aggressive");
+        return sb.toString();
+    }
+
+    /**
+     * Parses a service UUID given in full or as a 16-bit SIG number.
+     *
+     * @param text The text.
+     * @return The UUID, or null if the text is empty.
+     * @throws IllegalArgumentException If it is not a UUID.
+     */
+    public static UUID parseUuid(String text) {
+        String s = text.trim();
+        if (s.isEmpty()) return null;
+        if (s.startsWith("0x") || s.startsWith("0X")) s = s.substring(2);
+        if (s.length() == 4) {
+            s = "0000" + s + "-0000-1000-8000-00805f9b34fb";
+        }
+        return UUID.fromString(s);
+    }
+
+    /**
+     * Parses a MAC address.
+     *
+     * @param text The text.
+     * @return The address in upper case, or empty if the text is empty.
+     * @throws IllegalArgumentException If it is not a valid address.
+     */
+    public static String parseAddress(String text) {
+        final String s = text.trim().toUpperCase(Locale.US);
+        if (!s.isEmpty() && !BluetoothAdapter.checkBluetoothAddress(s)) {
+            throw new IllegalArgumentException("Invalid address: " + text);
+        }
+        return s;
+    }
+
+    /**
+     * Parses a company identifier in decimal or as 0x hex.
+     *
+     * @param text The text.
+     * @return The ID, or NO_MANUFACTURER if the text is empty.
+     * @throws NumberFormatException If it is not a 16-bit number.
+     */
+    public static int parseManufacturerId(String text) {
+        final String s = text.trim();
+        if (s.isEmpty()) return NO_MANUFACTURER;
+        final int id = Integer.decode(s);
+        if (id < 0 || id > 0xffff) {
+            throw new NumberFormatException("Not a 16-bit ID: " + text);
+        }
+        return id;
+    }
+
+    private JSONObject toJson() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("name", name);
+        if (serviceUuid != null) {
+            json.put("serviceUuid", serviceUuid.toString());
+        }
+        json.put("namePrefix", namePrefix);
+        json.put("address", address);
+        json.put("manufacturerId", manufacturerId);
+        json.put("reportDelayMs", reportDelayMs);
+        json.put("matchMode", matchMode);
+        json.put("scanMode", scanMode);
+        return json;
+    }
+
+    private static ScanProfile fromJson(JSONObject json) {
+        final ScanProfile profile = new ScanProfile();
+        profile.name = json.optString("name");
+        final String uuid = json.optString("serviceUuid");
+        profile.serviceUuid = uuid.isEmpty() ? null : UUID.fromString(uuid);
+        profile.namePrefix = json.optString("namePrefix");
+        profile.address = json.optString("address");
+        profile.manufacturerId = json.optInt("manufacturerId",
+                NO_MANUFACTURER);
+        profile.reportDelayMs = json.optLong("reportDelayMs",
+                profile.reportDelayMs);
+        profile.matchMode = json.optInt("matchMode", profile.matchMode);
+        profile.scanMode = json.optInt("scanMode", profile.scanMode);
+        return profile;
+    }
+
+    /**
+     * @param context The context.
+     * @return The saved profiles. Ones that cannot be read are skipped.
+     */
+    public static List<ScanProfile> loadAll(Context context) {
+        final List<ScanProfile> profiles = new ArrayList<>();
+        final String text = prefs(context).getString(PREF_PROFILES, "[]");
+        try {
+            final JSONArray array = new JSONArray(text);
+            for (int i = 0; i < array.length(); i++) {
+                try {
+                    profiles.add(fromJson(array.getJSONObject(i)));
+                } catch (JSONException | IllegalArgumentException ex) {
+                    Log.w(TAG, "Skipping scan profile " + i, ex);
+                }
+            }
+        } catch (JSONException ex) {
+            Log.e(TAG, "Cannot read scan profiles", ex);
+        }
+        return profiles;
+    }
+
+    /**
+     * @param context  The context.
+     * @param profiles The profiles to save, replacing the saved ones.
+     */
+    public static void saveAll(Context context, List<ScanProfile> profiles) {
+        final JSONArray array = new JSONArray();
+        try {
+            for (ScanProfile profile : profiles) {
+                array.put(profile.toJson());
+            }
+        } catch (JSONException ex) {
+            Log.e(TAG, "Cannot save scan profiles", ex);
+            return;
+        }
+        prefs(context).edit().putString(PREF_PROFILES, array.toString())
+                .apply();
+    }
+
+    /**
+     * @param context The context.
+     * @return The active profile, or null to scan for all devices.
+     */
+    public static ScanProfile loadActive(Context context) {
+        final String name = prefs(context).getString(PREF_ACTIVE, null);
+        if (name == null) return null;
+        for (ScanProfile profile : loadAll(context)) {
+            if (profile.name.equals(name)) return profile;
+        }
+        return null;
+    }
+
+    /**
+     * @param context The context.
+     * @param profile The active profile, or null for none.
+     */
+    public static void saveActive(Context context, ScanProfile profile) {
+        final SharedPreferences.Editor editor = prefs(context).edit();
+        if (profile == null) {
+            editor.remove(PREF_ACTIVE);
+        } else {
+            editor.putString(PREF_ACTIVE, profile.name);
+        }
+        editor.apply();
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+}
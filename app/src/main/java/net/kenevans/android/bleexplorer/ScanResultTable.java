@@ -0,0 +1,260 @@
+package net.kenevans.android.bleexplorer;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The devices found by a scan, one row per address. Results are added from
+ * the scan callback thread and found by address in a hash index, so adding
+ * one is O(1). Rows are only moved by {@link #evict(long)}, so a row index
+ * identifies a device until the table is cleared or devices are evicted.
+ * <p>
+ * The UI thread does not read the table directly. It calls
+ * {@link #publishTo(Snapshot)} at most once per frame, which copies only the
+ * rows added or changed since the last publish into its own
+ * {@link Snapshot}.
+ * <p>
+ * Each row also has the {@link AdvertisementStats} of the device.
+ */
+public class ScanResultTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final HashMap<String, Integer> mIndex = new HashMap<>();
+    private BluetoothDevice[] mDevices = new BluetoothDevice[INITIAL_CAPACITY];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private int[] mRssi = new int[INITIAL_CAPACITY];
+    private int[] mTxPower = new int[INITIAL_CAPACITY];
+    private int[] mManufacturerId = new int[INITIAL_CAPACITY];
+    private final AdvertisementStats mStats =
+            new AdvertisementStats(INITIAL_CAPACITY);
+    private int mSize;
+    /** The rows changed since the last publish, each listed once. */
+    private int[] mChanged = new int[INITIAL_CAPACITY];
+    private boolean[] mIsChanged = new boolean[INITIAL_CAPACITY];
+    private int mChangedCount;
+    private int mPublishedSize;
+    private boolean mPublishPending;
+    /** If rows have moved since the last publish. */
+    private boolean mMoved;
+
+    /**
+     * The rows as the UI last saw them. It is owned by the UI thread and
+     * reused by each publish.
+     */
+    public static class Snapshot {
+        public BluetoothDevice[] devices = new BluetoothDevice[0];
+        /** The advertised names. Null if none has been seen. */
+        public String[] names = new String[0];
+        public int[] rssi = new int[0];
+        /** The TX power level, or AdvertisementParser.NONE. */
+        public int[] txPower = new int[0];
+        /** The company identifier, or AdvertisementParser.NONE. */
+        public int[] manufacturerId = new int[0];
+        public final AdvertisementStats stats = new AdvertisementStats(0);
+        public int size;
+        /** The number of rows before the last publish. */
+        public int previousSize;
+        /** The rows below previousSize changed by the last publish. */
+        public int[] changed = new int[0];
+        public int changedCount;
+        /**
+         * If devices were evicted before the last publish, so rows may have
+         * moved and all of them should be shown again.
+         */
+        public boolean moved;
+
+        void ensureCapacity(int capacity) {
+            if (devices.length >= capacity) return;
+            final int size = Math.max(capacity, 2 * devices.length);
+            devices = Arrays.copyOf(devices, size);
+            names = Arrays.copyOf(names, size);
+            rssi = Arrays.copyOf(rssi, size);
+            txPower = Arrays.copyOf(txPower, size);
+            manufacturerId = Arrays.copyOf(manufacturerId, size);
+            changed = Arrays.copyOf(changed, size);
+            stats.ensureCapacity(size);
+        }
+
+        void clear() {
+            Arrays.fill(devices, 0, size, null);
+            Arrays.fill(names, 0, size, null);
+            stats.clear(size);
+            size = 0;
+            previousSize = 0;
+            changedCount = 0;
+        }
+    }
+
+    /**
+     * Adds a scan result, or updates the row for its device.
+     *
+     * @param device         The device.
+     * @param record         The scan record, already parsed.
+     * @param rssi           The RSSI in dBm.
+     * @param timestampNanos When it was received, from
+     *                       ScanResult.getTimestampNanos().
+     * @return If a publish should be scheduled, which is only the case for
+     * the first change after a publish.
+     */
+    public synchronized boolean add(BluetoothDevice device,
+                                    AdvertisementParser record, int rssi,
+                                    long timestampNanos) {
+        final String address = device.getAddress();
+        final Integer index = mIndex.get(address);
+        final int row;
+        if (index == null) {
+            row = mSize;
+            ensureCapacity(row + 1);
+            mIndex.put(address, row);
+            mDevices[row] = device;
+            mTxPower[row] = AdvertisementParser.NONE;
+            mManufacturerId[row] = AdvertisementParser.NONE;
+            mSize++;
+        } else {
+            row = index;
+        }
+        // These are not in every advertisement, so keep the last ones seen.
+        // The name String is only made when it changes.
+        if (record.hasName() && !record.nameEquals(mNames[row])) {
+            mNames[row] = record.getName();
+        }
+        if (record.getTxPower() != AdvertisementParser.NONE) {
+            mTxPower[row] = record.getTxPower();
+        }
+        if (record.getManufacturerId() != AdvertisementParser.NONE) {
+            mManufacturerId[row] = record.getManufacturerId();
+        }
+        mRssi[row] = rssi;
+        mStats.add(row, timestampNanos, rssi);
+        if (row < mPublishedSize && !mIsChanged[row]) {
+            mIsChanged[row] = true;
+            mChanged[mChangedCount++] = row;
+        }
+        if (mPublishPending) return false;
+        mPublishPending = true;
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mDevices.length >= capacity) return;
+        final int size = 2 * mDevices.length;
+        mDevices = Arrays.copyOf(mDevices, size);
+        mNames = Arrays.copyOf(mNames, size);
+        mRssi = Arrays.copyOf(mRssi, size);
+        mTxPower = Arrays.copyOf(mTxPower, size);
+        mManufacturerId = Arrays.copyOf(mManufacturerId, size);
+        mChanged = Arrays.copyOf(mChanged, size);
+        mIsChanged = Arrays.copyOf(mIsChanged, size);
+        mStats.ensureCapacity(size);
+    }
+
+    /**
+     * Copies the rows added or changed since the last publish. Nothing is
+     * allocated unless the snapshot has to grow.
+     *
+     * @param snapshot The UI copy.
+     */
+    public synchronized void publishTo(Snapshot snapshot) {
+        snapshot.ensureCapacity(mSize);
+        for (int i = 0; i < mChangedCount; i++) {
+            final int row = mChanged[i];
+            snapshot.names[row] = mNames[row];
+            snapshot.rssi[row] = mRssi[row];
+            snapshot.txPower[row] = mTxPower[row];
+            snapshot.manufacturerId[row] = mManufacturerId[row];
+            snapshot.stats.copyRows(mStats, row, 1);
+            snapshot.changed[i] = row;
+            mIsChanged[row] = false;
+        }
+        snapshot.changedCount = mChangedCount;
+        snapshot.previousSize = snapshot.size;
+        snapshot.moved = mMoved;
+        if (mSize < snapshot.size) {
+            Arrays.fill(snapshot.devices, mSize, snapshot.size, null);
+            Arrays.fill(snapshot.names, mSize, snapshot.size, null);
+        }
+        final int added = mSize - mPublishedSize;
+        System.arraycopy(mDevices, mPublishedSize, snapshot.devices,
+                mPublishedSize, added);
+        System.arraycopy(mNames, mPublishedSize, snapshot.names,
+                mPublishedSize, added);
+        System.arraycopy(mRssi, mPublishedSize, snapshot.rssi,
+                mPublishedSize, added);
+        System.arraycopy(mTxPower, mPublishedSize, snapshot.txPower,
+                mPublishedSize, added);
+        System.arraycopy(mManufacturerId, mPublishedSize,
+                snapshot.manufacturerId, mPublishedSize, added);
+        snapshot.stats.copyRows(mStats, mPublishedSize, added);
+        snapshot.size = mSize;
+        mPublishedSize = mSize;
+        mChangedCount = 0;
+        mPublishPending = false;
+        mMoved = false;
+    }
+
+    /**
+     * Removes the devices last seen before a time. The rows after each one
+     * removed move up, keeping their order, so the next publish copies all
+     * the rows.
+     *
+     * @param cutoffNanos The time, as from ScanResult.getTimestampNanos().
+     * @return The number of devices removed.
+     */
+    public synchronized int evict(long cutoffNanos) {
+        int kept = 0;
+        for (int row = 0; row < mSize; row++) {
+            if (mStats.getLastSeenNanos(row) < cutoffNanos) {
+                mIndex.remove(mDevices[row].getAddress());
+                continue;
+            }
+            if (kept != row) {
+                mDevices[kept] = mDevices[row];
+                mNames[kept] = mNames[row];
+                mRssi[kept] = mRssi[row];
+                mTxPower[kept] = mTxPower[row];
+                mManufacturerId[kept] = mManufacturerId[row];
+                mStats.moveRow(row, kept);
+                mIndex.put(mDevices[kept].getAddress(), kept);
+            }
+            kept++;
+        }
+        final int removed = mSize - kept;
+        if (removed == 0) return 0;
+        Arrays.fill(mDevices, kept, mSize, null);
+        Arrays.fill(mNames, kept, mSize, null);
+        mStats.clear(kept, mSize);
+        for (int i = 0; i < mChangedCount; i++) {
+            mIsChanged[mChanged[i]] = false;
+        }
+        mSize = kept;
+        mChangedCount = 0;
+        mPublishedSize = 0;
+        mMoved = true;
+        return removed;
+    }
+
+    /**
+     * Removes all rows. The snapshot should be cleared at the same time, and
+     * a scheduled publish may be cancelled.
+     */
+    public synchronized void clear() {
+        mIndex.clear();
+        Arrays.fill(mDevices, 0, mSize, null);
+        Arrays.fill(mNames, 0, mSize, null);
+        mStats.clear(mSize);
+        for (int i = 0; i < mChangedCount; i++) {
+            mIsChanged[mChanged[i]] = false;
+        }
+        mSize = 0;
+        mPublishedSize = 0;
+        mChangedCount = 0;
+        mPublishPending = false;
+        mMoved = false;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+}
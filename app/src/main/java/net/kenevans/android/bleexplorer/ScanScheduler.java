@@ -0,0 +1,133 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.Locale;
+
+/**
+ * Plans a duty-cycled scan: scan for an on period, stop for an off period,
+ * and repeat. Android lets an app start at most {@link #MAX_STARTS} scans
+ * in {@link #THROTTLE_WINDOW_MS}. Beyond that, startScan fails silently
+ * and no results come for a while. So the times of the last starts are
+ * kept, and a start that would exceed the limit is deferred until the
+ * oldest one leaves the window.
+ * <p>
+ * A scan that runs for more than 30 minutes is demoted to opportunistic,
+ * so the on period is limited to {@link #MAX_ON_MS}. An off period of 0
+ * means scan continuously, restarting after each on period.
+ * <p>
+ * Times are in ms from SystemClock.elapsedRealtime(). It is not thread
+ * safe.
+ */
+public class ScanScheduler {
+    public static final int MAX_STARTS = 5;
+    public static final long THROTTLE_WINDOW_MS = 30000;
+    /** Allows for the OS measuring from slightly different times. */
+    private static final long THROTTLE_MARGIN_MS = 500;
+    public static final long MAX_ON_MS = 25 * 60 * 1000;
+
+    private final long mOnMs;
+    private final long mOffMs;
+    /** The times of the last starts, a ring. */
+    private final long[] mStarts = new long[MAX_STARTS];
+    private int mStartCount;
+    private int mNext;
+    private long mCycles;
+    private long mDeferrals;
+    private long mDeferredMs;
+    private long mScanningMs;
+    private long mFirstStartMs = -1;
+
+    /**
+     * @param onMs  How long each scan runs. Limited to MAX_ON_MS.
+     * @param offMs How long to wait between scans, 0 for none.
+     */
+    public ScanScheduler(long onMs, long offMs) {
+        mOnMs = Math.max(1, Math.min(onMs, MAX_ON_MS));
+        mOffMs = Math.max(0, offMs);
+    }
+
+    public long getOnMs() {
+        return mOnMs;
+    }
+
+    public long getOffMs() {
+        return mOffMs;
+    }
+
+    /**
+     * @param nowMs The current time.
+     * @return How long to wait before a scan may be started, 0 if now.
+     */
+    public long getStartDelay(long nowMs) {
+        if (mStartCount < MAX_STARTS) return 0;
+        // mNext is the oldest start when the ring is full
+        final long allowed = mStarts[mNext] + THROTTLE_WINDOW_MS
+                + THROTTLE_MARGIN_MS;
+        return Math.max(0, allowed - nowMs);
+    }
+
+    /**
+     * Records that a start was deferred.
+     *
+     * @param delayMs By how long.
+     */
+    public void onDeferred(long delayMs) {
+        mDeferrals++;
+        mDeferredMs += delayMs;
+    }
+
+    /**
+     * Records a start.
+     *
+     * @param nowMs The current time.
+     */
+    public void onStarted(long nowMs) {
+        if (mFirstStartMs < 0) mFirstStartMs = nowMs;
+        mStarts[mNext] = nowMs;
+        mNext = (mNext + 1) % MAX_STARTS;
+        if (mStartCount < MAX_STARTS) mStartCount++;
+        mCycles++;
+    }
+
+    /**
+     * Records a stop.
+     *
+     * @param scannedMs How long the scan ran.
+     */
+    public void onStopped(long scannedMs) {
+        mScanningMs += scannedMs;
+    }
+
+    /**
+     * @param nowMs The current time.
+     * @return The fraction of the time since the first start spent
+     * scanning.
+     */
+    public double getDutyCycle(long nowMs) {
+        if (mFirstStartMs < 0 || nowMs <= mFirstStartMs) return 0;
+        return (double) mScanningMs / (nowMs - mFirstStartMs);
+    }
+
+    /**
+     * @return A summary of the configuration.
+     */
+    public String describe() {
+        if (mOffMs == 0) {
+            return String.format(Locale.US, "continuous, restart every %d s",
+                    mOnMs / 1000);
+        }
+        return String.format(Locale.US, "%.1f s on, %.1f s off",
+                mOnMs / 1000., mOffMs / 1000.);
+    }
+
+    /**
+     * @param nowMs The current time.
+     * @return A summary for display.
+     */
+    public String getStatistics(long nowMs) {
+        return String.format(Locale.US,
+                "Duty cycle: %s\nScans: %d, actual duty %.1f%%\n" +
+                        "Deferred for throttling: %d times, %.1f s",
+                describe(), mCycles, 100 * getDutyCycle(nowMs), mDeferrals,
+                mDeferredMs / 1000.);
+    }
+}
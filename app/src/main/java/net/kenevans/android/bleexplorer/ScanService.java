@@ -0,0 +1,327 @@
+package net.kenevans.android.bleexplorer;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Foreground service that scans for hours with a duty cycle, so a site can
+ * be monitored at a bounded cost in CPU and battery. The cycle is planned
+ * by a {@link ScanScheduler}, which keeps the starts within the OS scan
+ * throttling limit. The active {@link ScanProfile} gives the filters, with
+ * the scan mode chosen when the service is started.
+ * <p>
+ * The devices seen are kept in a {@link ScanResultTable} with their
+ * {@link AdvertisementStats}. Devices not seen for {@link #STALE_MS}, or
+ * for three cycles if they are longer, are evicted, so the table does not
+ * grow without bound over hours at a busy site. The cycle runs on a
+ * Handler, so off periods may stretch while the device sleeps, which only
+ * lowers the cost.
+ * <p>
+ * Without filters, Android stops delivering results while the screen is
+ * off, so a profile should be used for unattended monitoring.
+ */
+@SuppressLint("MissingPermission")
+public class ScanService extends Service implements IConstants {
+    private static final String TAG = ScanService.class.getSimpleName();
+    public static final String ACTION_STOP = PACKAGE_NAME + ".scanStop";
+    public static final String EXTRA_ON_MS = PACKAGE_NAME + ".scanOnMs";
+    public static final String EXTRA_OFF_MS = PACKAGE_NAME + ".scanOffMs";
+    public static final String EXTRA_SCAN_MODE = PACKAGE_NAME + ".scanMode";
+    private static final String CHANNEL_ID = "scan";
+    private static final int NOTIFICATION_ID = 1;
+    /** Devices not seen for this long are removed from the table. */
+    public static final long STALE_MS = 10 * 60 * 1000;
+
+    private static volatile boolean sRunning;
+
+    private Handler mHandler;
+    private BluetoothAdapter mBluetoothAdapter;
+    private ScanScheduler mScheduler;
+    /** Read by the scan callback. */
+    private volatile ScanProfile mProfile;
+    private int mScanMode = ScanSettings.SCAN_MODE_BALANCED;
+    private boolean mScanning;
+    private long mScanStartMs;
+    private final ScanResultTable mTable = new ScanResultTable();
+    private final ScanMetrics mMetrics = new ScanMetrics();
+    private long mEvicted;
+    /** Only used by the scan callback. */
+    private final AdvertisementParser mAdParser = new AdvertisementParser();
+
+    private final Runnable mStartCycle = this::startCycle;
+    private final Runnable mStopCycle = this::stopCycle;
+
+    public class LocalBinder extends Binder {
+        ScanService getService() {
+            return ScanService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    /**
+     * @return If the service is running in this process.
+     */
+    public static boolean isRunning() {
+        return sRunning;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sRunning = true;
+        mHandler = new Handler(Looper.getMainLooper());
+        final BluetoothManager manager = (BluetoothManager)
+                getSystemService(Context.BLUETOOTH_SERVICE);
+        if (manager != null) mBluetoothAdapter = manager.getAdapter();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (mScheduler != null) {
+            // Already running. Restart with the new settings.
+            mHandler.removeCallbacksAndMessages(null);
+            stopScan();
+        }
+        final long onMs = intent == null ? 10000 :
+                intent.getLongExtra(EXTRA_ON_MS, 10000);
+        final long offMs = intent == null ? 20000 :
+                intent.getLongExtra(EXTRA_OFF_MS, 20000);
+        if (intent != null) {
+            mScanMode = intent.getIntExtra(EXTRA_SCAN_MODE, mScanMode);
+        }
+        mScheduler = new ScanScheduler(onMs, offMs);
+        mProfile = ScanProfile.loadActive(this);
+        mMetrics.start(System.nanoTime(), (mProfile != null ?
+                mProfile : new ScanProfile()).describeCriteria());
+        Log.d(TAG, "onStartCommand: " + mScheduler.describe());
+        startCycle();
+        // Restarted with the last settings if killed
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        mHandler.removeCallbacksAndMessages(null);
+        stopScan();
+        mMetrics.stop(System.nanoTime());
+        sRunning = false;
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    private void startCycle() {
+        final long now = SystemClock.elapsedRealtime();
+        final long delay = mScheduler.getStartDelay(now);
+        if (delay > 0) {
+            Log.d(TAG, "Deferring scan start by " + delay + " ms");
+            mScheduler.onDeferred(delay);
+            mHandler.postDelayed(mStartCycle, delay);
+            return;
+        }
+        if (!startScan()) {
+            // Try again later, maybe Bluetooth has been turned on
+            mHandler.postDelayed(mStartCycle,
+                    ScanScheduler.THROTTLE_WINDOW_MS);
+            return;
+        }
+        mScheduler.onStarted(now);
+        mScanStartMs = now;
+        updateNotification();
+        mHandler.postDelayed(mStopCycle, mScheduler.getOnMs());
+    }
+
+    private void stopCycle() {
+        stopScan();
+        evictStale();
+        mHandler.postDelayed(mStartCycle, mScheduler.getOffMs());
+    }
+
+    private boolean startScan() {
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
+            Log.d(TAG, "startScan: Bluetooth is not enabled");
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= 31 &&
+                checkSelfPermission(Manifest.permission.BLUETOOTH_SCAN) !=
+                        PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "startScan: BLUETOOTH_SCAN not granted");
+            return false;
+        }
+        final BluetoothLeScanner scanner =
+                mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) return false;
+        // A copy, so the mode is not set on the profile the callback reads
+        final ScanProfile profile = mProfile != null ? mProfile.copy() :
+                new ScanProfile();
+        profile.scanMode = mScanMode;
+        scanner.startScan(profile.buildFilters(),
+                profile.buildSettings(mBluetoothAdapter), mScanCallback);
+        mScanning = true;
+        return true;
+    }
+
+    private void stopScan() {
+        if (!mScanning) return;
+        mScanning = false;
+        mScheduler.onStopped(SystemClock.elapsedRealtime() - mScanStartMs);
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
+            return;
+        }
+        final BluetoothLeScanner scanner =
+                mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner != null) {
+            // Delivers batched results that are pending
+            if (mProfile != null && mProfile.reportDelayMs > 0) {
+                scanner.flushPendingScanResults(mScanCallback);
+            }
+            scanner.stopScan(mScanCallback);
+        }
+    }
+
+    /**
+     * Removes the devices that have not been seen for a while from the
+     * table.
+     */
+    private void evictStale() {
+        final long staleMs = Math.max(STALE_MS,
+                3 * (mScheduler.getOnMs() + mScheduler.getOffMs()));
+        final int evicted = mTable.evict(SystemClock.elapsedRealtimeNanos()
+                - staleMs * 1000000);
+        if (evicted > 0) {
+            mEvicted += evicted;
+            Log.d(TAG, "Evicted " + evicted + " devices not seen for "
+                    + staleMs / 1000 + " s");
+        }
+    }
+
+    /**
+     * @return The devices seen recently, since the service was started.
+     */
+    public ScanResultTable getTable() {
+        return mTable;
+    }
+
+    /**
+     * @return A summary of the scheduling and results, for display.
+     */
+    public String getStatistics() {
+        final long now = SystemClock.elapsedRealtime();
+        return mScheduler == null ? "Not scanning" :
+                mScheduler.getStatistics(now) + "\nDevices: " + mTable.size()
+                        + ", evicted: " + mEvicted
+                        + "\n" + mMetrics.getStatistics(System.nanoTime());
+    }
+
+    private void updateNotification() {
+        final NotificationManager manager = (NotificationManager)
+                getSystemService(Context.NOTIFICATION_SERVICE);
+        if (manager != null) {
+            manager.notify(NOTIFICATION_ID, buildNotification());
+        }
+    }
+
+    private Notification buildNotification() {
+        final Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            final NotificationManager manager = (NotificationManager)
+                    getSystemService(Context.NOTIFICATION_SERVICE);
+            if (manager != null) {
+                manager.createNotificationChannel(new NotificationChannel(
+                        CHANNEL_ID, getString(R.string.scan_channel),
+                        NotificationManager.IMPORTANCE_LOW));
+            }
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        final PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, DeviceScanActivity.class),
+                PendingIntent.FLAG_IMMUTABLE);
+        final PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, ScanService.class).setAction(ACTION_STOP),
+                PendingIntent.FLAG_IMMUTABLE);
+        String text = "";
+        if (mScheduler != null) {
+            text = String.format(Locale.US, "%d devices, %s",
+                    mTable.size(), mScheduler.describe());
+        }
+        return builder.setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.scan_notification_title))
+                .setContentText(text)
+                .setContentIntent(open)
+                .setOngoing(true)
+                .addAction(new Notification.Action.Builder(null,
+                        getString(R.string.menu_stop), stop).build())
+                .build();
+    }
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            mMetrics.addCallback(1);
+            addResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            mMetrics.addCallback(results.size());
+            for (ScanResult result : results) {
+                addResult(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.d(TAG, "onScanFailed: errorCode=" + errorCode);
+        }
+    };
+
+    private void addResult(ScanResult result) {
+        final ScanRecord record = result.getScanRecord();
+        final AdvertisementParser ad = mAdParser;
+        ad.parse(record != null ? record.getBytes() : null);
+        final ScanProfile profile = mProfile;
+        if (profile != null && !profile.matchesName(ad)) {
+            mMetrics.addFiltered();
+            return;
+        }
+        mTable.add(result.getDevice(), ad, result.getRssi(),
+                result.getTimestampNanos());
+    }
+}
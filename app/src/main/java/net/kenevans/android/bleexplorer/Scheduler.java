@@ -0,0 +1,55 @@
+package net.kenevans.android.bleexplorer;
+
+/**
+ * Runs tasks one at a time on a thread, now or after a delay, as an
+ * android.os.Handler does. {@link GattConnection} and the classes it uses
+ * post their timeouts and retries to one, so they run in the app with a
+ * {@link HandlerScheduler} and on a plain JVM with an
+ * {@link ExecutorScheduler}.
+ */
+public interface Scheduler {
+    /**
+     * Runs a task after the ones already due.
+     *
+     * @param task The task.
+     * @return If it was queued, false if the scheduler has quit.
+     */
+    boolean post(Runnable task);
+
+    /**
+     * Runs a task after a delay.
+     *
+     * @param task    The task.
+     * @param delayMs The delay in ms.
+     * @return If it was queued, false if the scheduler has quit.
+     */
+    boolean postDelayed(Runnable task, long delayMs);
+
+    /**
+     * Removes the pending runs of a task. A run that has started is not
+     * stopped.
+     *
+     * @param task The task.
+     */
+    void removeCallbacks(Runnable task);
+
+    /**
+     * Removes all the pending tasks.
+     */
+    void removeAll();
+
+    /**
+     * Creates a scheduler of the same kind that runs its tasks on a new
+     * thread of its own, until it quits.
+     *
+     * @param name The name of the thread.
+     * @return The scheduler.
+     */
+    Scheduler newThread(String name);
+
+    /**
+     * Stops a scheduler made by newThread once the tasks that are due have
+     * run. The delayed ones are dropped.
+     */
+    void quit();
+}
@@ -0,0 +1,71 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.Locale;
+
+/**
+ * The format of recorded session files. A file is a header followed by
+ * records, all little-endian:
+ * <pre>
+ * Header, HEADER_LENGTH bytes:
+ *   int   MAGIC
+ *   short VERSION
+ *   short HEADER_LENGTH
+ *   long  wall clock time of creation, ms since the epoch
+ *   long  System.nanoTime() at creation, for converting timestamps
+ *   int   segment number
+ *   int   reserved
+ * Record, RECORD_HEADER_LENGTH bytes and then the value:
+ *   int   record length, including this field, 0 marks the end
+ *   long  timestamp, System.nanoTime() units
+ *   long  device address, see {@link #packAddress(String)}
+ *   long  characteristic UUID, most significant bits
+ *   long  characteristic UUID, least significant bits
+ *   short characteristic instance ID
+ *   byte  GattEventBus event type
+ *   byte  GATT status
+ *   short value length
+ *   byte[] value
+ * </pre>
+ * Files are preallocated and memory mapped, so the unused tail is zeros
+ * and a record length of 0 ends the data even if the file was not closed.
+ */
+public final class SessionFile {
+    public static final int MAGIC = 0x53454c42; // "BLES" little-endian
+    public static final short VERSION = 1;
+    public static final int HEADER_LENGTH = 32;
+    public static final int RECORD_HEADER_LENGTH = 42;
+    public static final String EXTENSION = ".bles";
+
+    private SessionFile() {
+    }
+
+    /**
+     * Packs a device address of the form "00:11:22:AA:BB:CC" into the low
+     * 48 bits of a long.
+     *
+     * @param address The address.
+     * @return The packed address, or 0 if it is not valid.
+     */
+    public static long packAddress(String address) {
+        if (address == null || address.length() != 17) return 0;
+        long packed = 0;
+        for (int i = 0; i < 17; i += 3) {
+            final int hi = Character.digit(address.charAt(i), 16);
+            final int lo = Character.digit(address.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) return 0;
+            packed = (packed << 8) | (hi << 4) | lo;
+        }
+        return packed;
+    }
+
+    /**
+     * @param packed A packed address.
+     * @return The address of the form "00:11:22:AA:BB:CC".
+     */
+    public static String unpackAddress(long packed) {
+        return String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+                (packed >> 40) & 0xff, (packed >> 32) & 0xff,
+                (packed >> 24) & 0xff, (packed >> 16) & 0xff,
+                (packed >> 8) & 0xff, packed & 0xff);
+    }
+}
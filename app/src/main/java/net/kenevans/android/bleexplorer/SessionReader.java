@@ -0,0 +1,187 @@
+package net.kenevans.android.bleexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the records of a recorded session, in the format of
+ * {@link SessionFile}, from its segment files in order. The files are
+ * memory mapped and the records are copied into a caller's
+ * {@link GattEventBus.Event}, so reading does not allocate. A segment that
+ * was not closed ends at the first zero record length, and a truncated
+ * record at the end is ignored.
+ */
+public class SessionReader {
+    private final List<File> mFiles;
+    private int mFileIndex = -1;
+    private MappedByteBuffer mBuffer;
+    private long mAddress;
+    private long mRecordCount;
+
+    /**
+     * @param files The segment files, in order.
+     */
+    public SessionReader(List<File> files) {
+        mFiles = new ArrayList<>(files);
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @param out The event to fill in. The timestamp is the recorded one.
+     * @return If there was a record, false at the end.
+     * @throws IOException If a file cannot be read or is not a session file.
+     */
+    public boolean next(GattEventBus.Event out) throws IOException {
+        while (true) {
+            if (mBuffer == null && !openNext()) return false;
+            final MappedByteBuffer b = mBuffer;
+            if (b.remaining() >= SessionFile.RECORD_HEADER_LENGTH) {
+                final int start = b.position();
+                final int recordLength = b.getInt();
+                if (recordLength >= SessionFile.RECORD_HEADER_LENGTH
+                        && recordLength <= b.remaining() + 4) {
+                    out.timestampNanos = b.getLong();
+                    mAddress = b.getLong();
+                    out.uuidMsb = b.getLong();
+                    out.uuidLsb = b.getLong();
+                    out.instanceId = b.getShort() & 0xffff;
+                    out.type = b.get();
+                    out.status = b.get() & 0xff;
+                    final int length = b.getShort() & 0xffff;
+                    if (length <= GattEventBus.MAX_VALUE_LENGTH
+                            && length == recordLength
+                            - SessionFile.RECORD_HEADER_LENGTH) {
+                        b.get(out.value, 0, length);
+                        out.length = length;
+                        out.sequence = mRecordCount++;
+                        return true;
+                    }
+                }
+                // The end of the data or a damaged record
+                b.position(start);
+            }
+            mBuffer = null;
+        }
+    }
+
+    private boolean openNext() throws IOException {
+        if (++mFileIndex >= mFiles.size()) return false;
+        final File file = mFiles.get(mFileIndex);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the file is closed
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mBuffer.remaining() < SessionFile.HEADER_LENGTH
+                || mBuffer.getInt() != SessionFile.MAGIC) {
+            throw new IOException(file + " is not a session file");
+        }
+        final int version = mBuffer.getShort();
+        if (version != SessionFile.VERSION) {
+            throw new IOException(file + " has unsupported version "
+                    + version);
+        }
+        mBuffer.position(mBuffer.getShort() & 0xffff);
+        return true;
+    }
+
+    /**
+     * @return The packed device address of the last record read.
+     */
+    public long getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return The number of records read.
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Lists the devices in a session. This reads all of it, so it should
+     * not be called on the main thread.
+     *
+     * @param files The segment files, in order.
+     * @return The device addresses, in the order they first appear.
+     * @throws IOException If a file cannot be read or is not a session file.
+     */
+    public static List<String> listAddresses(List<File> files)
+            throws IOException {
+        final SessionReader reader = new SessionReader(files);
+        final GattEventBus.Event event = new GattEventBus.Event();
+        final ArrayList<String> addresses = new ArrayList<>();
+        long last = -1;
+        while (reader.next(event)) {
+            // Records of the same device mostly come together
+            if (reader.getAddress() == last) continue;
+            last = reader.getAddress();
+            final String address = SessionFile.unpackAddress(last);
+            if (!addresses.contains(address)) addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /**
+     * Lists the sessions in a directory.
+     *
+     * @param dir The directory.
+     * @return The session names, newest first.
+     */
+    public static List<String> listSessions(File dir) {
+        final ArrayList<String> names = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files == null) return names;
+        for (File file : files) {
+            final String name = sessionName(file);
+            if (name != null && !names.contains(name)) names.add(name);
+        }
+        // The names start with the date and time
+        Collections.sort(names, Collections.reverseOrder());
+        return names;
+    }
+
+    /**
+     * Finds the segment files of a session.
+     *
+     * @param dir  The directory.
+     * @param name The session name from {@link #listSessions(File)}.
+     * @return The files, in order.
+     */
+    public static List<File> findSegments(File dir, String name) {
+        final ArrayList<File> segments = new ArrayList<>();
+        final File[] files = dir.listFiles();
+        if (files == null) return segments;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (name.equals(sessionName(file))) segments.add(file);
+        }
+        return segments;
+    }
+
+    /**
+     * @param file A segment file, named name-NNN.bles.
+     * @return The session name, or null if it is not a segment file.
+     */
+    private static String sessionName(File file) {
+        final String fileName = file.getName();
+        final int end = fileName.length() - SessionFile.EXTENSION.length()
+                - 4;
+        if (!fileName.endsWith(SessionFile.EXTENSION) || end <= 0
+                || fileName.charAt(end) != '-') {
+            return null;
+        }
+        return fileName.substring(0, end);
+    }
+}
@@ -0,0 +1,142 @@
+package net.kenevans.android.bleexplorer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the events of one or more devices to a {@link SessionWriter}.
+ * Each device's {@link GattEventBus} is consumed by a thread of its own, so
+ * the GATT callback thread only pays for publishing to the bus, and a slow
+ * flush never reaches it.
+ */
+public class SessionRecorder {
+    /** How long an idle thread waits before checking for a due flush. */
+    private static final long IDLE_WAIT_MS = 250;
+
+    private final SessionWriter mWriter;
+    private final HashMap<String, Source> mSources = new HashMap<>();
+    private volatile IOException mError;
+    private boolean mClosed;
+
+    private class Source implements Runnable {
+        final long address;
+        final GattEventBus.Subscription subscription;
+        final Thread thread;
+
+        Source(String address, GattEventBus bus) {
+            this.address = SessionFile.packAddress(address);
+            subscription = bus.subscribe();
+            thread = new Thread(this, "SessionRecorder-" + address);
+        }
+
+        @Override
+        public void run() {
+            final GattEventBus.Event event = new GattEventBus.Event();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (!subscription.take(event, IDLE_WAIT_MS,
+                            TimeUnit.MILLISECONDS)) {
+                        mWriter.syncIfDue();
+                        continue;
+                    }
+                    // Write what is there without waiting again
+                    do {
+                        mWriter.append(event.timestampNanos, address,
+                                event.uuidMsb, event.uuidLsb,
+                                event.instanceId, event.type, event.status,
+                                event.value, 0, event.length);
+                    } while (subscription.poll(event));
+                }
+            } catch (InterruptedException ex) {
+                // Stopped
+            } catch (IOException ex) {
+                mError = ex;
+            } finally {
+                subscription.close();
+            }
+        }
+    }
+
+    /**
+     * @param writer The writer. It is closed when the recorder is closed.
+     */
+    public SessionRecorder(SessionWriter writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * Starts recording the events of a device.
+     *
+     * @param address The device address.
+     * @param bus     The event bus of the device.
+     */
+    public synchronized void addSource(String address, GattEventBus bus) {
+        if (mClosed || mSources.containsKey(address)) return;
+        final Source source = new Source(address, bus);
+        mSources.put(address, source);
+        source.thread.start();
+    }
+
+    /**
+     * Stops recording the events of a device.
+     *
+     * @param address The device address.
+     */
+    public synchronized void removeSource(String address) {
+        final Source source = mSources.remove(address);
+        if (source != null) {
+            stop(source);
+        }
+    }
+
+    private static void stop(Source source) {
+        source.thread.interrupt();
+        try {
+            source.thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops all the sources and closes the writer.
+     *
+     * @throws IOException If the writer could not be closed, or an earlier
+     *                     write failed.
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        for (Source source : mSources.values()) {
+            stop(source);
+        }
+        mSources.clear();
+        mWriter.close();
+        if (mError != null) throw mError;
+    }
+
+    /**
+     * @return The first write error, or null if there was none. Recording
+     * of the device that hit it stops.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * @return The number of events the sources missed because their bus
+     * was full.
+     */
+    public synchronized long getDroppedCount() {
+        long dropped = 0;
+        for (Source source : mSources.values()) {
+            dropped += source.subscription.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    public SessionWriter getWriter() {
+        return mWriter;
+    }
+}
@@ -0,0 +1,170 @@
+package net.kenevans.android.bleexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the records of one device in a recorded session into a
+ * {@link GattEventBus}, so they go through the same consumers and decoding
+ * as live data. A session may hold several devices, each recorded by a
+ * thread of its own, so the records of different devices are neither
+ * meant for the same consumers nor in time order with each other. Those of
+ * one device are. The records can be replayed in real time, sped up, or as
+ * fast as the consumers keep up. When the bus is full the replay waits
+ * instead of dropping events.
+ * <p>
+ * The replay runs on a thread of its own. It is the single producer of
+ * the bus, which should therefore not be one a live connection publishes to.
+ */
+public class SessionReplayer {
+    /** The speed for replaying as fast as possible. */
+    public static final double MAX_SPEED = 0;
+    /** How long to wait for the consumers when the bus is full. */
+    private static final long FULL_WAIT_NANOS = 50000;
+
+    /**
+     * Is told when a replay ends. Called on the replay thread.
+     */
+    public interface Listener {
+        /**
+         * @param replayer The replayer.
+         * @param error    The error that ended it, or null.
+         */
+        void onFinished(SessionReplayer replayer, IOException error);
+    }
+
+    private final List<File> mFiles;
+    private final long mAddress;
+    private final GattEventBus mBus;
+    private final double mSpeed;
+    private Thread mThread;
+    private volatile long mEventCount;
+    private volatile long mStartNanos;
+    private volatile long mEndNanos;
+    private volatile long mWaitCount;
+
+    /**
+     * @param files   The segment files of the session, in order.
+     * @param address The address of the device to replay, one of
+     *                {@link SessionReader#listAddresses(List)}.
+     * @param bus     The bus to publish to.
+     * @param speed   The speed relative to real time, or MAX_SPEED.
+     */
+    public SessionReplayer(List<File> files, String address,
+                           GattEventBus bus, double speed) {
+        mFiles = files;
+        mAddress = SessionFile.packAddress(address);
+        mBus = bus;
+        mSpeed = speed;
+    }
+
+    /**
+     * Starts the replay.
+     *
+     * @param listener Is told when it ends. May be null.
+     */
+    public synchronized void start(final Listener listener) {
+        if (mThread != null) return;
+        mThread = new Thread(() -> {
+            IOException error = null;
+            try {
+                replay();
+            } catch (IOException ex) {
+                error = ex;
+            }
+            mEndNanos = System.nanoTime();
+            if (listener != null) {
+                listener.onFinished(this, error);
+            }
+        }, "SessionReplayer");
+        mThread.start();
+    }
+
+    /**
+     * Stops the replay and waits for the thread to end.
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) return;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void replay() throws IOException {
+        final SessionReader reader = new SessionReader(mFiles);
+        final GattEventBus.Event event = new GattEventBus.Event();
+        final Thread thread = Thread.currentThread();
+        final boolean paced = mSpeed > 0;
+        long firstTimestamp = 0;
+        mStartNanos = System.nanoTime();
+        while (!thread.isInterrupted() && reader.next(event)) {
+            if (reader.getAddress() != mAddress) continue;
+            if (paced) {
+                if (mEventCount == 0) {
+                    firstTimestamp = event.timestampNanos;
+                }
+                final long due = mStartNanos + (long) ((event.timestampNanos
+                        - firstTimestamp) / mSpeed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0
+                        && !thread.isInterrupted()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            while (!mBus.hasRoom()) {
+                if (thread.isInterrupted()) return;
+                mWaitCount++;
+                LockSupport.parkNanos(FULL_WAIT_NANOS);
+            }
+            mBus.publish(event.type, event.status, event.uuidMsb,
+                    event.uuidLsb, event.instanceId, event.value, 0,
+                    event.length);
+            mEventCount++;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mThread != null && mThread.isAlive();
+    }
+
+    /**
+     * @return The number of events replayed.
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return The time since the start, or the length of the replay when
+     * it has ended, in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        final long end = mEndNanos;
+        return (end != 0 ? end : System.nanoTime()) - mStartNanos;
+    }
+
+    /**
+     * @return The number of times the replay waited because the consumers
+     * were behind.
+     */
+    public long getWaitCount() {
+        return mWaitCount;
+    }
+
+    /**
+     * @return The replayed events per second.
+     */
+    public double getRate() {
+        final long elapsed = getElapsedNanos();
+        return elapsed <= 0 ? 0 : mEventCount * 1e9 / elapsed;
+    }
+}
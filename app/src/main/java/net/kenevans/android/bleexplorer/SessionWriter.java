@@ -0,0 +1,220 @@
+package net.kenevans.android.bleexplorer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Appends records to memory-mapped session files in the format of
+ * {@link SessionFile}. Each segment is preallocated and mapped, so an
+ * append is a copy into the page cache with no system call. When a segment
+ * is full it is flushed, trimmed to its used length, and the next one is
+ * started. Flushing to storage is batched: the mapping is forced after a
+ * number of records or a time, whichever comes first.
+ * <p>
+ * The methods are synchronized, so several recording threads can share a
+ * writer.
+ */
+public class SessionWriter implements Closeable {
+    /** The default segment size. */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    /** The default number of records between flushes. */
+    public static final int DEFAULT_SYNC_RECORDS = 4096;
+    /** The default time between flushes, in ms. */
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+    private final File mDir;
+    private final String mName;
+    private final int mSegmentSize;
+    private final int mSyncRecords;
+    private final long mSyncIntervalNanos;
+
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private File mCurrentFile;
+    private int mSegment;
+    private int mUnsynced;
+    private long mLastSyncNanos;
+    private long mRecordCount;
+    private long mByteCount;
+    private boolean mClosed;
+
+    /**
+     * Creates a writer with the default sizes.
+     *
+     * @param dir The directory for the files.
+     */
+    public SessionWriter(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_RECORDS,
+                DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * @param dir            The directory for the files.
+     * @param segmentSize    The size of each file.
+     * @param syncRecords    The number of records between flushes.
+     * @param syncIntervalMs The maximum time between flushes, in ms.
+     */
+    public SessionWriter(File dir, int segmentSize, int syncRecords,
+                         long syncIntervalMs) {
+        final int minSize = SessionFile.HEADER_LENGTH
+                + SessionFile.RECORD_HEADER_LENGTH
+                + GattEventBus.MAX_VALUE_LENGTH + 4;
+        if (segmentSize < minSize) {
+            throw new IllegalArgumentException("segmentSize must be at least "
+                    + minSize);
+        }
+        mDir = dir;
+        mSegmentSize = segmentSize;
+        mSyncRecords = syncRecords;
+        mSyncIntervalNanos = syncIntervalMs * 1000000L;
+        mName = "session-" + new SimpleDateFormat("yyyyMMdd-HHmmss",
+                Locale.US).format(new Date());
+    }
+
+    /**
+     * Appends a record. The first call creates the first segment.
+     *
+     * @param timestampNanos The timestamp, System.nanoTime() units.
+     * @param address        The packed device address.
+     * @param uuidMsb        The most significant bits of the UUID.
+     * @param uuidLsb        The least significant bits of the UUID.
+     * @param instanceId     The characteristic instance ID.
+     * @param type           The GattEventBus event type.
+     * @param status         The GATT status.
+     * @param value          The value. May be null if length is 0.
+     * @param offset         The offset of the value.
+     * @param length         The length of the value.
+     * @throws IOException If a segment cannot be created or flushed.
+     */
+    public synchronized void append(long timestampNanos, long address,
+                                    long uuidMsb, long uuidLsb,
+                                    int instanceId, int type, int status,
+                                    byte[] value, int offset, int length)
+            throws IOException {
+        if (mClosed) throw new IOException("Closed");
+        if (length > GattEventBus.MAX_VALUE_LENGTH) {
+            length = GattEventBus.MAX_VALUE_LENGTH;
+        }
+        final int recordLength = SessionFile.RECORD_HEADER_LENGTH + length;
+        // Keep room for the 0 that ends the data
+        if (mBuffer == null
+                || mBuffer.remaining() < recordLength + 4) {
+            nextSegment();
+        }
+        final MappedByteBuffer b = mBuffer;
+        b.putInt(recordLength);
+        b.putLong(timestampNanos);
+        b.putLong(address);
+        b.putLong(uuidMsb);
+        b.putLong(uuidLsb);
+        b.putShort((short) instanceId);
+        b.put((byte) type);
+        b.put((byte) status);
+        b.putShort((short) length);
+        if (length > 0) b.put(value, offset, length);
+        mRecordCount++;
+        mByteCount += recordLength;
+        if (++mUnsynced >= mSyncRecords) {
+            sync();
+        }
+    }
+
+    /**
+     * Flushes the current segment if the sync interval has passed since the
+     * last flush. Called by idle recording threads, so a trickle of records
+     * does not wait for a full batch.
+     */
+    public synchronized void syncIfDue() {
+        if (mUnsynced > 0
+                && System.nanoTime() - mLastSyncNanos >= mSyncIntervalNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * Flushes the records written so far to storage.
+     */
+    public synchronized void sync() {
+        if (mBuffer != null && mUnsynced > 0) {
+            mBuffer.force();
+        }
+        mUnsynced = 0;
+        mLastSyncNanos = System.nanoTime();
+    }
+
+    private void nextSegment() throws IOException {
+        closeSegment();
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+        mSegment++;
+        mCurrentFile = new File(mDir, String.format(Locale.US, "%s-%03d%s",
+                mName, mSegment, SessionFile.EXTENSION));
+        mFile = new RandomAccessFile(mCurrentFile, "rw");
+        mFile.setLength(mSegmentSize);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                mSegmentSize);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(SessionFile.MAGIC);
+        mBuffer.putShort(SessionFile.VERSION);
+        mBuffer.putShort((short) SessionFile.HEADER_LENGTH);
+        mBuffer.putLong(System.currentTimeMillis());
+        mBuffer.putLong(System.nanoTime());
+        mBuffer.putInt(mSegment);
+        mBuffer.putInt(0);
+        mLastSyncNanos = System.nanoTime();
+    }
+
+    /**
+     * Flushes the current segment and trims the file to the data written.
+     */
+    private void closeSegment() throws IOException {
+        if (mFile == null) return;
+        try {
+            final int used = mBuffer.position();
+            mBuffer.force();
+            mBuffer = null;
+            // The mapping stays until it is collected, but it is not
+            // touched again, so trimming the file under it is safe
+            mFile.setLength(used);
+        } finally {
+            mFile.close();
+            mFile = null;
+            mUnsynced = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        closeSegment();
+    }
+
+    /**
+     * @return The file being written, or null before the first record.
+     */
+    public synchronized File getCurrentFile() {
+        return mCurrentFile;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegment;
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+}
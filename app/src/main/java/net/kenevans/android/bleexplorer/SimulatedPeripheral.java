@@ -0,0 +1,928 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link GattClient} connected to a peripheral that only exists in
+ * software. It has the Device Information, Heart Rate, Battery, HxM2
+ * custom data, Polar PMD and Firmware Update services, and sends
+ * notifications at rates set in a {@link Config}, which can also add
+ * operation latency, notification loss and link drops. Notifications are
+ * cut to the negotiated MTU as on a real link.
+ * <p>
+ * The Firmware Update Service works as in {@link FirmwareUpdateStatus}. The
+ * image is not kept, only its CRC, and what was received is kept when the
+ * link drops, so an upload can be resumed.
+ * <p>
+ * Callbacks come from a thread of the simulator, as they would from the
+ * Binder thread.
+ * <p>
+ * Nothing here uses Android other than Log, so it runs in the app, where
+ * the rates are set through {@link BluetoothLeService#getSimulatorConfig()}
+ * before connecting, and on a plain JVM, as in the load test.
+ */
+public class SimulatedPeripheral implements GattClient {
+    private static final String TAG = SimulatedPeripheral.class
+            .getSimpleName();
+    /**
+     * Simulated devices have addresses with this prefix, which is in the
+     * locally administered range, so it does not collide with real ones.
+     */
+    public static final String ADDRESS_PREFIX = "02:00:00:00:00:";
+    public static final String DEFAULT_ADDRESS = ADDRESS_PREFIX + "01";
+    public static final String DEFAULT_NAME = "Simulated Sensor";
+
+    public static final UUID UUID_DEVICE_INFORMATION = UUID.fromString(
+            "0000180a-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_MODEL_NUMBER = UUID.fromString(
+            "00002a24-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_MANUFACTURER_NAME = UUID.fromString(
+            "00002a29-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_HEART_RATE = UUID.fromString(
+            "0000180d-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_BATTERY = UUID.fromString(
+            "0000180f-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_HXM2 = UUID.fromString(
+            "befdff10-c979-11e1-9b21-0800200c9a66");
+    public static final UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(
+            GattAttributes.HEART_RATE_MEASUREMENT);
+    public static final UUID UUID_BATTERY_LEVEL = UUID.fromString(
+            GattAttributes.BATTERY_LEVEL);
+    public static final UUID UUID_CUSTOM_MEASUREMENT = UUID.fromString(
+            GattAttributes.CUSTOM_MEASUREMENT);
+    public static final UUID UUID_TEST_MODE = UUID.fromString(
+            GattAttributes.TEST_MODE);
+    public static final UUID UUID_PMD = UUID.fromString(
+            "fb005c80-02e7-f387-1cad-8acd2d8df0c8");
+    public static final UUID UUID_PMD_CONTROL = UUID.fromString(
+            "fb005c81-02e7-f387-1cad-8acd2d8df0c8");
+    public static final UUID UUID_PMD_DATA = UUID.fromString(
+            "fb005c82-02e7-f387-1cad-8acd2d8df0c8");
+    public static final UUID UUID_FIRMWARE_UPDATE = UUID.fromString(
+            GattAttributes.FIRMWARE_UPDATE);
+    public static final UUID UUID_FIRMWARE_UPDATE_STATUS = UUID.fromString(
+            GattAttributes.FIRMWARE_UPDATE_STATUS);
+    public static final UUID UUID_FIRMWARE_IMAGE_DATA = UUID.fromString(
+            GattAttributes.FIRMWARE_IMAGE_DATA);
+    private static final UUID UUID_CCCD = UUID.fromString(
+            GattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    /** PMD measurement types. */
+    public static final int PMD_ECG = 0;
+    public static final int PMD_ACC = 2;
+    /** PMD control point op codes. */
+    public static final int PMD_GET_SETTINGS = 0x01;
+    public static final int PMD_START = 0x02;
+    public static final int PMD_STOP = 0x03;
+    public static final int PMD_RESPONSE = 0xF0;
+    public static final int PMD_FEATURES = 0x0F;
+    /** Bytes in a PMD data frame before the samples. */
+    private static final int PMD_FRAME_HEADER = 10;
+    /** The status is notified again after this many chunks dropped. */
+    private static final int FIRMWARE_DROP_NOTIFY_INTERVAL = 16;
+    private static final int GATT_CONN_TIMEOUT = 8;
+    private static final int MAX_MTU = 517;
+
+    /**
+     * The behavior of a simulated peripheral. The rates are multiplied by
+     * speed, so a load test can run at several times real-world rates.
+     */
+    public static class Config {
+        /** The factor all the rates are multiplied by. */
+        public double speed = 1;
+        /** Heart Rate Measurement notifications per second. */
+        public double heartRateHz = 1;
+        /** The number of R-R intervals in each Heart Rate Measurement. */
+        public int rrIntervals = 1;
+        /** Custom Measurement notifications per second. */
+        public double customHz = 1;
+        /** Battery Level notifications per second. */
+        public double batteryHz = 1 / 60.;
+        /** The PMD ECG sample rate. */
+        public int ecgSampleRate = 130;
+        /** The PMD ACC sample rate. */
+        public int accSampleRate = 50;
+        /**
+         * The maximum number of samples in a PMD frame. Fewer are sent if
+         * they do not fit in the MTU.
+         */
+        public int pmdMaxSamplesPerFrame = 73;
+        /** Whether PMD frames are delta compressed. */
+        public boolean pmdCompressed;
+        /** The time to complete an operation, in ms. */
+        public long latencyMs = 20;
+        /**
+         * The time to complete a write without response, in us, which is
+         * only as long as it takes the controller to send it.
+         */
+        public long writeNoResponseMicros = 1250;
+        /** The window in the Firmware Update Status. */
+        public int firmwareWindow = 16 * 1024;
+        /** The largest firmware image accepted. */
+        public long maxFirmwareSize = 16 * 1024 * 1024;
+        /**
+         * The probability that a notification or a firmware chunk is lost,
+         * from 0 to 1.
+         */
+        public double loss;
+        /** The time after which the link drops, in ms, 0 for never. */
+        public long linkDropIntervalMs;
+        /** The largest MTU the peripheral accepts. */
+        public int maxMtu = MAX_MTU;
+        /** The seed for the random numbers. */
+        public long seed = 1;
+
+        public Config copy() {
+            final Config copy = new Config();
+            copy.speed = speed;
+            copy.heartRateHz = heartRateHz;
+            copy.rrIntervals = rrIntervals;
+            copy.customHz = customHz;
+            copy.batteryHz = batteryHz;
+            copy.ecgSampleRate = ecgSampleRate;
+            copy.accSampleRate = accSampleRate;
+            copy.pmdMaxSamplesPerFrame = pmdMaxSamplesPerFrame;
+            copy.pmdCompressed = pmdCompressed;
+            copy.latencyMs = latencyMs;
+            copy.writeNoResponseMicros = writeNoResponseMicros;
+            copy.firmwareWindow = firmwareWindow;
+            copy.maxFirmwareSize = maxFirmwareSize;
+            copy.loss = loss;
+            copy.linkDropIntervalMs = linkDropIntervalMs;
+            copy.maxMtu = maxMtu;
+            copy.seed = seed;
+            return copy;
+        }
+    }
+
+    /**
+     * Creates simulated peripherals, each with a copy of the Config as it
+     * is at the time.
+     */
+    public static class Factory implements GattClient.Factory {
+        private final Config mConfig;
+
+        public Factory(Config config) {
+            mConfig = config;
+        }
+
+        public Config getConfig() {
+            return mConfig;
+        }
+
+        @Override
+        public GattClient connect(String address, Callback callback) {
+            final SimulatedPeripheral peripheral =
+                    new SimulatedPeripheral(address, mConfig.copy(),
+                            callback);
+            peripheral.connect();
+            return peripheral;
+        }
+    }
+
+    private final String mAddress;
+    private final Config mConfig;
+    private final Callback mCallback;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final List<GattService> mServices = new ArrayList<>();
+    private final Random mRandom;
+    private final long mStartNanos = System.nanoTime();
+    private volatile boolean mConnected;
+    private volatile boolean mClosed;
+
+    // Only used on the simulator thread
+    private int mMtu = DEFAULT_MTU;
+    /** The values that are read as they were last written. */
+    private final HashMap<GattCharacteristic, byte[]> mValues =
+            new HashMap<>();
+    private final HashMap<GattCharacteristic, ScheduledFuture<?>>
+            mStreams = new HashMap<>();
+    private final ScheduledFuture<?>[] mPmdStreams = new ScheduledFuture[3];
+    private ScheduledFuture<?> mLinkDrop;
+    private boolean mPmdDataEnabled;
+    private boolean mPmdControlEnabled;
+    private boolean mFirmwareStatusEnabled;
+    private final FirmwareUpdate mFirmware = new FirmwareUpdate();
+    private int mBatteryLevel = 100;
+    private int mBeat;
+    private final byte[] mFrame = new byte[MAX_MTU];
+    /** The samples of a PMD frame, with the channels of each together. */
+    private final int[] mPmdSamples = new int[3 * MAX_MTU];
+
+    private volatile long mSentCount;
+    private volatile long mLostCount;
+
+    private GattCharacteristic mHeartRate;
+    private GattCharacteristic mBattery;
+    private GattCharacteristic mCustom;
+    private GattCharacteristic mTestMode;
+    private GattCharacteristic mPmdControl;
+    private GattCharacteristic mPmdData;
+    private GattCharacteristic mFirmwareStatus;
+    private GattCharacteristic mFirmwareData;
+
+    /**
+     * @param address  The device address.
+     * @param config   The behavior. It is not copied.
+     * @param callback The callback for the results.
+     */
+    public SimulatedPeripheral(String address, Config config,
+                               Callback callback) {
+        mAddress = address;
+        mConfig = config;
+        mCallback = callback;
+        mRandom = new Random(config.seed);
+        mExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, TAG + "-" + address);
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+        buildServices();
+    }
+
+    /**
+     * @param address A device address.
+     * @return Whether it is the address of a simulated device.
+     */
+    public static boolean isSimulatedAddress(String address) {
+        return address != null && address.startsWith(ADDRESS_PREFIX);
+    }
+
+    private void buildServices() {
+        GattService service = addService(UUID_DEVICE_INFORMATION);
+        mValues.put(addCharacteristic(service, UUID_MANUFACTURER_NAME,
+                GattCharacteristic.PROPERTY_READ),
+                "BLE Explorer".getBytes(StandardCharsets.UTF_8));
+        mValues.put(addCharacteristic(service, UUID_MODEL_NUMBER,
+                GattCharacteristic.PROPERTY_READ),
+                DEFAULT_NAME.getBytes(StandardCharsets.UTF_8));
+
+        service = addService(UUID_HEART_RATE);
+        mHeartRate = addCharacteristic(service, UUID_HEART_RATE_MEASUREMENT,
+                GattCharacteristic.PROPERTY_NOTIFY);
+
+        service = addService(UUID_BATTERY);
+        mBattery = addCharacteristic(service, UUID_BATTERY_LEVEL,
+                GattCharacteristic.PROPERTY_READ
+                        | GattCharacteristic.PROPERTY_NOTIFY);
+
+        service = addService(UUID_HXM2);
+        mCustom = addCharacteristic(service, UUID_CUSTOM_MEASUREMENT,
+                GattCharacteristic.PROPERTY_NOTIFY);
+        mTestMode = addCharacteristic(service, UUID_TEST_MODE,
+                GattCharacteristic.PROPERTY_READ
+                        | GattCharacteristic.PROPERTY_WRITE
+                        | GattCharacteristic.PROPERTY_NOTIFY);
+        mValues.put(mTestMode, new byte[]{0});
+
+        service = addService(UUID_PMD);
+        mPmdControl = addCharacteristic(service, UUID_PMD_CONTROL,
+                GattCharacteristic.PROPERTY_READ
+                        | GattCharacteristic.PROPERTY_WRITE
+                        | GattCharacteristic.PROPERTY_INDICATE);
+        // Features: ECG and ACC
+        mValues.put(mPmdControl, new byte[]{(byte) PMD_FEATURES,
+                (1 << PMD_ECG) | (1 << PMD_ACC), 0});
+        mPmdData = addCharacteristic(service, UUID_PMD_DATA,
+                GattCharacteristic.PROPERTY_NOTIFY);
+
+        service = addService(UUID_FIRMWARE_UPDATE);
+        mFirmwareStatus = addCharacteristic(service,
+                UUID_FIRMWARE_UPDATE_STATUS,
+                GattCharacteristic.PROPERTY_READ
+                        | GattCharacteristic.PROPERTY_WRITE
+                        | GattCharacteristic.PROPERTY_NOTIFY);
+        mFirmwareData = addCharacteristic(service, UUID_FIRMWARE_IMAGE_DATA,
+                GattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+    }
+
+    private GattService addService(UUID uuid) {
+        final GattService service = new GattService(uuid, 0,
+                GattService.SERVICE_TYPE_PRIMARY);
+        mServices.add(service);
+        return service;
+    }
+
+    private static GattCharacteristic addCharacteristic(
+            GattService service, UUID uuid, int properties) {
+        final GattCharacteristic characteristic = new GattCharacteristic(
+                uuid, 0, properties, GattCharacteristic.PERMISSION_READ
+                | GattCharacteristic.PERMISSION_WRITE);
+        if ((properties & (GattCharacteristic.PROPERTY_NOTIFY
+                | GattCharacteristic.PROPERTY_INDICATE)) != 0) {
+            characteristic.addDescriptor(new GattDescriptor(UUID_CCCD,
+                    GattDescriptor.PERMISSION_READ
+                            | GattDescriptor.PERMISSION_WRITE));
+        }
+        service.addCharacteristic(characteristic);
+        return characteristic;
+    }
+
+    /**
+     * Runs a task after the operation latency, unless closed.
+     */
+    private boolean later(Runnable task) {
+        if (mClosed) return false;
+        mExecutor.schedule(task, mConfig.latencyMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private long periodNanos(double hz) {
+        return (long) (1e9 / (hz * mConfig.speed));
+    }
+
+    @Override
+    public boolean connect() {
+        return later(() -> {
+            if (mConnected) return;
+            mConnected = true;
+            mMtu = DEFAULT_MTU;
+            Log.d(TAG, mAddress + ": Connected");
+            mCallback.onConnectionStateChange(GATT_SUCCESS, STATE_CONNECTED);
+            if (mConfig.linkDropIntervalMs > 0) {
+                mLinkDrop = mExecutor.schedule(
+                        () -> dropLink(GATT_CONN_TIMEOUT),
+                        mConfig.linkDropIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        later(() -> dropLink(GATT_SUCCESS));
+    }
+
+    private void dropLink(int status) {
+        if (!mConnected) return;
+        mConnected = false;
+        for (ScheduledFuture<?> stream : mStreams.values()) {
+            stream.cancel(false);
+        }
+        mStreams.clear();
+        for (int i = 0; i < mPmdStreams.length; i++) {
+            stopPmd(i);
+        }
+        mPmdDataEnabled = false;
+        mPmdControlEnabled = false;
+        mFirmwareStatusEnabled = false;
+        if (mLinkDrop != null) {
+            mLinkDrop.cancel(false);
+            mLinkDrop = null;
+        }
+        Log.d(TAG, mAddress + ": Disconnected, status=" + status);
+        mCallback.onConnectionStateChange(status, STATE_DISCONNECTED);
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mConnected = false;
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mConnected && later(() -> mCallback.onServicesDiscovered(
+                GATT_SUCCESS));
+    }
+
+    @Override
+    public List<GattService> getServices() {
+        return mServices;
+    }
+
+    @Override
+    public GattService getService(UUID uuid) {
+        for (GattService service : mServices) {
+            if (service.getUuid().equals(uuid)) return service;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(
+            final GattCharacteristic characteristic) {
+        if (!mConnected || (characteristic.getProperties()
+                & GattCharacteristic.PROPERTY_READ) == 0) {
+            return false;
+        }
+        return later(() -> {
+            final byte[] value;
+            if (characteristic == mBattery) {
+                value = new byte[]{(byte) mBatteryLevel};
+            } else if (characteristic == mFirmwareStatus) {
+                value = mFirmware.getStatus();
+            } else {
+                final byte[] stored = mValues.get(characteristic);
+                value = stored != null ? stored.clone() : new byte[0];
+            }
+            mCallback.onCharacteristicRead(characteristic, value,
+                    GATT_SUCCESS);
+        });
+    }
+
+    @Override
+    public boolean writeCharacteristic(
+            final GattCharacteristic characteristic, byte[] data,
+            int writeType) {
+        if (!mConnected || (characteristic.getProperties()
+                & (GattCharacteristic.PROPERTY_WRITE
+                | GattCharacteristic.PROPERTY_WRITE_NO_RESPONSE))
+                == 0) {
+            return false;
+        }
+        // The caller may reuse its array after the callback
+        final byte[] value = data == null ? null : data.clone();
+        if (writeType == GattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            // Done when the controller has sent it
+            if (mClosed) return false;
+            mExecutor.schedule(() -> {
+                if (!mConnected) return;
+                mCallback.onCharacteristicWrite(characteristic,
+                        GATT_SUCCESS);
+                if (characteristic != mFirmwareData) return;
+                if (mConfig.loss > 0 && mRandom.nextDouble() < mConfig.loss) {
+                    mLostCount++;
+                    return;
+                }
+                onFirmwareChunk(value);
+            }, mConfig.writeNoResponseMicros, TimeUnit.MICROSECONDS);
+            return true;
+        }
+        return later(() -> {
+            mCallback.onCharacteristicWrite(characteristic, GATT_SUCCESS);
+            // The response is indicated after the write completes
+            if (characteristic == mPmdControl) {
+                onPmdCommand(value);
+            } else if (characteristic == mFirmwareStatus) {
+                onFirmwareCommand(value);
+            } else if (value != null) {
+                mValues.put(characteristic, value);
+            }
+        });
+    }
+
+    @Override
+    public boolean readDescriptor(final GattDescriptor descriptor) {
+        return mConnected && later(() -> mCallback.onDescriptorRead(
+                descriptor, getCccd(descriptor.getCharacteristic()),
+                GATT_SUCCESS));
+    }
+
+    @Override
+    public boolean writeDescriptor(final GattDescriptor descriptor,
+                                   byte[] data) {
+        if (!mConnected) return false;
+        final byte[] value = data == null ? null : data.clone();
+        return later(() -> {
+            if (UUID_CCCD.equals(descriptor.getUuid()) && value != null
+                    && value.length > 0) {
+                onCccdWritten(descriptor.getCharacteristic(), value[0] != 0);
+            }
+            mCallback.onDescriptorWrite(descriptor, GATT_SUCCESS);
+        });
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(
+            GattCharacteristic characteristic, boolean enable) {
+        // The peripheral acts on the CCCD write
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        return mConnected && later(() -> {
+            mMtu = Math.max(DEFAULT_MTU, Math.min(mtu, mConfig.maxMtu));
+            mCallback.onMtuChanged(mMtu, GATT_SUCCESS);
+        });
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return mConnected;
+    }
+
+    @Override
+    public boolean setPreferredPhy(final int txPhy, final int rxPhy,
+                                   int phyOptions) {
+        // The masks for 1M and 2M have the same values as the PHYs
+        return later(() -> mCallback.onPhyUpdate(txPhy, rxPhy,
+                GATT_SUCCESS));
+    }
+
+    /**
+     * @return The value of the CCCD of a characteristic, from what is
+     * being sent.
+     */
+    private byte[] getCccd(GattCharacteristic characteristic) {
+        final boolean enabled;
+        if (characteristic == mPmdData) {
+            enabled = mPmdDataEnabled;
+        } else if (characteristic == mPmdControl) {
+            return (mPmdControlEnabled
+                    ? GattDescriptor.ENABLE_INDICATION_VALUE
+                    : GattDescriptor.DISABLE_NOTIFICATION_VALUE).clone();
+        } else if (characteristic == mFirmwareStatus) {
+            enabled = mFirmwareStatusEnabled;
+        } else {
+            enabled = mStreams.containsKey(characteristic);
+        }
+        return (enabled ? GattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : GattDescriptor.DISABLE_NOTIFICATION_VALUE).clone();
+    }
+
+    private void onCccdWritten(GattCharacteristic characteristic,
+                               boolean enabled) {
+        if (characteristic == mPmdData) {
+            mPmdDataEnabled = enabled;
+            return;
+        }
+        if (characteristic == mPmdControl) {
+            mPmdControlEnabled = enabled;
+            return;
+        }
+        if (characteristic == mFirmwareStatus) {
+            mFirmwareStatusEnabled = enabled;
+            return;
+        }
+        final ScheduledFuture<?> old = mStreams.remove(characteristic);
+        if (old != null) old.cancel(false);
+        if (!enabled) return;
+        final Runnable task;
+        final double hz;
+        if (characteristic == mHeartRate) {
+            task = this::sendHeartRate;
+            hz = mConfig.heartRateHz;
+        } else if (characteristic == mCustom) {
+            task = this::sendCustom;
+            hz = mConfig.customHz;
+        } else if (characteristic == mBattery) {
+            task = this::sendBattery;
+            hz = mConfig.batteryHz;
+        } else {
+            return;
+        }
+        final long period = periodNanos(hz);
+        mStreams.put(characteristic, mExecutor.scheduleAtFixedRate(task,
+                period, period, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Sends a notification, unless it is lost. The value is cut to fit
+     * the MTU.
+     */
+    private void notify(GattCharacteristic characteristic,
+                        byte[] value, int length) {
+        if (!mConnected) return;
+        if (mConfig.loss > 0 && mRandom.nextDouble() < mConfig.loss) {
+            mLostCount++;
+            return;
+        }
+        mSentCount++;
+        mCallback.onCharacteristicChanged(characteristic,
+                Arrays.copyOf(value, Math.min(length, mMtu - 3)));
+    }
+
+    private double seconds() {
+        return (System.nanoTime() - mStartNanos) * 1e-9 * mConfig.speed;
+    }
+
+    private void sendHeartRate() {
+        final int hr = (int) (70 + 10 * Math.sin(seconds() / 10));
+        final int rr = 60 * 1024 / hr;
+        final byte[] value = mFrame;
+        int pos = 0;
+        value[pos++] = (byte) (HeartRateMeasurement.FLAG_RR_INTERVALS
+                | HeartRateMeasurement.SENSOR_CONTACT_DETECTED << 1);
+        value[pos++] = (byte) hr;
+        for (int i = 0; i < mConfig.rrIntervals && pos + 2 <= value.length;
+             i++) {
+            final int jittered = rr + mRandom.nextInt(21) - 10;
+            value[pos++] = (byte) jittered;
+            value[pos++] = (byte) (jittered >> 8);
+        }
+        notify(mHeartRate, value, pos);
+    }
+
+    private void sendCustom() {
+        final int activity = 100 + (mBeat++ % 50);
+        final int peak = 200 + mRandom.nextInt(100);
+        final byte[] value = {
+                CustomMeasurement.FLAG_ACTIVITY
+                        | CustomMeasurement.FLAG_PEAK_ACCELERATION,
+                (byte) activity, (byte) (activity >> 8),
+                (byte) peak, (byte) (peak >> 8)};
+        notify(mCustom, value, value.length);
+    }
+
+    private void sendBattery() {
+        if (mBatteryLevel > 0) mBatteryLevel--;
+        notify(mBattery, new byte[]{(byte) mBatteryLevel}, 1);
+    }
+
+    private void onPmdCommand(byte[] value) {
+        if (value == null || value.length < 2) return;
+        final int op = value[0] & 0xff;
+        final int type = value[1] & 0xff;
+        final boolean supported = type == PMD_ECG || type == PMD_ACC;
+        byte[] params = new byte[0];
+        switch (op) {
+            case PMD_GET_SETTINGS:
+                if (supported) {
+                    final int rate = type == PMD_ECG ? mConfig.ecgSampleRate
+                            : mConfig.accSampleRate;
+                    final int resolution = type == PMD_ECG ? 14 : 16;
+                    // Sample rate and resolution settings, one value each
+                    params = new byte[]{0, 1, (byte) rate, (byte) (rate >> 8),
+                            1, 1, (byte) resolution, 0};
+                }
+                break;
+            case PMD_START:
+                if (supported) startPmd(type);
+                break;
+            case PMD_STOP:
+                if (supported) stopPmd(type);
+                break;
+            default:
+                break;
+        }
+        if (!mPmdControlEnabled) return;
+        final byte[] response = new byte[5 + params.length];
+        response[0] = (byte) PMD_RESPONSE;
+        response[1] = (byte) op;
+        response[2] = (byte) type;
+        // Error code: 0 is success, 1 is an invalid op code, 2 is an
+        // unsupported type
+        response[3] = (byte) (op < PMD_GET_SETTINGS || op > PMD_STOP ? 1
+                : supported ? 0 : 2);
+        System.arraycopy(params, 0, response, 5, params.length);
+        notify(mPmdControl, response, response.length);
+    }
+
+    private void startPmd(final int type) {
+        stopPmd(type);
+        final int bytesPerSample = type == PMD_ECG ? 3 : 6;
+        final int rate = type == PMD_ECG ? mConfig.ecgSampleRate
+                : mConfig.accSampleRate;
+        // Frames are as full as the MTU allows, when the MTU is known
+        final int samples = Math.max(1, Math.min(
+                mConfig.pmdMaxSamplesPerFrame,
+                (mMtu - 3 - PMD_FRAME_HEADER) / bytesPerSample));
+        final long period = periodNanos(rate / (double) samples);
+        mPmdStreams[type] = mExecutor.scheduleAtFixedRate(
+                () -> sendPmdFrame(type, samples), period, period,
+                TimeUnit.NANOSECONDS);
+    }
+
+    private void stopPmd(int type) {
+        if (type < mPmdStreams.length && mPmdStreams[type] != null) {
+            mPmdStreams[type].cancel(false);
+            mPmdStreams[type] = null;
+        }
+    }
+
+    private void sendPmdFrame(int type, int samples) {
+        if (!mPmdDataEnabled) return;
+        final byte[] frame = mFrame;
+        final long timestamp = System.nanoTime() - mStartNanos;
+        frame[0] = (byte) type;
+        for (int i = 0; i < 8; i++) {
+            frame[1 + i] = (byte) (timestamp >> (8 * i));
+        }
+        final int[] values = mPmdSamples;
+        final double t = seconds();
+        final int channels;
+        if (type == PMD_ECG) {
+            // In microvolts
+            channels = 1;
+            for (int i = 0; i < samples; i++) {
+                values[i] = (int) (1000 * Math.sin(2 * Math.PI
+                        * (t + i / (double) mConfig.ecgSampleRate)))
+                        + mRandom.nextInt(41) - 20;
+            }
+        } else {
+            // x, y and z in mG
+            channels = 3;
+            for (int i = 0; i < 3 * samples; i += 3) {
+                values[i] = mRandom.nextInt(21) - 10;
+                values[i + 1] = mRandom.nextInt(21) - 10;
+                values[i + 2] = 1000 + mRandom.nextInt(21) - 10;
+            }
+        }
+        final int pos;
+        if (mConfig.pmdCompressed) {
+            // Frame type 0x80, a 16-bit reference for the 14-bit ECG and
+            // 16-bit ACC, then one block of deltas
+            frame[9] = (byte) 0x80;
+            pos = putDeltas(frame, values, samples, channels);
+        } else {
+            // Frame type 0, 24-bit ECG, or frame type 1, 16-bit ACC
+            frame[9] = (byte) (type == PMD_ECG ? 0 : 1);
+            final int bytes = type == PMD_ECG ? 3 : 2;
+            int p = PMD_FRAME_HEADER;
+            for (int i = 0; i < channels * samples; i++) {
+                for (int b = 0; b < bytes; b++) {
+                    frame[p++] = (byte) (values[i] >> (8 * b));
+                }
+            }
+            pos = p;
+        }
+        notify(mPmdData, frame, pos);
+    }
+
+    private static int putDeltas(byte[] frame, int[] values, int samples,
+                                 int channels) {
+        int pos = PMD_FRAME_HEADER;
+        for (int c = 0; c < channels; c++) {
+            frame[pos++] = (byte) values[c];
+            frame[pos++] = (byte) (values[c] >> 8);
+        }
+        if (samples == 1) return pos;
+        // The bits for the largest delta, with its sign
+        int max = 0;
+        for (int i = channels; i < channels * samples; i++) {
+            final int delta = values[i] - values[i - channels];
+            max = Math.max(max, delta < 0 ? ~delta : delta);
+        }
+        final int width = 33 - Integer.numberOfLeadingZeros(max);
+        frame[pos++] = (byte) width;
+        frame[pos++] = (byte) (samples - 1);
+        long bits = 0;
+        int available = 0;
+        for (int i = channels; i < channels * samples; i++) {
+            final long delta = values[i] - values[i - channels];
+            bits |= (delta & ((1L << width) - 1)) << available;
+            available += width;
+            while (available >= 8) {
+                frame[pos++] = (byte) bits;
+                bits >>>= 8;
+                available -= 8;
+            }
+        }
+        if (available > 0) frame[pos++] = (byte) bits;
+        return pos;
+    }
+
+    /**
+     * The state of a firmware upload, which outlives the link.
+     */
+    private static class FirmwareUpdate {
+        int state = FirmwareUpdateStatus.STATE_IDLE;
+        int error = FirmwareUpdateStatus.ERROR_NONE;
+        long size;
+        long crc;
+        long offset;
+        int window;
+        /** The offset of the last status notified. */
+        long notified;
+        /** The chunks dropped since the last one received, after a gap. */
+        int dropped;
+        final CRC32 received = new CRC32();
+
+        byte[] getStatus() {
+            final byte[] status = new byte[FirmwareUpdateStatus.LENGTH];
+            status[0] = (byte) state;
+            status[1] = (byte) error;
+            for (int i = 0; i < 4; i++) {
+                status[2 + i] = (byte) (offset >> (8 * i));
+            }
+            status[6] = (byte) window;
+            status[7] = (byte) (window >> 8);
+            return status;
+        }
+    }
+
+    private void notifyFirmwareStatus() {
+        mFirmware.notified = mFirmware.offset;
+        if (!mFirmwareStatusEnabled) return;
+        final byte[] status = mFirmware.getStatus();
+        notify(mFirmwareStatus, status, status.length);
+    }
+
+    private void onFirmwareCommand(byte[] value) {
+        final FirmwareUpdate fw = mFirmware;
+        final int op = value == null || value.length == 0 ? 0
+                : value[0] & 0xff;
+        fw.error = FirmwareUpdateStatus.ERROR_NONE;
+        switch (op) {
+            case FirmwareUpdateStatus.OP_START:
+                if (value.length < 9) {
+                    fw.error = FirmwareUpdateStatus.ERROR_INVALID_COMMAND;
+                    break;
+                }
+                final long size = uint32(value, 1);
+                final long crc = uint32(value, 5);
+                fw.window = Math.min(0xFFFF, mConfig.firmwareWindow);
+                fw.dropped = 0;
+                if (fw.state == FirmwareUpdateStatus.STATE_RECEIVING
+                        && size == fw.size && crc == fw.crc) {
+                    // The same image, so carry on where it was cut off
+                    break;
+                }
+                fw.size = size;
+                fw.crc = crc;
+                fw.offset = 0;
+                fw.received.reset();
+                if (size > mConfig.maxFirmwareSize) {
+                    fw.state = FirmwareUpdateStatus.STATE_FAILED;
+                    fw.error = FirmwareUpdateStatus.ERROR_TOO_LARGE;
+                } else {
+                    fw.state = FirmwareUpdateStatus.STATE_RECEIVING;
+                }
+                break;
+            case FirmwareUpdateStatus.OP_VERIFY:
+                if (fw.state != FirmwareUpdateStatus.STATE_RECEIVING) {
+                    fw.error = FirmwareUpdateStatus.ERROR_INVALID_COMMAND;
+                } else if (fw.offset == fw.size
+                        && fw.received.getValue() == fw.crc) {
+                    fw.state = FirmwareUpdateStatus.STATE_COMPLETE;
+                } else {
+                    fw.state = FirmwareUpdateStatus.STATE_FAILED;
+                    fw.error = FirmwareUpdateStatus.ERROR_CRC_MISMATCH;
+                }
+                break;
+            case FirmwareUpdateStatus.OP_ABORT:
+                fw.state = FirmwareUpdateStatus.STATE_IDLE;
+                fw.offset = 0;
+                break;
+            default:
+                fw.error = FirmwareUpdateStatus.ERROR_INVALID_COMMAND;
+                break;
+        }
+        Log.d(TAG, mAddress + ": Firmware "
+                + FirmwareUpdateStatus.getStateName(fw.state) + " at "
+                + fw.offset + " of " + fw.size);
+        notifyFirmwareStatus();
+    }
+
+    private void onFirmwareChunk(byte[] value) {
+        final FirmwareUpdate fw = mFirmware;
+        if (fw.state != FirmwareUpdateStatus.STATE_RECEIVING || value == null
+                || value.length <= FirmwareUpdateStatus.CHUNK_HEADER_LENGTH) {
+            return;
+        }
+        final long offset = uint32(value, 0);
+        final int length = value.length
+                - FirmwareUpdateStatus.CHUNK_HEADER_LENGTH;
+        if (offset < fw.offset) {
+            // Sent again after going back, already have it
+            return;
+        }
+        if (offset > fw.offset || offset + length > fw.size) {
+            // Tell the sender when it starts, and again now and then in
+            // case that is lost
+            if (fw.dropped++ % FIRMWARE_DROP_NOTIFY_INTERVAL == 0) {
+                fw.error = FirmwareUpdateStatus.ERROR_OUT_OF_ORDER;
+                notifyFirmwareStatus();
+                fw.error = FirmwareUpdateStatus.ERROR_NONE;
+            }
+            return;
+        }
+        fw.dropped = 0;
+        fw.received.update(value, FirmwareUpdateStatus.CHUNK_HEADER_LENGTH,
+                length);
+        fw.offset += length;
+        if (fw.offset - fw.notified >= fw.window / 2
+                || fw.offset == fw.size) {
+            notifyFirmwareStatus();
+        }
+    }
+
+    private static long uint32(byte[] value, int pos) {
+        return (value[pos] & 0xFFL) | ((value[pos + 1] & 0xFFL) << 8)
+                | ((value[pos + 2] & 0xFFL) << 16)
+                | ((value[pos + 3] & 0xFFL) << 24);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return The number of notifications sent.
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return The number of notifications lost on purpose.
+     */
+    public long getLostCount() {
+        return mLostCount;
+    }
+}
@@ -0,0 +1,317 @@
+package net.kenevans.android.bleexplorer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the notification throughput of one characteristic over a matrix
+ * of link settings: MTU, PHY and connection priority. For each setting the
+ * link is given time to settle, then the notifications are counted for a
+ * fixed window with a {@link ThroughputMeter}, using the arrival times
+ * stamped on the {@link GattEventBus}.
+ * <p>
+ * The ATT MTU can only grow during a connection, so MTU is the outer loop
+ * and goes up from the current MTU, skipping the smaller ones. The MTU and
+ * PHY actually in effect are recorded with each result, since the peer may
+ * not agree to what was requested. The steps run on the Scheduler thread;
+ * the events are consumed on a thread of their own.
+ */
+public class ThroughputBenchmark {
+    private static final String TAG = ThroughputBenchmark.class
+            .getSimpleName();
+    /** The MTUs to try, in increasing order. */
+    public static final int[] MTUS = {23, 185, 247, 517};
+    /** The connection priorities to try. */
+    public static final int[] CONNECTION_PRIORITIES = {
+            GattClient.CONNECTION_PRIORITY_LOW_POWER,
+            GattClient.CONNECTION_PRIORITY_BALANCED,
+            GattClient.CONNECTION_PRIORITY_HIGH};
+    /** The time for the link to settle after a change, in ms. */
+    public static final long SETTLE_MS = 1500;
+    /** The length of each measurement, in ms. */
+    public static final long MEASURE_MS = 5000;
+
+    /**
+     * Receives the progress and the results. Called on the Scheduler thread.
+     */
+    public interface Listener {
+        void onProgress(int step, int total, Result config);
+
+        void onFinished(List<Result> results, boolean cancelled);
+    }
+
+    /**
+     * The settings and measurements for one step.
+     */
+    public static class Result {
+        public int requestedMtu;
+        public int phy;
+        public int connectionPriority;
+        public int mtu;
+        public int txPhy;
+        public int rxPhy;
+        public long count;
+        public long bytes;
+        public double rate;
+        public double byteRate;
+        public double meanIntervalMs;
+        public double jitterMs;
+        public double maxIntervalMs;
+    }
+
+    private final GattConnection mConnection;
+    private final Scheduler mScheduler;
+    private final GattCharacteristic mCharacteristic;
+    private final Listener mListener;
+    private final List<Result> mSteps = new ArrayList<>();
+    private final List<Result> mResults = new ArrayList<>();
+    private final ThroughputMeter mMeter = new ThroughputMeter();
+    private GattEventBus.Subscription mSubscription;
+    private Thread mThread;
+    private int mStep;
+    private long mWindowStartNanos;
+    private boolean mRunning;
+    /** Whether the notification was already enabled before the start. */
+    private boolean mWasSubscribed;
+
+    private final Runnable mStartWindow = this::startWindow;
+    private final Runnable mEndWindow = this::endWindow;
+
+    /**
+     * @param connection     The connection.
+     * @param scheduler      The Scheduler on which the steps run.
+     * @param characteristic The characteristic to measure. It must
+     *                       support notifications.
+     * @param le2MPhy        Whether to also try the LE 2M PHY.
+     * @param listener       The listener.
+     */
+    public ThroughputBenchmark(GattConnection connection,
+                               Scheduler scheduler,
+                               GattCharacteristic characteristic,
+                               boolean le2MPhy, Listener listener) {
+        mConnection = connection;
+        mScheduler = scheduler;
+        mCharacteristic = characteristic;
+        mListener = listener;
+        final int[] phys = le2MPhy ?
+                new int[]{GattClient.PHY_LE_1M,
+                        GattClient.PHY_LE_2M} :
+                new int[]{GattClient.PHY_LE_1M};
+        // The MTU cannot go down, so start at the current one
+        final int currentMtu = connection.getMtu();
+        final ArrayList<Integer> mtus = new ArrayList<>();
+        mtus.add(currentMtu);
+        for (int mtu : MTUS) {
+            if (mtu > currentMtu) mtus.add(mtu);
+        }
+        for (int mtu : mtus) {
+            for (int phy : phys) {
+                for (int priority : CONNECTION_PRIORITIES) {
+                    Result step = new Result();
+                    step.requestedMtu = mtu;
+                    step.phy = phy;
+                    step.connectionPriority = priority;
+                    mSteps.add(step);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the benchmark. Must be called on the Scheduler thread.
+     */
+    public void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mStep = 0;
+        mResults.clear();
+        mSubscription = mConnection.getEventBus().subscribe();
+        final GattEventBus.Subscription subscription = mSubscription;
+        final UUID uuid = mCharacteristic.getUuid();
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        final int instanceId = mCharacteristic.getInstanceId();
+        mThread = new Thread(() -> {
+            final GattEventBus.Event event = new GattEventBus.Event();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (!subscription.take(event, 1, TimeUnit.SECONDS)) {
+                        continue;
+                    }
+                    if (event.type == GattEventBus.TYPE_NOTIFICATION
+                            && event.uuidMsb == msb && event.uuidLsb == lsb
+                            && event.instanceId == instanceId) {
+                        mMeter.add(event.timestampNanos, event.length);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Stopped
+            }
+        }, "ThroughputBenchmark");
+        mThread.start();
+        mWasSubscribed = mConnection.isSubscribed(mCharacteristic);
+        if (!mWasSubscribed) {
+            mConnection.setCharacteristicNotification(mCharacteristic, true);
+        }
+        runStep();
+    }
+
+    /**
+     * Stops the benchmark. The listener gets the results so far.
+     */
+    public void cancel() {
+        if (!mRunning) return;
+        finish(true);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return The number of steps in the matrix.
+     */
+    public int getStepCount() {
+        return mSteps.size();
+    }
+
+    private void runStep() {
+        if (!mRunning) return;
+        if (mStep >= mSteps.size()) {
+            finish(false);
+            return;
+        }
+        if (!mConnection.isConnected()) {
+            Log.w(TAG, "Link lost, stopping");
+            finish(true);
+            return;
+        }
+        final Result step = mSteps.get(mStep);
+        if (mConnection.getMtu() < step.requestedMtu) {
+            mConnection.requestMtu(step.requestedMtu,
+                    GattOperationQueue.PRIORITY_INTERACTIVE);
+        }
+        mConnection.setPreferredPhy(step.phy);
+        mConnection.requestConnectionPriority(step.connectionPriority,
+                GattOperationQueue.PRIORITY_INTERACTIVE);
+        mListener.onProgress(mStep + 1, mSteps.size(), step);
+        mScheduler.postDelayed(mStartWindow, SETTLE_MS);
+    }
+
+    private void startWindow() {
+        mMeter.reset();
+        mWindowStartNanos = System.nanoTime();
+        mScheduler.postDelayed(mEndWindow, MEASURE_MS);
+    }
+
+    private void endWindow() {
+        final long elapsed = System.nanoTime() - mWindowStartNanos;
+        final Result step = mSteps.get(mStep);
+        final Result result = new Result();
+        result.requestedMtu = step.requestedMtu;
+        result.phy = step.phy;
+        result.connectionPriority = step.connectionPriority;
+        result.mtu = mConnection.getMtu();
+        result.txPhy = mConnection.getTxPhy();
+        result.rxPhy = mConnection.getRxPhy();
+        synchronized (mMeter) {
+            result.count = mMeter.getCount();
+            result.bytes = mMeter.getBytes();
+            result.rate = mMeter.getRate(elapsed);
+            result.byteRate = mMeter.getByteRate(elapsed);
+            result.meanIntervalMs = mMeter.getMeanIntervalNanos() * 1e-6;
+            result.jitterMs = mMeter.getJitterNanos() * 1e-6;
+            result.maxIntervalMs = mMeter.getMaxIntervalNanos() * 1e-6;
+        }
+        mResults.add(result);
+        Log.d(TAG, String.format(Locale.US,
+                "mtu=%d phy=%d priority=%d: %.1f/s %.0f B/s jitter=%.2f ms",
+                result.mtu, result.rxPhy, result.connectionPriority,
+                result.rate, result.byteRate, result.jitterMs));
+        mStep++;
+        runStep();
+    }
+
+    private void finish(boolean cancelled) {
+        mRunning = false;
+        mScheduler.removeCallbacks(mStartWindow);
+        mScheduler.removeCallbacks(mEndWindow);
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+        if (mSubscription != null) {
+            mSubscription.close();
+            mSubscription = null;
+        }
+        if (mConnection.isConnected()) {
+            if (!mWasSubscribed) {
+                mConnection.setCharacteristicNotification(mCharacteristic,
+                        false);
+            }
+            // Leave the link as the reconnect engine would have
+            mConnection.requestConnectionPriority(
+                    GattClient.CONNECTION_PRIORITY_HIGH,
+                    GattOperationQueue.PRIORITY_BACKGROUND);
+        }
+        mListener.onFinished(new ArrayList<>(mResults), cancelled);
+    }
+
+    /**
+     * Formats results as CSV with a header line.
+     *
+     * @param results The results.
+     * @return The CSV text.
+     */
+    public static String toCsv(List<Result> results) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("requestedMtu,mtu,phy,txPhy,rxPhy,connectionPriority," +
+                "notifications,bytes,notificationsPerSec,bytesPerSec," +
+                "meanIntervalMs,jitterMs,maxIntervalMs\n");
+        for (Result r : results) {
+            sb.append(String.format(Locale.US,
+                    "%d,%d,%d,%d,%d,%s,%d,%d,%.2f,%.1f,%.3f,%.3f,%.3f\n",
+                    r.requestedMtu, r.mtu, r.phy, r.txPhy, r.rxPhy,
+                    priorityName(r.connectionPriority), r.count, r.bytes,
+                    r.rate, r.byteRate, r.meanIntervalMs, r.jitterMs,
+                    r.maxIntervalMs));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Formats results as a table for display.
+     *
+     * @param results The results.
+     * @return The table.
+     */
+    public static String toTable(List<Result> results) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("MTU PHY Priority   N/s     B/s  Jitter ms\n");
+        for (Result r : results) {
+            sb.append(String.format(Locale.US,
+                    "%3d %dM  %-8s %5.1f %7.0f %8.2f\n", r.mtu, r.rxPhy,
+                    priorityName(r.connectionPriority), r.rate, r.byteRate,
+                    r.jitterMs));
+        }
+        return sb.toString();
+    }
+
+    public static String priorityName(int connectionPriority) {
+        switch (connectionPriority) {
+            case GattClient.CONNECTION_PRIORITY_BALANCED:
+                return "balanced";
+            case GattClient.CONNECTION_PRIORITY_HIGH:
+                return "high";
+            case GattClient.CONNECTION_PRIORITY_LOW_POWER:
+                return "low";
+            default:
+                return Integer.toString(connectionPriority);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.kenevans.android.bleexplorer;
+
+import java.util.Locale;
+
+/**
+ * Measures the rate of notifications on a link: notifications per second,
+ * payload bytes per second and the jitter of the inter-arrival time. The
+ * mean and variance of the intervals are kept with Welford's method, so
+ * each sample is O(1) and nothing is allocated.
+ * <p>
+ * Samples are added from one thread while another may reset or read the
+ * meter, so the methods are synchronized.
+ */
+public class ThroughputMeter {
+    private long mCount;
+    private long mBytes;
+    private long mFirstNanos;
+    private long mLastNanos;
+    private long mIntervalCount;
+    private double mMeanInterval;
+    private double mM2Interval;
+    private long mMaxInterval;
+
+    /**
+     * Adds a notification.
+     *
+     * @param timestampNanos When it arrived, in System.nanoTime() units.
+     * @param length         The payload length.
+     */
+    public synchronized void add(long timestampNanos, int length) {
+        if (mCount == 0) {
+            mFirstNanos = timestampNanos;
+        } else {
+            final long interval = timestampNanos - mLastNanos;
+            mIntervalCount++;
+            final double delta = interval - mMeanInterval;
+            mMeanInterval += delta / mIntervalCount;
+            mM2Interval += delta * (interval - mMeanInterval);
+            if (interval > mMaxInterval) mMaxInterval = interval;
+        }
+        mLastNanos = timestampNanos;
+        mCount++;
+        mBytes += length;
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mBytes = 0;
+        mFirstNanos = 0;
+        mLastNanos = 0;
+        mIntervalCount = 0;
+        mMeanInterval = 0;
+        mM2Interval = 0;
+        mMaxInterval = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @param elapsedNanos The length of the measurement window.
+     * @return Notifications per second over the window.
+     */
+    public synchronized double getRate(long elapsedNanos) {
+        return elapsedNanos <= 0 ? 0 : mCount * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @param elapsedNanos The length of the measurement window.
+     * @return Payload bytes per second over the window.
+     */
+    public synchronized double getByteRate(long elapsedNanos) {
+        return elapsedNanos <= 0 ? 0 : mBytes * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return The mean inter-arrival time in nanoseconds.
+     */
+    public synchronized double getMeanIntervalNanos() {
+        return mMeanInterval;
+    }
+
+    /**
+     * @return The standard deviation of the inter-arrival time, the jitter,
+     * in nanoseconds.
+     */
+    public synchronized double getJitterNanos() {
+        return mIntervalCount < 2 ? 0 :
+                Math.sqrt(mM2Interval / (mIntervalCount - 1));
+    }
+
+    /**
+     * @return The longest inter-arrival time in nanoseconds.
+     */
+    public synchronized long getMaxIntervalNanos() {
+        return mMaxInterval;
+    }
+
+    /**
+     * @return The time from the first to the last notification in
+     * nanoseconds.
+     */
+    public synchronized long getSpanNanos() {
+        return mCount == 0 ? 0 : mLastNanos - mFirstNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "count=%d bytes=%d meanInterval=%.2f ms jitter=%.2f ms " +
+                        "maxInterval=%.2f ms", mCount, mBytes,
+                mMeanInterval * 1e-6, getJitterNanos() * 1e-6,
+                mMaxInterval * 1e-6);
+    }
+}
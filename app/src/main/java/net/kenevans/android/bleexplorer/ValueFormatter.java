@@ -0,0 +1,84 @@
+package net.kenevans.android.bleexplorer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats characteristic values for display, using the decoders in a
+ * {@link DecoderRegistry} and a hex dump for anything else. An instance
+ * reuses its StringBuilder, so it should only be used from one thread, and
+ * the returned text is only valid until the next call.
+ */
+public class ValueFormatter {
+    private final StringBuilder mBuilder = new StringBuilder(256);
+    private final DecoderRegistry mRegistry;
+    private final String mUnknownCharacteristic;
+    private final boolean mShowHex;
+
+    /**
+     * @param unknownCharacteristic The name to use for characteristics that
+     *                              are not known.
+     * @param showHex               Whether to also show the raw bytes of
+     *                              values that are decoded.
+     */
+    public ValueFormatter(String unknownCharacteristic, boolean showHex) {
+        this(DecoderRegistry.getDefault(), unknownCharacteristic, showHex);
+    }
+
+    /**
+     * @param registry              The registry to find decoders in.
+     * @param unknownCharacteristic The name to use for characteristics that
+     *                              are not known.
+     * @param showHex               Whether to also show the raw bytes of
+     *                              values that are decoded.
+     */
+    public ValueFormatter(DecoderRegistry registry,
+                          String unknownCharacteristic, boolean showHex) {
+        mRegistry = registry;
+        mUnknownCharacteristic = unknownCharacteristic;
+        mShowHex = showHex;
+    }
+
+    /**
+     * Formats a value.
+     *
+     * @param uuidMsb The most significant bits of the characteristic UUID.
+     * @param uuidLsb The least significant bits of the characteristic UUID.
+     * @param value   The value. May be null.
+     * @param offset  The offset of the value.
+     * @param length  The length of the value.
+     * @return The text. This is reused by the next call.
+     */
+    public CharSequence format(long uuidMsb, long uuidLsb, byte[] value,
+                               int offset, int length) {
+        final StringBuilder sb = mBuilder;
+        sb.setLength(0);
+        final CharacteristicDecoder decoder =
+                mRegistry.get(uuidMsb, uuidLsb);
+        if (decoder != null && value != null) {
+            decoder.format(value, offset, length, sb);
+            appendDebugHex(sb, value, offset, length);
+        } else {
+            // For all other profiles, writes the data as a String and in HEX
+            sb.append(GattAttributes.lookup(uuidMsb, uuidLsb,
+                    mUnknownCharacteristic));
+            if (value != null && length > 0) {
+                sb.append('\n');
+                sb.append(new String(value, offset, length,
+                        StandardCharsets.UTF_8));
+                sb.append('\n');
+                DataFormatter.appendHex(sb, value, offset, length);
+            } else {
+                sb.append('\n').append(value == null ? "null" : "No data");
+            }
+        }
+        return sb;
+    }
+
+    private void appendDebugHex(StringBuilder sb, byte[] value, int offset,
+                                int length) {
+        if (mShowHex && value != null && length > 0) {
+            sb.append('\n');
+            DataFormatter.appendHex(sb, value, offset, length);
+        }
+    }
+}
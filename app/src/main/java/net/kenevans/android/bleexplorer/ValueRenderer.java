@@ -0,0 +1,271 @@
+package net.kenevans.android.bleexplorer;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Shows the latest value of each characteristic, redrawn at most once per
+ * display frame. Values are copied into a slot for their characteristic as
+ * they come, which replaces the previous one, and a Choreographer frame
+ * callback is posted if none is pending. The text is only formatted and
+ * laid out in the frame callback, and only for the slots that changed, so
+ * at 100+ Hz most values are never drawn.
+ * <p>
+ * A characteristic can be bound to a view of its own, like the tile of a
+ * subscription. The others are shown together in the default view.
+ * <p>
+ * All methods must be called on the UI thread.
+ */
+public class ValueRenderer implements Choreographer.FrameCallback {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final TextView mDefaultView;
+    private final ValueFormatter mFormatter;
+    private final Choreographer mChoreographer;
+    private final StringBuilder mText = new StringBuilder(256);
+
+    // The slots, one for each characteristic, in the order first seen
+    private long[] mUuidMsbs = new long[INITIAL_CAPACITY];
+    private long[] mUuidLsbs = new long[INITIAL_CAPACITY];
+    private int[] mInstanceIds = new int[INITIAL_CAPACITY];
+    private byte[][] mValues = new byte[INITIAL_CAPACITY][];
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+    /** The view of each slot, or null for the default view. */
+    private TextView[] mViews = new TextView[INITIAL_CAPACITY];
+    private boolean[] mChanged = new boolean[INITIAL_CAPACITY];
+    private int mCount;
+    private boolean mDefaultChanged;
+    private boolean mFramePending;
+
+    // Statistics
+    private long mNotifications;
+    private long mFrames;
+    private long mStartNanos;
+
+    /**
+     * @param view      The view to show the values that are not bound in.
+     * @param formatter Formats the values.
+     */
+    public ValueRenderer(TextView view, ValueFormatter formatter) {
+        mDefaultView = view;
+        mFormatter = formatter;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Sets the latest value of a characteristic. The value is copied.
+     *
+     * @param uuidMsb    The most significant bits of the UUID.
+     * @param uuidLsb    The least significant bits of the UUID.
+     * @param instanceId The instance ID of the characteristic.
+     * @param value      The value. May be null.
+     * @param offset     The offset of the value.
+     * @param length     The length of the value.
+     */
+    public void update(long uuidMsb, long uuidLsb, int instanceId,
+                       byte[] value, int offset, int length) {
+        if (mNotifications++ == 0) mStartNanos = System.nanoTime();
+        int slot = find(uuidMsb, uuidLsb, instanceId);
+        if (slot < 0) slot = add(uuidMsb, uuidLsb, instanceId);
+        final int n = value == null ? 0 :
+                Math.min(length, GattEventBus.MAX_VALUE_LENGTH);
+        if (n > 0) System.arraycopy(value, offset, mValues[slot], 0, n);
+        mLengths[slot] = n;
+        markChanged(slot);
+    }
+
+    private void markChanged(int slot) {
+        mChanged[slot] = true;
+        if (mViews[slot] == null) mDefaultChanged = true;
+        if (!mFramePending) {
+            mFramePending = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Shows the values of a characteristic in a view of its own. The view
+     * is not touched until a value comes.
+     *
+     * @param uuidMsb    The most significant bits of the UUID.
+     * @param uuidLsb    The least significant bits of the UUID.
+     * @param instanceId The instance ID of the characteristic.
+     * @param view       The view.
+     */
+    public void bind(long uuidMsb, long uuidLsb, int instanceId,
+                     TextView view) {
+        int slot = find(uuidMsb, uuidLsb, instanceId);
+        if (slot < 0) {
+            slot = add(uuidMsb, uuidLsb, instanceId);
+            mViews[slot] = view;
+            return;
+        }
+        // Move it from the default view, or the old view, to this one
+        if (mViews[slot] == null) mDefaultChanged = true;
+        mViews[slot] = view;
+        markChanged(slot);
+    }
+
+    /**
+     * Stops showing a characteristic and forgets its value.
+     *
+     * @param uuidMsb    The most significant bits of the UUID.
+     * @param uuidLsb    The least significant bits of the UUID.
+     * @param instanceId The instance ID of the characteristic.
+     */
+    public void remove(long uuidMsb, long uuidLsb, int instanceId) {
+        final int slot = find(uuidMsb, uuidLsb, instanceId);
+        if (slot >= 0) remove(slot);
+    }
+
+    private void remove(int slot) {
+        if (mViews[slot] == null) mDefaultChanged = true;
+        // Keep the order, and move the buffer to the end for reuse
+        final byte[] buffer = mValues[slot];
+        final int n = mCount - slot - 1;
+        System.arraycopy(mUuidMsbs, slot + 1, mUuidMsbs, slot, n);
+        System.arraycopy(mUuidLsbs, slot + 1, mUuidLsbs, slot, n);
+        System.arraycopy(mInstanceIds, slot + 1, mInstanceIds, slot, n);
+        System.arraycopy(mValues, slot + 1, mValues, slot, n);
+        System.arraycopy(mLengths, slot + 1, mLengths, slot, n);
+        System.arraycopy(mViews, slot + 1, mViews, slot, n);
+        System.arraycopy(mChanged, slot + 1, mChanged, slot, n);
+        mCount--;
+        mValues[mCount] = buffer;
+        mViews[mCount] = null;
+        mChanged[mCount] = false;
+    }
+
+    private int find(long uuidMsb, long uuidLsb, int instanceId) {
+        for (int i = 0; i < mCount; i++) {
+            if (mUuidLsbs[i] == uuidLsb && mUuidMsbs[i] == uuidMsb
+                    && mInstanceIds[i] == instanceId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int add(long uuidMsb, long uuidLsb, int instanceId) {
+        if (mCount == mUuidMsbs.length) {
+            final int capacity = 2 * mCount;
+            mUuidMsbs = Arrays.copyOf(mUuidMsbs, capacity);
+            mUuidLsbs = Arrays.copyOf(mUuidLsbs, capacity);
+            mInstanceIds = Arrays.copyOf(mInstanceIds, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+            mViews = Arrays.copyOf(mViews, capacity);
+            mChanged = Arrays.copyOf(mChanged, capacity);
+        }
+        final int slot = mCount++;
+        mUuidMsbs[slot] = uuidMsb;
+        mUuidLsbs[slot] = uuidLsb;
+        mInstanceIds[slot] = instanceId;
+        mLengths[slot] = 0;
+        mViews[slot] = null;
+        mChanged[slot] = false;
+        if (mValues[slot] == null) {
+            mValues[slot] = new byte[GattEventBus.MAX_VALUE_LENGTH];
+        }
+        return slot;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFramePending = false;
+        boolean drawn = false;
+        for (int i = 0; i < mCount; i++) {
+            if (!mChanged[i]) continue;
+            mChanged[i] = false;
+            if (mViews[i] != null) {
+                mViews[i].setText(mFormatter.format(mUuidMsbs[i],
+                        mUuidLsbs[i], mValues[i], 0, mLengths[i]));
+                drawn = true;
+            }
+        }
+        if (mDefaultChanged) {
+            mDefaultChanged = false;
+            final StringBuilder sb = mText;
+            sb.setLength(0);
+            for (int i = 0; i < mCount; i++) {
+                if (mViews[i] != null) continue;
+                if (sb.length() > 0) sb.append("\n\n");
+                sb.append(mFormatter.format(mUuidMsbs[i], mUuidLsbs[i],
+                        mValues[i], 0, mLengths[i]));
+            }
+            mDefaultView.setText(sb);
+            drawn = true;
+        }
+        if (drawn) mFrames++;
+    }
+
+    /**
+     * Forgets the values that are shown in the default view, so it can be
+     * used for something else. The bound ones are kept.
+     */
+    public void clear() {
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (mViews[i] == null) remove(i);
+        }
+        mDefaultChanged = false;
+        cancelFrameIfIdle();
+    }
+
+    /**
+     * Forgets all the values and bindings. The buffers are kept.
+     */
+    public void clearAll() {
+        while (mCount > 0) remove(mCount - 1);
+        mDefaultChanged = false;
+        cancelFrameIfIdle();
+    }
+
+    private void cancelFrameIfIdle() {
+        if (!mFramePending) return;
+        for (int i = 0; i < mCount; i++) {
+            if (mChanged[i]) return;
+        }
+        mFramePending = false;
+        mChoreographer.removeFrameCallback(this);
+    }
+
+    /**
+     * Resets the statistics.
+     */
+    public void resetStatistics() {
+        mNotifications = 0;
+        mFrames = 0;
+    }
+
+    /**
+     * @return The number of values received.
+     */
+    public long getNotificationCount() {
+        return mNotifications;
+    }
+
+    /**
+     * @return The number of times the view was redrawn.
+     */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return A summary for display.
+     */
+    public String getStatistics() {
+        final double seconds = mNotifications == 0 ? 0 :
+                (System.nanoTime() - mStartNanos) * 1e-9;
+        return String.format(Locale.US,
+                "Display: values=%d frames drawn=%d (%.1f%%) " +
+                        "%.1f values/s %.1f frames/s",
+                mNotifications, mFrames, mNotifications == 0 ? 0 :
+                        100. * mFrames / mNotifications,
+                seconds > 0 ? mNotifications / seconds : 0,
+                seconds > 0 ? mFrames / seconds : 0);
+    }
+}
@@ -0,0 +1,58 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parsing a scan record with {@link AdvertisementParser}, as the scan
+ * callback does for each result. The record is like a heart rate strap's:
+ * flags, service UUIDs, a name, the TX power, manufacturer and service
+ * data.
+ */
+@State(Scope.Thread)
+public class AdvertisementParserBenchmark {
+    private static final String NAME = "Polar H10 1234ABCD";
+
+    private final AdvertisementParser mParser = new AdvertisementParser();
+    private byte[] mRecord;
+
+    @Setup
+    public void setup() {
+        final byte[] name = NAME.getBytes(StandardCharsets.UTF_8);
+        final byte[] head = {2, 0x01, 0x06, 5, 0x03, 0x0d, 0x18, 0x0f, 0x18,
+                2, 0x0a, (byte) 0xfc, 5, (byte) 0xff, 0x6b, 0x00, 0x33, 0x1c,
+                4, 0x16, 0x0f, 0x18, 0x64};
+        mRecord = new byte[62];
+        System.arraycopy(head, 0, mRecord, 0, head.length);
+        mRecord[head.length] = (byte) (name.length + 1);
+        mRecord[head.length + 1] = 0x09;
+        System.arraycopy(name, 0, mRecord, head.length + 2, name.length);
+    }
+
+    @Benchmark
+    public int parse() {
+        return mParser.parse(mRecord);
+    }
+
+    /** What ScanResultTable.add does with a record for a known device. */
+    @Benchmark
+    public void parseAndMatchName(Blackhole bh) {
+        mParser.parse(mRecord);
+        bh.consume(mParser.nameStartsWith("Polar"));
+        bh.consume(mParser.nameEquals(NAME));
+        bh.consume(mParser.getTxPower());
+        bh.consume(mParser.getManufacturerId());
+    }
+
+    /** For comparison, making the name String every time. */
+    @Benchmark
+    public String parseAndGetName() {
+        mParser.parse(mRecord);
+        return mParser.getName();
+    }
+}
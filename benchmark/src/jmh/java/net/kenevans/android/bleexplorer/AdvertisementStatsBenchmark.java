@@ -0,0 +1,37 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Adding a scan result to {@link AdvertisementStats}, with the results
+ * spread over many devices as in a crowded room.
+ */
+@State(Scope.Thread)
+public class AdvertisementStatsBenchmark {
+    @Param({"100", "5000"})
+    public int devices;
+
+    private AdvertisementStats mStats;
+    private int mRow;
+    private long mTimestamp;
+
+    @Setup
+    public void setup() {
+        mStats = new AdvertisementStats(devices);
+        mTimestamp = 0;
+    }
+
+    @Benchmark
+    public int add() {
+        final int row = mRow;
+        mRow = row + 1 == devices ? 0 : row + 1;
+        // About 5000 results per second in all
+        mTimestamp += 200000;
+        mStats.add(row, mTimestamp, -40 - (row & 63));
+        return row;
+    }
+}
@@ -0,0 +1,73 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Loading {@link AssignedNumbers} and looking up names in it. The bytes
+ * allocated by load are about the memory footprint of the tables, and
+ * {@link #footprint} gives the estimate from the array sizes.
+ */
+@State(Scope.Thread)
+public class AssignedNumbersBenchmark {
+    private static final UUID HEART_RATE = UUID.fromString(
+            GattAttributes.HEART_RATE_MEASUREMENT);
+    private static final UUID CUSTOM = UUID.fromString(
+            GattAttributes.CUSTOM_MEASUREMENT);
+    private static final UUID UNKNOWN = UUID.fromString(
+            "6e400099-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private final AssignedNumbers mNumbers = AssignedNumbers.getDefault();
+
+    @Setup
+    public void setup() {
+        // Turn the names used below into Strings before measuring
+        mNumbers.getAttributeName(HEART_RATE.getMostSignificantBits(),
+                HEART_RATE.getLeastSignificantBits());
+        mNumbers.getAttributeName(CUSTOM.getMostSignificantBits(),
+                CUSTOM.getLeastSignificantBits());
+        mNumbers.getCompanyName(0x006B);
+    }
+
+    @Benchmark
+    public AssignedNumbers load() throws IOException {
+        try (InputStream in = AssignedNumbers.class.getResourceAsStream(
+                AssignedNumbers.RESOURCE)) {
+            return new AssignedNumbers(in);
+        }
+    }
+
+    @Benchmark
+    public long footprint() {
+        return mNumbers.getFootprintBytes();
+    }
+
+    @Benchmark
+    public String lookupSig() {
+        return mNumbers.getAttributeName(HEART_RATE.getMostSignificantBits(),
+                HEART_RATE.getLeastSignificantBits());
+    }
+
+    @Benchmark
+    public String lookupCustom() {
+        return mNumbers.getAttributeName(CUSTOM.getMostSignificantBits(),
+                CUSTOM.getLeastSignificantBits());
+    }
+
+    @Benchmark
+    public String lookupUnknown() {
+        return mNumbers.getAttributeName(UNKNOWN.getMostSignificantBits(),
+                UNKNOWN.getLeastSignificantBits());
+    }
+
+    @Benchmark
+    public String lookupCompany() {
+        return mNumbers.getCompanyName(0x006B);
+    }
+}
@@ -0,0 +1,75 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+
+/**
+ * Decoding and formatting of the Heart Rate Measurement and the HxM2
+ * Custom Measurement, as done for each notification, directly and through
+ * the {@link ValueFormatter} used by broadcastUpdate.
+ */
+@State(Scope.Thread)
+public class DecoderBenchmark {
+    /** HR 72 bpm, sensor contact, two R-R intervals. */
+    private final byte[] mHeartRate = {0x16, 72, 0x55, 0x03, 0x60, 0x03};
+    /** 16-bit HR 180 bpm, energy expended, four R-R intervals. */
+    private final byte[] mHeartRateFull = {0x19, (byte) 180, 0, 0x2C, 0x01,
+            0x55, 0x01, 0x50, 0x01, 0x4B, 0x01, 0x46, 0x01};
+    /** Activity and peak acceleration. */
+    private final byte[] mCustom = {0x03, 0x2C, 0x01, (byte) 0xF4, 0x01};
+
+    private final HeartRateMeasurement mHrm = new HeartRateMeasurement();
+    private final CustomMeasurement mCm = new CustomMeasurement();
+    private final CharacteristicDecoder mHrDecoder =
+            new HeartRateMeasurement.Decoder();
+    private final CharacteristicDecoder mCustomDecoder =
+            new CustomMeasurement.Decoder();
+    private final StringBuilder mBuilder = new StringBuilder(256);
+    private final ValueFormatter mFormatter =
+            new ValueFormatter("Unknown Characteristic", false);
+    private final UUID mHeartRateUuid = UUID.fromString(
+            GattAttributes.HEART_RATE_MEASUREMENT);
+
+    @Benchmark
+    public int parseHeartRate() {
+        mHrm.parse(mHeartRate, 0, mHeartRate.length);
+        return mHrm.getHeartRate() + mHrm.getRrCount();
+    }
+
+    @Benchmark
+    public int parseHeartRateFull() {
+        mHrm.parse(mHeartRateFull, 0, mHeartRateFull.length);
+        return mHrm.getHeartRate() + mHrm.getRrCount();
+    }
+
+    @Benchmark
+    public int parseCustom() {
+        mCm.parse(mCustom, 0, mCustom.length);
+        return mCm.getActivity() + mCm.getPeakAcceleration();
+    }
+
+    @Benchmark
+    public void formatHeartRate(Blackhole bh) {
+        mBuilder.setLength(0);
+        mHrDecoder.format(mHeartRate, 0, mHeartRate.length, mBuilder);
+        bh.consume(mBuilder);
+    }
+
+    @Benchmark
+    public void formatCustom(Blackhole bh) {
+        mBuilder.setLength(0);
+        mCustomDecoder.format(mCustom, 0, mCustom.length, mBuilder);
+        bh.consume(mBuilder);
+    }
+
+    @Benchmark
+    public void formatHeartRateValue(Blackhole bh) {
+        bh.consume(mFormatter.format(mHeartRateUuid.getMostSignificantBits(),
+                mHeartRateUuid.getLeastSignificantBits(), mHeartRate, 0,
+                mHeartRate.length));
+    }
+}
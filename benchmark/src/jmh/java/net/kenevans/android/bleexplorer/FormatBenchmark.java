@@ -0,0 +1,58 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+
+/**
+ * The text that GattConnection.broadcastUpdate puts in
+ * EXTRA_DATA for a characteristic without a decoder: the hex dump alone,
+ * and the whole {@link ValueFormatter} output with the name, ASCII and hex.
+ */
+@State(Scope.Thread)
+public class FormatBenchmark {
+    private static final UUID UNKNOWN = UUID.fromString(
+            "fb005c82-02e7-f387-1cad-8acd2d8df0c8");
+
+    /** 20 is the payload at the default MTU, 244 at an MTU of 247. */
+    @Param({"20", "244"})
+    public int length;
+
+    private byte[] mValue;
+    private final StringBuilder mBuilder = new StringBuilder(1024);
+    private final ValueFormatter mFormatter =
+            new ValueFormatter("Unknown Characteristic", false);
+
+    @Setup
+    public void setup() {
+        mValue = new byte[length];
+        for (int i = 0; i < length; i++) {
+            mValue[i] = (byte) (' ' + i % 95);
+        }
+    }
+
+    @Benchmark
+    public void appendHex(Blackhole bh) {
+        mBuilder.setLength(0);
+        bh.consume(DataFormatter.appendHex(mBuilder, mValue, 0, length));
+    }
+
+    @Benchmark
+    public void formatUnknown(Blackhole bh) {
+        bh.consume(mFormatter.format(UNKNOWN.getMostSignificantBits(),
+                UNKNOWN.getLeastSignificantBits(), mValue, 0, length));
+    }
+
+    /** Includes the toString that broadcastUpdate does for the Intent. */
+    @Benchmark
+    public String formatUnknownToString() {
+        return mFormatter.format(UNKNOWN.getMostSignificantBits(),
+                UNKNOWN.getLeastSignificantBits(), mValue, 0, length)
+                .toString();
+    }
+}
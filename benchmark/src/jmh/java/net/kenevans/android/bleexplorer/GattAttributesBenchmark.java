@@ -0,0 +1,53 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+
+/**
+ * {@link GattAttributes#lookup}, as called for each row of the service
+ * list and for each value without a decoder.
+ */
+@State(Scope.Thread)
+public class GattAttributesBenchmark {
+    private static final String DEFAULT = "Unknown";
+
+    private final String mKnown = GattAttributes.HEART_RATE_MEASUREMENT;
+    private final UUID mKnownUuid = UUID.fromString(mKnown);
+    /** Upper case, as some callers pass it. */
+    private final String mKnownUpper = GattAttributes.HEART_RATE_MEASUREMENT
+            .toUpperCase();
+    /** A SIG UUID that is not in the table. */
+    private final String mUnknownSig =
+            "00002bff-0000-1000-8000-00805f9b34fb";
+    /** A vendor UUID that is not in the table. */
+    private final String mUnknownVendor =
+            "6e400099-b5a3-f393-e0a9-e50e24dcca9e";
+
+    @Benchmark
+    public String lookupKnown() {
+        return GattAttributes.lookup(mKnown, DEFAULT);
+    }
+
+    @Benchmark
+    public String lookupKnownUpperCase() {
+        return GattAttributes.lookup(mKnownUpper, DEFAULT);
+    }
+
+    @Benchmark
+    public String lookupUnknownSig() {
+        return GattAttributes.lookup(mUnknownSig, DEFAULT);
+    }
+
+    @Benchmark
+    public String lookupUnknownVendor() {
+        return GattAttributes.lookup(mUnknownVendor, DEFAULT);
+    }
+
+    @Benchmark
+    public String lookupKnownUuid() {
+        return GattAttributes.lookup(mKnownUuid, DEFAULT);
+    }
+}
@@ -0,0 +1,70 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Downsampling a 10 minute window of 130 Hz ECG-like data with
+ * {@link Lttb} to the width of a phone screen. At 60 fps a frame has 16 ms.
+ * downsample chooses from the whole window, which is O(N) in the samples.
+ * incremental does what ChartView does for each frame: it adds the two
+ * samples that arrive in a frame, chooses from the buckets they complete,
+ * and downsamples the tail.
+ */
+@State(Scope.Thread)
+public class LttbBenchmark {
+    private static final int RATE_HZ = 130;
+    private static final int SAMPLES = 10 * 60 * RATE_HZ;
+    private static final long PERIOD_NANOS = 1000000000L / RATE_HZ;
+    private static final int TAIL_POINTS = 4;
+
+    @Param({"1080"})
+    public int width;
+
+    private SampleSeries mSeries;
+    private int[] mIndexes;
+    private Lttb.Incremental mChosen;
+    private final int[] mTail = new int[TAIL_POINTS];
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mSeries = new SampleSeries("ECG", SAMPLES);
+        for (mNext = 0; mNext < SAMPLES; mNext++) {
+            addSample();
+        }
+        mIndexes = new int[width];
+        mChosen = new Lttb.Incremental(width + 2);
+        mChosen.reset(SAMPLES * PERIOD_NANOS / width);
+        mChosen.update(mSeries);
+    }
+
+    private void addSample() {
+        // A spike once a second on a slow wave
+        final float spike = mNext % RATE_HZ == 0 ? 1000 : 0;
+        mSeries.add(mNext * PERIOD_NANOS,
+                (float) (100 * Math.sin(mNext * 0.01)) + spike);
+    }
+
+    @Benchmark
+    public int downsample() {
+        return Lttb.downsample(mSeries, 0, mSeries.size(), width, mIndexes);
+    }
+
+    @Benchmark
+    public int incremental() {
+        for (int i = 0; i < 2; i++, mNext++) {
+            addSample();
+        }
+        mChosen.update(mSeries);
+        final long start = (mNext - SAMPLES) * PERIOD_NANOS;
+        final int first = mChosen.indexOf(start);
+        final int tail = mSeries.indexOf(Math.max(start,
+                mChosen.getNextNanos()));
+        return mChosen.size() - first + Lttb.downsample(mSeries, tail,
+                mSeries.size() - tail, TAIL_POINTS, mTail);
+    }
+}
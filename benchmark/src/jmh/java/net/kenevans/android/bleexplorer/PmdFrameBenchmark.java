@@ -0,0 +1,84 @@
+package net.kenevans.android.bleexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing and tracking full PMD Data frames with {@link PmdFrame}, as
+ * PmdController does for each notification: 73 samples of 24-bit ECG, and
+ * 3-channel ACC delta compressed at 7 bits, as they come at a 232-byte MTU.
+ */
+@State(Scope.Thread)
+public class PmdFrameBenchmark {
+    private static final int ECG_SAMPLES = 73;
+    private static final int ACC_SAMPLES = 72;
+    private static final int DELTA_BITS = 7;
+
+    private final PmdFrame mFrame = new PmdFrame();
+    private byte[] mEcg;
+    private byte[] mAcc;
+    private long mTimestamp = 1000000000L;
+
+    @Setup
+    public void setup() {
+        mEcg = new byte[PmdFrame.HEADER_LENGTH + 3 * ECG_SAMPLES];
+        mEcg[0] = PmdFrame.TYPE_ECG;
+        for (int i = 0; i < ECG_SAMPLES; i++) {
+            final int uV = (int) (1000 * Math.sin(i * 0.05));
+            final int pos = PmdFrame.HEADER_LENGTH + 3 * i;
+            mEcg[pos] = (byte) uV;
+            mEcg[pos + 1] = (byte) (uV >> 8);
+            mEcg[pos + 2] = (byte) (uV >> 16);
+        }
+        // A 16-bit reference, then one block of deltas from -64 to 63
+        final int deltas = 3 * (ACC_SAMPLES - 1);
+        mAcc = new byte[PmdFrame.HEADER_LENGTH + 6 + 2
+                + (DELTA_BITS * deltas + 7) / 8];
+        mAcc[0] = PmdFrame.TYPE_ACC;
+        mAcc[9] = (byte) PmdFrame.FRAME_COMPRESSED;
+        int pos = PmdFrame.HEADER_LENGTH;
+        mAcc[pos + 4] = (byte) 1000;
+        mAcc[pos + 5] = (byte) (1000 >> 8);
+        pos += 6;
+        mAcc[pos++] = DELTA_BITS;
+        mAcc[pos++] = ACC_SAMPLES - 1;
+        long bits = 0;
+        int available = 0;
+        for (int i = 0; i < deltas; i++) {
+            bits |= (long) ((i * 37) & 0x7F) << available;
+            available += DELTA_BITS;
+            while (available >= 8) {
+                mAcc[pos++] = (byte) bits;
+                bits >>>= 8;
+                available -= 8;
+            }
+        }
+        if (available > 0) mAcc[pos] = (byte) bits;
+    }
+
+    private void setTimestamp(byte[] frame) {
+        // About a frame of 130 Hz later, as from a sensor
+        mTimestamp += 561538461L;
+        for (int i = 0; i < 8; i++) {
+            frame[1 + i] = (byte) (mTimestamp >> (8 * i));
+        }
+    }
+
+    @Benchmark
+    public int parseEcg() {
+        setTimestamp(mEcg);
+        mFrame.parse(mEcg, 0, mEcg.length);
+        mFrame.track();
+        return mFrame.getSample(ECG_SAMPLES - 1, 0);
+    }
+
+    @Benchmark
+    public int parseCompressedAcc() {
+        setTimestamp(mAcc);
+        mFrame.parse(mAcc, 0, mAcc.length);
+        mFrame.track();
+        return mFrame.getSample(ACC_SAMPLES - 1, 2);
+    }
+}
@@ -0,0 +1,64 @@
+package android.util;
+
+/**
+ * Stands in for the Android Log on a plain JVM, so the app classes the load
+ * test compiles can log. Messages below the level set with the
+ * loadtest.log system property, which is W by default, are dropped.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String LEVELS = "??VDIWE";
+    private static final int LEVEL = Math.max(VERBOSE,
+            LEVELS.indexOf(System.getProperty("loadtest.log", "W")));
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= LEVEL;
+    }
+
+    private static int println(int level, String tag, String msg,
+                               Throwable tr) {
+        if (level < LEVEL) return 0;
+        final String line = LEVELS.charAt(level) + "/" + tag + ": " + msg;
+        synchronized (Log.class) {
+            System.err.println(line);
+            if (tr != null) tr.printStackTrace();
+        }
+        return line.length();
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg, null);
+    }
+
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg, null);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+}
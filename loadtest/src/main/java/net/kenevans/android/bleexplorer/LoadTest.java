@@ -0,0 +1,498 @@
+package net.kenevans.android.bleexplorer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link GattConnection}s to {@link SimulatedPeripheral}s on a plain
+ * JVM, at several times real-world rates, and checks that nothing is lost
+ * on the way from the client callback to the consumers. Run with
+ * <pre>
+ *     ./gradlew :loadtest:run --args='-devices 8 -seconds 30 -speed 10'
+ * </pre>
+ * Each device streams Heart Rate, Custom Measurement and Battery
+ * notifications and the PMD ECG and ACC streams. The connections are
+ * called on an {@link ExecutorScheduler}, as the service calls them on the
+ * main thread, the service tables go through a {@link GattServiceCache} in
+ * a temporary directory, and every value is formatted as for a data
+ * broadcast. Each event bus also has a consumer, as the UI would.
+ * <p>
+ * The other options are -loss, the probability that a notification is
+ * lost, and -drop, the time in ms after which each link drops, which
+ * exercises the {@link ReconnectEngine}. The process exits with 1 if a
+ * check fails.
+ */
+public class LoadTest implements GattConnection.Host {
+    private static final long CONNECT_TIMEOUT_MS = 15000;
+    private static final long REPORT_INTERVAL_MS = 5000;
+    /** The time for the streams to start before measuring, in ms. */
+    private static final long SETTLE_MS = 2000;
+    /**
+     * Notifications the client may not have received yet when the counts
+     * are compared, as a fraction of those sent.
+     */
+    private static final double IN_FLIGHT_SLACK = 0.01;
+    private static final UUID[] SUBSCRIBED = {
+            SimulatedPeripheral.UUID_HEART_RATE_MEASUREMENT,
+            SimulatedPeripheral.UUID_CUSTOM_MEASUREMENT,
+            SimulatedPeripheral.UUID_BATTERY_LEVEL};
+
+    private int mDevices = 8;
+    private int mSeconds = 30;
+    private double mSpeed = 10;
+    private double mLoss;
+    private long mDropMs;
+
+    private final Scheduler mMain = new ExecutorScheduler("Main");
+    private final ExecutorService mCacheExecutor =
+            Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "Cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private File mCacheDir;
+    private GattServiceCache mServiceCache;
+    private final List<GattConnection> mConnections = new ArrayList<>();
+    private final List<Consumer> mConsumers = new ArrayList<>();
+    /** The peripherals by address. Guarded by itself. */
+    private final HashMap<String, SimulatedPeripheral> mPeripherals =
+            new HashMap<>();
+    private final AtomicLong mConnectedCount = new AtomicLong();
+    private final AtomicLong mDisconnectedCount = new AtomicLong();
+    private final AtomicLong mDiscoveredCount = new AtomicLong();
+    private final AtomicLong mDecodedCount = new AtomicLong();
+    private final AtomicLong mDecodedChars = new AtomicLong();
+
+    private final GattClient.Factory mFactory = (address, callback) -> {
+        final SimulatedPeripheral.Config config =
+                new SimulatedPeripheral.Config();
+        config.speed = mSpeed;
+        config.loss = mLoss;
+        config.linkDropIntervalMs = mDropMs;
+        config.seed = address.hashCode();
+        final SimulatedPeripheral peripheral =
+                new SimulatedPeripheral(address, config, callback);
+        synchronized (mPeripherals) {
+            mPeripherals.put(address, peripheral);
+        }
+        peripheral.connect();
+        return peripheral;
+    };
+
+    /**
+     * Consumes the event bus of a connection on a thread of its own, and
+     * measures how long the events waited.
+     */
+    private static class Consumer extends Thread {
+        final GattEventBus.Subscription subscription;
+        volatile boolean running = true;
+        volatile long count;
+        volatile long totalDelayNanos;
+        volatile long maxDelayNanos;
+
+        Consumer(GattConnection connection) {
+            super("Consumer " + connection.getAddress());
+            setDaemon(true);
+            subscription = connection.getEventBus().subscribe();
+        }
+
+        @Override
+        public void run() {
+            final GattEventBus.Event event = new GattEventBus.Event();
+            try {
+                while (running) {
+                    if (!subscription.take(event, 1, TimeUnit.SECONDS)) {
+                        continue;
+                    }
+                    final long delay = System.nanoTime()
+                            - event.timestampNanos;
+                    count++;
+                    totalDelayNanos += delay;
+                    if (delay > maxDelayNanos) maxDelayNanos = delay;
+                }
+            } catch (InterruptedException ex) {
+                // Done
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadTest test = new LoadTest();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "-devices":
+                    test.mDevices = Integer.parseInt(value);
+                    break;
+                case "-seconds":
+                    test.mSeconds = Integer.parseInt(value);
+                    break;
+                case "-speed":
+                    test.mSpeed = Double.parseDouble(value);
+                    break;
+                case "-loss":
+                    test.mLoss = Double.parseDouble(value);
+                    break;
+                case "-drop":
+                    test.mDropMs = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    /**
+     * @return If all the checks passed.
+     */
+    private boolean run() throws Exception {
+        System.out.printf(Locale.US,
+                "%d devices for %d s at %.1fx, loss=%.3f drop=%d ms%n",
+                mDevices, mSeconds, mSpeed, mLoss, mDropMs);
+        mCacheDir = Files.createTempDirectory("loadtest").toFile();
+        mServiceCache = new GattServiceCache(mCacheDir);
+        onMain(() -> {
+            for (int i = 1; i <= mDevices; i++) {
+                final String address = SimulatedPeripheral.ADDRESS_PREFIX
+                        + String.format(Locale.US, "%02X", i);
+                final GattConnection connection =
+                        new GattConnection(this, mMain, address);
+                mConnections.add(connection);
+                mCacheExecutor.execute(
+                        () -> connection.loadServiceCache(mServiceCache));
+                final Consumer consumer = new Consumer(connection);
+                mConsumers.add(consumer);
+                consumer.start();
+                connection.onConnectRequested();
+                connect(connection);
+            }
+        });
+
+        Thread.sleep(SETTLE_MS);
+        final long[] sent0 = new long[mDevices];
+        final long[] received0 = new long[mDevices];
+        snapshot(sent0, received0);
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(mSeconds);
+        long lastNanos = start;
+        long lastEvents = getConsumedCount();
+        long lastDecoded = mDecodedCount.get();
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(REPORT_INTERVAL_MS, Math.max(1,
+                    TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            final long now = System.nanoTime();
+            final long events = getConsumedCount();
+            final long decoded = mDecodedCount.get();
+            final double seconds = (now - lastNanos) * 1e-9;
+            System.out.printf(Locale.US,
+                    "%5.1f s: %8.1f events/s %8.1f decoded/s, " +
+                            "%d connected%n", (now - start) * 1e-9,
+                    (events - lastEvents) / seconds,
+                    (decoded - lastDecoded) / seconds, getConnected());
+            lastNanos = now;
+            lastEvents = events;
+            lastDecoded = decoded;
+        }
+        final long[] sent = new long[mDevices];
+        final long[] received = new long[mDevices];
+        snapshot(sent, received);
+        final double elapsed = (System.nanoTime() - start) * 1e-9;
+
+        final List<String> failures = new ArrayList<>();
+        onMain(() -> check(sent0, received0, sent, received, elapsed,
+                failures));
+        onMain(this::closeAll);
+        mMain.quit();
+        mCacheExecutor.shutdown();
+        deleteCache();
+
+        if (failures.isEmpty()) {
+            System.out.println("PASSED");
+            return true;
+        }
+        System.out.println("FAILED");
+        for (String failure : failures) {
+            System.out.println("  " + failure);
+        }
+        return false;
+    }
+
+    /**
+     * Runs a task on the main scheduler and waits for it.
+     */
+    private void onMain(Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mMain.post(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    /**
+     * Gets the notifications the peripherals sent and the values the
+     * connections received so far.
+     */
+    private void snapshot(long[] sent, long[] received) {
+        for (int i = 0; i < mDevices; i++) {
+            final GattConnection connection = mConnections.get(i);
+            final SimulatedPeripheral peripheral;
+            synchronized (mPeripherals) {
+                peripheral = mPeripherals.get(connection.getAddress());
+            }
+            // Received first, so it cannot be ahead of sent
+            received[i] = connection.getNotificationCount();
+            sent[i] = peripheral == null ? 0 : peripheral.getSentCount();
+        }
+    }
+
+    private long getConsumedCount() {
+        long count = 0;
+        for (Consumer consumer : mConsumers) {
+            count += consumer.count;
+        }
+        return count;
+    }
+
+    private int getConnected() {
+        int connected = 0;
+        for (GattConnection connection : mConnections) {
+            if (connection.isConnected()) connected++;
+        }
+        return connected;
+    }
+
+    /**
+     * Prints the results and adds the checks that failed. Called on the
+     * main scheduler.
+     */
+    private void check(long[] sent0, long[] received0, long[] sent,
+                       long[] received, double elapsed,
+                       List<String> failures) {
+        long totalSent = 0;
+        long totalReceived = 0;
+        for (int i = 0; i < mDevices; i++) {
+            final GattConnection connection = mConnections.get(i);
+            final Consumer consumer = mConsumers.get(i);
+            final String address = connection.getAddress();
+            final GattOperationQueue queue = connection.getOperationQueue();
+            final PmdController pmd = connection.getPmdController();
+            final long deviceSent = sent[i] - sent0[i];
+            final long deviceReceived = received[i] - received0[i];
+            totalSent += deviceSent;
+            totalReceived += deviceReceived;
+            System.out.printf(Locale.US,
+                    "%s: mtu=%d sent=%d received=%d consumed=%d " +
+                            "delay avg=%.2f max=%.2f ms%n  %s%n  %s%n" +
+                            "  HRV beats=%d%n  %s%n  %s%n",
+                    address, connection.getMtu(), deviceSent,
+                    deviceReceived, consumer.count,
+                    consumer.count == 0 ? 0 :
+                            consumer.totalDelayNanos * 1e-6 / consumer.count,
+                    consumer.maxDelayNanos * 1e-6, queue.getStatistics(),
+                    connection.getDecodeStage().getStatistics(),
+                    connection.getHrvAnalyzer().getBeatCount(),
+                    pmd.getStatistics().replace("\n", "\n  "),
+                    connection.getReconnectEngine().getStatistics());
+
+            if (mDropMs == 0 && !connection.isConnected()) {
+                failures.add(address + ": not connected");
+            }
+            if (deviceSent == 0) {
+                failures.add(address + ": nothing sent");
+            }
+            if (deviceReceived < deviceSent
+                    - Math.max(1, (long) (IN_FLIGHT_SLACK * deviceSent))) {
+                failures.add(String.format(Locale.US,
+                        "%s: received %d of %d notifications", address,
+                        deviceReceived, deviceSent));
+            }
+            if (connection.getEventBus().getDroppedCount() > 0
+                    || consumer.subscription.getDroppedCount() > 0) {
+                failures.add(String.format(Locale.US,
+                        "%s: event bus dropped %d, consumer dropped %d",
+                        address, connection.getEventBus().getDroppedCount(),
+                        consumer.subscription.getDroppedCount()));
+            }
+            if (queue.getTimeoutCount() > 0 || queue.getFailedCount() > 0) {
+                failures.add(String.format(Locale.US,
+                        "%s: %d operations failed, %d timed out", address,
+                        queue.getFailedCount(), queue.getTimeoutCount()));
+            }
+            if (connection.getHrvAnalyzer().getBeatCount() == 0) {
+                failures.add(address + ": no HRV beats");
+            }
+            if (mDropMs == 0) {
+                for (int type : new int[]{PmdFrame.TYPE_ECG,
+                        PmdFrame.TYPE_ACC}) {
+                    if (pmd.getState(type)
+                            != PmdController.STATE_STREAMING) {
+                        failures.add(address + ": PMD "
+                                + PmdFrame.getTypeName(type) + " "
+                                + PmdController.getStateName(
+                                pmd.getState(type)));
+                    }
+                }
+            }
+        }
+        System.out.printf(Locale.US,
+                "Total: sent=%d received=%d %.1f values/s decoded=%d " +
+                        "(%d chars) connects=%d disconnects=%d " +
+                        "discoveries=%d%n", totalSent, totalReceived,
+                totalReceived / elapsed, mDecodedCount.get(),
+                mDecodedChars.get(), mConnectedCount.get(),
+                mDisconnectedCount.get(), mDiscoveredCount.get());
+        if (mDropMs > 0 && mConnectedCount.get() <= mDevices) {
+            failures.add("No reconnects after the links dropped");
+        }
+    }
+
+    private void closeAll() {
+        for (GattConnection connection : mConnections) {
+            connection.close();
+        }
+        for (Consumer consumer : mConsumers) {
+            consumer.running = false;
+            consumer.subscription.close();
+        }
+    }
+
+    private void deleteCache() {
+        final File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) file.deleteOnExit();
+            }
+        }
+        if (!mCacheDir.delete()) mCacheDir.deleteOnExit();
+    }
+
+    /**
+     * Starts a connection attempt, as the service does when a pending
+     * connection slot is free. Called on the main scheduler.
+     */
+    private void connect(GattConnection connection) {
+        if (connection.getConnectionState()
+                != GattClient.STATE_DISCONNECTED) {
+            return;
+        }
+        connection.setQueued();
+        if (!connection.startConnect(mFactory, CONNECT_TIMEOUT_MS)) {
+            connection.onConnectFailed();
+        }
+    }
+
+    /**
+     * Subscribes to the streams, unless already subscribed from the last
+     * link, and starts PMD. Called on the main scheduler.
+     */
+    private void onServicesDiscovered(GattConnection connection) {
+        final List<GattService> services =
+                connection.getSupportedGattServices();
+        if (services == null) return;
+        for (GattService service : services) {
+            for (GattCharacteristic characteristic :
+                    service.getCharacteristics()) {
+                for (UUID uuid : SUBSCRIBED) {
+                    if (uuid.equals(characteristic.getUuid())
+                            && !connection.isSubscribed(characteristic)) {
+                        connection.setCharacteristicNotification(
+                                characteristic, true);
+                    }
+                }
+            }
+        }
+        connection.getPmdController().start(PmdFrame.TYPE_ECG);
+        connection.getPmdController().start(PmdFrame.TYPE_ACC);
+    }
+
+    @Override
+    public void onConnectionEvent(final GattConnection connection,
+                                  int event) {
+        switch (event) {
+            case EVENT_CONNECTED:
+                mConnectedCount.incrementAndGet();
+                break;
+            case EVENT_DISCONNECTED:
+                mDisconnectedCount.incrementAndGet();
+                break;
+            case EVENT_SERVICES_DISCOVERED:
+                mDiscoveredCount.incrementAndGet();
+                mMain.post(() -> onServicesDiscovered(connection));
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void reconnect(GattConnection connection) {
+        connect(connection);
+    }
+
+    @Override
+    public void onConnectAttemptFinished(GattConnection connection) {
+        // The attempts are not limited
+    }
+
+    @Override
+    public DecodeStage.Policy getDecodePolicy() {
+        return DecodeStage.Policy.LATEST;
+    }
+
+    @Override
+    public boolean isDataBroadcastsEnabled() {
+        return true;
+    }
+
+    @Override
+    public DecodeStage.Decoder newDataBroadcaster(
+            final GattConnection connection) {
+        // Formats each value as the service does, but only counts it
+        return new DecodeStage.Decoder() {
+            private ValueFormatter mValueFormatter;
+
+            @Override
+            public void decode(DecodeStage.Item item) {
+                if (mValueFormatter == null) {
+                    mValueFormatter = new ValueFormatter(
+                            connection.getDecoderRegistry(), "Unknown",
+                            false);
+                }
+                mDecodedChars.addAndGet(mValueFormatter.format(item.uuidMsb,
+                        item.uuidLsb, item.value, 0, item.length).length());
+                mDecodedCount.incrementAndGet();
+            }
+        };
+    }
+
+    @Override
+    public void writeServiceCache(final String address, final byte[] table) {
+        mCacheExecutor.execute(() -> mServiceCache.write(address, table));
+    }
+
+    @Override
+    public void deleteServiceCache(final String address) {
+        mCacheExecutor.execute(() -> mServiceCache.delete(address));
+    }
+
+    @Override
+    public void executeOnCacheThread(Runnable task) {
+        mCacheExecutor.execute(task);
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compiles the Bluetooth SIG assigned numbers, in the YAML format the SIG
+ * publishes in its public assigned_numbers repository, into the binary
+ * table read by net.kenevans.android.bleexplorer.AssignedNumbers. Run it
+ * from the top of the tree with
+ * <pre>
+ *     java tools/AssignedNumbersCompiler.java tools/assigned_numbers \
+ *         app/src/main/resources/net/kenevans/android/bleexplorer/assigned_numbers.bin
+ * </pre>
+ * The input directory has the SIG files service_uuids.yaml,
+ * member_uuids.yaml, characteristic_uuids.yaml, descriptors.yaml,
+ * units.yaml and company_identifiers.yaml, which can be replaced by newer
+ * ones as they are, and custom_uuids.yaml for vendor 128-bit UUIDs. Missing
+ * files give empty tables.
+ * <p>
+ * The output is little endian:
+ * <pre>
+ * int magic "BLAN", short version, short number of tables
+ * for each table:
+ *     byte kind, byte key size (2 or 16), short reserved, int count
+ *     the keys, sorted, as unsigned shorts or msb, lsb long pairs
+ *     int[count] the end of each name in the name data
+ *     int length of the name data, the names in UTF-8
+ * </pre>
+ */
+public class AssignedNumbersCompiler {
+    static final int MAGIC = 0x4e414c42;
+    static final int VERSION = 1;
+    // Must match AssignedNumbers
+    static final int KIND_SERVICE = 0;
+    static final int KIND_CHARACTERISTIC = 1;
+    static final int KIND_DESCRIPTOR = 2;
+    static final int KIND_UNIT = 3;
+    static final int KIND_COMPANY = 4;
+    static final int KIND_CUSTOM = 5;
+
+    static class Entry {
+        long msb;
+        long lsb;
+        String name;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: AssignedNumbersCompiler inputDir "
+                    + "outputFile");
+            System.exit(1);
+        }
+        final File dir = new File(args[0]);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<List<Entry>> tables = new ArrayList<>();
+        final int[] kinds = {KIND_SERVICE, KIND_CHARACTERISTIC,
+                KIND_DESCRIPTOR, KIND_UNIT, KIND_COMPANY, KIND_CUSTOM};
+        final List<Entry> services = read(new File(dir,
+                "service_uuids.yaml"), "uuid");
+        services.addAll(read(new File(dir, "member_uuids.yaml"), "uuid"));
+        tables.add(services);
+        tables.add(read(new File(dir, "characteristic_uuids.yaml"), "uuid"));
+        tables.add(read(new File(dir, "descriptors.yaml"), "uuid"));
+        tables.add(read(new File(dir, "units.yaml"), "uuid"));
+        tables.add(read(new File(dir, "company_identifiers.yaml"), "value"));
+        tables.add(read(new File(dir, "custom_uuids.yaml"), "uuid"));
+
+        write(bytes, le(8).putInt(MAGIC).putShort((short) VERSION)
+                .putShort((short) tables.size()));
+        for (int i = 0; i < tables.size(); i++) {
+            writeTable(bytes, kinds[i], tables.get(i));
+        }
+        try (OutputStream out = new FileOutputStream(args[1])) {
+            bytes.writeTo(out);
+        }
+        System.out.println("Wrote " + bytes.size() + " bytes to " + args[1]);
+    }
+
+    private static ByteBuffer le(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer buffer) {
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static void writeTable(ByteArrayOutputStream out, int kind,
+                                   List<Entry> entries) throws IOException {
+        final boolean wide = kind == KIND_CUSTOM;
+        entries.sort(Comparator.<Entry>comparingLong(e -> e.msb)
+                .thenComparingLong(e -> e.lsb));
+        // Drop duplicates, keeping the first
+        for (int i = entries.size() - 1; i > 0; i--) {
+            final Entry a = entries.get(i - 1);
+            final Entry b = entries.get(i);
+            if (a.msb == b.msb && a.lsb == b.lsb) entries.remove(i);
+        }
+        final int n = entries.size();
+        final ByteBuffer keys = le(n * (wide ? 16 : 2));
+        final ByteBuffer ends = le(4 * n);
+        final ByteArrayOutputStream names = new ByteArrayOutputStream();
+        for (Entry entry : entries) {
+            if (wide) {
+                keys.putLong(entry.msb).putLong(entry.lsb);
+            } else {
+                keys.putShort((short) entry.lsb);
+            }
+            names.write(entry.name.getBytes(StandardCharsets.UTF_8));
+            ends.putInt(names.size());
+        }
+        write(out, le(8).put((byte) kind).put((byte) (wide ? 16 : 2))
+                .putShort((short) 0).putInt(n));
+        write(out, keys);
+        write(out, ends);
+        write(out, le(4).putInt(names.size()));
+        names.writeTo(out);
+        System.out.println("Kind " + kind + ": " + n + " entries");
+    }
+
+    /**
+     * Reads the entries of a SIG YAML file. Only the key and name of each
+     * list item are used. 16-bit keys are kept in the lsb.
+     */
+    private static List<Entry> read(File file, String keyName)
+            throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) {
+            System.out.println("Not found: " + file);
+            return entries;
+        }
+        final String keyPrefix = "- " + keyName + ":";
+        Entry entry = null;
+        for (String line : Files.readAllLines(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            final String trimmed = line.trim();
+            if (trimmed.startsWith(keyPrefix)) {
+                entry = new Entry();
+                final String key = unquote(trimmed.substring(
+                        keyPrefix.length()));
+                if (key.length() == 36) {
+                    final UUID uuid = UUID.fromString(key);
+                    entry.msb = uuid.getMostSignificantBits();
+                    entry.lsb = uuid.getLeastSignificantBits();
+                } else {
+                    entry.lsb = Integer.decode(key) & 0xffff;
+                }
+            } else if (trimmed.startsWith("name:") && entry != null) {
+                entry.name = unquote(trimmed.substring(5));
+                entries.add(entry);
+                entry = null;
+            }
+        }
+        return entries;
+    }
+
+    private static String unquote(String value) {
+        String s = value.trim();
+        if (s.length() >= 2 && s.charAt(0) == '\''
+                && s.charAt(s.length() - 1) == '\'') {
+            s = s.substring(1, s.length() - 1).replace("''", "'");
+        } else if (s.length() >= 2 && s.charAt(0) == '"'
+                && s.charAt(s.length() - 1) == '"') {
+            s = s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+}